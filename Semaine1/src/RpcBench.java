@@ -0,0 +1,184 @@
+import common.Node;
+import common.RpcClient;
+import common.RpcServer;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Request/response throughput and latency on localhost, at 1 to 1024 requests in flight:
+ *  - socket: the NetworkClient / NetworkServer way, one connection per message (connect, send
+ *    one line, read one line back, close) against a server that handles one accepted socket at
+ *    a time; one client thread per request in flight;
+ *  - rpc: RpcClient / RpcServer, every request on one persistent connection, matched by id,
+ *    handlers run on the server's pool; each call starts the next one when it completes, a
+ *    failed call stops its chain.
+ * The handler echoes the request after workMs of sleep (0: none).
+ *
+ * Prints requests/s, latency p50 / p99 (ms) and errors (failed or timed out calls) per run.
+ *
+ * Run (from Semaine1):
+ *   javac -encoding UTF-8 -d ../out/production/Semaine1 $(find src -name '*.java')
+ *   java -cp ../out/production/Semaine1 RpcBench [seconds] [workMs] [levels, e.g. 1,4,16,64,256,1024]
+ */
+public class RpcBench {
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length >= 1 ? Integer.parseInt(args[0]) : 2;
+        int workMs = args.length >= 2 ? Integer.parseInt(args[1]) : 0;
+        String levels = args.length >= 3 ? args[2] : "1,4,16,64,256,1024";
+        PrintStream report = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // servers print when they start
+
+        report.printf("%-7s %8s %11s %8s %8s %7s%n", "mode", "inflight", "requests/s", "p50_ms", "p99_ms", "errors");
+        try {
+            run("socket", 4, 1, workMs); // warm-up
+            run("rpc", 4, 1, workMs);
+            for (String level : levels.split(",")) {
+                int inflight = Integer.parseInt(level.trim());
+                for (String mode : new String[]{"socket", "rpc"}) {
+                    report.println(run(mode, inflight, seconds, workMs));
+                }
+            }
+        } finally {
+            System.setOut(report);
+        }
+    }
+
+    private static String run(String mode, int inflight, int seconds, int workMs) throws Exception {
+        int port = freePort();
+        Node node = new Node(1, "127.0.0.1", port);
+        ConcurrentLinkedQueue<Long> latencies = new ConcurrentLinkedQueue<>();
+        AtomicLong errors = new AtomicLong();
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        long t0 = System.nanoTime();
+
+        if (mode.equals("socket")) {
+            OneShotServer server = new OneShotServer(port, workMs);
+            server.start();
+            Thread.sleep(200);
+            List<Thread> clients = new ArrayList<>();
+            for (int i = 0; i < inflight; i++) {
+                Thread client = new Thread(() -> {
+                    while (System.nanoTime() < deadline) {
+                        long start = System.nanoTime();
+                        try (Socket socket = new Socket(node.ip, node.port)) {
+                            PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+                            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                            out.println("ping");
+                            if (in.readLine() == null) throw new EOFException();
+                            latencies.add(System.nanoTime() - start);
+                        } catch (IOException e) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                });
+                client.start();
+                clients.add(client);
+            }
+            for (Thread client : clients) client.join();
+            server.shutdown();
+        } else {
+            RpcServer server = new RpcServer(port, request -> {
+                if (workMs > 0) {
+                    try {
+                        Thread.sleep(workMs);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return request;
+            });
+            server.start();
+            Thread.sleep(200);
+            try (RpcClient client = new RpcClient()) {
+                Object lock = new Object();
+                AtomicLong running = new AtomicLong(inflight);
+                for (int i = 0; i < inflight; i++) next(client, node, deadline, latencies, errors, running, lock);
+                synchronized (lock) {
+                    while (running.get() > 0) lock.wait();
+                }
+            }
+            server.shutdown();
+        }
+        long elapsed = System.nanoTime() - t0;
+
+        long[] sorted = latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+        return String.format("%-7s %8d %11d %8.2f %8.2f %7d", mode, inflight,
+                Math.round(sorted.length * 1e9 / elapsed), millis(sorted, 0.50), millis(sorted, 0.99), errors.get());
+    }
+
+    /** One call; its completion starts the next one until the deadline (or an error ends the chain). */
+    private static void next(RpcClient client, Node node, long deadline, ConcurrentLinkedQueue<Long> latencies,
+                             AtomicLong errors, AtomicLong running, Object lock) {
+        if (System.nanoTime() >= deadline) {
+            if (running.decrementAndGet() == 0) {
+                synchronized (lock) {
+                    lock.notifyAll();
+                }
+            }
+            return;
+        }
+        long start = System.nanoTime();
+        client.call(node, "ping").whenComplete((response, error) -> {
+            if (error == null) {
+                latencies.add(System.nanoTime() - start);
+                next(client, node, deadline, latencies, errors, running, lock);
+            } else {
+                errors.incrementAndGet();
+                next(client, node, 0, latencies, errors, running, lock); // ends this chain
+            }
+        });
+    }
+
+    /** NetworkServer with an answer: accept, read one line, write it back, close, one socket at a time. */
+    private static class OneShotServer extends Thread {
+        private final ServerSocket serverSocket;
+        private final int workMs;
+
+        OneShotServer(int port, int workMs) throws IOException {
+            this.serverSocket = new ServerSocket(port, 1024);
+            this.workMs = workMs;
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    try (Socket socket = serverSocket.accept()) {
+                        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                        String message = in.readLine();
+                        if (message == null) continue;
+                        if (workMs > 0) Thread.sleep(workMs);
+                        PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+                        out.println(message);
+                    } catch (IOException e) {
+                        if (serverSocket.isClosed()) return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                // shutdown
+            }
+        }
+
+        void shutdown() throws IOException {
+            serverSocket.close();
+        }
+    }
+
+    private static double millis(long[] sorted, double p) {
+        if (sorted.length == 0) return 0;
+        int i = Math.min(sorted.length - 1, Math.max(0, (int) Math.ceil(p * sorted.length) - 1));
+        return sorted[i] / 1e6;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package common;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Asynchronous request/response client for RpcServer (NetworkClient.sendTo only sends, one
+ * connection per message, and gets no answer).
+ *  - one persistent connection per node, opened on the first call and shared by every call;
+ *  - call() never waits on the network: the connection is opened on its own thread (connect
+ *    timeout: the call's), and requests are written by a writer thread per connection;
+ *  - each request carries an id; a reader thread per connection completes the matching future
+ *    when the response line comes back, whatever the order;
+ *  - each call has a deadline: its future fails with a TimeoutException when it passes, and the
+ *    server drops the request if it had not started it yet;
+ *  - a broken connection fails every call in flight on it; the next call reconnects.
+ *
+ * Usage:
+ *   RpcClient client = new RpcClient();
+ *   client.call(node, "ping").thenAccept(System.out::println);
+ */
+public class RpcClient implements AutoCloseable {
+
+    public static final long DEFAULT_TIMEOUT_MS = 5000;
+
+    /** The handler on the server threw: its message. */
+    public static class RemoteException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public RemoteException(String message) {
+            super(message);
+        }
+    }
+
+    private final Map<String, CompletableFuture<Connection>> connections = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong();
+
+    public CompletableFuture<String> call(Node node, String request) {
+        return call(node, request, DEFAULT_TIMEOUT_MS);
+    }
+
+    public CompletableFuture<String> call(Node node, String request, long timeoutMs) {
+        long id = nextId.incrementAndGet();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        CompletableFuture<String> result = new CompletableFuture<>();
+        result.orTimeout(timeoutMs, TimeUnit.MILLISECONDS);
+        connection(node, timeoutMs).whenComplete((c, error) -> {
+            if (error != null) {
+                result.completeExceptionally(error);
+                return;
+            }
+            long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (result.isDone() || left <= 0) return; // timed out while connecting
+            c.pending.put(id, result);
+            if (c.closed) { // failed before put: fail() may have missed this call
+                result.completeExceptionally(new IOException("connection to " + c.key + " closed"));
+                return;
+            }
+            result.whenComplete((response, e) -> c.pending.remove(id));
+            c.send(id + "|" + left + "|" + escape(request));
+        });
+        return result;
+    }
+
+    /** The connection to node, opened on a thread of its own if there is none (or a closed one). */
+    private CompletableFuture<Connection> connection(Node node, long timeoutMs) {
+        String key = node.ip + ":" + node.port;
+        while (true) {
+            CompletableFuture<Connection> current = connections.get(key);
+            if (current != null && !(current.isDone() && (current.isCompletedExceptionally() || current.join().closed))) {
+                return current; // open, or being opened
+            }
+            CompletableFuture<Connection> opening = new CompletableFuture<>();
+            boolean mine = current == null ? connections.putIfAbsent(key, opening) == null
+                                           : connections.replace(key, current, opening);
+            if (!mine) continue; // another call got there first
+            Thread connector = new Thread(() -> open(key, node, timeoutMs, opening), "rpc-connect-" + key);
+            connector.setDaemon(true);
+            connector.start();
+            return opening;
+        }
+    }
+
+    private void open(String key, Node node, long timeoutMs, CompletableFuture<Connection> opening) {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(node.ip, node.port), (int) Math.min(timeoutMs, Integer.MAX_VALUE));
+            opening.complete(new Connection(key, socket));
+        } catch (IOException e) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            connections.remove(key, opening); // the next call tries again
+            opening.completeExceptionally(e);
+        }
+    }
+
+    /** One persistent connection and the calls waiting on it. */
+    private class Connection {
+        final String key;
+        final Socket socket;
+        final Writer out;
+        final BlockingQueue<String> outbox = new LinkedBlockingQueue<>();
+        final Map<Long, CompletableFuture<String>> pending = new ConcurrentHashMap<>();
+        final Thread writer;
+        volatile boolean closed;
+
+        Connection(String key, Socket socket) throws IOException {
+            this.key = key;
+            this.socket = socket;
+            socket.setTcpNoDelay(true);
+            this.out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            this.writer = new Thread(this::write, "rpc-client-writer-" + key);
+            writer.setDaemon(true);
+            Thread reader = new Thread(this::read, "rpc-client-" + key);
+            reader.setDaemon(true);
+            writer.start();
+            reader.start();
+        }
+
+        /** Queues a request line for the writer thread: never waits, even on a stalled socket. */
+        void send(String line) {
+            outbox.add(line);
+        }
+
+        /** Writes queued lines, one flush for all those already waiting. */
+        void write() {
+            try {
+                while (!closed) {
+                    String line = outbox.take();
+                    do {
+                        out.write(line);
+                        out.write('\n');
+                    } while ((line = outbox.poll()) != null);
+                    out.flush();
+                }
+            } catch (InterruptedException e) {
+                // closed
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        void read() {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    int a = line.indexOf('|');
+                    int b = line.indexOf('|', a + 1);
+                    if (a < 0 || b < 0) continue;
+                    long id;
+                    try {
+                        id = Long.parseLong(line.substring(0, a));
+                    } catch (NumberFormatException e) {
+                        System.err.println("⚠️ RPC: réponse illisible de " + key + " ignorée : " + line);
+                        continue; // matches no call: its caller times out
+                    }
+                    CompletableFuture<String> f = pending.remove(id);
+                    if (f == null) continue; // timed out already
+                    String body = unescape(line.substring(b + 1));
+                    if (line.startsWith("ok", a + 1)) f.complete(body);
+                    else f.completeExceptionally(new RemoteException(body));
+                }
+                fail(new EOFException("connection closed by " + key));
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        void fail(IOException e) {
+            closed = true;
+            connections.computeIfPresent(key, (k, f) -> f.isDone() && !f.isCompletedExceptionally() && f.join() == this ? null : f);
+            writer.interrupt();
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            for (CompletableFuture<String> f : pending.values()) f.completeExceptionally(e);
+            pending.clear();
+        }
+    }
+
+    /** Backslash, newline and carriage return escaped, so that any text fits on one line. */
+    static String escape(String s) {
+        if (s == null) return "";
+        if (s.indexOf('\\') < 0 && s.indexOf('\n') < 0 && s.indexOf('\r') < 0) return s;
+        return s.replace("\\", "\\\\").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    static String unescape(String s) {
+        if (s.indexOf('\\') < 0) return s;
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char ch = s.charAt(i);
+            if (ch == '\\' && i + 1 < s.length()) {
+                char next = s.charAt(++i);
+                sb.append(next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                sb.append(ch);
+            }
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public void close() {
+        for (CompletableFuture<Connection> f : connections.values()) {
+            f.thenAccept(c -> c.fail(new IOException("client closed")));
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package common;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Request/response server for RpcClient. Connections stay open: a reader thread per connection
+ * reads the requests and hands them to a pool of handler threads, so slow requests do not hold
+ * back the others, and each response is written back as soon as its handler returns (so out of
+ * order, matched by id on the client).
+ *
+ * One line per request: id|budgetMs|request, one line per response: id|ok|response or
+ * id|err|message (newlines and backslashes escaped, see RpcClient.escape). A request whose budget
+ * ran out before a handler thread got to it is dropped: the client has stopped waiting.
+ */
+public class RpcServer extends Thread {
+
+    private int port;
+    private Function<String, String> handler;
+    private ExecutorService handlers;
+    private ServerSocket serverSocket;
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+    private volatile boolean running = true;
+    private final AtomicLong served = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+
+    public RpcServer(int port, Function<String, String> handler) {
+        this(port, handler, 32);
+    }
+
+    public RpcServer(int port, Function<String, String> handler, int threads) {
+        super("rpc-server-" + port);
+        this.port = port;
+        this.handler = handler;
+        this.handlers = Executors.newFixedThreadPool(threads);
+    }
+
+    public void run() {
+        try (ServerSocket ss = new ServerSocket(port, 1024)) {
+            serverSocket = ss;
+            System.out.println("🟢 Serveur RPC en écoute sur le port " + port);
+
+            while (running) {
+                Socket socket = ss.accept();
+                socket.setTcpNoDelay(true);
+                connections.add(socket);
+                Thread reader = new Thread(() -> serve(socket), "rpc-conn-" + socket.getPort());
+                reader.setDaemon(true);
+                reader.start();
+            }
+
+        } catch (IOException e) {
+            if (running) e.printStackTrace();
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                int a = line.indexOf('|');
+                int b = line.indexOf('|', a + 1);
+                if (a < 0 || b < 0) continue;
+                String id = line.substring(0, a);
+                long budgetMs;
+                try {
+                    budgetMs = Long.parseLong(line.substring(a + 1, b));
+                } catch (NumberFormatException e) {
+                    reply(out, id + "|err|" + RpcClient.escape("bad budget: " + line.substring(a + 1, b)));
+                    continue;
+                }
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budgetMs);
+                String request = RpcClient.unescape(line.substring(b + 1));
+                Runnable task = () -> {
+                    if (System.nanoTime() > deadline) {
+                        expired.incrementAndGet();
+                        return;
+                    }
+                    String response;
+                    try {
+                        response = id + "|ok|" + RpcClient.escape(handler.apply(request));
+                    } catch (RuntimeException e) {
+                        response = id + "|err|" + RpcClient.escape(String.valueOf(e));
+                    }
+                    try {
+                        reply(out, response);
+                        served.incrementAndGet();
+                    } catch (IOException e) {
+                        // the client went away
+                    }
+                };
+                try {
+                    handlers.execute(task);
+                } catch (RejectedExecutionException e) {
+                    return; // shutting down
+                }
+            }
+        } catch (IOException e) {
+            // connection closed
+        } finally {
+            connections.remove(socket);
+        }
+    }
+
+    private static void reply(Writer out, String response) throws IOException {
+        synchronized (out) {
+            out.write(response);
+            out.write('\n');
+            out.flush();
+        }
+    }
+
+    /** Responses written. */
+    public long served() {
+        return served.get();
+    }
+
+    /** Requests dropped because their deadline passed while queued. */
+    public long expired() {
+        return expired.get();
+    }
+
+    public void shutdown() {
+        running = false;
+        try {
+            if (serverSocket != null) serverSocket.close();
+        } catch (IOException e) {
+            // already closed
+        }
+        for (Socket socket : connections) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+        handlers.shutdownNow();
+    }
+}
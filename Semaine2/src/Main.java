@@ -3,16 +3,36 @@ import common.NetworkClient;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 
+/**
+ * Run:
+ *   java Main [single|engine] [parallelism]
+ *
+ * single (default): one ProcessorThread handles the messages one at a time.
+ * engine: a TaskEngine handles them in parallel (parallelism defaults to the number of cores);
+ * messages "key: text" with the same key are still handled in order.
+ */
 public class Main {
     public static void main(String[] args) {
         BlockingQueue<Message> sharedQueue = new LinkedBlockingQueue<>();
+        String mode = args.length >= 1 ? args[0] : "single";
 
         int myPort = 5001;
         ReceiverThread receiver = new ReceiverThread(myPort, sharedQueue);
-        ProcessorThread processor = new ProcessorThread(sharedQueue);
-
         receiver.start();
-        processor.start();
+
+        if (mode.equals("engine")) {
+            int parallelism = args.length >= 2 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+            TaskEngine engine = new TaskEngine(sharedQueue, ProcessorThread::process, Main::keyOf,
+                    parallelism, TaskEngine.DEFAULT_MAX_BLOCKED);
+            engine.onComplete((msg, error) -> {
+                if (error != null) System.err.println("❌ Engine: échec de " + msg.getContent() + " : " + error);
+            });
+            engine.start();
+            System.out.println("🚀 Engine: " + engine.stats());
+        } else {
+            ProcessorThread processor = new ProcessorThread(sharedQueue);
+            processor.start();
+        }
 
         new Thread(() -> {
             try {
@@ -27,4 +47,11 @@ public class Main {
             }
         }).start();
     }
+
+    /** "key: text" -> key; no key (null) otherwise. */
+    private static String keyOf(Message msg) {
+        String content = msg.getContent();
+        int colon = content.indexOf(':');
+        return colon > 0 && content.indexOf(' ') > colon ? content.substring(0, colon) : null;
+    }
 }
\ No newline at end of file
@@ -1,5 +1,6 @@
 public class Message {
     private String content;
+    private final long createdAt = System.nanoTime(); // to measure the time spent queued
 
     public Message(String content) {
         this.content = content;
@@ -9,6 +10,10 @@ public class Message {
         return content;
     }
 
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
     @Override
     public String toString() {
         return "Message{" + content + "}";
@@ -1,10 +1,25 @@
 import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
 
 public class ProcessorThread extends Thread {
     private BlockingQueue<Message> queue;
+    private Consumer<Message> handler;
 
     public ProcessorThread(BlockingQueue<Message> queue) {
+        this(queue, ProcessorThread::process);
+    }
+
+    public ProcessorThread(BlockingQueue<Message> queue, Consumer<Message> handler) {
         this.queue = queue;
+        this.handler = handler;
+    }
+
+    /** The demo task, one second per message (also run by TaskEngine). */
+    public static void process(Message msg) {
+        System.out.println("⚙️ Processor: Traitement en cours de " + msg.getContent());
+        TaskEngine.sleep(1000);
+
+        System.out.println("✅ Processor: Fini avec " + msg.getContent());
     }
 
     @Override
@@ -14,10 +29,7 @@ public class ProcessorThread extends Thread {
 
                 Message msg = queue.take();
 
-                System.out.println("⚙️ Processor: Traitement en cours de " + msg.getContent());
-                Thread.sleep(1000);
-
-                System.out.println("✅ Processor: Fini avec " + msg.getContent());
+                handler.accept(msg);
             }
         } catch (InterruptedException e) {
             e.printStackTrace();
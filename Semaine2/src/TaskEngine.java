@@ -0,0 +1,181 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Parallel replacement for ProcessorThread: takes the messages off the same queue and runs the
+ * handler for each of them on a work-stealing ForkJoinPool.
+ *  - the pool has one worker per core by default; a task that waits (TaskEngine.sleep / blocking)
+ *    lets the pool start up to maxBlocked extra workers meanwhile, so IO-bound tasks do not
+ *    leave the cores idle;
+ *  - a dispatcher thread takes the first message and drains what else is queued (drainTo, up to
+ *    maxBatch) in one go, instead of one take() per message;
+ *  - with a key function, messages with the same key run one after the other, in queue order
+ *    (each one is chained after the previous one of its key); messages with no key (null) or
+ *    different keys run in parallel;
+ *  - nobody waits for a result: submit() returns a future, and onComplete() callbacks run on the
+ *    worker that finished the task.
+ */
+public class TaskEngine {
+    public static final int DEFAULT_MAX_BLOCKED = 64;
+    private static final int DEFAULT_MAX_BATCH = 256;
+
+    private final BlockingQueue<Message> queue;
+    private final Consumer<Message> handler;
+    private final Function<Message, String> keyOf;
+    private final ForkJoinPool pool;
+    private final int maxBatch;
+    private final ConcurrentHashMap<String, CompletableFuture<Message>> tails = new ConcurrentHashMap<>();
+    private final Thread dispatcher;
+    private volatile BiConsumer<Message, Throwable> callback = (msg, error) -> { };
+
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+
+    public TaskEngine(BlockingQueue<Message> queue, Consumer<Message> handler) {
+        this(queue, handler, null, Runtime.getRuntime().availableProcessors(), DEFAULT_MAX_BLOCKED);
+    }
+
+    /**
+     * @param keyOf      key of a message, null for no ordering at all (the function may also return null)
+     * @param maxBlocked extra workers allowed while tasks block, 0 to stay at parallelism threads
+     */
+    public TaskEngine(BlockingQueue<Message> queue, Consumer<Message> handler, Function<Message, String> keyOf,
+                      int parallelism, int maxBlocked) {
+        this.queue = queue;
+        this.handler = handler;
+        this.keyOf = keyOf;
+        this.maxBatch = DEFAULT_MAX_BATCH;
+        // asyncMode: tasks are never joined, so FIFO workers suit them better than LIFO ones;
+        // saturate -> true: past maxBlocked a blocking task just blocks instead of failing
+        this.pool = new ForkJoinPool(parallelism, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true,
+                0, parallelism + maxBlocked, 1, p -> true, 60, TimeUnit.SECONDS);
+        this.dispatcher = new Thread(this::dispatch, "engine-dispatcher");
+        this.dispatcher.setDaemon(true);
+    }
+
+    public void start() {
+        dispatcher.start();
+    }
+
+    /** Called for every message once its task is done (error null) or failed, on a pool thread. */
+    public void onComplete(BiConsumer<Message, Throwable> callback) {
+        this.callback = callback;
+    }
+
+    private void dispatch() {
+        List<Message> batch = new ArrayList<>(maxBatch);
+        try {
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch, maxBatch - 1);
+                batches.increment();
+                for (Message msg : batch) submit(msg);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            // shutdown
+        }
+    }
+
+    /** Runs msg on the pool (after the previous message with the same key, if any). */
+    public CompletableFuture<Message> submit(Message msg) {
+        String key = keyOf == null ? null : keyOf.apply(msg);
+        CompletableFuture<Message> f;
+        if (key == null) {
+            f = CompletableFuture.supplyAsync(() -> run(msg), pool);
+        } else {
+            f = tails.compute(key, (k, previous) -> previous == null
+                    ? CompletableFuture.supplyAsync(() -> run(msg), pool)
+                    : previous.handleAsync((result, error) -> run(msg), pool)); // runs even if the previous one failed
+            CompletableFuture<Message> tail = f;
+            f.whenComplete((result, error) -> tails.remove(key, tail)); // the key is idle again
+        }
+        f.whenComplete((result, error) -> {
+            if (error == null) completed.increment();
+            else failed.increment();
+            try {
+                callback.accept(msg, error == null ? null : error.getCause() == null ? error : error.getCause());
+            } catch (RuntimeException e) {
+                System.err.println("❌ Engine: callback en échec pour " + msg.getContent() + " : " + e);
+            }
+        });
+        return f;
+    }
+
+    private Message run(Message msg) {
+        handler.accept(msg);
+        return msg;
+    }
+
+    /**
+     * Sleeps like Thread.sleep, telling the pool this worker is blocked so it can start another
+     * one meanwhile (up to maxBlocked). Stands for IO in the demo tasks. Also works outside the pool.
+     */
+    public static void sleep(long millis) {
+        blocking(() -> {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+    }
+
+    /** Runs a blocking call (socket, file, lock...) as a ForkJoinPool.ManagedBlocker. */
+    public static void blocking(Runnable call) {
+        try {
+            ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                private boolean done;
+
+                @Override
+                public boolean block() {
+                    call.run();
+                    done = true;
+                    return true;
+                }
+
+                @Override
+                public boolean isReleasable() {
+                    return done;
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public long completed() {
+        return completed.sum();
+    }
+
+    public long failed() {
+        return failed.sum();
+    }
+
+    public String stats() {
+        return "parallelism=" + pool.getParallelism() + " threads=" + pool.getPoolSize()
+                + " completed=" + completed.sum() + " failed=" + failed.sum()
+                + " batches=" + batches.sum() + " steals=" + pool.getStealCount()
+                + " queued=" + queue.size() + " keys=" + tails.size();
+    }
+
+    /** Stops taking messages; tasks already submitted finish. */
+    public void shutdown() {
+        dispatcher.interrupt();
+        pool.shutdown();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return pool.awaitTermination(timeout, unit);
+    }
+}
@@ -0,0 +1,128 @@
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * ProcessorThread vs TaskEngine on synthetic tasks, queue filled as fast as possible:
+ *  - cpu: about cpuMicros of arithmetic per task;
+ *  - io: ioMillis of TaskEngine.sleep per task, with maxBlocked 0 (parallelism threads only)
+ *    and TaskEngine.DEFAULT_MAX_BLOCKED (extra threads while tasks block).
+ * Engine runs go through parallelism 1, 2, 4, ... 32, unkeyed and with the given number of keys.
+ *
+ * Per run: tasks/s, time from enqueue to the start of the task (p50 / p99 / max ms), and
+ * ordering violations (a keyed task starting before the previous one of its key; must be 0).
+ *
+ * Run (from Semaine2, with Semaine1 compiled in ../out/production/Semaine1):
+ *   javac -encoding UTF-8 -d ../out/production/Semaine2 -cp ../out/production/Semaine1 src/*.java
+ *   java -cp ../out/production/Semaine2:../out/production/Semaine1 TaskEngineBench [tasks] [keys] [cpuMicros] [ioMillis]
+ */
+public class TaskEngineBench {
+    private static volatile long sink;
+
+    public static void main(String[] args) throws Exception {
+        int tasks = args.length >= 1 ? Integer.parseInt(args[0]) : 2000;
+        int keys = args.length >= 2 ? Integer.parseInt(args[1]) : 8;
+        int cpuMicros = args.length >= 3 ? Integer.parseInt(args[2]) : 200;
+        int ioMillis = args.length >= 4 ? Integer.parseInt(args[3]) : 2;
+        long iterations = calibrate(cpuMicros);
+        System.out.println("cores=" + Runtime.getRuntime().availableProcessors() + " tasks=" + tasks
+                + " cpu=" + cpuMicros + "us io=" + ioMillis + "ms");
+        System.out.printf("%-4s %-7s %11s %7s %6s %10s %9s %9s %9s %10s%n",
+                "task", "engine", "parallelism", "blocked", "keys", "tasks/s", "q_p50_ms", "q_p99_ms", "q_max_ms", "violations");
+
+        run("cpu", 0, 0, 0, tasks, iterations, ioMillis); // warm-up
+        run("cpu", 4, 0, Math.max(1, keys), tasks, iterations, ioMillis);
+        for (String kind : new String[]{"cpu", "io"}) {
+            System.out.println(run(kind, 0, 0, 0, tasks, iterations, ioMillis));
+            int[] blocked = kind.equals("io") ? new int[]{0, TaskEngine.DEFAULT_MAX_BLOCKED} : new int[]{0};
+            for (int b : blocked) {
+                for (int p = 1; p <= 32; p *= 2) {
+                    System.out.println(run(kind, p, b, 0, tasks, iterations, ioMillis));
+                    if (keys > 0) System.out.println(run(kind, p, b, keys, tasks, iterations, ioMillis));
+                }
+            }
+        }
+    }
+
+    /** parallelism 0: ProcessorThread. @return the result line */
+    private static String run(String kind, int parallelism, int maxBlocked, int keys, int tasks, long iterations,
+                            int ioMillis) throws Exception {
+        BlockingQueue<Message> queue = new LinkedBlockingQueue<>();
+        long[] queued = new long[tasks];
+        AtomicInteger started = new AtomicInteger();
+        AtomicIntegerArray lastOfKey = new AtomicIntegerArray(Math.max(1, keys));
+        for (int k = 0; k < lastOfKey.length(); k++) lastOfKey.set(k, -1);
+        AtomicLong violations = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(tasks);
+
+        Consumer<Message> handler = msg -> {
+            long now = System.nanoTime();
+            queued[started.getAndIncrement()] = now - msg.getCreatedAt();
+            String[] parts = msg.getContent().split(":");
+            int seq = Integer.parseInt(parts[1]);
+            if (keys > 0) {
+                int k = Integer.parseInt(parts[0]);
+                if (lastOfKey.getAndSet(k, seq) > seq) violations.incrementAndGet();
+            }
+            if (kind.equals("cpu")) spin(iterations);
+            else TaskEngine.sleep(ioMillis);
+            done.countDown();
+        };
+
+        ProcessorThread single = null;
+        TaskEngine engine = null;
+        if (parallelism == 0) {
+            single = new ProcessorThread(queue, handler);
+            single.setDaemon(true); // left waiting on its empty queue
+            single.start();
+        } else {
+            engine = new TaskEngine(queue, handler, keys > 0 ? msg -> msg.getContent().split(":")[0] : null,
+                    parallelism, maxBlocked);
+            engine.start();
+        }
+
+        long t0 = System.nanoTime();
+        for (int i = 0; i < tasks; i++) queue.put(new Message((keys > 0 ? i % keys : 0) + ":" + i));
+        done.await(5, TimeUnit.MINUTES);
+        long elapsed = System.nanoTime() - t0;
+
+        if (engine != null) engine.shutdown();
+
+        long[] sorted = Arrays.copyOf(queued, started.get());
+        Arrays.sort(sorted);
+        return String.format("%-4s %-7s %11s %7d %6d %10d %9.2f %9.2f %9.2f %10d",
+                kind, parallelism == 0 ? "single" : "engine", parallelism == 0 ? "-" : Integer.toString(parallelism),
+                maxBlocked, keys, Math.round(tasks * 1e9 / elapsed),
+                millis(sorted, 0.50), millis(sorted, 0.99), millis(sorted, 1.0), violations.get());
+    }
+
+    private static double millis(long[] sorted, double p) {
+        if (sorted.length == 0) return 0;
+        int i = Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1);
+        return sorted[Math.max(0, i)] / 1e6;
+    }
+
+    private static void spin(long iterations) {
+        long x = 17;
+        for (long i = 0; i < iterations; i++) x = x * 6364136223846793005L + 1442695040888963407L;
+        sink = x;
+    }
+
+    /** Iterations of spin() that take about micros. */
+    private static long calibrate(int micros) {
+        long iterations = 1_000_000;
+        for (int round = 0; round < 5; round++) {
+            long t0 = System.nanoTime();
+            spin(iterations);
+            long nanos = Math.max(1, System.nanoTime() - t0);
+            iterations = Math.max(1, iterations * micros * 1000L / nanos);
+        }
+        return iterations;
+    }
+}
@@ -0,0 +1,19 @@
+#!/usr/bin/env bash
+set -euo pipefail
+
+# Usage: ./bench.sh <BenchClass> [args...]
+# Example: ./bench.sh ConnectionBench 20000
+
+cd "$(dirname "$0")"
+mkdir -p out
+javac -d out $(find src/main/java src/bench/java -name '*.java')
+
+if [ $# -lt 1 ]; then
+  echo "Build OK. Benchmarks:"
+  ls src/bench/java/semaine3/bench | grep 'Bench.java$' | sed 's/\.java$//; s/^/  /'
+  exit 0
+fi
+
+bench="$1"
+shift
+java -cp out "semaine3.bench.$bench" "$@"
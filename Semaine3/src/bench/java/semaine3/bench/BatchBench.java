@@ -0,0 +1,54 @@
+package semaine3.bench;
+
+import semaine3.Config;
+import semaine3.Message;
+import semaine3.PeerConnections;
+
+/**
+ * Throughput vs linger time for outbound batching (batch=true) against direct writes.
+ *
+ * Bursts of messages are sent to one peer; reports messages/sec until the peer has
+ * read them all and the number of flushes (write syscalls) per message.
+ *
+ * Run:
+ *   ./bench.sh BatchBench [messages] [burst]
+ */
+public final class BatchBench {
+    public static void main(String[] args) throws Exception {
+        int messages = args.length >= 1 ? Integer.parseInt(args[0]) : 200_000;
+        int burst = args.length >= 2 ? Integer.parseInt(args[1]) : 1000;
+        Message msg = new Message("{\"op\":\"put\",\"key\":\"k\"}", 0, 1, new int[]{1, 0, 0});
+
+        try (LineSink sink = new LineSink(0)) {
+            Config base = Config.of("127.0.0.1", sink.port()).withOption("wire", "text");
+            run("direct", base, sink, msg, messages, burst);
+            for (String linger : new String[]{"0", "1", "5"}) {
+                Config config = base.withOption("batch", "true").withOption("batch.linger.ms", linger);
+                run("linger=" + linger + "ms", config, sink, msg, messages, burst);
+            }
+        }
+    }
+
+    private static void run(String mode, Config config, LineSink sink, Message msg, int messages, int burst)
+            throws Exception {
+        try (PeerConnections peers = new PeerConnections(config)) {
+            long before = sink.lines();
+            long start = System.nanoTime();
+            for (int i = 0; i < messages; i++) {
+                peers.send(0, msg);
+                if (i % burst == burst - 1) Thread.sleep(1); // bursty producer
+            }
+            sink.awaitLines(before + messages, 30_000);
+            long elapsed = System.nanoTime() - start;
+
+            new Stats("batch")
+                    .put("mode", mode)
+                    .put("messages", messages)
+                    .put("received", sink.lines() - before)
+                    .put("msgs_per_sec", Stats.perSecond(messages, elapsed))
+                    .put("flushes", peers.flushCount())
+                    .put("msgs_per_flush", Math.round(messages * 10.0 / Math.max(1, peers.flushCount())) / 10.0)
+                    .print();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package semaine3.bench;
+
+import semaine3.Config;
+import semaine3.Node;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Broadcast completion time with 3, 16 and 64 local nodes: the old sequential loop
+ * (send to each peer in turn) vs Node.broadcastAsync, with and without one black-holed peer.
+ *
+ * The black hole is a listening socket whose accept queue is full and never drained:
+ * new connections hang in the handshake, like a peer that vanished from the network.
+ *
+ * Run:
+ *   ./bench.sh BroadcastBench [broadcasts]
+ */
+public final class BroadcastBench {
+    private static final int TIMEOUT_MS = 200;
+
+    public static void main(String[] args) throws Exception {
+        int broadcasts = args.length >= 1 ? Integer.parseInt(args[0]) : 200;
+        PrintStream report = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // Node logs every message
+
+        for (int n : new int[]{3, 16, 64}) {
+            for (boolean blackHole : new boolean[]{false, true}) {
+                run(report, n, blackHole, broadcasts);
+            }
+        }
+    }
+
+    private static void run(PrintStream report, int n, boolean blackHole, int broadcasts) throws Exception {
+        List<AutoCloseable> resources = new ArrayList<>();
+        try {
+            int[] ports = new int[n];
+            for (int i = 0; i < n; i++) ports[i] = NioLoadBench.freePort();
+            if (blackHole) ports[n - 1] = blackHole(resources);
+            Config config = Config.of("127.0.0.1", ports)
+                    .withOption("transport", "nio")
+                    .withOption("nio.threads", "1")
+                    .withOption("broadcast.timeout.ms", Integer.toString(TIMEOUT_MS));
+
+            Node origin = null;
+            for (int i = 0; i < n; i++) {
+                if (blackHole && i == n - 1) continue;
+                Node node = new Node(i, config);
+                node.start();
+                resources.add(node);
+                if (i == 0) origin = node;
+            }
+
+            // The old loop pays the full connect timeout for the dead peer, so keep it short.
+            int sequentialRuns = blackHole ? Math.min(5, broadcasts) : broadcasts;
+            long[] seq = new long[sequentialRuns];
+            for (int b = 0; b < sequentialRuns; b++) {
+                long t0 = System.nanoTime();
+                for (int dest = 1; dest < n; dest++) origin.send(dest, "seq-" + b);
+                seq[b] = System.nanoTime() - t0;
+            }
+            report(report, "sequential", n, blackHole, seq);
+
+            long[] par = new long[broadcasts];
+            for (int b = 0; b < broadcasts; b++) {
+                long t0 = System.nanoTime();
+                origin.broadcastAsync("par-" + b).join();
+                par[b] = System.nanoTime() - t0;
+            }
+            report(report, "parallel", n, blackHole, par);
+        } finally {
+            for (AutoCloseable r : resources) {
+                try { r.close(); } catch (Exception ignored) {}
+            }
+        }
+    }
+
+    private static void report(PrintStream report, String mode, int n, boolean blackHole, long[] times) {
+        report.println(new Stats("broadcast")
+                .put("mode", mode)
+                .put("nodes", n)
+                .put("black_hole", blackHole)
+                .put("broadcasts", times.length)
+                .latencies("completion", times, times.length)
+                .toJson());
+    }
+
+    /** A port that accepts nothing: backlog 1, filled up front, never accepted. */
+    private static int blackHole(List<AutoCloseable> resources) throws IOException {
+        ServerSocket server = new ServerSocket(0, 1);
+        resources.add(server);
+        for (int i = 0; i < 8; i++) {
+            Socket s = new Socket();
+            try {
+                s.connect(new InetSocketAddress("127.0.0.1", server.getLocalPort()), 100);
+                resources.add(s);
+            } catch (IOException full) {
+                s.close();
+                break;
+            }
+        }
+        return server.getLocalPort();
+    }
+}
@@ -0,0 +1,143 @@
+package semaine3.bench;
+
+import semaine3.CausalDelivery;
+import semaine3.Message;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Causal delivery (CausalDelivery) under random network delays and injected reordering.
+ *
+ * Discrete-event simulation: n processes broadcast at a total of `rate` messages per
+ * (simulated) second; every copy gets a random delay and a fraction of them are delayed
+ * much longer, so copies overtake each other. Each delivery is checked against the causal
+ * history recorded by the simulator itself (not the "cb" header): everything the sender had
+ * delivered or sent before broadcasting must already be delivered at the receiver. Also
+ * checks that every copy is delivered exactly once.
+ *
+ * Reports the extra delay caused by holding back (delivery time - arrival time), the peak
+ * hold-back buffer size, and the wall-clock cost of CausalDelivery.receive.
+ *
+ * Run:
+ *   ./bench.sh CausalBench [messages] [rate]
+ */
+public final class CausalBench {
+    private static final class Event implements Comparable<Event> {
+        final long time; // simulated nanos
+        final int to;    // receiver, or -1 for "sender broadcasts"
+        final int from;
+        final Message msg;
+
+        Event(long time, int to, int from, Message msg) {
+            this.time = time;
+            this.to = to;
+            this.from = from;
+            this.msg = msg;
+        }
+
+        @Override
+        public int compareTo(Event o) {
+            return Long.compare(time, o.time);
+        }
+    }
+
+    public static void main(String[] args) {
+        int messages = args.length >= 1 ? Integer.parseInt(args[0]) : 50_000;
+        int rate = args.length >= 2 ? Integer.parseInt(args[1]) : 10_000;
+        for (int n : new int[]{3, 8, 16}) {
+            for (double reorder : new double[]{0.0, 0.05, 0.2}) {
+                run(n, messages, rate, reorder, new Random(n * 31L + (long) (reorder * 100)));
+            }
+        }
+    }
+
+    private static void run(int n, int messages, int rate, double reorder, Random rnd) {
+        CausalDelivery[] nodes = new CausalDelivery[n];
+        int[][] seen = new int[n][n];   // seen[p][k]: broadcasts of k delivered (or sent, k == p) at p
+        for (int p = 0; p < n; p++) nodes[p] = new CausalDelivery(n, p);
+        Map<String, int[]> history = new HashMap<>(); // "sender:seq" -> seen[sender] at send time
+        Map<String, Long> sentAt = new HashMap<>();
+
+        PriorityQueue<Event> events = new PriorityQueue<>();
+        long interval = 1_000_000_000L / rate;
+        for (int i = 0; i < messages; i++) {
+            events.add(new Event(i * interval + rnd.nextInt((int) Math.max(1, interval)), -1, rnd.nextInt(n), null));
+        }
+
+        int copies = messages * (n - 1);
+        long[] holdNanos = new long[copies];
+        long[] endToEnd = new long[copies];
+        int delivered = 0;
+        int maxHeld = 0;
+        long receiveNanos = 0;
+        Map<String, Long> arrivals = new HashMap<>(); // "receiver/sender:seq" -> arrival time
+        List<Message> out = new ArrayList<>();
+
+        while (!events.isEmpty()) {
+            Event e = events.poll();
+            if (e.to < 0) {
+                int p = e.from;
+                String id = p + ":" + (seen[p][p] + 1);
+                Message m = nodes[p].stamp(new Message(id, p, 0, new int[0]));
+                seen[p][p]++;
+                history.put(id, seen[p].clone());
+                sentAt.put(id, e.time);
+                for (int q = 0; q < n; q++) {
+                    if (q == p) continue;
+                    long delay = 200_000 + (long) (-Math.log(1 - rnd.nextDouble()) * 300_000);
+                    if (rnd.nextDouble() < reorder) delay += 2_000_000 + rnd.nextInt(18_000_000);
+                    events.add(new Event(e.time + delay, q, p, m));
+                }
+                continue;
+            }
+
+            int q = e.to;
+            arrivals.put(q + "/" + e.msg.payload(), e.time);
+            out.clear();
+            long t0 = System.nanoTime();
+            nodes[q].receive(e.msg, out::add);
+            receiveNanos += System.nanoTime() - t0;
+            for (Message d : out) {
+                int j = d.senderId;
+                String id = d.payload();
+                if (!id.equals(j + ":" + (seen[q][j] + 1))) {
+                    throw new AssertionError("FIFO order violated at " + q + ": got " + id);
+                }
+                int[] deps = history.get(id);
+                for (int k = 0; k < n; k++) {
+                    if (k != j && seen[q][k] < deps[k]) {
+                        throw new AssertionError("causal order violated at " + q + " delivering " + id
+                                + ": needs " + k + ":" + deps[k] + ", has " + seen[q][k]);
+                    }
+                }
+                seen[q][j]++;
+                holdNanos[delivered] = e.time - arrivals.remove(q + "/" + id);
+                endToEnd[delivered] = e.time - sentAt.get(id);
+                delivered++;
+            }
+            maxHeld = Math.max(maxHeld, nodes[q].heldBack());
+        }
+
+        if (delivered != copies) throw new AssertionError("delivered " + delivered + " of " + copies);
+        for (int p = 0; p < n; p++) {
+            if (nodes[p].heldBack() != 0) throw new AssertionError("node " + p + " still holds messages back");
+        }
+
+        new Stats("causal")
+                .put("nodes", n)
+                .put("rate", rate)
+                .put("reorder", reorder)
+                .put("delivered", delivered)
+                .put("ok", true)
+                .put("max_held_back", maxHeld)
+                .latencies("hold", holdNanos, delivered)
+                .latencies("end_to_end", endToEnd, delivered)
+                .put("receive_ns", copies == 0 ? 0 : receiveNanos / copies)
+                .print();
+    }
+}
@@ -0,0 +1,79 @@
+package semaine3.bench;
+
+import semaine3.LamportClock;
+import semaine3.VectorClock;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Clock contention: synchronized vs atomic LamportClock/VectorClock with 1..64 threads.
+ *
+ * Each thread loops over what Node does per message: half "sends" (Lamport tick +
+ * vector tickAndSnapshot) and half "receives" (Lamport onReceive + vector onReceive).
+ *
+ * Run:
+ *   ./bench.sh ClockBench [n] [millisPerRun]
+ */
+public final class ClockBench {
+    public static void main(String[] args) throws Exception {
+        int n = args.length >= 1 ? Integer.parseInt(args[0]) : 16;
+        long millis = args.length >= 2 ? Long.parseLong(args[1]) : 500;
+
+        for (String kind : new String[]{"sync", "atomic"}) {
+            for (int threads = 1; threads <= 64; threads *= 2) {
+                run(kind, n, threads, millis);
+            }
+        }
+    }
+
+    private static void run(String kind, int n, int threads, long millis) throws Exception {
+        LamportClock lamport = LamportClock.create(kind);
+        VectorClock vector = VectorClock.create(kind, n, 0);
+        LongAdder ops = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        long[] deadline = new long[1];
+
+        for (int t = 0; t < threads; t++) {
+            Thread th = new Thread(() -> {
+                int[] received = new int[n];
+                ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                long local = 0;
+                try {
+                    start.await();
+                    while (System.nanoTime() < deadline[0]) {
+                        for (int i = 0; i < 64; i++) {
+                            if ((i & 1) == 0) {
+                                lamport.tick();
+                                received = vector.tickAndSnapshot();
+                            } else {
+                                received[rnd.nextInt(n)]++;
+                                lamport.onReceive(received[0]);
+                                vector.onReceive(received);
+                            }
+                        }
+                        local += 64;
+                    }
+                } catch (InterruptedException ignored) {
+                } finally {
+                    ops.add(local);
+                    done.countDown();
+                }
+            });
+            th.setDaemon(true);
+            th.start();
+        }
+        deadline[0] = System.nanoTime() + millis * 1_000_000L;
+        start.countDown();
+        done.await();
+
+        new Stats("clock")
+                .put("clock", kind)
+                .put("n", n)
+                .put("threads", threads)
+                .put("ops_per_sec", Stats.perSecond(ops.sum(), millis * 1_000_000L))
+                .print();
+    }
+}
@@ -0,0 +1,147 @@
+package semaine3.bench;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Load test of a local cluster: starts N nodes (LocalCluster), in this JVM or one JVM each,
+ * drives every node through the same scripted Workload (LoadGenerator) and prints one JSON line
+ * per phase for the whole cluster:
+ *  - sent and delivered messages, what was lost (delivered vs sent x fan-out), delivered msgs/s and MB/s;
+ *  - one-way latency percentiles from the send stamps (p50 / p90 / p99 / p999 / max, us);
+ *  - CPU (cores busy on average: process CPU time / phase duration, summed over the JVMs) and GC
+ *    (collections and ms) during the phase.
+ *
+ * The default workload is a p2p phase then a broadcast phase; any other key=value argument is a
+ * node option (wire=binary, transport=nio, reliable=true...), except drain.ms (1000: quiet time
+ * after each phase for in-flight messages) and start.delay.ms (time given to the nodes to come up).
+ *
+ * Run:
+ *   ./bench.sh ClusterBench [inproc|jvm] [nodes] [workload script or file] [key=value...]
+ *   ./bench.sh ClusterBench jvm 5 "duration=10 size=256 rate=2000; duration=10 rate=500 fanout=broadcast" wire=binary
+ */
+public final class ClusterBench {
+    private static final String DEFAULT_WORKLOAD =
+            "name=p2p duration=5 size=64 rate=1000; name=broadcast duration=5 size=256 rate=200 fanout=broadcast";
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length >= 1 ? args[0] : "inproc";
+        if (!mode.equals("inproc") && !mode.equals("jvm")) throw new IllegalArgumentException("mode must be inproc or jvm");
+        int n = args.length >= 2 ? Integer.parseInt(args[1]) : 3;
+        String script = args.length >= 3 ? args[2] : DEFAULT_WORKLOAD;
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String kv : Arrays.asList(args).subList(Math.min(3, args.length), args.length)) {
+            int eq = kv.indexOf('=');
+            if (eq <= 0) throw new IllegalArgumentException("expected key=value: " + kv);
+            options.put(kv.substring(0, eq), kv.substring(eq + 1));
+        }
+        long drainMs = Long.parseLong(remove(options, "drain.ms", "1000"));
+        long startDelayMs = Long.parseLong(remove(options, "start.delay.ms",
+                Long.toString(mode.equals("jvm") ? 3000 + 200L * n : 500)));
+        Workload workload = Workload.parse(script);
+
+        List<PhaseStats> phases = mode.equals("jvm")
+                ? forked(n, options, script, workload, startDelayMs, drainMs)
+                : inProcess(n, options, workload, startDelayMs, drainMs);
+        for (int p = 0; p < phases.size(); p++) {
+            System.out.println(report(mode, n, options, workload.phases.get(p), phases.get(p)).toJson());
+        }
+    }
+
+    private static String remove(Map<String, String> options, String key, String defaultValue) {
+        String v = options.remove(key);
+        return v == null ? defaultValue : v;
+    }
+
+    private static List<PhaseStats> inProcess(int n, Map<String, String> options, Workload workload,
+                                              long startDelayMs, long drainMs) throws Exception {
+        PrintStream report = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // nodes log to stdout
+        List<LoadGenerator> generators = new ArrayList<>();
+        try {
+            LocalCluster cluster = LocalCluster.inProcess(n, options,
+                    (id, node) -> generators.add(new LoadGenerator(node, id, n, workload, drainMs)));
+            try (cluster) {
+                long startAt = System.currentTimeMillis() + startDelayMs;
+                for (LoadGenerator g : generators) g.start(startAt);
+                List<PhaseStats> total = PhaseStats.sampleProcess(workload, startAt, drainMs);
+                for (LoadGenerator g : generators) {
+                    List<PhaseStats> own = g.await();
+                    for (int p = 0; p < total.size(); p++) total.get(p).add(own.get(p));
+                }
+                return total;
+            }
+        } finally {
+            System.setOut(report);
+        }
+    }
+
+    private static List<PhaseStats> forked(int n, Map<String, String> options, String script, Workload workload,
+                                           long startDelayMs, long drainMs) throws Exception {
+        Path dir = Files.createTempDirectory("cluster-");
+        Path workloadFile = dir.resolve("workload.txt");
+        Files.write(workloadFile, script.getBytes(StandardCharsets.UTF_8));
+        long startAt = System.currentTimeMillis() + startDelayMs;
+        List<String> extra = List.of(workloadFile.toString(), Long.toString(startAt), Long.toString(drainMs));
+        System.err.println("cluster of " + n + " JVMs, logs in " + dir);
+
+        List<PhaseStats> total = new ArrayList<>();
+        for (int p = 0; p < workload.phases.size(); p++) total.add(new PhaseStats());
+        try (LocalCluster cluster = LocalCluster.forked(n, options, dir, ClusterNode.class.getName(), extra)) {
+            if (!cluster.awaitExit(startDelayMs + workload.totalMillis(drainMs) + 60_000)) {
+                System.err.println("some nodes did not finish in time (killed)");
+            }
+            for (int id = 0; id < n; id++) {
+                int found = 0;
+                for (String line : cluster.log(id)) {
+                    if (!line.startsWith(ClusterNode.MARKER)) continue;
+                    String[] parts = line.substring(ClusterNode.MARKER.length()).split(" ", 2);
+                    total.get(Integer.parseInt(parts[0])).add(PhaseStats.parse(parts[1]));
+                    found++;
+                }
+                if (found != total.size()) System.err.println("node " + id + " reported " + found + " phases, see its log");
+            }
+        }
+        return total;
+    }
+
+    private static Stats report(String mode, int n, Map<String, String> options, Workload.Phase phase, PhaseStats s) {
+        long durationNanos = phase.durationSeconds * 1_000_000_000L;
+        long sent = s.sent.sum();
+        long expected = sent * (phase.broadcast ? n - 1 : 1);
+        long delivered = s.delivered.sum();
+        return new Stats("cluster")
+                .put("mode", mode)
+                .put("nodes", n)
+                .put("options", options.toString())
+                .put("phase", phase.name)
+                .put("fanout", phase.broadcast ? "broadcast" : "p2p")
+                .put("size", phase.size)
+                .put("rate_per_sender", phase.rate)
+                .put("senders", phase.senderCount(n))
+                .put("duration_s", phase.durationSeconds)
+                .put("sent", sent)
+                .put("delivered", delivered)
+                .put("lost", Math.max(0, expected - delivered))
+                .put("sent_per_sec", Stats.perSecond(sent, durationNanos))
+                .put("msgs_per_sec", Stats.perSecond(delivered, durationNanos))
+                .put("mb_per_sec", Math.round(s.bytes.sum() * 1e9 / durationNanos / 1e4) / 100.0)
+                .put("latency_p50_us", Stats.micros(s.latencyNanos.percentile(0.50)))
+                .put("latency_p90_us", Stats.micros(s.latencyNanos.percentile(0.90)))
+                .put("latency_p99_us", Stats.micros(s.latencyNanos.percentile(0.99)))
+                .put("latency_p999_us", Stats.micros(s.latencyNanos.percentile(0.999)))
+                .put("latency_max_us", Stats.micros(s.latencyNanos.max()))
+                .put("processes", s.processes)
+                .put("cpu_cores", Math.round(s.cpuNanos * 100.0 / durationNanos) / 100.0)
+                .put("gc_count", s.gcCount)
+                .put("gc_ms", s.gcMillis);
+    }
+}
@@ -0,0 +1,72 @@
+package semaine3.bench;
+
+import semaine3.Config;
+import semaine3.Node;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+
+/**
+ * One node of a forked ClusterBench cluster (started by LocalCluster.forked, not by hand):
+ *   java semaine3.bench.ClusterNode <id> <config file> <workload file> <start at, epoch ms> <drain ms>
+ *
+ * Starts the Node, waits until every peer accepts connections (TCP transports; with transport=shm
+ * start.delay.ms has to be long enough), runs the workload from the
+ * shared start time and prints one "PHASE <index> <PhaseStats line>" per phase before exiting.
+ */
+public final class ClusterNode {
+    static final String MARKER = "PHASE ";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 5) throw new IllegalArgumentException("<id> <config file> <workload file> <start at ms> <drain ms>");
+        int id = Integer.parseInt(args[0]);
+        Config config = Config.fromFileOrDefault(args[1]);
+        Workload workload = Workload.parse(args[2]);
+        long startAt = Long.parseLong(args[3]);
+        long drainMs = Long.parseLong(args[4]);
+
+        PrintStream out = System.out;
+        int code = 0;
+        try (Node node = new Node(id, config)) {
+            LoadGenerator generator = new LoadGenerator(node, id, config.n(), workload, drainMs);
+            node.start();
+            boolean tcp = !config.option("transport", "blocking").equals("shm"); // rings cannot be probed
+            if (tcp && !awaitPeers(config, id, startAt)) {
+                System.err.println("[Node " + id + "] not every peer was up at the start time");
+            }
+            generator.start(startAt);
+            List<PhaseStats> process = PhaseStats.sampleProcess(workload, startAt, drainMs);
+            List<PhaseStats> phases = generator.await();
+            for (int p = 0; p < phases.size(); p++) {
+                phases.get(p).add(process.get(p));
+                out.println(MARKER + p + " " + phases.get(p).line());
+            }
+        } catch (Exception e) {
+            System.err.println("[Node " + id + "] cluster node failed: " + e);
+            code = 1;
+        }
+        out.flush();
+        System.exit(code); // do not wait for lingering non-daemon threads
+    }
+
+    /** Connects once to every peer until all accept or deadlineMillis passes. */
+    private static boolean awaitPeers(Config config, int myId, long deadlineMillis) throws InterruptedException {
+        for (int i = 0; i < config.n(); i++) {
+            if (i == myId) continue;
+            InetSocketAddress address = new InetSocketAddress(config.get(i).host, config.get(i).port);
+            while (true) {
+                try (Socket s = new Socket()) {
+                    s.connect(address, 200);
+                    break;
+                } catch (IOException e) {
+                    if (System.currentTimeMillis() >= deadlineMillis) return false;
+                    Thread.sleep(50);
+                }
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,141 @@
+package semaine3.bench;
+
+import semaine3.BinaryCodec;
+import semaine3.Message;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Text (Message.serialize/deserialize) vs binary (BinaryCodec) encoding.
+ *
+ * Run:
+ *   ./bench.sh CodecBench [iterations]
+ *
+ * First runs a randomized round-trip check of both codecs (random clocks, random
+ * unicode payloads including '|', '\\', newlines and surrogate pairs, random headers), then prints
+ * encode/decode ns/op, wire bytes/op and allocated bytes/op for N = 3, 64 and 1024.
+ */
+public final class CodecBench {
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) {
+        int iterations = args.length >= 1 ? Integer.parseInt(args[0]) : 200_000;
+        roundTrip(new Random(42), 20_000);
+
+        for (int n : new int[]{3, 64, 1024}) {
+            int[] vc = new int[n];
+            Random rnd = new Random(n);
+            for (int i = 0; i < n; i++) vc[i] = rnd.nextInt(100_000);
+            Message msg = new Message("{\"op\":\"put\",\"key\":\"k-42\",\"value\":\"some value\"}", 1, 123_456, vc);
+            int ops = Math.max(1000, iterations / Math.max(1, n / 16));
+            benchText(msg, n, ops);
+            benchBinary(msg, n, ops);
+        }
+    }
+
+    private static void roundTrip(Random rnd, int count) {
+        ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+        for (int i = 0; i < count; i++) {
+            int[] vc = new int[1 + rnd.nextInt(64)];
+            for (int j = 0; j < vc.length; j++) vc[j] = rnd.nextInt(4) == 0 ? Integer.MAX_VALUE - rnd.nextInt(10) : rnd.nextInt(1000);
+            Message m = new Message(randomPayload(rnd), rnd.nextInt(1 << 20), rnd.nextInt(Integer.MAX_VALUE), vc);
+            if (rnd.nextBoolean()) m = m.withHeader("cb", Arrays.toString(vc));
+            if (rnd.nextInt(4) == 0) m = m.withHeader("h" + rnd.nextInt(10), "v" + rnd.nextInt(1000));
+            check(m, Message.deserialize(m.serialize()), "text");
+            buf.clear();
+            BinaryCodec.encode(m, buf);
+            buf.flip();
+            check(m, BinaryCodec.decode(buf), "binary");
+        }
+        System.out.println("{\"benchmark\":\"codec-roundtrip\",\"messages\":" + count + ",\"ok\":true}");
+    }
+
+    private static String randomPayload(Random rnd) {
+        String alphabet = "ab|\\\n\r,\u00e9\u20ac\ud83d\ude00 x";
+        StringBuilder sb = new StringBuilder();
+        int len = rnd.nextInt(40);
+        for (int i = 0; i < len; i++) {
+            int k = rnd.nextInt(alphabet.length());
+            char c = alphabet.charAt(k);
+            if (Character.isHighSurrogate(c)) {
+                sb.append(c).append(alphabet.charAt(k + 1));
+            } else if (!Character.isLowSurrogate(c)) {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void check(Message expected, Message actual, String codec) {
+        if (actual == null
+                || !expected.payload().equals(actual.payload())
+                || expected.senderId != actual.senderId
+                || expected.lamportTs != actual.lamportTs
+                || !Arrays.equals(expected.vectorClock, actual.vectorClock)
+                || !expected.headers.equals(actual.headers)) {
+            throw new AssertionError(codec + " round-trip failed: " + expected + " -> " + actual);
+        }
+    }
+
+    private static void benchText(Message msg, int n, int ops) {
+        String line = msg.serialize();
+        long sink = 0;
+        for (int i = 0; i < ops; i++) sink += msg.serialize().length(); // warm-up
+
+        long alloc = THREADS.getCurrentThreadAllocatedBytes();
+        long t0 = System.nanoTime();
+        for (int i = 0; i < ops; i++) sink += msg.serialize().getBytes(StandardCharsets.UTF_8).length;
+        long encNs = System.nanoTime() - t0;
+        long encAlloc = THREADS.getCurrentThreadAllocatedBytes() - alloc;
+
+        for (int i = 0; i < ops; i++) sink += Message.deserialize(line).lamportTs; // warm-up
+        alloc = THREADS.getCurrentThreadAllocatedBytes();
+        t0 = System.nanoTime();
+        for (int i = 0; i < ops; i++) sink += Message.deserialize(line).lamportTs;
+        long decNs = System.nanoTime() - t0;
+        long decAlloc = THREADS.getCurrentThreadAllocatedBytes() - alloc;
+
+        report("text", n, ops, encNs, decNs, line.getBytes(StandardCharsets.UTF_8).length + 1, encAlloc, decAlloc, sink);
+    }
+
+    private static void benchBinary(Message msg, int n, int ops) {
+        ByteBuffer buf = ByteBuffer.allocate(BinaryCodec.maxFrameSize(msg));
+        long sink = 0;
+        for (int i = 0; i < ops; i++) { buf.clear(); BinaryCodec.encode(msg, buf); sink += buf.position(); }
+
+        long alloc = THREADS.getCurrentThreadAllocatedBytes();
+        long t0 = System.nanoTime();
+        for (int i = 0; i < ops; i++) { buf.clear(); BinaryCodec.encode(msg, buf); sink += buf.position(); }
+        long encNs = System.nanoTime() - t0;
+        long encAlloc = THREADS.getCurrentThreadAllocatedBytes() - alloc;
+        int frameBytes = buf.position();
+
+        for (int i = 0; i < ops; i++) { buf.position(0).limit(frameBytes); sink += BinaryCodec.decode(buf).lamportTs; }
+        alloc = THREADS.getCurrentThreadAllocatedBytes();
+        t0 = System.nanoTime();
+        for (int i = 0; i < ops; i++) { buf.position(0).limit(frameBytes); sink += BinaryCodec.decode(buf).lamportTs; }
+        long decNs = System.nanoTime() - t0;
+        long decAlloc = THREADS.getCurrentThreadAllocatedBytes() - alloc;
+
+        report("binary", n, ops, encNs, decNs, frameBytes, encAlloc, decAlloc, sink);
+    }
+
+    private static void report(String codec, int n, int ops, long encNs, long decNs, int wireBytes,
+                               long encAlloc, long decAlloc, long sink) {
+        new Stats("codec")
+                .put("codec", codec)
+                .put("n", n)
+                .put("encode_ns_op", encNs / ops)
+                .put("decode_ns_op", decNs / ops)
+                .put("wire_bytes_op", wireBytes)
+                .put("encode_alloc_bytes_op", encAlloc / ops)
+                .put("decode_alloc_bytes_op", decAlloc / ops)
+                .put("blackhole", sink & 1)
+                .print();
+    }
+}
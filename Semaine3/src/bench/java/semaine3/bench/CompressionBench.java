@@ -0,0 +1,144 @@
+package semaine3.bench;
+
+import semaine3.Config;
+import semaine3.Metrics;
+import semaine3.Node;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput from node 0 to node 1 through a FaultProxy that throttles the link, with and
+ * without compress=true (compress.link.mbps set to the link speed, or left at its default on
+ * the unthrottled loopback, mbps 0):
+ *  - json: small records that repeat field names and look alike (compress well);
+ *  - random: random base64 (does not compress; the connection should switch compression off).
+ *
+ * Node 0 sends as fast as the link lets it for the given time. Reports messages and payload MB
+ * delivered per second, the compression ratio, records compressed / sent as is, how often
+ * compression was switched off, and the CPU time spent deflating (node 0) and inflating (node 1).
+ *
+ * Run:
+ *   ./bench.sh CompressionBench [mbps,mbps...] [seconds] [size] [key=value node options...]
+ */
+public final class CompressionBench {
+
+    public static void main(String[] args) throws Exception {
+        String links = args.length >= 1 ? args[0] : "10,100,0";
+        int seconds = args.length >= 2 ? Integer.parseInt(args[1]) : 3;
+        int size = args.length >= 3 ? Integer.parseInt(args[2]) : 256;
+        Map<String, String> options = new LinkedHashMap<>();
+        options.put("wire", "binary");
+        for (int i = 3; i < args.length; i++) {
+            int eq = args[i].indexOf('=');
+            options.put(args[i].substring(0, eq), args[i].substring(eq + 1));
+        }
+        PrintStream report = System.out;
+        PrintStream err = System.err;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // Node logs every message
+        System.setErr(new PrintStream(OutputStream.nullOutputStream())); // and the sends cut at the end
+        try {
+            run(0, "json", false, 1, size, options); // warm-up
+            for (String link : links.split(",")) {
+                double mbps = Double.parseDouble(link.trim());
+                for (String payload : new String[]{"json", "random"}) {
+                    for (boolean compress : new boolean[]{false, true}) {
+                        report.println(run(mbps, payload, compress, seconds, size, options).toJson());
+                    }
+                }
+            }
+        } finally {
+            System.setOut(report);
+            System.setErr(err);
+        }
+    }
+
+    private static Stats run(double mbps, String payload, boolean compress, int seconds, int size,
+                             Map<String, String> options) throws Exception {
+        int senderPort = NioLoadBench.freePort();
+        int receiverPort = NioLoadBench.freePort();
+        int proxyPort = NioLoadBench.freePort();
+        Config senderConfig = Config.of("127.0.0.1", senderPort, proxyPort);
+        Config receiverConfig = Config.of("127.0.0.1", senderPort, receiverPort);
+        for (Map.Entry<String, String> o : options.entrySet()) {
+            senderConfig = senderConfig.withOption(o.getKey(), o.getValue());
+            receiverConfig = receiverConfig.withOption(o.getKey(), o.getValue());
+        }
+        senderConfig = senderConfig.withOption("compress", Boolean.toString(compress));
+        if (mbps > 0) senderConfig = senderConfig.withOption("compress.link.mbps", Double.toString(mbps));
+        String[] payloads = payloads(payload, size);
+
+        AtomicLong delivered = new AtomicLong();
+        AtomicLong bytes = new AtomicLong();
+        FaultProxy proxy = new FaultProxy(proxyPort, receiverPort, 0, mbps);
+        try (proxy;
+             Node sender = new Node(0, senderConfig);
+             Node receiver = new Node(1, receiverConfig)) {
+            receiver.onDeliver(m -> {
+                delivered.incrementAndGet();
+                bytes.addAndGet(m.payloadLength());
+            });
+            receiver.start();
+            sender.start();
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+            Thread load = new Thread(() -> {
+                for (int i = 0; System.nanoTime() < deadline; i++) sender.send(1, payloads[i % payloads.length]);
+            }, "compression-load");
+            load.setDaemon(true); // may be stuck writing to the throttled link when the nodes close
+            load.start();
+            Thread.sleep(TimeUnit.SECONDS.toMillis(seconds) / 4); // fill the link first
+            long t0 = System.nanoTime();
+            long before = delivered.get();
+            long bytesBefore = bytes.get();
+            Thread.sleep(TimeUnit.SECONDS.toMillis(seconds) * 3 / 4);
+            long elapsed = System.nanoTime() - t0;
+            long count = delivered.get() - before;
+            long payloadBytes = bytes.get() - bytesBefore;
+
+            Metrics out = sender.metrics();
+            return new Stats("compression")
+                    .put("link_mbps", mbps)
+                    .put("payload", payload)
+                    .put("compress", compress)
+                    .put("msgs_per_sec", Stats.perSecond(count, elapsed))
+                    .put("payload_mb_per_sec", Math.round(payloadBytes * 1e3 / elapsed * 100) / 100.0)
+                    .put("ratio", out.getCompressionRatio())
+                    .put("compressed_records", out.compressedRecords())
+                    .put("plain_records", out.plainRecords())
+                    .put("switched_off", out.compressOffs())
+                    .put("compress_cpu_ms", Math.round(out.getCompressCpuMillis()))
+                    .put("decompress_cpu_ms", Math.round(receiver.metrics().getDecompressCpuMillis()));
+        }
+    }
+
+    /** 1024 payloads of about size characters. */
+    private static String[] payloads(String kind, int size) {
+        Random random = new Random(42);
+        String[] currencies = {"EUR", "USD", "GBP", "CHF"};
+        String[] out = new String[1024];
+        for (int i = 0; i < out.length; i++) {
+            StringBuilder sb = new StringBuilder();
+            if (kind.equals("json")) {
+                sb.append("{\"op\":\"transfer\",\"from\":\"account-").append(random.nextInt(10_000))
+                  .append("\",\"to\":\"account-").append(random.nextInt(10_000))
+                  .append("\",\"amount\":").append(random.nextInt(100_000))
+                  .append(",\"currency\":\"").append(currencies[random.nextInt(currencies.length)])
+                  .append("\",\"tags\":[");
+                while (sb.length() < size - 2) sb.append("\"tag-").append(random.nextInt(50)).append("\",");
+                sb.setLength(sb.length() - 1);
+                sb.append("]}");
+            } else {
+                String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+                while (sb.length() < size) sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            out[i] = sb.toString();
+        }
+        return out;
+    }
+}
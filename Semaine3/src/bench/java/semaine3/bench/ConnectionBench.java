@@ -0,0 +1,64 @@
+package semaine3.bench;
+
+import semaine3.Config;
+import semaine3.Message;
+import semaine3.NetClient;
+import semaine3.PeerConnections;
+
+/**
+ * Connect-per-send (NetClient) vs persistent connections (PeerConnections).
+ *
+ * Run:
+ *   ./bench.sh ConnectionBench [messages]
+ *
+ * Prints one JSON line per mode with messages/sec and send latency percentiles.
+ */
+public final class ConnectionBench {
+    public static void main(String[] args) throws Exception {
+        int messages = args.length >= 1 ? Integer.parseInt(args[0]) : 20_000;
+        Message msg = new Message("hello", 0, 1, new int[]{1, 0, 0});
+
+        try (LineSink sink = new LineSink(0)) {
+            // LineSink reads lines, so this compares connection handling on the text wire format.
+            Config config = Config.of("127.0.0.1", sink.port()).withOption("wire", "text");
+
+            NetClient client = new NetClient();
+            run("connect-per-send", messages, sink, () -> client.send("127.0.0.1", sink.port(), msg.serialize()));
+
+            try (PeerConnections peers = new PeerConnections(config)) {
+                run("persistent", messages, sink, () -> peers.send(0, msg));
+            }
+        }
+    }
+
+    interface Send {
+        void send() throws Exception;
+    }
+
+    private static void run(String mode, int messages, LineSink sink, Send send) throws Exception {
+        // warm-up, fully drained so it is not counted below
+        long before = sink.lines();
+        int warmup = Math.min(1000, messages);
+        for (int i = 0; i < warmup; i++) send.send();
+        sink.awaitLines(before + warmup, 10_000);
+
+        before = sink.lines();
+        long[] lat = new long[messages];
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            long t0 = System.nanoTime();
+            send.send();
+            lat[i] = System.nanoTime() - t0;
+        }
+        sink.awaitLines(before + messages, 10_000);
+        long elapsed = System.nanoTime() - start;
+
+        new Stats("connection")
+                .put("mode", mode)
+                .put("messages", messages)
+                .put("received", sink.lines() - before)
+                .put("msgs_per_sec", Stats.perSecond(messages, elapsed))
+                .latencies("send", lat, messages)
+                .print();
+    }
+}
@@ -0,0 +1,137 @@
+package semaine3.bench;
+
+import semaine3.Config;
+import semaine3.FailureDetector;
+import semaine3.Node;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Detection time vs false positives of the phi-accrual FailureDetector, on a local cluster
+ * of `nodes` nodes in this JVM exchanging random traffic (so heartbeats are mostly piggybacked):
+ *  - a phase of `seconds` with every node alive: every UP -> SUSPECTED is a false positive.
+ *    A full GC is forced every second with a few hundred MB live, the kind of pause (stopping
+ *    sender and receiver alike) the detector has to tolerate;
+ *  - then the last node is killed (Node.close), and the time until each survivor suspects it is
+ *    the detection time.
+ * For fd.phi = 1, 3, 8 and 12 with fd.interval.ms = 100; the lower the threshold, the faster the
+ * detection and the more false positives.
+ *
+ * Run:
+ *   ./bench.sh FailureDetectorBench [nodes] [seconds]
+ */
+public final class FailureDetectorBench {
+    private static final int INTERVAL_MS = 100;
+    private static final byte[][] LIVE = new byte[300][]; // makes every full GC mark ~300 MB
+
+    static {
+        for (int i = 0; i < LIVE.length; i++) LIVE[i] = new byte[1 << 20];
+    }
+
+    public static void main(String[] args) throws Exception {
+        int nodes = args.length >= 1 ? Integer.parseInt(args[0]) : 5;
+        int seconds = args.length >= 2 ? Integer.parseInt(args[1]) : 10;
+        PrintStream report = System.out;
+        PrintStream err = System.err;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // Node logs every message
+        System.setErr(new PrintStream(OutputStream.nullOutputStream())); // and every status change
+        try {
+            for (double phi : new double[]{1, 3, 8, 12}) {
+                report.println(run(nodes, seconds, phi).toJson());
+            }
+        } finally {
+            System.setOut(report);
+            System.setErr(err);
+        }
+    }
+
+    private static Stats run(int n, int seconds, double phi) throws Exception {
+        int[] ports = new int[n];
+        for (int i = 0; i < n; i++) ports[i] = NioLoadBench.freePort();
+        Config config = Config.of("127.0.0.1", ports)
+                .withOption("wire", "binary")
+                .withOption("fd", "true")
+                .withOption("fd.phi", Double.toString(phi))
+                .withOption("fd.interval.ms", Integer.toString(INTERVAL_MS))
+                .withOption("fd.min.std.ms", Integer.toString(INTERVAL_MS / 5));
+
+        List<Node> cluster = new ArrayList<>();
+        AtomicLong falsePositives = new AtomicLong();
+        Map<Integer, Long> detectedAt = new ConcurrentHashMap<>();
+        int victim = n - 1;
+        long[] killedAt = {Long.MAX_VALUE};
+        try {
+            for (int i = 0; i < n; i++) {
+                Node node = new Node(i, config);
+                int observer = i;
+                node.failureDetector().onChange((peer, status) -> {
+                    if (status != FailureDetector.Status.SUSPECTED) return;
+                    if (peer == victim && System.nanoTime() >= killedAt[0]) {
+                        detectedAt.putIfAbsent(observer, System.nanoTime());
+                    } else {
+                        falsePositives.incrementAndGet();
+                    }
+                });
+                cluster.add(node);
+            }
+            for (Node node : cluster) node.start();
+
+            // traffic: every ~5 ms a random node sends to a random peer
+            Random rnd = new Random(7);
+            long warmupEnd = System.nanoTime() + 2_000_000_000L; // let every node hear every other
+            while (System.nanoTime() < warmupEnd) traffic(cluster, rnd, n);
+            falsePositives.set(0);
+            long quietEnd = System.nanoTime() + seconds * 1_000_000_000L;
+            long nextGc = System.nanoTime();
+            while (System.nanoTime() < quietEnd) {
+                traffic(cluster, rnd, n);
+                if (System.nanoTime() >= nextGc) {
+                    System.gc();
+                    nextGc = System.nanoTime() + 1_000_000_000L;
+                }
+            }
+
+            killedAt[0] = System.nanoTime();
+            cluster.get(victim).close();
+            long deadline = System.nanoTime() + 30_000_000_000L;
+            while (detectedAt.size() < n - 1 && System.nanoTime() < deadline) {
+                traffic(cluster.subList(0, victim), rnd, victim);
+            }
+
+            long sum = 0;
+            long max = 0;
+            for (long t : detectedAt.values()) {
+                long ms = (t - killedAt[0]) / 1_000_000;
+                sum += ms;
+                max = Math.max(max, ms);
+            }
+            return new Stats("failure-detector")
+                    .put("nodes", n)
+                    .put("phi", phi)
+                    .put("interval_ms", INTERVAL_MS)
+                    .put("quiet_seconds", seconds)
+                    .put("false_positives", falsePositives.get())
+                    .put("false_positives_per_peer_hour",
+                            Math.round(falsePositives.get() * 3600.0 / seconds / (n * (n - 1)) * 10) / 10.0)
+                    .put("detected_by", detectedAt.size())
+                    .put("detection_ms_mean", detectedAt.isEmpty() ? -1 : sum / detectedAt.size())
+                    .put("detection_ms_max", detectedAt.isEmpty() ? -1 : max);
+        } finally {
+            for (Node node : cluster) node.close();
+        }
+    }
+
+    private static void traffic(List<Node> nodes, Random rnd, int n) throws InterruptedException {
+        int from = rnd.nextInt(nodes.size());
+        int to = rnd.nextInt(n);
+        if (to != from) nodes.get(from).sendAsync(to, "x");
+        Thread.sleep(5);
+    }
+}
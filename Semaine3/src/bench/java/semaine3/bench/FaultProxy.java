@@ -0,0 +1,119 @@
+package semaine3.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * TCP proxy that injects faults between a node and one of its peers (ReliableBench), or
+ * emulates a slow link (CompressionBench).
+ *
+ * Everything accepted on the proxy port is forwarded to the target; with probability
+ * `cut` per forwarded chunk (one read, up to 8 KiB) the chunk is thrown away and both
+ * sides are reset, which is what a lossy link looks like from above TCP: everything in
+ * flight on that connection is gone and the sender sees a broken pipe on its next write.
+ * With mbps > 0 each connection forwards at most that many megabits per second towards the
+ * target (the reverse direction is not throttled).
+ */
+final class FaultProxy implements AutoCloseable {
+    private final ServerSocket serverSocket;
+    private final int targetPort;
+    private final double cut;
+    private final double mbps;
+    private final Random random = new Random(42);
+    private final AtomicLong cuts = new AtomicLong();
+    private volatile boolean running = true;
+
+    FaultProxy(int port, int targetPort, double cut) throws IOException {
+        this(port, targetPort, cut, 0);
+    }
+
+    FaultProxy(int port, int targetPort, double cut, double mbps) throws IOException {
+        this.serverSocket = new ServerSocket(port, 128);
+        this.targetPort = targetPort;
+        this.cut = cut;
+        this.mbps = mbps;
+        Thread acceptor = new Thread(this::acceptLoop, "proxy-" + port);
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    long cuts() { return cuts.get(); }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket client = serverSocket.accept();
+                Socket target = new Socket();
+                try {
+                    target.connect(new InetSocketAddress("127.0.0.1", targetPort), 1000);
+                } catch (IOException e) {
+                    // target down (restarting): refuse like it would
+                    client.setSoLinger(true, 0);
+                    client.close();
+                    target.close();
+                    continue;
+                }
+                pump(client, target, true);
+                pump(target, client, false);
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void pump(Socket from, Socket to, boolean faulty) {
+        Thread t = new Thread(() -> {
+            byte[] buf = new byte[8192];
+            long due = System.nanoTime(); // throttled: when the link is free again
+            try (InputStream in = from.getInputStream(); OutputStream out = to.getOutputStream()) {
+                int n;
+                while ((n = in.read(buf)) > 0) {
+                    if (faulty && mbps > 0) {
+                        due = Math.max(due, System.nanoTime()) + (long) (n * 8000 / mbps);
+                        long wait = due - System.nanoTime();
+                        if (wait > 0) LockSupport.parkNanos(wait);
+                    }
+                    if (faulty && shouldCut()) {
+                        cuts.incrementAndGet();
+                        reset(from);
+                        reset(to);
+                        return;
+                    }
+                    out.write(buf, 0, n);
+                }
+            } catch (IOException ignored) {
+            } finally {
+                try { from.close(); } catch (IOException ignored) {}
+                try { to.close(); } catch (IOException ignored) {}
+            }
+        }, "proxy-pump");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private boolean shouldCut() {
+        synchronized (random) {
+            return random.nextDouble() < cut;
+        }
+    }
+
+    private static void reset(Socket s) {
+        try {
+            s.setSoLinger(true, 0); // RST instead of FIN: unread and unsent bytes are lost
+            s.close();
+        } catch (IOException ignored) {}
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        serverSocket.close();
+    }
+}
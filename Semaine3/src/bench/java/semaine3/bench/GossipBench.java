@@ -0,0 +1,162 @@
+package semaine3.bench;
+
+import semaine3.GossipBroadcast;
+import semaine3.Histogram;
+import semaine3.Node;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Direct vs gossip broadcast (broadcast=gossip) on N nodes in this JVM (transport=memory by
+ * default, so N = 256 does not need 65k sockets). Node 0 broadcasts the given number of
+ * messages, one every interval ms; every other node records when each one arrives, after how
+ * many hops, and whether anti-entropy had to repair it.
+ *
+ * Per N and mode:
+ *  - time from the broadcast until 99% and 100% of the other nodes have it (p50 / max ms over the
+ *    messages), and the rounds it took (hops + 1: average, 99th percentile and last receiver);
+ *  - coverage of the pushes alone, and deliveries repaired by anti-entropy;
+ *  - messages written per broadcast: by the origin, by the busiest other node, and in total
+ *    (anti-entropy digests and repairs included, pushes alone also given).
+ *
+ * Run:
+ *   ./bench.sh GossipBench [nodes,nodes...] [messages] [interval ms] [key=value node options...]
+ */
+public final class GossipBench {
+    private static final long WAIT_MS = 10_000; // for the last deliveries (anti-entropy rounds)
+
+    public static void main(String[] args) throws Exception {
+        String sizes = args.length >= 1 ? args[0] : "16,32,64,128,256";
+        int messages = args.length >= 2 ? Integer.parseInt(args[1]) : 30;
+        int intervalMs = args.length >= 3 ? Integer.parseInt(args[2]) : 200;
+        Map<String, String> options = new LinkedHashMap<>();
+        options.put("transport", "memory");
+        options.put("memory.queue", "4096");
+        options.put("inbox.capacity", "4096");
+        for (int i = 3; i < args.length; i++) {
+            int eq = args[i].indexOf('=');
+            options.put(args[i].substring(0, eq), args[i].substring(eq + 1));
+        }
+        PrintStream report = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // nodes log to stdout
+        try {
+            run(16, "gossip", 20, intervalMs, options); // warm-up
+            for (String size : sizes.split(",")) {
+                int n = Integer.parseInt(size.trim());
+                for (String mode : new String[]{"direct", "gossip"}) {
+                    report.println(run(n, mode, messages, intervalMs, options).toJson());
+                }
+            }
+        } finally {
+            System.setOut(report);
+        }
+    }
+
+    private static Stats run(int n, String mode, int messages, int intervalMs, Map<String, String> options)
+            throws Exception {
+        Map<String, String> o = new LinkedHashMap<>(options);
+        o.put("broadcast", mode);
+        long[][] arrival = new long[messages][n];
+        int[][] hops = new int[messages][n];
+        long[] sentAt = new long[messages];
+        AtomicLong delivered = new AtomicLong();
+        AtomicLong repaired = new AtomicLong();
+
+        try (LocalCluster cluster = LocalCluster.inProcess(n, o, (id, node) -> node.onDeliver(m -> {
+            int i = Integer.parseInt(m.payload());
+            arrival[i][id] = System.nanoTime();
+            hops[i][id] = Math.max(0, GossipBroadcast.hops(m));
+            if (GossipBroadcast.isRepair(m)) repaired.incrementAndGet();
+            delivered.incrementAndGet();
+        }))) {
+            List<Node> nodes = cluster.nodes();
+            long[] sentBefore = new long[n];
+            for (int i = 0; i < n; i++) sentBefore[i] = sum(nodes.get(i).metrics().getSent());
+            for (int i = 0; i < messages; i++) {
+                sentAt[i] = System.nanoTime();
+                nodes.get(0).broadcast(Integer.toString(i));
+                Thread.sleep(intervalMs);
+            }
+            long expected = (long) messages * (n - 1);
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WAIT_MS);
+            while (delivered.get() < expected && System.nanoTime() < deadline) Thread.sleep(5);
+
+            Histogram t99 = new Histogram();
+            Histogram t100 = new Histogram();
+            double rounds = 0;
+            double rounds99 = 0;
+            double rounds100 = 0;
+            int complete = 0;
+            for (int i = 0; i < messages; i++) {
+                long[] t = new long[n - 1];
+                int[] h = new int[n - 1];
+                int k = 0;
+                for (int node = 1; node < n; node++) {
+                    t[k] = arrival[i][node] == 0 ? Long.MAX_VALUE : arrival[i][node] - sentAt[i];
+                    h[k++] = hops[i][node] + 1;
+                    rounds += hops[i][node] + 1;
+                }
+                Arrays.sort(t);
+                Arrays.sort(h);
+                int at99 = (int) Math.ceil(0.99 * (n - 1)) - 1;
+                if (t[at99] != Long.MAX_VALUE) t99.record(t[at99]);
+                if (t[n - 2] != Long.MAX_VALUE) {
+                    t100.record(t[n - 2]);
+                    complete++;
+                }
+                rounds99 += h[at99];
+                rounds100 += h[n - 2];
+            }
+
+            long pushes = 0;
+            for (Node node : nodes) pushes += node.gossip() == null ? 0 : node.gossip().pushed();
+            long origin = sum(nodes.get(0).metrics().getSent()) - sentBefore[0];
+            long busiest = 0;
+            long total = origin;
+            for (int i = 1; i < n; i++) {
+                long sent = sum(nodes.get(i).metrics().getSent()) - sentBefore[i];
+                busiest = Math.max(busiest, sent);
+                total += sent;
+            }
+            return new Stats("gossip")
+                    .put("nodes", n)
+                    .put("mode", mode)
+                    .put("messages", messages)
+                    .put("complete", complete)
+                    .put("reach99_p50_ms", millis(t99.percentile(0.50)))
+                    .put("reach99_max_ms", millis(t99.max()))
+                    .put("reach100_p50_ms", millis(t100.percentile(0.50)))
+                    .put("reach100_max_ms", millis(t100.max()))
+                    .put("rounds_avg", round(rounds / messages / (n - 1)))
+                    .put("rounds99_avg", round(rounds99 / messages))
+                    .put("rounds100_avg", round(rounds100 / messages))
+                    .put("push_coverage", round(1.0 - repaired.get() / (double) expected))
+                    .put("repaired", repaired.get())
+                    .put("origin_sends_per_msg", round(origin / (double) messages))
+                    .put("max_relay_sends_per_msg", round(busiest / (double) messages))
+                    .put("total_sends_per_msg", round(total / (double) messages))
+                    .put("push_sends_per_msg", round(pushes / (double) messages));
+        }
+    }
+
+    private static long sum(long[] values) {
+        long total = 0;
+        for (long v : values) total += v;
+        return total;
+    }
+
+    private static double millis(long nanos) {
+        return Math.round(nanos / 1e4) / 100.0;
+    }
+
+    private static double round(double v) {
+        return Math.round(v * 100) / 100.0;
+    }
+}
@@ -0,0 +1,85 @@
+package semaine3.bench;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Minimal micro-benchmark loop for SuiteBench: warm-up iterations, then timed measurement
+ * iterations, every thread calling the operation in a tight loop. The operation returns a
+ * value that is folded into a sink, so the JIT cannot drop the work.
+ *
+ * Reports ops/sec (mean and standard deviation over the measurement iterations) and ns/op
+ * as seen by one thread.
+ */
+final class Harness {
+    private final int warmups;
+    private final int iterations;
+    private final long iterationMs;
+
+    Harness(int warmups, int iterations, long iterationMs) {
+        this.warmups = warmups;
+        this.iterations = iterations;
+        this.iterationMs = iterationMs;
+    }
+
+    /** Runs op on `threads` threads and adds ops_per_sec, ops_per_sec_stdev and ns_per_op to stats. */
+    Stats run(Stats stats, int threads, LongSupplier op) throws InterruptedException {
+        for (int i = 0; i < warmups; i++) iteration(threads, op);
+        double[] rates = new double[iterations];
+        for (int i = 0; i < iterations; i++) rates[i] = iteration(threads, op);
+
+        double mean = 0;
+        for (double r : rates) mean += r;
+        mean /= rates.length;
+        double var = 0;
+        for (double r : rates) var += (r - mean) * (r - mean);
+        double stdev = rates.length > 1 ? Math.sqrt(var / (rates.length - 1)) : 0;
+
+        return stats.put("threads", threads)
+                .put("ops_per_sec", Math.round(mean))
+                .put("ops_per_sec_stdev", Math.round(stdev))
+                .put("ns_per_op", mean == 0 ? 0 : Math.round(threads * 1e10 / mean) / 10.0);
+    }
+
+    /** @return ops/sec over all threads */
+    private double iteration(int threads, LongSupplier op) throws InterruptedException {
+        LongAdder ops = new LongAdder();
+        LongAdder sink = new LongAdder();
+        AtomicBoolean stop = new AtomicBoolean();
+        CountDownLatch ready = new CountDownLatch(threads);
+        CountDownLatch go = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            Thread th = new Thread(() -> {
+                long local = 0;
+                long s = 0;
+                try {
+                    ready.countDown();
+                    go.await();
+                    while (!stop.get()) {
+                        for (int i = 0; i < 64; i++) s += op.getAsLong();
+                        local += 64;
+                    }
+                } catch (InterruptedException ignored) {
+                } finally {
+                    ops.add(local);
+                    sink.add(s);
+                    done.countDown();
+                }
+            });
+            th.setDaemon(true);
+            th.start();
+        }
+        ready.await();
+        long t0 = System.nanoTime();
+        go.countDown();
+        Thread.sleep(iterationMs);
+        stop.set(true);
+        done.await();
+        long elapsed = System.nanoTime() - t0;
+        if (sink.sum() == 42) System.out.print(""); // keep the sink alive
+        return ops.sum() * 1e9 / elapsed;
+    }
+}
@@ -0,0 +1,65 @@
+package semaine3.bench;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Minimal line server used as a benchmark peer: reads lines and counts them,
+ * with the same thread-per-connection shape as NetServer but without a Node behind it.
+ */
+public final class LineSink implements AutoCloseable {
+    private final ServerSocket serverSocket;
+    private final AtomicLong lines = new AtomicLong();
+    private volatile boolean running = true;
+
+    public LineSink(int port) throws IOException {
+        serverSocket = new ServerSocket(port, 1024);
+        Thread acceptor = new Thread(this::acceptLoop, "sink-" + port);
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int port() { return serverSocket.getLocalPort(); }
+
+    public long lines() { return lines.get(); }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket s = serverSocket.accept();
+                Thread t = new Thread(() -> read(s), "sink-reader");
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void read(Socket s) {
+        try (s; BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8))) {
+            while (in.readLine() != null) {
+                lines.incrementAndGet();
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    public void awaitLines(long expected, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (lines.get() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        serverSocket.close();
+    }
+}
@@ -0,0 +1,166 @@
+package semaine3.bench;
+
+import semaine3.DeliveryResult;
+import semaine3.Message;
+import semaine3.Node;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives one Node through a Workload (ClusterBench) and records what it receives.
+ *
+ * Payloads are "<phase>:<send time in epoch us>:" padded with 'x' to the phase size, so a
+ * receiver can attribute a message to the phase it was sent in (however late it arrives) and
+ * get the one-way latency from its own clock. Wall-clock stamps work across the JVMs of one
+ * host; across hosts they need synchronized clocks.
+ *
+ * Rules:
+ *  - with rate > 0 sends are paced open-loop and stamped with their intended send time, so a
+ *    sender that falls behind shows up as latency instead of silently sending less;
+ *  - with rate = 0 every send is stamped when it starts and the next one follows at once;
+ *  - p2p goes to the next peer in turn; broadcast waits for the broadcast to be written;
+ *  - a node's own deliveries (delivery=total delivers its broadcasts locally) are not counted.
+ */
+final class LoadGenerator {
+    private static final Clock WALL = Clock.systemUTC();
+
+    private final Node node;
+    private final int myId;
+    private final int n;
+    private final Workload workload;
+    private final long drainMs;
+    private final List<PhaseStats> stats = new ArrayList<>();
+    private final Thread thread;
+    private volatile long startAtMillis;
+
+    LoadGenerator(Node node, int myId, int n, Workload workload, long drainMs) {
+        this.node = node;
+        this.myId = myId;
+        this.n = n;
+        this.workload = workload;
+        this.drainMs = drainMs;
+        for (int i = 0; i < workload.phases.size(); i++) stats.add(new PhaseStats());
+        this.thread = new Thread(this::run, "load-" + myId);
+        this.thread.setDaemon(true);
+        node.onDeliver(this::delivered);
+    }
+
+    /** Starts sending at the given wall-clock time (ms since the epoch). */
+    void start(long startAtMillis) {
+        this.startAtMillis = startAtMillis;
+        thread.start();
+    }
+
+    /** Waits for the last phase and its drain time, then returns one PhaseStats per phase. */
+    List<PhaseStats> await() throws InterruptedException {
+        thread.join();
+        long end = startAtMillis + workload.totalMillis(drainMs);
+        sleepUntil(end);
+        return stats;
+    }
+
+    static long nowMicros() {
+        Instant now = WALL.instant();
+        return TimeUnit.SECONDS.toMicros(now.getEpochSecond()) + now.getNano() / 1000;
+    }
+
+    static void sleepUntil(long epochMillis) throws InterruptedException {
+        long wait;
+        while ((wait = epochMillis - System.currentTimeMillis()) > 0) Thread.sleep(Math.min(wait, 100));
+    }
+
+    private void run() {
+        try {
+            for (int p = 0; p < workload.phases.size(); p++) {
+                Workload.Phase phase = workload.phases.get(p);
+                sleepUntil(startAtMillis + workload.startOffsetMillis(p, drainMs));
+                if (phase.isSender(myId) && n > 1) runPhase(p, phase);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runPhase(int p, Workload.Phase phase) {
+        PhaseStats s = stats.get(p);
+        long t0 = System.nanoTime();
+        long micros0 = nowMicros();
+        long durationNanos = TimeUnit.SECONDS.toNanos(phase.durationSeconds);
+        int dest = myId;
+        for (long k = 0; ; k++) {
+            long stamp;
+            if (phase.rate > 0) {
+                long offset = k * 1_000_000_000L / phase.rate;
+                if (offset >= durationNanos) return;
+                long wait = t0 + offset - System.nanoTime();
+                if (wait > 0) LockSupport.parkNanos(wait);
+                stamp = micros0 + offset / 1000;
+            } else {
+                if (System.nanoTime() - t0 >= durationNanos) return;
+                stamp = nowMicros();
+            }
+            String payload = payload(p, stamp, phase.size);
+            try {
+                boolean sent;
+                if (phase.broadcast) {
+                    // sent once it left for at least one peer; the peers it missed count as lost
+                    sent = node.broadcastAsync(payload).join().values().stream().anyMatch(
+                            r -> r.status == DeliveryResult.Status.DELIVERED || r.status == DeliveryResult.Status.QUEUED);
+                } else {
+                    dest = (dest + 1) % n;
+                    if (dest == myId) dest = (dest + 1) % n;
+                    sent = node.send(dest, payload);
+                }
+                if (sent) s.sent.increment();
+            } catch (RuntimeException e) {
+                // counted as not sent; Node already reported it
+            }
+        }
+    }
+
+    static String payload(int phase, long stampMicros, int size) {
+        StringBuilder sb = new StringBuilder(Math.max(size, 24));
+        sb.append(phase).append(':').append(stampMicros).append(':');
+        while (sb.length() < size) sb.append('x');
+        return sb.toString();
+    }
+
+    private void delivered(Message m) {
+        if (m.senderId == myId) return;
+        CharSequence payload = m.payloadChars(); // ASCII: no String decoded for received payloads
+        int colon1 = indexOf(payload, ':', 0);
+        int colon2 = colon1 < 0 ? -1 : indexOf(payload, ':', colon1 + 1);
+        if (colon2 < 0) return; // not ours
+        long phase = parseLong(payload, 0, colon1);
+        long stamp = parseLong(payload, colon1 + 1, colon2);
+        if (phase < 0 || phase >= stats.size() || stamp < 0) return;
+        PhaseStats s = stats.get((int) phase);
+        s.delivered.increment();
+        s.bytes.add(m.payloadLength());
+        s.latencyNanos.record(TimeUnit.MICROSECONDS.toNanos(nowMicros() - stamp));
+    }
+
+    private static int indexOf(CharSequence s, char c, int from) {
+        for (int i = from; i < s.length(); i++) {
+            if (s.charAt(i) == c) return i;
+        }
+        return -1;
+    }
+
+    /** -1 unless s[from, to) is a non-empty run of digits. */
+    private static long parseLong(CharSequence s, int from, int to) {
+        if (from >= to || to - from > 18) return -1;
+        long v = 0;
+        for (int i = from; i < to; i++) {
+            int d = s.charAt(i) - '0';
+            if (d < 0 || d > 9) return -1;
+            v = v * 10 + d;
+        }
+        return v;
+    }
+}
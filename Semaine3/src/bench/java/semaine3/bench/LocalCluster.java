@@ -0,0 +1,152 @@
+package semaine3.bench;
+
+import semaine3.Config;
+import semaine3.Node;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Starts a cluster of N nodes on 127.0.0.1 from a generated Config, instead of one
+ * `java semaine3.Main <id>` per terminal:
+ *  - inProcess: N Nodes in this JVM (cheap, but they share the heap, the GC and the CPU);
+ *  - forked: one JVM per node, `java -cp <this classpath> <mainClass> <id> <config file> args...`,
+ *    with the generated config written to dir/cluster.conf and each node's output to dir/node-<id>.log.
+ *
+ * Ports are picked free; options become "key=value" lines of the config file, so a forked
+ * node reads them back through Config.fromFileOrDefault like Main does.
+ */
+final class LocalCluster implements AutoCloseable {
+    private final Config config;
+    private final List<Node> nodes;
+    private final List<Process> processes;
+    private final Path dir; // forked only
+
+    private LocalCluster(Config config, List<Node> nodes, List<Process> processes, Path dir) {
+        this.config = config;
+        this.nodes = nodes;
+        this.processes = processes;
+        this.dir = dir;
+    }
+
+    static Config generate(int n, Map<String, String> options) throws IOException {
+        int[] ports = new int[n];
+        Set<Integer> taken = new HashSet<>();
+        for (int i = 0; i < n; i++) {
+            do {
+                ports[i] = NioLoadBench.freePort(); // the OS may hand the same free port out twice
+            } while (!taken.add(ports[i]));
+        }
+        Config config = Config.of("127.0.0.1", ports);
+        for (Map.Entry<String, String> o : options.entrySet()) config = config.withOption(o.getKey(), o.getValue());
+        return config;
+    }
+
+    /** Creates and starts n Nodes in this JVM; setup runs on each node before it is started. */
+    static LocalCluster inProcess(int n, Map<String, String> options, NodeSetup setup) throws Exception {
+        Config config = generate(n, options);
+        List<Node> nodes = new ArrayList<>();
+        LocalCluster cluster = new LocalCluster(config, nodes, Collections.emptyList(), null);
+        try {
+            for (int i = 0; i < n; i++) {
+                Node node = new Node(i, config);
+                nodes.add(node);
+                setup.accept(i, node);
+            }
+            for (Node node : nodes) node.start();
+        } catch (Exception e) {
+            cluster.close();
+            throw e;
+        }
+        return cluster;
+    }
+
+    interface NodeSetup {
+        void accept(int id, Node node) throws Exception;
+    }
+
+    /** Starts one JVM per node running mainClass with args {id, config file, extraArgs...}. */
+    static LocalCluster forked(int n, Map<String, String> options, Path dir, String mainClass, List<String> extraArgs)
+            throws IOException {
+        Config config = generate(n, options);
+        Files.createDirectories(dir);
+        Path configFile = dir.resolve("cluster.conf");
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < n; i++) sb.append(config.get(i).host).append(' ').append(config.get(i).port).append('\n');
+        for (Map.Entry<String, String> o : options.entrySet()) sb.append(o.getKey()).append('=').append(o.getValue()).append('\n');
+        Files.write(configFile, sb.toString().getBytes(StandardCharsets.UTF_8));
+
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        List<Process> processes = new ArrayList<>();
+        LocalCluster cluster = new LocalCluster(config, Collections.emptyList(), processes, dir);
+        try {
+            for (int i = 0; i < n; i++) {
+                List<String> command = new ArrayList<>();
+                command.add(java);
+                command.add("-cp");
+                command.add(System.getProperty("java.class.path"));
+                command.add(mainClass);
+                command.add(Integer.toString(i));
+                command.add(configFile.toString());
+                command.addAll(extraArgs);
+                File log = log(dir, i).toFile();
+                processes.add(new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log).start());
+            }
+        } catch (IOException e) {
+            cluster.close();
+            throw e;
+        }
+        return cluster;
+    }
+
+    private static Path log(Path dir, int id) {
+        return dir.resolve("node-" + id + ".log");
+    }
+
+    Config config() {
+        return config;
+    }
+
+    /** In-process nodes (empty when forked). */
+    List<Node> nodes() {
+        return nodes;
+    }
+
+    /** Waits for every forked node to exit; false if one is still running after timeoutMs (it is killed). */
+    boolean awaitExit(long timeoutMs) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        boolean all = true;
+        for (Process p : processes) {
+            long left = deadline - System.nanoTime();
+            if (!p.waitFor(Math.max(0, left), TimeUnit.NANOSECONDS)) {
+                p.destroyForcibly();
+                all = false;
+            }
+        }
+        return all;
+    }
+
+    /** Output of forked node id. */
+    List<String> log(int id) throws IOException {
+        return Files.readAllLines(log(dir, id), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() {
+        for (Node node : nodes) node.close();
+        for (Process p : processes) {
+            if (p.isAlive()) p.destroyForcibly();
+        }
+    }
+}
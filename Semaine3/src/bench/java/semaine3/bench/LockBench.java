@@ -0,0 +1,138 @@
+package semaine3.bench;
+
+import semaine3.DistributedLock;
+import semaine3.Histogram;
+import semaine3.Node;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Named distributed locks (DistributedLock) on N nodes in this JVM: Ricart-Agrawala (lock=ra)
+ * vs the Suzuki-Kasami token (lock=token). Every node runs the given number of threads that, for
+ * the given time, acquire a random one of the given number of names, hold it for the given
+ * microseconds and release it: 1 name is full contention, many names little.
+ *
+ * Per N, names and mode: acquisitions per second, wait for the lock (p50 / p99 / max ms), lock
+ * messages written per acquisition, the share of acquisitions that needed no message (token
+ * already here), and violations: times two threads were inside the same name at once (must be 0).
+ *
+ * Run:
+ *   ./bench.sh LockBench [nodes,nodes...] [names,names...] [seconds] [threads per node] [hold us] [key=value node options...]
+ */
+public final class LockBench {
+
+    public static void main(String[] args) throws Exception {
+        String sizes = args.length >= 1 ? args[0] : "3,8,16";
+        String nameCounts = args.length >= 2 ? args[1] : "1,64";
+        int seconds = args.length >= 3 ? Integer.parseInt(args[2]) : 3;
+        int threads = args.length >= 4 ? Integer.parseInt(args[3]) : 2;
+        int holdMicros = args.length >= 5 ? Integer.parseInt(args[4]) : 0;
+        Map<String, String> options = new LinkedHashMap<>();
+        options.put("wire", "binary");
+        for (int i = 5; i < args.length; i++) {
+            int eq = args[i].indexOf('=');
+            options.put(args[i].substring(0, eq), args[i].substring(eq + 1));
+        }
+        PrintStream report = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // nodes log to stdout
+        try {
+            run(3, 1, "token", 1, threads, holdMicros, options); // warm-up
+            for (String size : sizes.split(",")) {
+                int n = Integer.parseInt(size.trim());
+                for (String names : nameCounts.split(",")) {
+                    for (String mode : new String[]{"ra", "token"}) {
+                        report.println(run(n, Integer.parseInt(names.trim()), mode, seconds, threads, holdMicros,
+                                options).toJson());
+                    }
+                }
+            }
+        } finally {
+            System.setOut(report);
+        }
+    }
+
+    private static Stats run(int n, int names, String mode, int seconds, int threads, int holdMicros,
+                             Map<String, String> options) throws Exception {
+        Map<String, String> o = new LinkedHashMap<>(options);
+        o.put("lock", mode);
+        AtomicIntegerArray inside = new AtomicIntegerArray(names);
+        AtomicInteger violations = new AtomicInteger();
+        AtomicLong acquisitions = new AtomicLong();
+        Histogram wait = new Histogram();
+
+        try (LocalCluster cluster = LocalCluster.inProcess(n, o, (id, node) -> { })) {
+            List<Node> nodes = cluster.nodes();
+            long t0 = System.nanoTime();
+            long deadline = t0 + TimeUnit.SECONDS.toNanos(seconds);
+            List<Thread> workers = new ArrayList<>();
+            for (Node node : nodes) {
+                DistributedLock locks = node.locks();
+                for (int t = 0; t < threads; t++) {
+                    Thread worker = new Thread(() -> {
+                        ThreadLocalRandom random = ThreadLocalRandom.current();
+                        try {
+                            while (System.nanoTime() < deadline) {
+                                int k = random.nextInt(names);
+                                String name = "lock-" + k;
+                                long start = System.nanoTime();
+                                if (!locks.tryAcquire(name, 10, TimeUnit.SECONDS)) continue;
+                                wait.recordSince(start);
+                                if (inside.incrementAndGet(k) != 1) violations.incrementAndGet();
+                                if (holdMicros > 0) busy(holdMicros);
+                                inside.decrementAndGet(k);
+                                locks.release(name);
+                                acquisitions.incrementAndGet();
+                            }
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }, "locker-" + t);
+                    worker.start();
+                    workers.add(worker);
+                }
+            }
+            for (Thread worker : workers) worker.join();
+            long elapsed = System.nanoTime() - t0;
+
+            long sent = 0;
+            long local = 0;
+            long acquired = 0;
+            for (Node node : nodes) {
+                sent += node.locks().sent();
+                local += node.locks().local();
+                acquired += node.locks().acquired();
+            }
+            return new Stats("lock")
+                    .put("nodes", n)
+                    .put("names", names)
+                    .put("mode", mode)
+                    .put("threads_per_node", threads)
+                    .put("acquisitions_per_sec", Stats.perSecond(acquisitions.get(), elapsed))
+                    .put("wait_p50_ms", millis(wait.percentile(0.50)))
+                    .put("wait_p99_ms", millis(wait.percentile(0.99)))
+                    .put("wait_max_ms", millis(wait.max()))
+                    .put("msgs_per_acquire", acquired == 0 ? 0 : Math.round(sent * 100.0 / acquired) / 100.0)
+                    .put("local_share", acquired == 0 ? 0 : Math.round(local * 100.0 / acquired) / 100.0)
+                    .put("violations", violations.get());
+        }
+    }
+
+    private static void busy(int micros) {
+        long until = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(micros);
+        while (System.nanoTime() < until) Thread.onSpinWait();
+    }
+
+    private static double millis(long nanos) {
+        return Math.round(nanos / 1e4) / 100.0;
+    }
+}
@@ -0,0 +1,88 @@
+package semaine3.bench;
+
+import semaine3.Config;
+import semaine3.Message;
+import semaine3.Node;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Thread count and RSS of a node with 10..1000 concurrent inbound connections,
+ * for transport=blocking (NetServer) and transport=nio (NioServer).
+ *
+ * Run:
+ *   ./bench.sh NioLoadBench [transport]
+ *
+ * Pass one transport to measure it alone in a fresh JVM (cleaner RSS baseline);
+ * without an argument both run in this JVM one after the other.
+ */
+public final class NioLoadBench {
+    public static void main(String[] args) throws Exception {
+        PrintStream report = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // Node logs every message
+
+        String[] transports = args.length >= 1 ? new String[]{args[0]} : new String[]{"blocking", "nio"};
+        for (String transport : transports) {
+            for (int conns : new int[]{10, 100, 1000}) {
+                run(report, transport, conns);
+            }
+        }
+    }
+
+    private static void run(PrintStream report, String transport, int conns) throws Exception {
+        int port = freePort();
+        Config config = Config.of("127.0.0.1", port, freePort()).withOption("transport", transport);
+        Node node = new Node(0, config);
+        node.start();
+        List<Socket> sockets = new ArrayList<>();
+        try {
+            byte[] line = (new Message("ping", 1, 1, new int[]{0, 1}).serialize() + "\n").getBytes(StandardCharsets.UTF_8);
+            for (int i = 0; i < conns; i++) {
+                Socket s = new Socket("127.0.0.1", port);
+                s.getOutputStream().write(line);
+                sockets.add(s);
+            }
+            Thread.sleep(1000); // let the server accept and read everything
+            System.gc();
+            Thread.sleep(200);
+            report.println(new Stats("nio-load")
+                    .put("transport", transport)
+                    .put("connections", conns)
+                    .put("threads", ManagementFactory.getThreadMXBean().getThreadCount())
+                    .put("rss_kb", rssKb())
+                    .toJson());
+        } finally {
+            for (Socket s : sockets) {
+                try { s.close(); } catch (IOException ignored) {}
+            }
+            node.close();
+            Thread.sleep(300);
+        }
+    }
+
+    static int freePort() throws IOException {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+
+    static long rssKb() {
+        try {
+            for (String l : Files.readAllLines(Path.of("/proc/self/status"))) {
+                if (l.startsWith("VmRSS:")) return Long.parseLong(l.replaceAll("\\D+", ""));
+            }
+        } catch (IOException ignored) {
+        }
+        return -1; // not Linux
+    }
+}
@@ -0,0 +1,97 @@
+package semaine3.bench;
+
+import semaine3.Histogram;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What one workload phase did, for one node or summed over several (ClusterBench):
+ * messages sent and delivered, payload bytes delivered, one-way latencies, and the CPU time
+ * and GC activity of the process(es) during the phase.
+ *
+ * One line of text per phase (line() / parse()) carries it from a node JVM to the launcher.
+ */
+final class PhaseStats {
+    final LongAdder sent = new LongAdder();
+    final LongAdder delivered = new LongAdder();
+    final LongAdder bytes = new LongAdder();
+    final Histogram latencyNanos = new Histogram();
+    long cpuNanos;
+    long gcCount;
+    long gcMillis;
+    int processes;
+
+    void add(PhaseStats other) {
+        sent.add(other.sent.sum());
+        delivered.add(other.delivered.sum());
+        bytes.add(other.bytes.sum());
+        latencyNanos.add(other.latencyNanos);
+        cpuNanos += other.cpuNanos;
+        gcCount += other.gcCount;
+        gcMillis += other.gcMillis;
+        processes += other.processes;
+    }
+
+    /** Sets the CPU and GC fields to what this process used between two process() samples. */
+    void process(long[] before, long[] after) {
+        cpuNanos = after[0] - before[0];
+        gcCount = after[1] - before[1];
+        gcMillis = after[2] - before[2];
+        processes = 1;
+    }
+
+    /** {process CPU ns, GC count, GC ms} so far. */
+    static long[] sample() {
+        long cpu = ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean())
+                .getProcessCpuTime();
+        long count = 0;
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return new long[]{cpu, count, millis};
+    }
+
+    /**
+     * Samples this process at the start and end of every phase of the workload (blocks until the
+     * last one ends) and returns one PhaseStats per phase with only the CPU and GC fields set.
+     */
+    static List<PhaseStats> sampleProcess(Workload workload, long startAtMillis, long drainMs) throws InterruptedException {
+        List<PhaseStats> result = new ArrayList<>();
+        for (int p = 0; p < workload.phases.size(); p++) {
+            long start = startAtMillis + workload.startOffsetMillis(p, drainMs);
+            LoadGenerator.sleepUntil(start);
+            long[] before = sample();
+            LoadGenerator.sleepUntil(start + workload.phases.get(p).durationSeconds * 1000L);
+            PhaseStats s = new PhaseStats();
+            s.process(before, sample());
+            result.add(s);
+        }
+        return result;
+    }
+
+    String line() {
+        return sent.sum() + " " + delivered.sum() + " " + bytes.sum() + " " + cpuNanos + " " + gcCount
+                + " " + gcMillis + " " + processes + " " + latencyNanos.encode();
+    }
+
+    static PhaseStats parse(String line) {
+        String[] parts = line.trim().split(" ", 8);
+        if (parts.length != 8) throw new IllegalArgumentException("bad phase stats: " + line);
+        PhaseStats s = new PhaseStats();
+        s.sent.add(Long.parseLong(parts[0]));
+        s.delivered.add(Long.parseLong(parts[1]));
+        s.bytes.add(Long.parseLong(parts[2]));
+        s.cpuNanos = Long.parseLong(parts[3]);
+        s.gcCount = Long.parseLong(parts[4]);
+        s.gcMillis = Long.parseLong(parts[5]);
+        s.processes = Integer.parseInt(parts[6]);
+        s.latencyNanos.add(Histogram.decode(parts[7]));
+        return s;
+    }
+}
@@ -0,0 +1,201 @@
+package semaine3.bench;
+
+import semaine3.BinaryCodec;
+import semaine3.FrameDecoder;
+import semaine3.Message;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Allocated bytes and ns per received message, for the receive path before and after
+ * decoding straight from pooled direct buffers:
+ *  - before: what ReceiverThread did, a BufferedReader + Message.deserialize(String) for text,
+ *    a DataInputStream + a frame decoder building the payload String for binary;
+ *  - after: FrameDecoder fed with 64 KiB windows of a direct buffer, payload left as UTF-8 bytes.
+ *
+ * Each for three consumers: "count" only routes/counts (reads senderId), "chars" reads the
+ * payload through Message.payloadChars() and "string" through Message.payload(), with 16, 256
+ * and 4096 byte payloads. Allocation comes from the per-thread allocation counter (the number
+ * JMH's -prof gc reports as gc.alloc.rate.norm, without JMH).
+ *
+ * Run:
+ *   ./bench.sh ReceiveAllocBench [messages]
+ */
+public final class ReceiveAllocBench {
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private static final int WINDOW = 64 * 1024;
+    private static final int ROUNDS = 5;
+
+    private static long sink;
+
+    public static void main(String[] args) throws IOException {
+        int messages = args.length >= 1 ? Integer.parseInt(args[0]) : 100_000;
+        for (String wire : new String[]{"text", "binary"}) {
+            for (int size : new int[]{16, 256, 4096}) {
+                int count = Math.min(messages, (64 << 20) / (size + 64)); // keep the stream under ~64 MB
+                String payload = "x".repeat(size);
+                byte[] stream = stream(wire, payload, count);
+                ByteBuffer direct = ByteBuffer.allocateDirect(stream.length).put(stream).flip();
+                for (String consumer : new String[]{"count", "chars", "string"}) {
+                    measure(wire, size, count, "before", consumer, () -> before(wire, stream, payload, count, consumer));
+                    measure(wire, size, count, "after", consumer, () -> after(direct, payload, count, consumer));
+                }
+            }
+        }
+    }
+
+    private interface Pass {
+        void run() throws IOException;
+    }
+
+    private static void measure(String wire, int size, int count, String pipeline, String consumer, Pass pass)
+            throws IOException {
+        for (int i = 0; i < ROUNDS; i++) pass.run(); // warm-up
+        long alloc = THREADS.getCurrentThreadAllocatedBytes();
+        long t0 = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) pass.run();
+        long ns = System.nanoTime() - t0;
+        alloc = THREADS.getCurrentThreadAllocatedBytes() - alloc;
+        long ops = (long) ROUNDS * count;
+        new Stats("receive-alloc")
+                .put("wire", wire)
+                .put("payload_bytes", size)
+                .put("pipeline", pipeline)
+                .put("consumer", consumer)
+                .put("messages", count)
+                .put("alloc_bytes_op", alloc / ops)
+                .put("ns_op", ns / ops)
+                .put("blackhole", sink & 1)
+                .print();
+    }
+
+    private static byte[] stream(String wire, String payload, int count) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (wire.equals("binary")) {
+            out.write(BinaryCodec.MAGIC);
+            out.write(BinaryCodec.VERSION);
+        }
+        ByteBuffer frame = null;
+        for (int i = 0; i < count; i++) {
+            Message m = new Message(payload, i % 3, i, new int[]{i, i / 2, i / 3});
+            if (wire.equals("text")) {
+                byte[] line = (m.serialize() + "\n").getBytes(StandardCharsets.UTF_8);
+                out.write(line, 0, line.length);
+            } else {
+                if (frame == null) frame = ByteBuffer.allocate(BinaryCodec.maxFrameSize(m));
+                frame.clear();
+                BinaryCodec.encode(m, frame);
+                out.write(frame.array(), 0, frame.position());
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static void consume(Message m, String payload, String consumer) {
+        if (consumer.equals("count")) {
+            sink += m.senderId;
+            return;
+        }
+        CharSequence p = consumer.equals("chars") ? m.payloadChars() : m.payload();
+        if (p.length() != payload.length() || p.charAt(p.length() - 1) != 'x') {
+            throw new AssertionError("payload mismatch: " + p);
+        }
+        sink += p.length();
+    }
+
+    private static void before(String wire, byte[] stream, String payload, int count, String consumer)
+            throws IOException {
+        int received = 0;
+        if (wire.equals("text")) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(stream), StandardCharsets.UTF_8));
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isBlank()) continue;
+                consume(Message.deserialize(line), payload, consumer);
+                received++;
+            }
+        } else {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new ByteArrayInputStream(stream)));
+            in.readUnsignedByte();
+            in.readUnsignedByte();
+            byte[] body = new byte[1024];
+            while (true) {
+                int len;
+                try {
+                    len = in.readInt();
+                } catch (EOFException eof) {
+                    break;
+                }
+                if (body.length < len) body = new byte[Math.max(len, body.length * 2)];
+                in.readFully(body, 0, len);
+                consume(decodeBodyWithString(ByteBuffer.wrap(body, 0, len)), payload, consumer);
+                received++;
+            }
+        }
+        if (received != count) throw new AssertionError("received " + received + " of " + count);
+    }
+
+    private static void after(ByteBuffer direct, String payload, int count, String consumer) {
+        int[] received = {0};
+        Consumer<Message> out = m -> {
+            consume(m, payload, consumer);
+            received[0]++;
+        };
+        FrameDecoder decoder = new FrameDecoder();
+        for (int off = 0; off < direct.limit(); off += WINDOW) {
+            ByteBuffer window = direct.duplicate();
+            window.position(off).limit(Math.min(off + WINDOW, direct.limit()));
+            decoder.feed(window, out);
+        }
+        if (received[0] != count) throw new AssertionError("received " + received[0] + " of " + count);
+    }
+
+    /** BinaryCodec.decodeBody as it was before lazy payloads: the payload String is built right away. */
+    private static Message decodeBodyWithString(ByteBuffer in) {
+        int sender = readVarint(in);
+        int lamport = readVarint(in);
+        int[] vc = new int[readVarint(in)];
+        for (int i = 0; i < vc.length; i++) vc[i] = readVarint(in);
+        String payload = readUtf8(in);
+        Map<String, String> headers = Collections.emptyMap();
+        if (in.hasRemaining()) {
+            int count = readVarint(in);
+            headers = new LinkedHashMap<>();
+            for (int i = 0; i < count; i++) headers.put(readUtf8(in), readUtf8(in));
+            headers = Collections.unmodifiableMap(headers);
+        }
+        return new Message(payload, sender, lamport, vc, headers);
+    }
+
+    private static String readUtf8(ByteBuffer in) {
+        int bytes = readVarint(in);
+        String s = new String(in.array(), in.arrayOffset() + in.position(), bytes, StandardCharsets.UTF_8);
+        in.position(in.position() + bytes);
+        return s;
+    }
+
+    private static int readVarint(ByteBuffer in) {
+        int result = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            result |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return result;
+        }
+        throw new IllegalArgumentException("varint too long");
+    }
+}
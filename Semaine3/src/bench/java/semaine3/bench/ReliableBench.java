@@ -0,0 +1,120 @@
+package semaine3.bench;
+
+import semaine3.Config;
+import semaine3.Node;
+import semaine3.ReliableDelivery;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Goodput (distinct messages delivered per second) from node 0 to node 1 through a FaultProxy,
+ * with and without reliable=true:
+ *  - cut 0 / 0.1% / 1% / 5% of the forwarded chunks (connection reset, in-flight data lost);
+ *  - node 1 restarted twice while node 0 keeps sending.
+ *
+ * Reports lost messages (never delivered), duplicates delivered to the application,
+ * retransmissions and connection cuts. Without reliable delivery, what is in flight on a
+ * reset connection is simply gone; with it nothing is lost, and duplicates only appear
+ * across a receiver restart (what the old run delivered but had not acked yet).
+ *
+ * Run:
+ *   ./bench.sh ReliableBench [messages]
+ */
+public final class ReliableBench {
+    private static final long QUIET_MS = 3000; // no new delivery for that long: the rest is lost
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length >= 1 ? Integer.parseInt(args[0]) : 50_000;
+        PrintStream report = System.out;
+        PrintStream err = System.err;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // Node logs every message
+        System.setErr(new PrintStream(OutputStream.nullOutputStream())); // and every failed send
+        try {
+            for (boolean reliable : new boolean[]{false, true}) {
+                for (double cut : new double[]{0, 0.001, 0.01, 0.05}) {
+                    report.println(run(reliable, cut, 0, messages).toJson());
+                }
+                report.println(run(reliable, 0, 2, messages).toJson());
+            }
+        } finally {
+            System.setOut(report);
+            System.setErr(err);
+        }
+    }
+
+    private static Stats run(boolean reliable, double cut, int restarts, int messages) throws Exception {
+        int senderPort = NioLoadBench.freePort();
+        int receiverPort = NioLoadBench.freePort();
+        int proxyPort = NioLoadBench.freePort();
+        Config senderConfig = Config.of("127.0.0.1", senderPort, proxyPort)
+                .withOption("wire", "binary")
+                .withOption("reliable", Boolean.toString(reliable))
+                .withOption("broadcast.timeout.ms", "200");
+        Config receiverConfig = Config.of("127.0.0.1", senderPort, receiverPort)
+                .withOption("wire", "binary")
+                .withOption("reliable", Boolean.toString(reliable));
+
+        BitSet seen = new BitSet(messages);
+        AtomicLong distinct = new AtomicLong();
+        AtomicLong duplicates = new AtomicLong();
+        AtomicLong lastDelivery = new AtomicLong(System.nanoTime());
+        AtomicReference<Node> receiver = new AtomicReference<>();
+
+        try (FaultProxy proxy = new FaultProxy(proxyPort, receiverPort, cut);
+             Node sender = new Node(0, senderConfig)) {
+            sender.start();
+            receiver.set(startReceiver(receiverConfig, seen, distinct, duplicates, lastDelivery));
+
+            long t0 = System.nanoTime();
+            for (int i = 0; i < messages; i++) {
+                if (restarts > 0 && i > 0 && i % (messages / (restarts + 1)) == 0 && i < messages - restarts) {
+                    receiver.get().close();
+                    Thread.sleep(200); // down for a while: node 0 keeps sending meanwhile
+                    receiver.set(startReceiver(receiverConfig, seen, distinct, duplicates, lastDelivery));
+                }
+                sender.send(1, Integer.toString(i));
+            }
+            while (distinct.get() < messages
+                    && System.nanoTime() - lastDelivery.get() < QUIET_MS * 1_000_000L) {
+                Thread.sleep(10);
+            }
+            long elapsed = lastDelivery.get() - t0;
+            ReliableDelivery r = sender.reliable();
+            receiver.get().close();
+            return new Stats("reliable")
+                    .put("reliable", reliable)
+                    .put("cut", cut)
+                    .put("restarts", restarts)
+                    .put("messages", messages)
+                    .put("delivered", distinct.get())
+                    .put("lost", messages - distinct.get())
+                    .put("duplicates", duplicates.get())
+                    .put("goodput_msgs_per_sec", Stats.perSecond(distinct.get(), elapsed))
+                    .put("connection_cuts", proxy.cuts())
+                    .put("retransmitted", r == null ? 0 : r.retransmitted());
+        }
+    }
+
+    private static Node startReceiver(Config config, BitSet seen, AtomicLong distinct, AtomicLong duplicates,
+                                      AtomicLong lastDelivery) throws Exception {
+        Node node = new Node(1, config);
+        node.onDeliver(m -> {
+            int id = Integer.parseInt(m.payload());
+            synchronized (seen) {
+                if (seen.get(id)) {
+                    duplicates.incrementAndGet();
+                    return;
+                }
+                seen.set(id);
+            }
+            distinct.incrementAndGet();
+            lastDelivery.set(System.nanoTime());
+        });
+        node.start();
+        return node;
+    }
+}
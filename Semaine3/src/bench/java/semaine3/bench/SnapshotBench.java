@@ -0,0 +1,150 @@
+package semaine3.bench;
+
+import semaine3.Histogram;
+import semaine3.Message;
+import semaine3.Node;
+import semaine3.Snapshot;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Chandy-Lamport snapshots (snapshot=true) on a cluster of N nodes in this JVM running a money
+ * transfer workload: sender threads move 1 unit at a time between random accounts (one per
+ * node) as fast as they can. Three phases per N:
+ *  - off: snapshot=false, the baseline;
+ *  - idle: snapshot=true, no snapshot taken (cost of stamping and counting);
+ *  - running: node 0 takes snapshots back to back.
+ *
+ * Reports transfers delivered per second and, while running, the snapshots taken, their
+ * completion time (p50 / p99 / max, ms), messages caught in flight, and whether every snapshot
+ * was consistent: balances + undelivered + in-flight transfers add up to the money created.
+ *
+ * Run:
+ *   ./bench.sh SnapshotBench [nodes,nodes...] [seconds per phase] [key=value node options...]
+ */
+public final class SnapshotBench {
+    private static final long INITIAL = 1_000_000;
+    private static final int SENDERS = 2;
+
+    public static void main(String[] args) throws Exception {
+        String sizes = args.length >= 1 ? args[0] : "3,8,16,32";
+        int seconds = args.length >= 2 ? Integer.parseInt(args[1]) : 3;
+        Map<String, String> options = new LinkedHashMap<>();
+        options.put("wire", "binary");
+        for (int i = 2; i < args.length; i++) {
+            int eq = args[i].indexOf('=');
+            options.put(args[i].substring(0, eq), args[i].substring(eq + 1));
+        }
+        PrintStream report = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // nodes log to stdout
+        try {
+            run(3, "off", 1, options); // warm-up
+            for (String size : sizes.split(",")) {
+                int n = Integer.parseInt(size.trim());
+                for (String phase : new String[]{"off", "idle", "running"}) {
+                    report.println(run(n, phase, seconds, options).toJson());
+                }
+            }
+        } finally {
+            System.setOut(report);
+        }
+    }
+
+    private static Stats run(int n, String phase, int seconds, Map<String, String> options) throws Exception {
+        Map<String, String> o = new LinkedHashMap<>(options);
+        o.put("snapshot", Boolean.toString(!phase.equals("off")));
+        AtomicLongArray balances = new AtomicLongArray(n);
+        for (int i = 0; i < n; i++) balances.set(i, INITIAL);
+        AtomicLong delivered = new AtomicLong();
+
+        try (LocalCluster cluster = LocalCluster.inProcess(n, o, (id, node) -> {
+            node.onDeliver(m -> {
+                balances.addAndGet(id, Long.parseLong(m.payload()));
+                delivered.incrementAndGet();
+            });
+            if (node.snapshots() != null) node.onSnapshot(() -> Long.toString(balances.get(id)));
+        })) {
+            List<Node> nodes = cluster.nodes();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+            List<Thread> senders = new ArrayList<>();
+            for (int t = 0; t < SENDERS; t++) {
+                Thread sender = new Thread(() -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    while (System.nanoTime() < deadline) {
+                        int from = random.nextInt(n);
+                        int to = (from + 1 + random.nextInt(n - 1)) % n;
+                        Node node = nodes.get(from);
+                        Runnable transfer = () -> {
+                            balances.decrementAndGet(from);
+                            node.send(to, "1");
+                        };
+                        if (node.snapshots() == null) {
+                            transfer.run();
+                        } else {
+                            node.snapshots().atomically(transfer);
+                        }
+                    }
+                }, "transfers-" + t);
+                sender.start();
+                senders.add(sender);
+            }
+
+            long t0 = System.nanoTime();
+            long before = delivered.get();
+            Histogram completion = new Histogram();
+            int snapshots = 0;
+            int consistent = 0;
+            long inFlight = 0;
+            while (phase.equals("running") && System.nanoTime() < deadline) {
+                Snapshot s = nodes.get(0).snapshot().get(30, TimeUnit.SECONDS);
+                completion.record(s.durationNanos);
+                snapshots++;
+                inFlight += s.inFlight();
+                if (total(s) == INITIAL * n) consistent++;
+            }
+            for (Thread sender : senders) sender.join();
+            long elapsed = System.nanoTime() - t0;
+            long transfers = delivered.get() - before;
+
+            Stats stats = new Stats("snapshot")
+                    .put("nodes", n)
+                    .put("phase", phase)
+                    .put("transfers_per_sec", Stats.perSecond(transfers, elapsed));
+            if (phase.equals("running")) {
+                stats.put("snapshots", snapshots)
+                        .put("consistent", consistent)
+                        .put("completion_p50_ms", millis(completion.percentile(0.50)))
+                        .put("completion_p99_ms", millis(completion.percentile(0.99)))
+                        .put("completion_max_ms", millis(completion.max()))
+                        .put("in_flight_avg", snapshots == 0 ? 0 : inFlight / snapshots);
+            }
+            return stats;
+        }
+    }
+
+    private static double millis(long nanos) {
+        return Math.round(nanos / 1e4) / 100.0;
+    }
+
+    /** Money in the snapshot: balances, transfers received but not applied, transfers in flight. */
+    private static long total(Snapshot s) {
+        long total = 0;
+        for (Snapshot.Local l : s.nodes) {
+            total += Long.parseLong(l.state);
+            for (Message m : l.undelivered) total += Long.parseLong(m.payload());
+            for (List<Message> channel : l.channels.values()) {
+                for (Message m : channel) total += Long.parseLong(m.payload());
+            }
+        }
+        return total;
+    }
+}
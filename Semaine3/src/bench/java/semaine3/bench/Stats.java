@@ -0,0 +1,68 @@
+package semaine3.bench;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Tiny result holder shared by the benchmarks.
+ * Collects named values and prints them as one JSON object per line,
+ * so results can be appended to a file and compared between runs.
+ */
+public final class Stats {
+    private final Map<String, Object> values = new LinkedHashMap<>();
+
+    public Stats(String benchmark) {
+        values.put("benchmark", benchmark);
+    }
+
+    public Stats put(String key, Object value) {
+        values.put(key, value);
+        return this;
+    }
+
+    /** Adds count, p50, p99 and max (in microseconds) for latencies given in nanoseconds. */
+    public Stats latencies(String prefix, long[] nanos, int count) {
+        long[] sorted = Arrays.copyOf(nanos, count);
+        Arrays.sort(sorted);
+        put(prefix + "_p50_us", micros(percentile(sorted, 0.50)));
+        put(prefix + "_p99_us", micros(percentile(sorted, 0.99)));
+        put(prefix + "_max_us", micros(count == 0 ? 0 : sorted[count - 1]));
+        return this;
+    }
+
+    public static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) return 0;
+        int idx = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(idx, sorted.length - 1))];
+    }
+
+    public static double micros(long nanos) {
+        return Math.round(nanos / 100.0) / 10.0;
+    }
+
+    public static long perSecond(long count, long nanos) {
+        return nanos == 0 ? 0 : Math.round(count * 1e9 / nanos);
+    }
+
+    public String toJson() {
+        StringBuilder sb = new StringBuilder("{");
+        boolean first = true;
+        for (Map.Entry<String, Object> e : values.entrySet()) {
+            if (!first) sb.append(',');
+            first = false;
+            sb.append('"').append(e.getKey()).append("\":");
+            Object v = e.getValue();
+            if (v instanceof Number || v instanceof Boolean) {
+                sb.append(v);
+            } else {
+                sb.append('"').append(String.valueOf(v).replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+            }
+        }
+        return sb.append('}').toString();
+    }
+
+    public void print() {
+        System.out.println(toJson());
+    }
+}
@@ -0,0 +1,248 @@
+package semaine3.bench;
+
+import semaine3.BinaryCodec;
+import semaine3.Config;
+import semaine3.LamportClock;
+import semaine3.Message;
+import semaine3.Node;
+import semaine3.VectorClock;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Regression suite for the Semaine3 core, one JSON line per result (each with a stable "id"):
+ *  - serde/...:    Message.serialize/deserialize and BinaryCodec encode/decode,
+ *                  payloads of 16 B .. 4 KiB, vectors of 3 .. 1024 components;
+ *  - clock/...:    Lamport tick/onReceive, vector tick/onReceive/snapshot, sync vs atomic,
+ *                  1 .. 16 threads on the same clock;
+ *  - loopback/...: two Nodes in this JVM over 127.0.0.1, Node.send -> Node.onNetworkReceive
+ *                  -> delivery: msgs/sec and one-way latency percentiles, text and binary wire.
+ *
+ * Run:
+ *   ./bench.sh SuiteBench run [results.json] [id-prefix]
+ *   ./bench.sh SuiteBench compare <baseline.json> <results.json> [max-drop-percent]
+ *
+ * "compare" matches results by id and reports the ops_per_sec (or msgs_per_sec) change;
+ * it exits with status 1 when one dropped by more than max-drop-percent (default 10).
+ */
+public final class SuiteBench {
+    private static final Pattern ID = Pattern.compile("\"id\":\"([^\"]*)\"");
+    private static final Pattern RATE = Pattern.compile("\"(?:ops|msgs)_per_sec\":([0-9.Ee+-]+)");
+
+    private final Harness harness = new Harness(2, 5, 200);
+    private final List<String> results = new ArrayList<>();
+    private final String filter;
+    private final PrintStream report;
+
+    private SuiteBench(String filter, PrintStream report) {
+        this.filter = filter;
+        this.report = report;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length >= 1 ? args[0] : "run";
+        if (mode.equals("compare")) {
+            if (args.length < 3) throw new IllegalArgumentException("compare <baseline.json> <results.json> [max-drop-percent]");
+            double maxDrop = args.length >= 4 ? Double.parseDouble(args[3]) : 10;
+            System.exit(compare(Paths.get(args[1]), Paths.get(args[2]), maxDrop) ? 0 : 1);
+        }
+        String out = args.length >= 2 ? args[1] : null;
+        String filter = args.length >= 3 ? args[2] : "";
+
+        PrintStream report = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // Node logs every message
+        SuiteBench suite = new SuiteBench(filter, report);
+        try {
+            suite.serde();
+            suite.clocks();
+            suite.loopback();
+        } finally {
+            System.setOut(report);
+        }
+        if (out != null) {
+            Files.write(Paths.get(out), suite.results, StandardCharsets.UTF_8);
+            report.println("wrote " + suite.results.size() + " results to " + out);
+        }
+    }
+
+    private boolean skip(String id) {
+        return !id.startsWith(filter);
+    }
+
+    private void emit(Stats stats) {
+        String json = stats.toJson();
+        results.add(json);
+        report.println(json);
+    }
+
+    // ---- Message serde ----
+
+    private void serde() throws InterruptedException {
+        for (int payloadSize : new int[]{16, 256, 4096}) {
+            for (int n : new int[]{3, 64, 1024}) {
+                Random rnd = new Random(payloadSize * 31L + n);
+                int[] vc = new int[n];
+                for (int i = 0; i < n; i++) vc[i] = rnd.nextInt(100_000);
+                char[] chars = new char[payloadSize];
+                for (int i = 0; i < payloadSize; i++) chars[i] = (char) ('a' + rnd.nextInt(26));
+                Message msg = new Message(new String(chars), 1, 123_456, vc);
+                String line = msg.serialize();
+                ByteBuffer frame = ByteBuffer.allocate(BinaryCodec.maxFrameSize(msg));
+                BinaryCodec.encode(msg, frame);
+                frame.flip();
+                int frameBytes = frame.limit();
+
+                serde("text-serialize", payloadSize, n, line.length() + 1,
+                        () -> msg.serialize().getBytes(StandardCharsets.UTF_8).length);
+                serde("text-deserialize", payloadSize, n, line.length() + 1,
+                        () -> Message.deserialize(line).lamportTs);
+                ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(BinaryCodec.maxFrameSize(msg)));
+                serde("binary-encode", payloadSize, n, frameBytes, () -> {
+                    ByteBuffer buf = buffers.get();
+                    buf.clear();
+                    BinaryCodec.encode(msg, buf);
+                    return buf.position();
+                });
+                serde("binary-decode", payloadSize, n, frameBytes,
+                        () -> BinaryCodec.decode(frame.duplicate()).lamportTs);
+            }
+        }
+    }
+
+    private void serde(String op, int payloadSize, int n, int wireBytes, java.util.function.LongSupplier fn)
+            throws InterruptedException {
+        String id = "serde/" + op + "/payload=" + payloadSize + "/n=" + n;
+        if (skip(id)) return;
+        emit(harness.run(new Stats("suite").put("id", id).put("wire_bytes", wireBytes), 1, fn));
+    }
+
+    // ---- clocks under contention ----
+
+    private void clocks() throws InterruptedException {
+        int n = 16;
+        for (String kind : new String[]{"sync", "atomic"}) {
+            for (int threads : new int[]{1, 4, 16}) {
+                LamportClock lamport = LamportClock.create(kind);
+                VectorClock vector = VectorClock.create(kind, n, 0);
+                int[] received = new int[n];
+                Arrays.fill(received, 5);
+
+                clock("lamport-tick", kind, threads, () -> lamport.tick());
+                clock("lamport-receive", kind, threads, () -> {
+                    lamport.onReceive(ThreadLocalRandom.current().nextInt(1_000_000));
+                    return 1;
+                });
+                clock("vector-tick", kind, threads, () -> vector.tickAndSnapshot().length);
+                clock("vector-merge", kind, threads, () -> {
+                    vector.onReceive(received);
+                    return 1;
+                });
+                clock("vector-snapshot", kind, threads, () -> vector.snapshot().length);
+            }
+        }
+    }
+
+    private void clock(String op, String kind, int threads, java.util.function.LongSupplier fn)
+            throws InterruptedException {
+        String id = "clock/" + op + "/" + kind + "/threads=" + threads;
+        if (skip(id)) return;
+        emit(harness.run(new Stats("suite").put("id", id), threads, fn));
+    }
+
+    // ---- in-process loopback ----
+
+    private void loopback() throws Exception {
+        for (String wire : new String[]{"text", "binary"}) {
+            String id = "loopback/" + wire;
+            if (skip(id)) continue;
+            int[] ports = {NioLoadBench.freePort(), NioLoadBench.freePort()};
+            Config config = Config.of("127.0.0.1", ports).withOption("wire", wire);
+            try (Node sender = new Node(0, config); Node receiver = new Node(1, config)) {
+                int messages = 20_000;
+                long[] latencies = new long[messages];
+                int[] count = {0};
+                Semaphore delivered = new Semaphore(0);
+                receiver.onDeliver(m -> {
+                    int i = count[0]++;
+                    if (i < latencies.length) latencies[i] = System.nanoTime() - Long.parseLong(m.payload());
+                    delivered.release();
+                });
+                sender.start();
+                receiver.start();
+
+                for (int i = 0; i < 1000; i++) sender.send(1, Long.toString(System.nanoTime())); // warm-up
+                delivered.acquire(1000);
+                count[0] = 0;
+
+                // one message in flight: latency of an idle path
+                for (int i = 0; i < 2000; i++) {
+                    sender.send(1, Long.toString(System.nanoTime()));
+                    delivered.acquire();
+                }
+                emit(new Stats("suite").put("id", id + "/latency").put("messages", 2000)
+                        .latencies("latency", latencies, 2000));
+                count[0] = 0;
+
+                // back to back: throughput (latency then includes queueing)
+                long t0 = System.nanoTime();
+                for (int i = 0; i < messages; i++) sender.send(1, Long.toString(System.nanoTime()));
+                if (!delivered.tryAcquire(messages, 60, TimeUnit.SECONDS)) throw new IllegalStateException("loopback stalled");
+                long elapsed = System.nanoTime() - t0;
+                emit(new Stats("suite").put("id", id + "/throughput").put("messages", messages)
+                        .put("msgs_per_sec", Stats.perSecond(messages, elapsed))
+                        .latencies("latency", latencies, messages));
+            }
+        }
+    }
+
+    // ---- comparison ----
+
+    private static boolean compare(Path baseline, Path current, double maxDrop) throws IOException {
+        Map<String, Double> base = rates(baseline);
+        Map<String, Double> now = rates(current);
+        boolean ok = true;
+        for (Map.Entry<String, Double> e : now.entrySet()) {
+            Double before = base.get(e.getKey());
+            if (before == null || before == 0) continue;
+            double change = (e.getValue() - before) * 100 / before;
+            boolean regression = change < -maxDrop;
+            ok &= !regression;
+            new Stats("suite-compare")
+                    .put("id", e.getKey())
+                    .put("baseline", before)
+                    .put("current", e.getValue())
+                    .put("change_percent", Math.round(change * 10) / 10.0)
+                    .put("regression", regression)
+                    .print();
+        }
+        return ok;
+    }
+
+    private static Map<String, Double> rates(Path file) throws IOException {
+        Map<String, Double> rates = new LinkedHashMap<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            Matcher id = ID.matcher(line);
+            Matcher rate = RATE.matcher(line);
+            if (id.find() && rate.find()) rates.put(id.group(1), Double.parseDouble(rate.group(1)));
+        }
+        return rates;
+    }
+}
@@ -0,0 +1,137 @@
+package semaine3.bench;
+
+import semaine3.Config;
+import semaine3.Node;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Total-order multicast (delivery=total) with 3 to 16 local nodes.
+ *
+ * Every node broadcasts `messages / n` messages concurrently, with at most WINDOW of its own
+ * broadcasts not yet delivered locally (closed loop, so latency is not just queueing).
+ * Waits until every node has delivered every message, then checks that all nodes delivered
+ * them in the same order.
+ * Reports ordered deliveries/sec (messages delivered everywhere per second), latency from
+ * broadcast to delivery at each node and at the last node, and explicit acks per broadcast
+ * for total.ack.ms = 0 and 1.
+ *
+ * Run:
+ *   ./bench.sh TotalOrderBench [messages]
+ */
+public final class TotalOrderBench {
+    private static final int WINDOW = 32;
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length >= 1 ? Integer.parseInt(args[0]) : 20_000;
+        PrintStream report = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // Node logs every message
+
+        for (int n : new int[]{3, 8, 16}) {
+            for (String ackMs : new String[]{"0", "1"}) {
+                run(report, n, ackMs, messages - messages % n);
+            }
+        }
+    }
+
+    private static void run(PrintStream report, int n, String ackMs, int messages) throws Exception {
+        int[] ports = new int[n];
+        for (int i = 0; i < n; i++) ports[i] = NioLoadBench.freePort();
+        Config config = Config.of("127.0.0.1", ports)
+                .withOption("transport", "nio")
+                .withOption("nio.threads", "1")
+                .withOption("batch", "true")
+                .withOption("delivery", "total")
+                .withOption("total.ack.ms", ackMs);
+
+        List<Node> nodes = new ArrayList<>();
+        List<List<String>> orders = new ArrayList<>();
+        ConcurrentHashMap<String, Long> sentAt = new ConcurrentHashMap<>();
+        ConcurrentHashMap<String, Integer> remaining = new ConcurrentHashMap<>();
+        long[] oneLatency = new long[messages * n];
+        long[] allLatency = new long[messages];
+        AtomicLong oneCount = new AtomicLong();
+        AtomicLong allCount = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(messages);
+        List<Semaphore> windows = new ArrayList<>();
+        try {
+            for (int i = 0; i < n; i++) {
+                Node node = new Node(i, config);
+                int id = i;
+                Semaphore window = new Semaphore(WINDOW);
+                windows.add(window);
+                List<String> order = Collections.synchronizedList(new ArrayList<>(messages));
+                node.onDeliver(m -> {
+                    long now = System.nanoTime();
+                    order.add(m.payload());
+                    if (m.senderId == id) window.release();
+                    Long t0 = sentAt.get(m.payload());
+                    if (t0 == null) return;
+                    oneLatency[(int) oneCount.getAndIncrement()] = now - t0;
+                    if (remaining.merge(m.payload(), -1, Integer::sum) == 0) {
+                        allLatency[(int) allCount.getAndIncrement()] = now - t0;
+                        done.countDown();
+                    }
+                });
+                node.start();
+                nodes.add(node);
+                orders.add(order);
+            }
+
+            long start = System.nanoTime();
+            List<Thread> senders = new ArrayList<>();
+            for (Node node : nodes) {
+                int id = nodes.indexOf(node);
+                Semaphore window = windows.get(id);
+                Thread t = new Thread(() -> {
+                    for (int k = 0; k < messages / n; k++) {
+                        window.acquireUninterruptibly();
+                        String payload = id + "-" + k;
+                        remaining.put(payload, n);
+                        sentAt.put(payload, System.nanoTime());
+                        node.broadcastAsync(payload);
+                    }
+                });
+                senders.add(t);
+                t.start();
+            }
+            for (Thread t : senders) t.join();
+            boolean complete = done.await(60, TimeUnit.SECONDS);
+            long elapsed = System.nanoTime() - start;
+
+            boolean sameOrder = complete;
+            for (List<String> order : orders) {
+                synchronized (order) {
+                    if (!order.equals(orders.get(0))) sameOrder = false;
+                }
+            }
+            long acks = 0;
+            for (Node node : nodes) acks += node.totalOrder().acksSent();
+
+            report.println(new Stats("total-order")
+                    .put("nodes", n)
+                    .put("ack_ms", Integer.parseInt(ackMs))
+                    .put("messages", messages)
+                    .put("complete", complete)
+                    .put("same_order", sameOrder)
+                    .put("ordered_per_sec", Stats.perSecond(allCount.get(), elapsed))
+                    .latencies("per_node", oneLatency, (int) Math.min(oneCount.get(), oneLatency.length))
+                    .latencies("all_nodes", allLatency, (int) allCount.get())
+                    .put("acks", acks)
+                    .put("acks_per_broadcast", Math.round(acks * 100.0 / messages) / 100.0)
+                    .toJson());
+            if (!sameOrder) throw new AssertionError("nodes delivered in different orders");
+        } finally {
+            for (Node node : nodes) node.close();
+        }
+    }
+}
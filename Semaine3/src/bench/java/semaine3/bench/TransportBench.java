@@ -0,0 +1,106 @@
+package semaine3.bench;
+
+import semaine3.Config;
+import semaine3.Histogram;
+import semaine3.Node;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The transports against each other, two nodes in this JVM:
+ *  - blocking and nio TCP over loopback, text and binary wire;
+ *  - memory (Message objects through an in-JVM queue);
+ *  - shm (binary frames through a memory-mapped ring file, in a temporary shm.dir).
+ *
+ * For each: one-way throughput (node 0 sends messages of the given size to node 1 as fast as
+ * it can, msgs/s and MB/s until the last one is delivered) and round-trip latency (node 1
+ * echoes, one message in flight, p50 / p99 / max us). Deliveries go through the whole Node
+ * (clocks, inbox), so the differences are what the transport costs on top of the protocol.
+ *
+ * Across processes, the same comparison is ClusterBench jvm with transport=nio or transport=shm.
+ *
+ * Run:
+ *   ./bench.sh TransportBench [messages] [size]
+ */
+public final class TransportBench {
+    private static final String[][] TRANSPORTS = {
+            {"blocking", "text"}, {"blocking", "binary"}, {"nio", "binary"}, {"memory", "binary"}, {"shm", "binary"},
+    };
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length >= 1 ? Integer.parseInt(args[0]) : 200_000;
+        int size = args.length >= 2 ? Integer.parseInt(args[1]) : 64;
+        int roundTrips = Math.max(1000, messages / 20);
+        PrintStream report = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // Node logs every message
+        Path shmDir = Files.createTempDirectory("transport-bench-");
+        try {
+            for (String[] t : TRANSPORTS) {
+                report.println(run(t[0], t[1], shmDir, messages, size, roundTrips).toJson());
+            }
+        } finally {
+            System.setOut(report);
+            Files.deleteIfExists(shmDir);
+        }
+    }
+
+    private static Stats run(String transport, String wire, Path shmDir, int messages, int size, int roundTrips)
+            throws Exception {
+        Config config = Config.of("127.0.0.1", NioLoadBench.freePort(), NioLoadBench.freePort())
+                .withOption("transport", transport)
+                .withOption("wire", wire)
+                .withOption("shm.dir", shmDir.toString());
+        String payload = "x".repeat(size);
+        AtomicLong delivered = new AtomicLong();
+        Semaphore echoed = new Semaphore(0);
+        try (Node a = new Node(0, config); Node b = new Node(1, config)) {
+            a.onDeliver(m -> echoed.release());
+            b.onDeliver(m -> {
+                if (m.payloadLength() == 1) {
+                    b.send(0, "p"); // ping
+                } else {
+                    delivered.incrementAndGet();
+                }
+            });
+            a.start();
+            b.start();
+
+            for (int i = 0; i < roundTrips / 10; i++) ping(a, echoed); // connect and warm up
+            long t0 = System.nanoTime();
+            for (int i = 0; i < messages; i++) a.send(1, payload);
+            while (delivered.get() < messages && System.nanoTime() - t0 < TimeUnit.SECONDS.toNanos(60)) {
+                Thread.sleep(1);
+            }
+            long elapsed = System.nanoTime() - t0;
+
+            Histogram rtt = new Histogram();
+            for (int i = 0; i < roundTrips; i++) {
+                long start = System.nanoTime();
+                ping(a, echoed);
+                rtt.recordSince(start);
+            }
+            return new Stats("transport")
+                    .put("transport", transport)
+                    .put("wire", wire)
+                    .put("size", size)
+                    .put("messages", messages)
+                    .put("delivered", delivered.get())
+                    .put("msgs_per_sec", Stats.perSecond(delivered.get(), elapsed))
+                    .put("mb_per_sec", Math.round(delivered.get() * (double) size * 1e9 / elapsed / 1e4) / 100.0)
+                    .put("rtt_p50_us", Stats.micros(rtt.percentile(0.50)))
+                    .put("rtt_p99_us", Stats.micros(rtt.percentile(0.99)))
+                    .put("rtt_max_us", Stats.micros(rtt.max()));
+        }
+    }
+
+    private static void ping(Node a, Semaphore echoed) throws InterruptedException {
+        a.send(1, "p");
+        if (!echoed.tryAcquire(5, TimeUnit.SECONDS)) throw new IllegalStateException("no echo in 5 s");
+    }
+}
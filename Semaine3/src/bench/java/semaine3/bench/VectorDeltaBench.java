@@ -0,0 +1,112 @@
+package semaine3.bench;
+
+import semaine3.BinaryCodec;
+import semaine3.Message;
+import semaine3.VectorClock;
+import semaine3.VectorDelta;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Full vs delta-encoded vector clocks (wire=binary vs wire=delta) for N = 16, 256 and 4096.
+ *
+ * Replays the messages one node sends to one peer: between two messages the sender's own
+ * component ticks and `touched` other components change (messages received meanwhile).
+ * Checks that the receiver rebuilds every vector exactly, then reports wire bytes/message
+ * (text too), encode ns/message and decode + merge (VectorClock.onReceive) ns/message.
+ *
+ * Run:
+ *   ./bench.sh VectorDeltaBench [messages] [touched]
+ */
+public final class VectorDeltaBench {
+    public static void main(String[] args) {
+        int messages = args.length >= 1 ? Integer.parseInt(args[0]) : 1000;
+        int touched = args.length >= 2 ? Integer.parseInt(args[1]) : 3;
+        for (int n : new int[]{16, 256, 4096}) {
+            Message[] stream = stream(new Random(n), n, messages, touched);
+            check(stream);
+            ByteBuffer buf = ByteBuffer.allocate(messages * BinaryCodec.maxFrameSize(stream[0], new VectorDelta()));
+            run("binary", n, touched, stream, buf, false);
+            run("delta", n, touched, stream, buf, true);
+            long text = 0;
+            for (Message m : stream) text += m.serialize().getBytes(StandardCharsets.UTF_8).length + 1;
+            new Stats("vector-delta")
+                    .put("wire", "text")
+                    .put("n", n)
+                    .put("touched", touched)
+                    .put("bytes_per_msg", text / messages)
+                    .print();
+        }
+    }
+
+    private static Message[] stream(Random rnd, int n, int messages, int touched) {
+        int[] vc = new int[n];
+        for (int i = 0; i < n; i++) vc[i] = rnd.nextInt(100_000);
+        Message[] stream = new Message[messages];
+        for (int k = 0; k < messages; k++) {
+            vc[0]++;
+            for (int t = 0; t < touched; t++) vc[rnd.nextInt(n)] += 1 + rnd.nextInt(3);
+            stream[k] = new Message("{\"op\":\"put\",\"key\":\"k-" + k + "\"}", 0, 1000 + k, vc.clone());
+        }
+        return stream;
+    }
+
+    private static void check(Message[] stream) {
+        ByteBuffer buf = ByteBuffer.allocate(BinaryCodec.maxFrameSize(stream[0], new VectorDelta()));
+        VectorDelta out = new VectorDelta();
+        VectorDelta in = new VectorDelta();
+        for (Message m : stream) {
+            buf.clear();
+            BinaryCodec.encode(m, buf, out);
+            buf.flip();
+            Message back = BinaryCodec.decode(buf, in);
+            if (!Arrays.equals(m.vectorClock, back.vectorClock) || !m.payload().equals(back.payload())) {
+                throw new AssertionError("delta round-trip failed at lamport " + m.lamportTs);
+            }
+        }
+    }
+
+    private static void run(String wire, int n, int touched, Message[] stream, ByteBuffer buf, boolean delta) {
+        int rounds = Math.max(3, 200_000 / (stream.length * Math.max(1, n / 16)));
+        long encNs = 0;
+        long decNs = 0;
+        long bytes = 0;
+        long sink = 0;
+        for (int r = -1; r < rounds; r++) { // round -1 is the warm-up
+            VectorDelta out = delta ? new VectorDelta() : null;
+            VectorDelta in = delta ? new VectorDelta() : null;
+            VectorClock receiver = VectorClock.create("sync", n, 1);
+
+            buf.clear();
+            long t0 = System.nanoTime();
+            for (Message m : stream) BinaryCodec.encode(m, buf, out);
+            long t1 = System.nanoTime();
+            buf.flip();
+            bytes = buf.limit();
+            long t2 = System.nanoTime();
+            while (buf.hasRemaining()) {
+                Message m = BinaryCodec.decode(buf, in);
+                receiver.onReceive(m.vectorClock);
+                sink += m.lamportTs;
+            }
+            long t3 = System.nanoTime();
+            if (r >= 0) {
+                encNs += t1 - t0;
+                decNs += t3 - t2;
+            }
+        }
+        long ops = (long) rounds * stream.length;
+        new Stats("vector-delta")
+                .put("wire", wire)
+                .put("n", n)
+                .put("touched", touched)
+                .put("bytes_per_msg", bytes / stream.length)
+                .put("encode_ns_msg", encNs / ops)
+                .put("decode_merge_ns_msg", decNs / ops)
+                .put("blackhole", sink & 1)
+                .print();
+    }
+}
@@ -0,0 +1,76 @@
+package semaine3.bench;
+
+import jdk.jfr.consumer.RecordingStream;
+import semaine3.Config;
+import semaine3.Node;
+import semaine3.ThreadMode;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput of thousands of concurrent senders going through Node.send, with platform
+ * vs virtual threads, and the number of JFR jdk.VirtualThreadPinned events seen meanwhile.
+ *
+ * Run (virtual threads need JDK 21+, otherwise only platform is measured):
+ *   ./bench.sh VirtualThreadBench [senders] [messagesPerSender]
+ */
+public final class VirtualThreadBench {
+    public static void main(String[] args) throws Exception {
+        int senders = args.length >= 1 ? Integer.parseInt(args[0]) : 2000;
+        int perSender = args.length >= 2 ? Integer.parseInt(args[1]) : 20;
+        PrintStream report = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // Node logs every message
+
+        for (ThreadMode mode : ThreadMode.values()) {
+            if (mode == ThreadMode.VIRTUAL && !ThreadMode.virtualSupported()) {
+                report.println(new Stats("virtual-threads").put("threads", "virtual").put("supported", false).toJson());
+                continue;
+            }
+            run(report, mode, senders, perSender);
+        }
+    }
+
+    private static void run(PrintStream report, ThreadMode mode, int senders, int perSender) throws Exception {
+        Config config = Config.of("127.0.0.1", NioLoadBench.freePort(), NioLoadBench.freePort())
+                .withOption("threads", mode.name().toLowerCase())
+                .withOption("transport", "nio");
+        AtomicLong pinned = new AtomicLong();
+        try (RecordingStream jfr = new RecordingStream();
+             Node sender = new Node(0, config);
+             Node receiver = new Node(1, config)) {
+            jfr.enable("jdk.VirtualThreadPinned").withThreshold(Duration.ZERO);
+            jfr.onEvent("jdk.VirtualThreadPinned", e -> pinned.incrementAndGet());
+            jfr.startAsync();
+            receiver.start();
+            sender.start();
+
+            ExecutorService pool = mode.perTaskExecutor("bench-sender");
+            CountDownLatch done = new CountDownLatch(senders);
+            long start = System.nanoTime();
+            for (int i = 0; i < senders; i++) {
+                pool.execute(() -> {
+                    for (int m = 0; m < perSender; m++) sender.send(1, "x");
+                    done.countDown();
+                });
+            }
+            done.await();
+            long elapsed = System.nanoTime() - start;
+            pool.shutdown();
+            Thread.sleep(500); // give JFR time to flush the last events
+
+            long total = (long) senders * perSender;
+            report.println(new Stats("virtual-threads")
+                    .put("threads", mode.name().toLowerCase())
+                    .put("senders", senders)
+                    .put("messages", total)
+                    .put("msgs_per_sec", Stats.perSecond(total, elapsed))
+                    .put("pinned_events", pinned.get())
+                    .toJson());
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package semaine3.bench;
+
+import semaine3.Histogram;
+import semaine3.Message;
+import semaine3.MessageLog;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * MessageLog costs:
+ *  - append: records/sec and per-append latency for every wal.sync mode, 1 and 4 appending
+ *    threads (group commit only pays off with several appenders waiting at once);
+ *  - recovery: a log of `messages` records (default 10M, written with sync=none), then the time
+ *    to open it again (clocks restored from the last segment) and to replay all of it.
+ *
+ * Records look like a 3-node run: 32-byte payload, one peer's vector component moving per message.
+ *
+ * Run:
+ *   ./bench.sh WalBench [messages] [dir]
+ */
+public final class WalBench {
+    private static final int N = 3;
+    private static final int SEGMENT = 64 * 1024 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        long messages = args.length >= 1 ? Long.parseLong(args[0]) : 10_000_000L;
+        Path root = args.length >= 2 ? Paths.get(args[1]) : Files.createTempDirectory("walbench");
+
+        try {
+            for (MessageLog.Sync sync : MessageLog.Sync.values()) {
+                for (int threads : new int[]{1, 4}) {
+                    int count = sync == MessageLog.Sync.NONE || sync == MessageLog.Sync.ASYNC ? 500_000 : 5_000;
+                    append(root.resolve("append-" + sync + "-" + threads), sync, threads, count);
+                }
+            }
+            recovery(root.resolve("recovery"), messages);
+        } finally {
+            delete(root);
+        }
+    }
+
+    private static void append(Path dir, MessageLog.Sync sync, int threads, int count) throws Exception {
+        Histogram latency = new Histogram();
+        AtomicInteger next = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(threads);
+        long t0;
+        try (MessageLog log = new MessageLog(dir, N, sync, 10, SEGMENT)) {
+            t0 = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                new Thread(() -> {
+                    try {
+                        int i;
+                        while ((i = next.getAndIncrement()) < count) {
+                            Message msg = message(i);
+                            long start = System.nanoTime();
+                            log.append(MessageLog.Kind.RECEIVED, msg, msg.lamportTs + 1, msg.vectorClock);
+                            latency.recordSince(start);
+                        }
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }).start();
+            }
+            done.await();
+        }
+        long elapsed = System.nanoTime() - t0; // includes the final force in close()
+        new Stats("wal-append")
+                .put("sync", sync.name().toLowerCase())
+                .put("threads", threads)
+                .put("records", count)
+                .put("records_per_sec", Stats.perSecond(count, elapsed))
+                .put("bytes", size(dir))
+                .put("append_p50_us", Stats.micros(latency.percentile(0.50)))
+                .put("append_p99_us", Stats.micros(latency.percentile(0.99)))
+                .put("append_max_us", Stats.micros(latency.max()))
+                .print();
+        delete(dir);
+    }
+
+    private static void recovery(Path dir, long messages) throws IOException {
+        long t0 = System.nanoTime();
+        try (MessageLog log = new MessageLog(dir, N, MessageLog.Sync.NONE, 10, SEGMENT)) {
+            for (long i = 0; i < messages; i++) {
+                Message msg = message(i);
+                log.append(MessageLog.Kind.RECEIVED, msg, msg.lamportTs + 1, msg.vectorClock);
+            }
+        }
+        long writeNanos = System.nanoTime() - t0;
+
+        long t1 = System.nanoTime();
+        MessageLog log = new MessageLog(dir, N, MessageLog.Sync.NONE, 10, SEGMENT);
+        long openNanos = System.nanoTime() - t1;
+        long[] checksum = {0};
+        long t2 = System.nanoTime();
+        long replayed = log.replay(0, r -> checksum[0] += r.lamport);
+        long replayNanos = System.nanoTime() - t2;
+        long restored = log.nextSeq();
+        int lamport = log.lamport();
+        log.close();
+
+        new Stats("wal-recovery")
+                .put("records", messages)
+                .put("bytes", size(dir))
+                .put("write_records_per_sec", Stats.perSecond(messages, writeNanos))
+                .put("open_ms", Math.round(openNanos / 100_000.0) / 10.0)
+                .put("restored_records", restored)
+                .put("restored_lamport", lamport)
+                .put("replay_ms", replayNanos / 1_000_000)
+                .put("replay_records_per_sec", Stats.perSecond(replayed, replayNanos))
+                .put("replayed", replayed)
+                .print();
+        if (restored != messages || replayed != messages) throw new IllegalStateException("lost records");
+    }
+
+    /** Message i of a 3-node run seen by node 0: sender 1 or 2, Lamport time growing with i. */
+    private static Message message(long i) {
+        int sender = 1 + (int) (i & 1);
+        int[] vc = new int[N];
+        vc[sender] = (int) (i / 2) + 1;
+        vc[3 - sender] = (int) (i / 2);
+        return new Message("payload-" + String.format("%024d", i), sender, (int) i + 1, vc);
+    }
+
+    private static long size(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.mapToLong(p -> p.toFile().length()).sum();
+        }
+    }
+
+    private static void delete(Path dir) throws IOException {
+        if (!Files.exists(dir)) return;
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+}
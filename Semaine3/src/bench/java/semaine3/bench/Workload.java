@@ -0,0 +1,127 @@
+package semaine3.bench;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Scriptable workload for ClusterBench: phases run one after the other, on the same wall-clock
+ * schedule by every node of the cluster (whether in this JVM or in separate ones).
+ *
+ * Script: one phase per line (or per ';'), made of key=value tokens separated by spaces or commas:
+ *   name=warmup duration=3 size=64 rate=500
+ *   name=fanout duration=10 size=1024 rate=200 fanout=broadcast senders=0+1
+ * Keys (defaults):
+ *  - duration (5): seconds;
+ *  - size (64): payload bytes, at least the send stamp (~20 bytes);
+ *  - rate (1000): messages per second per sending node; 0 sends as fast as sends return;
+ *  - fanout (p2p): p2p sends every message to the next peer in turn, broadcast to all peers;
+ *  - senders (all): '+'-separated ids of the sending nodes, the others only receive;
+ *  - name (phase<i>).
+ * Lines starting with '#' are comments; a script that names an existing file is read from it.
+ */
+final class Workload {
+    static final class Phase {
+        final String name;
+        final int durationSeconds;
+        final int size;
+        final int rate;
+        final boolean broadcast;
+        final Set<Integer> senders; // null: every node
+
+        Phase(String name, int durationSeconds, int size, int rate, boolean broadcast, Set<Integer> senders) {
+            if (durationSeconds <= 0) throw new IllegalArgumentException(name + ": duration must be > 0");
+            if (size < 0 || rate < 0) throw new IllegalArgumentException(name + ": size and rate must be >= 0");
+            this.name = name;
+            this.durationSeconds = durationSeconds;
+            this.size = size;
+            this.rate = rate;
+            this.broadcast = broadcast;
+            this.senders = senders;
+        }
+
+        boolean isSender(int id) {
+            return senders == null || senders.contains(id);
+        }
+
+        int senderCount(int n) {
+            if (senders == null) return n;
+            int count = 0;
+            for (int id : senders) if (id >= 0 && id < n) count++;
+            return count;
+        }
+    }
+
+    final List<Phase> phases;
+
+    private Workload(List<Phase> phases) {
+        if (phases.isEmpty()) throw new IllegalArgumentException("empty workload");
+        this.phases = Collections.unmodifiableList(phases);
+    }
+
+    static Workload parse(String scriptOrFile) throws IOException {
+        Path file = Paths.get(scriptOrFile);
+        String script = scriptOrFile.indexOf('=') < 0 && Files.isRegularFile(file)
+                ? new String(Files.readAllBytes(file), StandardCharsets.UTF_8)
+                : scriptOrFile;
+        List<Phase> phases = new ArrayList<>();
+        for (String line : script.split("[\n;]")) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            phases.add(phase(line, phases.size()));
+        }
+        return new Workload(phases);
+    }
+
+    private static Phase phase(String line, int index) {
+        String name = "phase" + index;
+        int duration = 5;
+        int size = 64;
+        int rate = 1000;
+        boolean broadcast = false;
+        Set<Integer> senders = null;
+        for (String token : line.split("[\\s,]+")) {
+            int eq = token.indexOf('=');
+            if (eq <= 0) throw new IllegalArgumentException("bad workload token: " + token);
+            String key = token.substring(0, eq);
+            String value = token.substring(eq + 1);
+            switch (key) {
+                case "name": name = value; break;
+                case "duration": duration = Integer.parseInt(value); break;
+                case "size": size = Integer.parseInt(value); break;
+                case "rate": rate = Integer.parseInt(value); break;
+                case "fanout":
+                    if (!value.equals("p2p") && !value.equals("broadcast")) {
+                        throw new IllegalArgumentException("fanout must be p2p or broadcast: " + value);
+                    }
+                    broadcast = value.equals("broadcast");
+                    break;
+                case "senders":
+                    if (value.equals("all")) break;
+                    senders = new HashSet<>();
+                    for (String id : value.split("\\+")) senders.add(Integer.parseInt(id));
+                    break;
+                default: throw new IllegalArgumentException("unknown workload key: " + key);
+            }
+        }
+        return new Phase(name, duration, size, rate, broadcast, senders);
+    }
+
+    /** Start of phase i in ms after the cluster start; every phase is followed by drainMs without sends. */
+    long startOffsetMillis(int i, long drainMs) {
+        long offset = 0;
+        for (int j = 0; j < i; j++) offset += phases.get(j).durationSeconds * 1000L + drainMs;
+        return offset;
+    }
+
+    long totalMillis(long drainMs) {
+        return startOffsetMillis(phases.size(), drainMs);
+    }
+}
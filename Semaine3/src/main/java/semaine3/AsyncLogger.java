@@ -0,0 +1,88 @@
+package semaine3;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Opt-in, asynchronous, rate-limited logger for per-message lines (RECEIVED / SENT / BROADCAST).
+ *
+ * Rules:
+ *  - disabled unless log.messages=true (Main turns it on for the interactive demo);
+ *  - at most log.rate lines per second (default 1000); the line is not even built beyond that,
+ *    the skipped lines are counted and reported with the next printed line;
+ *  - lines go through a bounded queue (log.queue, default 4096) to one writer thread, so the
+ *    caller never waits on console I/O; when the queue is full the line is dropped and counted.
+ */
+public final class AsyncLogger implements AutoCloseable {
+    private final boolean enabled;
+    private final int rate;
+    private final MpscRingBuffer<String> queue;
+    private final PrintStream out;
+    private final Thread writer;
+    private final AtomicInteger inWindow = new AtomicInteger();
+    private final LongAdder skipped = new LongAdder();
+    private volatile long windowStart = System.nanoTime();
+    private volatile boolean running = true;
+
+    public AsyncLogger(Config config, ThreadMode threads, String name) {
+        this.enabled = Boolean.parseBoolean(config.option("log.messages", "false"));
+        this.rate = config.intOption("log.rate", 1000);
+        this.out = System.out;
+        if (enabled) {
+            this.queue = new MpscRingBuffer<>(config.intOption("log.queue", 4096));
+            this.writer = threads.factory(name).newThread(this::drain);
+            this.writer.start();
+        } else {
+            this.queue = null;
+            this.writer = null;
+        }
+    }
+
+    public boolean enabled() {
+        return enabled;
+    }
+
+    /** Builds and queues the line if logging is on and the rate allows it. */
+    public void log(Supplier<String> line) {
+        if (!enabled) return;
+        long now = System.nanoTime();
+        long start = windowStart;
+        if (now - start >= 1_000_000_000L) {
+            windowStart = now;
+            inWindow.set(0);
+        }
+        if (inWindow.incrementAndGet() > rate || !queue.offer(line.get())) {
+            skipped.increment();
+        }
+    }
+
+    private void drain() {
+        while (running) {
+            try {
+                String line = queue.take();
+                long n = skipped.sumThenReset();
+                if (n > 0) out.println("[log] " + n + " line(s) skipped (log.rate=" + rate + ")");
+                out.println(line);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        String line;
+        while ((line = queue.poll()) != null) out.println(line);
+        out.flush();
+    }
+
+    @Override
+    public void close() {
+        if (writer == null) return;
+        running = false;
+        writer.interrupt();
+        try {
+            writer.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
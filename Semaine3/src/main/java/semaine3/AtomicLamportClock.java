@@ -0,0 +1,30 @@
+package semaine3;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lock-free Lamport clock: tick is a single incrementAndGet, receive a CAS loop.
+ */
+public final class AtomicLamportClock implements LamportClock {
+    private final AtomicInteger time = new AtomicInteger();
+
+    @Override
+    public int tick() {
+        return time.incrementAndGet();
+    }
+
+    @Override
+    public int onReceive(int receivedTs) {
+        int cur, next;
+        do {
+            cur = time.get();
+            next = Math.max(cur, receivedTs) + 1;
+        } while (!time.compareAndSet(cur, next));
+        return next;
+    }
+
+    @Override
+    public int get() {
+        return time.get();
+    }
+}
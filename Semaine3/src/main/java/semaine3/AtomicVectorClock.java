@@ -0,0 +1,94 @@
+package semaine3;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Vector clock for many concurrent receivers.
+ *
+ * Components live in an AtomicIntegerArray and are only ever raised (CAS max), so
+ * merges and ticks can run at the same time: they share the lock in read mode.
+ * A snapshot must not observe half of a merge (it would claim some of the received
+ * dependencies but not others), so snapshots take the lock in write mode.
+ * The lock is never held across I/O.
+ */
+public final class AtomicVectorClock implements VectorClock {
+    private final AtomicIntegerArray vc;
+    private final int myId;
+    private final StampedLock lock = new StampedLock();
+
+    public AtomicVectorClock(int n, int myId) {
+        if (n <= 0) throw new IllegalArgumentException("n must be > 0");
+        if (myId < 0 || myId >= n) throw new IllegalArgumentException("invalid myId");
+        this.vc = new AtomicIntegerArray(n);
+        this.myId = myId;
+    }
+
+    @Override
+    public void tick() {
+        long stamp = lock.readLock();
+        try {
+            vc.incrementAndGet(myId);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public void onReceive(int[] received) {
+        if (received == null || received.length != vc.length()) {
+            throw new IllegalArgumentException("bad received vector length");
+        }
+        long stamp = lock.readLock();
+        try {
+            for (int i = 0; i < received.length; i++) {
+                int r = received[i];
+                int cur;
+                while ((cur = vc.get(i)) < r && !vc.compareAndSet(i, cur, r)) {
+                    // lost a race with another merge, retry
+                }
+            }
+            vc.incrementAndGet(myId);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public int[] snapshot() {
+        long stamp = lock.writeLock();
+        try {
+            return copy();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public String snapshotString() {
+        return Arrays.toString(snapshot());
+    }
+
+    @Override
+    public int[] tickAndSnapshot() {
+        long stamp = lock.writeLock();
+        try {
+            vc.incrementAndGet(myId);
+            return copy();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public int size() {
+        return vc.length();
+    }
+
+    private int[] copy() {
+        int[] out = new int[vc.length()];
+        for (int i = 0; i < out.length; i++) out[i] = vc.get(i);
+        return out;
+    }
+}
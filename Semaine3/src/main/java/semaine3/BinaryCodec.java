@@ -0,0 +1,228 @@
+package semaine3;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compact binary wire format for Message, written straight into / read straight from ByteBuffers.
+ *
+ * Frame:
+ *   int32 length (big endian, length of the body)
+ *   body:
+ *     varint senderId
+ *     varint lamportTs
+ *     varint n, then n varints (vector clock)
+ *     varint payloadBytes, then UTF-8 payload
+ *     optional headers (only when the message has some, so older frames still decode):
+ *       varint count, then count x (UTF-8 key, UTF-8 value), each with a varint byte length
+ *
+ * A connection announces this format with the two byte preamble MAGIC, VERSION;
+ * connections without it use the text line format (Message.serialize()).
+ * With VERSION_DELTA (wire=delta) the vector clock is delta-encoded instead (VectorDelta).
+ * COMPRESSED or-ed into the version byte announces compressed records (Compression).
+ */
+public final class BinaryCodec {
+    public static final int MAGIC = 0xB1;
+    public static final int VERSION = 1;
+    public static final int VERSION_DELTA = 2;
+    public static final int COMPRESSED = 0x10;
+    public static final int MAX_FRAME = 16 * 1024 * 1024;
+
+    private BinaryCodec() {}
+
+    /** Upper bound of the encoded frame size, useful to size buffers. */
+    public static int maxFrameSize(Message m) {
+        int vc = m.vectorClock == null ? 0 : m.vectorClock.length;
+        byte[] raw = m.utf8Payload();
+        int payload = raw != null ? raw.length : 3 * m.payloadLength();
+        int headers = 0;
+        for (Map.Entry<String, String> h : m.headers.entrySet()) {
+            headers += 10 + 3 * (h.getKey().length() + h.getValue().length());
+        }
+        return 4 + 5 + 5 + 5 + 5 * vc + 5 + payload + 5 + headers;
+    }
+
+    /** Same as maxFrameSize(m), for a frame encoded with encode(m, out, delta). */
+    public static int maxFrameSize(Message m, VectorDelta delta) {
+        int vc = m.vectorClock == null ? 0 : m.vectorClock.length;
+        return maxFrameSize(m) + (delta == null ? 0 : VectorDelta.maxSize(vc));
+    }
+
+    /**
+     * Encodes one frame at the buffer position.
+     * @throws BufferOverflowException if the buffer is too small (see maxFrameSize)
+     */
+    public static void encode(Message m, ByteBuffer out) {
+        encode(m, out, null);
+    }
+
+    /** Encodes one frame; the vector clock is delta-encoded against the connection state when delta != null. */
+    public static void encode(Message m, ByteBuffer out, VectorDelta delta) {
+        int start = out.position();
+        out.position(start + 4);
+        writeVarint(out, m.senderId);
+        writeVarint(out, m.lamportTs);
+        int[] vc = m.vectorClock == null ? new int[0] : m.vectorClock;
+        if (delta != null) {
+            delta.write(out, vc);
+        } else {
+            writeVarint(out, vc.length);
+            for (int v : vc) writeVarint(out, v);
+        }
+        byte[] raw = m.utf8Payload();
+        if (raw != null) {
+            writeVarint(out, raw.length); // received payload: forwarded as is, never decoded
+            out.put(raw);
+        } else {
+            String payload = m.payload();
+            writeUtf8(out, payload == null ? "" : payload);
+        }
+        if (!m.headers.isEmpty()) {
+            writeVarint(out, m.headers.size());
+            for (Map.Entry<String, String> h : m.headers.entrySet()) {
+                writeUtf8(out, h.getKey());
+                writeUtf8(out, h.getValue());
+            }
+        }
+        out.putInt(start, out.position() - start - 4);
+    }
+
+    /**
+     * Decodes one frame if it is complete.
+     * @return the message, or null (position unchanged) when more bytes are needed
+     */
+    public static Message decode(ByteBuffer in) {
+        return decode(in, null);
+    }
+
+    /** Same as decode(in), for frames whose vector clock is delta-encoded when delta != null. */
+    public static Message decode(ByteBuffer in, VectorDelta delta) {
+        if (in.remaining() < 4) return null;
+        int start = in.position();
+        int len = in.getInt(start);
+        if (len < 0 || len > MAX_FRAME) throw new IllegalArgumentException("bad frame length: " + len);
+        if (in.remaining() < 4 + len) return null;
+        in.position(start + 4);
+        int end = start + 4 + len;
+        int limit = in.limit();
+        in.limit(end);
+        try {
+            Message m = decodeBody(in, delta);
+            if (in.position() != end) throw new IllegalArgumentException("frame length mismatch");
+            return m;
+        } finally {
+            in.limit(limit);
+        }
+    }
+
+    /** Decodes a frame body (without the length prefix); the body ends at in.limit(). */
+    public static Message decodeBody(ByteBuffer in) {
+        return decodeBody(in, null);
+    }
+
+    /** Decodes a frame body; the vector clock is delta-encoded when delta != null. */
+    public static Message decodeBody(ByteBuffer in, VectorDelta delta) {
+        int sender = readVarint(in);
+        int lamport = readVarint(in);
+        int[] vc;
+        if (delta != null) {
+            vc = delta.read(in);
+        } else {
+            int n = readVarint(in);
+            if (n < 0 || n > in.remaining()) throw new IllegalArgumentException("bad vector length: " + n);
+            vc = new int[n];
+            for (int i = 0; i < n; i++) vc[i] = readVarint(in);
+        }
+        int bytes = readVarint(in);
+        if (bytes < 0 || bytes > in.remaining()) throw new IllegalArgumentException("bad payload length: " + bytes);
+        byte[] payload = new byte[bytes]; // decoded lazily by Message.payload()
+        in.get(payload);
+        Map<String, String> headers = Collections.emptyMap();
+        if (in.hasRemaining()) {
+            int count = readVarint(in);
+            if (count < 0 || count > in.remaining()) throw new IllegalArgumentException("bad header count: " + count);
+            headers = new LinkedHashMap<>();
+            for (int i = 0; i < count; i++) headers.put(readUtf8(in), readUtf8(in));
+            headers = Collections.unmodifiableMap(headers);
+        }
+        return Message.fromUtf8(payload, sender, lamport, vc, headers);
+    }
+
+    private static String readUtf8(ByteBuffer in) {
+        int bytes = readVarint(in);
+        if (bytes < 0 || bytes > in.remaining()) throw new IllegalArgumentException("bad string length: " + bytes);
+        if (in.hasArray()) {
+            String s = new String(in.array(), in.arrayOffset() + in.position(), bytes, StandardCharsets.UTF_8);
+            in.position(in.position() + bytes);
+            return s;
+        }
+        byte[] tmp = new byte[bytes];
+        in.get(tmp);
+        return new String(tmp, StandardCharsets.UTF_8);
+    }
+
+    static void writeVarint(ByteBuffer out, int v) {
+        while ((v & ~0x7F) != 0) {
+            out.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.put((byte) v);
+    }
+
+    static int readVarint(ByteBuffer in) {
+        int result = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            result |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return result;
+        }
+        throw new IllegalArgumentException("varint too long");
+    }
+
+    /** Writes varint byte length + UTF-8 bytes without an intermediate byte[]. */
+    private static void writeUtf8(ByteBuffer out, String s) {
+        int len = utf8Length(s);
+        writeVarint(out, len);
+        if (out.remaining() < len) throw new BufferOverflowException();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xC0 | (c >> 6)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                out.put((byte) (0xF0 | (cp >> 18)));
+                out.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                out.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (cp & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                out.put((byte) '?'); // lone surrogate, same as String.getBytes(UTF_8)
+            } else {
+                out.put((byte) (0xE0 | (c >> 12)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    private static int utf8Length(String s) {
+        int len = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) len += 1;
+            else if (c < 0x800) len += 2;
+            else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                len += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) len += 1;
+            else len += 3;
+        }
+        return len;
+    }
+}
@@ -0,0 +1,90 @@
+package semaine3;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Pool of direct read buffers shared by the inbound connections of a Node.
+ *
+ * Direct buffers let the socket read land in native memory without the extra copy the JDK
+ * makes for heap buffers, but they are expensive to allocate and only freed by the GC, so
+ * they are recycled instead: a connection takes one for its lifetime (ReceiverThread) or an
+ * I/O loop for its own (NioServer), and gives it back when done.
+ *
+ * Rules:
+ *  - every buffer is recv.buffer.kb (64) KiB, handed out cleared;
+ *  - at most recv.buffer.pool (64) idle buffers are kept, extra ones are left to the GC;
+ *  - release() of a buffer that did not come from acquire() is ignored.
+ */
+public final class BufferPool {
+    private final int bufferSize;
+    private final int maxIdle;
+    private final ArrayDeque<ByteBuffer> idle = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+
+    public BufferPool(int bufferSize, int maxIdle) {
+        if (bufferSize <= 0) throw new IllegalArgumentException("bufferSize must be > 0");
+        this.bufferSize = bufferSize;
+        this.maxIdle = Math.max(0, maxIdle);
+    }
+
+    public static BufferPool of(Config config) {
+        return new BufferPool(config.intOption("recv.buffer.kb", 64) * 1024, config.intOption("recv.buffer.pool", 64));
+    }
+
+    public int bufferSize() {
+        return bufferSize;
+    }
+
+    public ByteBuffer acquire() {
+        lock.lock();
+        try {
+            ByteBuffer b = idle.pollFirst();
+            if (b != null) {
+                reused.incrementAndGet();
+                return b;
+            }
+        } finally {
+            lock.unlock();
+        }
+        allocated.incrementAndGet();
+        return ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    public void release(ByteBuffer b) {
+        if (b == null || !b.isDirect() || b.capacity() != bufferSize) return;
+        b.clear();
+        lock.lock();
+        try {
+            if (idle.size() < maxIdle) idle.addFirst(b); // LIFO: the warmest buffer goes out next
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Buffers allocated since startup. */
+    public long allocated() {
+        return allocated.get();
+    }
+
+    /** acquire() calls served from the pool. */
+    public long reused() {
+        return reused.get();
+    }
+
+    public String stats() {
+        int idleNow;
+        lock.lock();
+        try {
+            idleNow = idle.size();
+        } finally {
+            lock.unlock();
+        }
+        return "allocated=" + allocated.get() + " reused=" + reused.get() + " idle=" + idleNow
+                + " size=" + (bufferSize / 1024) + "KiB";
+    }
+}
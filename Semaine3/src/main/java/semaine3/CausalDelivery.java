@@ -0,0 +1,128 @@
+package semaine3;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Causal broadcast delivery (Birman-Schiper-Stephenson).
+ *
+ * The node's VectorClock also ticks on receive, so it cannot tell how many broadcasts of a
+ * sender a message depends on. Causal broadcasts therefore carry their own vector in the
+ * "cb" header: cb[k] = number of broadcasts from k delivered by the sender (cb[sender] = the
+ * message's own sequence number).
+ *
+ * A broadcast m from j is deliverable when:
+ *  - cb[j] == delivered[j] + 1 (next one from j), and
+ *  - cb[k] <= delivered[k] for every k != j (its causes are delivered).
+ * Otherwise it is held back, indexed by (sender, sequence number). After each delivery only
+ * the next expected message of each sender is looked up, never the whole buffer.
+ *
+ * Enabled with delivery=causal; messages without the header are delivered on arrival.
+ */
+public final class CausalDelivery {
+    public static final String HEADER = "cb";
+
+    private final int myId;
+    private final int[] delivered;
+    private final List<Map<Integer, Message>> heldBack; // per sender: sequence number -> message
+    private final ReentrantLock lock = new ReentrantLock();
+    private int heldBackCount;
+
+    public CausalDelivery(int n, int myId) {
+        this.myId = myId;
+        this.delivered = new int[n];
+        this.heldBack = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) heldBack.add(new HashMap<>());
+    }
+
+    /** Stamps an outgoing broadcast; our own broadcasts count as delivered locally. */
+    public Message stamp(Message msg) {
+        lock.lock();
+        try {
+            delivered[myId]++;
+            return msg.withHeader(HEADER, Message.encodeVector(delivered));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public static boolean isCausal(Message msg) {
+        return msg.header(HEADER) != null;
+    }
+
+    /**
+     * Delivers msg (and whatever it unblocks) to {@code deliver}, in causal order, or holds it back.
+     * A ReentrantLock keeps concurrent receivers from interleaving deliveries; deliver may block
+     * (full inbox) without pinning a virtual thread.
+     */
+    public void receive(Message msg, Consumer<Message> deliver) {
+        int[] cb = Message.decodeVector(msg.header(HEADER));
+        if (cb.length != delivered.length) throw new IllegalArgumentException("bad causal vector length");
+        int j = msg.senderId;
+        lock.lock();
+        try {
+            if (cb[j] <= delivered[j]) return; // duplicate
+            if (!deliverable(j, cb)) {
+                if (heldBack.get(j).putIfAbsent(cb[j], msg) == null) heldBackCount++;
+                return;
+            }
+            deliverOne(j, msg, deliver);
+            drain(deliver);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean deliverable(int j, int[] cb) {
+        if (cb[j] != delivered[j] + 1) return false;
+        for (int k = 0; k < cb.length; k++) {
+            if (k != j && cb[k] > delivered[k]) return false;
+        }
+        return true;
+    }
+
+    private void deliverOne(int j, Message msg, Consumer<Message> deliver) {
+        delivered[j]++;
+        deliver.accept(msg);
+    }
+
+    /** Repeatedly delivers the next expected message of any sender that became deliverable. */
+    private void drain(Consumer<Message> deliver) {
+        boolean progress = true;
+        while (progress && heldBackCount > 0) {
+            progress = false;
+            for (int k = 0; k < heldBack.size(); k++) {
+                Message next = heldBack.get(k).get(delivered[k] + 1);
+                if (next == null) continue;
+                if (!deliverable(k, Message.decodeVector(next.header(HEADER)))) continue;
+                heldBack.get(k).remove(delivered[k] + 1);
+                heldBackCount--;
+                deliverOne(k, next, deliver);
+                progress = true;
+            }
+        }
+    }
+
+    public int heldBack() {
+        lock.lock();
+        try {
+            return heldBackCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public String deliveredString() {
+        lock.lock();
+        try {
+            return Arrays.toString(delivered);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package semaine3;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Adaptive compression of binary frames, negotiated per connection (Config option compress=true).
+ *
+ * A sending connection announces it in its preamble (BinaryCodec.COMPRESSED set in the version
+ * byte). The receiving side then accepts two kinds of records on that connection:
+ *  - plain BinaryCodec frames, as without compression;
+ *  - int32 (COMPRESSED_BIT | length), then length bytes of zlib data that inflate to one or more
+ *    whole frames. One zlib stream runs for the whole connection (a sync flush ends each record),
+ *    so a record is compressed against everything compressed before it on that connection.
+ * Receivers accept compressed connections whatever their own compress option.
+ *
+ * Rules (sending side, Encoder):
+ *  - a record is what one flush writes: one message, or one batch with batch=true;
+ *  - records under compress.min.bytes (256) are sent as is;
+ *  - every compress.window (64) compressed records, the connection checks that compression pays:
+ *    the bytes must shrink to compress.max.ratio (0.9) or less, and the CPU time spent deflating
+ *    must stay under the time the saved bytes take on a compress.link.mbps (1000) link.
+ *    Otherwise it sends plain records for a while (256 records, doubling up to 65536 while it
+ *    keeps failing) and then measures again;
+ *  - compress.level (1) is the Deflater level. compress.dictionary names a file of sample bytes
+ *    preset on both sides; peers must use the same file, a mismatch closes the connection.
+ *
+ * Only the TCP transports compress, and only with wire=binary or wire=delta.
+ */
+public final class Compression {
+    public static final int COMPRESSED_BIT = 0x80000000;
+    private static final int MIN_BACKOFF = 256;
+    private static final int MAX_BACKOFF = 65536;
+    private static final byte[] NO_INPUT = new byte[0];
+
+    final boolean enabled;
+    final int minBytes;
+    final int level;
+    final int window;
+    final double maxRatio;
+    final double linkMbps;
+    private final byte[] dictionary; // null if none
+    private final long dictionaryId;
+
+    Compression(boolean enabled, int minBytes, int level, int window, double maxRatio, double linkMbps,
+                byte[] dictionary) {
+        this.enabled = enabled;
+        this.minBytes = minBytes;
+        this.level = level;
+        this.window = Math.max(1, window);
+        this.maxRatio = maxRatio;
+        this.linkMbps = linkMbps;
+        this.dictionary = dictionary;
+        if (dictionary != null) {
+            Adler32 adler = new Adler32();
+            adler.update(dictionary);
+            this.dictionaryId = adler.getValue();
+        } else {
+            this.dictionaryId = -1;
+        }
+    }
+
+    public static Compression of(Config config) {
+        String file = config.option("compress.dictionary", null);
+        byte[] dictionary = null;
+        if (file != null) {
+            try {
+                dictionary = Files.readAllBytes(Paths.get(file));
+            } catch (IOException e) {
+                throw new UncheckedIOException("cannot read compress.dictionary=" + file, e);
+            }
+        }
+        return new Compression(
+                Boolean.parseBoolean(config.option("compress", "false")),
+                config.intOption("compress.min.bytes", 256),
+                config.intOption("compress.level", Deflater.BEST_SPEED),
+                config.intOption("compress.window", 64),
+                Double.parseDouble(config.option("compress.max.ratio", "0.9")),
+                Double.parseDouble(config.option("compress.link.mbps", "1000")),
+                dictionary);
+    }
+
+    Encoder encoder(Metrics metrics) {
+        return new Encoder(metrics);
+    }
+
+    Decoder decoder(Metrics metrics) {
+        return new Decoder(metrics);
+    }
+
+    /**
+     * Sending side of one peer connection. Frames are staged with add() and written as one record
+     * by writeTo(). Not thread-safe: used under the PeerConnection lock.
+     */
+    final class Encoder {
+        private final Metrics metrics;
+        private final Deflater deflater = new Deflater(level);
+        private byte[] staged = new byte[1024];
+        private int stagedLength;
+        private byte[] compressed = new byte[1024];
+        private int plainLeft;         // records still to send as is before measuring again
+        private int backoff = MIN_BACKOFF;
+        private int windowRecords;
+        private long windowRaw;
+        private long windowCompressed;
+        private long windowNanos;
+
+        private Encoder(Metrics metrics) {
+            this.metrics = metrics;
+            reset();
+        }
+
+        /** Starts a new zlib stream, for a new socket. What is staged is dropped. */
+        void reset() {
+            deflater.reset();
+            if (dictionary != null) deflater.setDictionary(dictionary);
+            stagedLength = 0;
+        }
+
+        void add(byte[] frame, int offset, int length) {
+            if (staged.length - stagedLength < length) {
+                staged = Arrays.copyOf(staged, Math.max(staged.length * 2, stagedLength + length));
+            }
+            System.arraycopy(frame, offset, staged, stagedLength, length);
+            stagedLength += length;
+        }
+
+        /**
+         * Writes what was added since the last call as one record, compressed or not.
+         * @return the bytes written
+         */
+        int writeTo(OutputStream out) throws IOException {
+            int length = stagedLength;
+            if (length == 0) return 0;
+            stagedLength = 0;
+            if (length < minBytes || plainLeft > 0) {
+                if (length >= minBytes) plainLeft--;
+                out.write(staged, 0, length);
+                metrics.compressSkipped();
+                return length;
+            }
+            long start = System.nanoTime();
+            deflater.setInput(staged, 0, length);
+            int n = 0;
+            while (true) {
+                n += deflater.deflate(compressed, n, compressed.length - n, Deflater.SYNC_FLUSH);
+                if (n < compressed.length) break;
+                compressed = Arrays.copyOf(compressed, compressed.length * 2); // output full: more to come
+            }
+            long nanos = System.nanoTime() - start;
+            // Sent even when it grew: the deflater already has these bytes in its history.
+            int header = COMPRESSED_BIT | n;
+            out.write(header >>> 24);
+            out.write(header >>> 16);
+            out.write(header >>> 8);
+            out.write(header);
+            out.write(compressed, 0, n);
+            metrics.compressed(length, 4 + n, nanos);
+            measure(length, 4 + n, nanos);
+            return 4 + n;
+        }
+
+        private void measure(int raw, int written, long nanos) {
+            windowRaw += raw;
+            windowCompressed += written;
+            windowNanos += nanos;
+            if (++windowRecords < window) return;
+            double savedNanos = (windowRaw - windowCompressed) * 8000.0 / linkMbps; // bytes on the link
+            boolean pays = windowCompressed <= windowRaw * maxRatio && windowNanos < savedNanos;
+            if (pays) {
+                backoff = MIN_BACKOFF;
+            } else {
+                plainLeft = backoff;
+                backoff = Math.min(backoff * 2, MAX_BACKOFF);
+                metrics.compressOff();
+            }
+            windowRecords = 0;
+            windowRaw = 0;
+            windowCompressed = 0;
+            windowNanos = 0;
+        }
+
+        void end() {
+            deflater.end();
+        }
+    }
+
+    /** Receiving side of one compressed connection (FrameDecoder). */
+    final class Decoder {
+        private final Metrics metrics; // may be null
+        private final Inflater inflater = new Inflater();
+        private ByteBuffer frames = ByteBuffer.allocate(4096);
+
+        private Decoder(Metrics metrics) {
+            this.metrics = metrics;
+        }
+
+        /**
+         * Inflates the length bytes at the position of in (which are consumed).
+         * @return the frames of the record, in read mode, valid until the next call
+         * @throws IllegalArgumentException if the data is corrupt or needs another dictionary
+         */
+        ByteBuffer inflate(ByteBuffer in, int length) {
+            long start = System.nanoTime();
+            int end = in.position() + length;
+            int limit = in.limit();
+            in.limit(end);
+            frames.clear();
+            try {
+                inflater.setInput(in);
+                while (true) {
+                    if (!frames.hasRemaining()) frames = grow(frames);
+                    if (inflater.inflate(frames) > 0) continue;
+                    if (inflater.needsDictionary()) {
+                        if (dictionary == null || inflater.getAdler() != dictionaryId) {
+                            throw new IllegalArgumentException("compress.dictionary differs from the sender's");
+                        }
+                        inflater.setDictionary(dictionary);
+                        continue;
+                    }
+                    if (inflater.needsInput()) break;
+                    throw new IllegalArgumentException("compressed stream ended");
+                }
+            } catch (DataFormatException e) {
+                throw new IllegalArgumentException("corrupt compressed record: " + e.getMessage());
+            } finally {
+                in.limit(limit);
+                in.position(end);
+                inflater.setInput(NO_INPUT); // drop the reference to the read buffer
+            }
+            frames.flip();
+            if (metrics != null) metrics.decompressed(System.nanoTime() - start);
+            return frames;
+        }
+
+        private ByteBuffer grow(ByteBuffer b) {
+            if (b.capacity() >= BinaryCodec.MAX_FRAME) throw new IllegalArgumentException("compressed record too large");
+            ByteBuffer bigger = ByteBuffer.allocate(Math.min(b.capacity() * 2, BinaryCodec.MAX_FRAME));
+            b.flip();
+            return bigger.put(b);
+        }
+
+        void end() {
+            inflater.end();
+        }
+    }
+}
@@ -3,7 +3,10 @@ package semaine3;
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Simple config loader.
@@ -16,6 +19,10 @@ import java.util.List;
  *   127.0.0.1 5000
  *   127.0.0.1 5001
  *   127.0.0.1 5002
+ *
+ * Runtime options can be added as "key=value" lines, e.g.
+ *   wire=binary
+ * and overridden from the command line with -Dsemaine3.<key>=<value>.
  */
 public final class Config {
     public static final class NodeInfo {
@@ -29,15 +36,45 @@ public final class Config {
     }
 
     private final List<NodeInfo> nodes;
+    private final Map<String, String> options;
 
     private Config(List<NodeInfo> nodes) {
+        this(nodes, Collections.emptyMap());
+    }
+
+    private Config(List<NodeInfo> nodes, Map<String, String> options) {
         this.nodes = nodes;
+        this.options = options;
     }
 
     public int n() { return nodes.size(); }
 
     public NodeInfo get(int id) { return nodes.get(id); }
 
+    /** Option value: system property semaine3.<key>, then config file / withOption, then the default. */
+    public String option(String key, String defaultValue) {
+        String v = System.getProperty("semaine3." + key);
+        if (v == null) v = options.get(key);
+        return v == null ? defaultValue : v.trim();
+    }
+
+    public int intOption(String key, int defaultValue) {
+        return Integer.parseInt(option(key, Integer.toString(defaultValue)));
+    }
+
+    public WireFormat wireFormat() {
+        return WireFormat.parse(option("wire", "text"));
+    }
+
+    public ThreadMode threadMode() {
+        return ThreadMode.parse(option("threads", "platform")).effective();
+    }
+
+    /** Copy of this config with one more option set. */
+    public Config withOption(String key, String value) {
+        return withOptions(Collections.singletonMap(key, value));
+    }
+
     public static Config defaultLocal3() {
         List<NodeInfo> nodes = new ArrayList<>();
         nodes.add(new NodeInfo("127.0.0.1", 5000));
@@ -46,16 +83,29 @@ public final class Config {
         return new Config(nodes);
     }
 
+    /** One node per port on the same host (handy for local clusters and benchmarks). */
+    public static Config of(String host, int... ports) {
+        List<NodeInfo> nodes = new ArrayList<>();
+        for (int port : ports) nodes.add(new NodeInfo(host, port));
+        return new Config(nodes);
+    }
+
     public static Config fromFileOrDefault(String pathOrNull) {
         if (pathOrNull == null || pathOrNull.isBlank()) {
             return defaultLocal3();
         }
         List<NodeInfo> nodes = new ArrayList<>();
+        Map<String, String> options = new HashMap<>();
         try (BufferedReader br = new BufferedReader(new FileReader(pathOrNull))) {
             String line;
             while ((line = br.readLine()) != null) {
                 line = line.trim();
                 if (line.isEmpty() || line.startsWith("#")) continue;
+                int eq = line.indexOf('=');
+                if (eq > 0) {
+                    options.put(line.substring(0, eq).trim(), line.substring(eq + 1).trim());
+                    continue;
+                }
                 String[] parts = line.split("\\s+");
                 if (parts.length != 2) {
                     throw new IllegalArgumentException("Bad config line: " + line);
@@ -68,7 +118,13 @@ public final class Config {
             System.err.println("Failed to read config file '" + pathOrNull + "'. Using default.");
             return defaultLocal3();
         }
-        if (nodes.isEmpty()) return defaultLocal3();
-        return new Config(nodes);
+        if (nodes.isEmpty()) return defaultLocal3().withOptions(options);
+        return new Config(nodes, Collections.unmodifiableMap(options));
+    }
+
+    private Config withOptions(Map<String, String> extra) {
+        Map<String, String> copy = new HashMap<>(options);
+        copy.putAll(extra);
+        return new Config(nodes, Collections.unmodifiableMap(copy));
     }
 }
@@ -0,0 +1,31 @@
+package semaine3;
+
+/**
+ * Outcome of sending one message to one peer (see Node.broadcastAsync).
+ * QUEUED (reliable=true only): not written yet, ReliableDelivery retransmits it until acked.
+ * SKIPPED (fd=true only): not sent, the FailureDetector suspects the peer.
+ * TIMED_OUT: no outcome within broadcast.timeout.ms; the message may still arrive (a write that
+ * had started is not cut off), or never be sent (one that had not is dropped).
+ */
+public final class DeliveryResult {
+    public enum Status { DELIVERED, QUEUED, SKIPPED, FAILED, TIMED_OUT }
+
+    public final int peerId;
+    public final Status status;
+    public final long nanos;
+    public final String error;
+
+    public DeliveryResult(int peerId, Status status, long nanos, String error) {
+        this.peerId = peerId;
+        this.status = status;
+        this.nanos = nanos;
+        this.error = error;
+    }
+
+    public boolean delivered() { return status == Status.DELIVERED; }
+
+    @Override
+    public String toString() {
+        return peerId + "=" + status + (error == null ? "" : "(" + error + ")");
+    }
+}
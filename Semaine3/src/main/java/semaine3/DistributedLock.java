@@ -0,0 +1,462 @@
+package semaine3;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Distributed mutual exclusion over named locks (Config option lock=ra or lock=token): at most
+ * one thread in the whole cluster holds a given name between acquire(name) and release(name).
+ * Names are independent; each one is created on first use, on every node, and kept.
+ *
+ * lock=ra, Ricart-Agrawala: 2(N-1) messages per acquisition.
+ *  - acquiring ticks the Lamport clock and sends a request (header "mx" = "q", payload the name,
+ *    stamped with the tick) to every peer, then waits for a reply from each of them;
+ *  - a node replies at once ("y:ts", ts the request's stamp) unless it holds the name, or wants it
+ *    itself with a request that comes first in (lamportTs, senderId) order: then it defers the
+ *    reply until it releases. Both sides compare the same pair, so exactly one of them waits.
+ *
+ * lock=token, Suzuki-Kasami: at most N messages per acquisition, 0 when the token is here.
+ *  - each name has one token, first at node floorMod(name.hashCode(), N); holding it is holding
+ *    the name. The token carries, per node, the last request it served and a queue of nodes;
+ *  - acquiring with the token here and idle takes it without a message. Otherwise the node numbers
+ *    the request and sends it ("r:number") to every peer, then waits for the token;
+ *  - a node with the idle token sends it ("t:served:queue") to a requester that has not been
+ *    served; on release the holder queues every such requester and sends the token to the first.
+ *
+ * Rules (both):
+ *  - threads of one node queue locally (fairly) first, so one request per name and node is out;
+ *  - release may be called from another thread than acquire, but only after an acquire;
+ *  - tryAcquire gives up after its timeout: the request is withdrawn (deferred replies go out, a
+ *    token that arrives later is passed on), so a node that never answers costs a timeout,
+ *    not a lock held forever. A token that cannot be written to a requester drops that request
+ *    and goes to the next one. There is no recovery of a token lost with a crashed node;
+ *  - lock messages go straight to the transport (not through reliable=true or the snapshots),
+ *    are not delivered, and merge the Lamport clock.
+ */
+public final class DistributedLock implements AutoCloseable {
+    public static final String HEADER = "mx";
+
+    private final int myId;
+    private final int n;
+    private final boolean token;
+    private final long timeoutMs;
+    private final Transport transport;
+    private final LamportClock lamport;
+    private final VectorClock vector;
+    private final ExecutorService senders;
+    private final Map<String, Name> names = new ConcurrentHashMap<>();
+
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder local = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+
+    /** Everything about one lock name on this node (lock held unless said otherwise). */
+    private final class Name {
+        final String name;
+        final Semaphore threads = new Semaphore(1, true); // local queue, not under lock
+        final ReentrantLock lock = new ReentrantLock();
+        final Condition granted = lock.newCondition();
+        boolean requesting;
+        boolean held;
+        // lock=ra
+        int requestTs;
+        int replies;
+        final int[] deferred = new int[n]; // per peer: stamp of the request to answer on release, 0 if none
+        // lock=token
+        final int[] requested = new int[n]; // per node: highest request number seen
+        int[] served;                        // the token's per node last request served, null if not here
+        ArrayDeque<Integer> queue;           // the token's queue, null if not here
+
+        Name(String name) {
+            this.name = name;
+            if (token && Math.floorMod(name.hashCode(), n) == myId) {
+                served = new int[n];
+                queue = new ArrayDeque<>();
+            }
+        }
+    }
+
+    public DistributedLock(Config config, int myId, Transport transport, LamportClock lamport, VectorClock vector) {
+        String mode = config.option("lock", "ra");
+        if (!mode.equals("ra") && !mode.equals("token")) throw new IllegalArgumentException("unknown lock mode: " + mode);
+        this.myId = myId;
+        this.n = config.n();
+        this.token = mode.equals("token");
+        this.timeoutMs = config.intOption("broadcast.timeout.ms", 1000);
+        this.transport = transport;
+        this.lamport = lamport;
+        this.vector = vector;
+        this.senders = config.threadMode().perTaskExecutor("lock-" + myId);
+    }
+
+    public static boolean isLock(Message msg) {
+        return msg.header(HEADER) != null;
+    }
+
+    private Name name(String name) {
+        return names.computeIfAbsent(name, Name::new);
+    }
+
+    /** Blocks until this node holds name. */
+    public void acquire(String name) throws InterruptedException {
+        tryAcquire(name, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /** @return true if this node now holds name, false if timeout ran out first */
+    public boolean tryAcquire(String name, long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        long deadline = nanos >= Long.MAX_VALUE / 2 ? Long.MAX_VALUE : System.nanoTime() + nanos;
+        Name l = name(name);
+        if (!l.threads.tryAcquire(nanos, TimeUnit.NANOSECONDS)) return false;
+        boolean ok = false;
+        try {
+            ok = token ? acquireToken(l, deadline) : acquireRa(l, deadline);
+            if (ok) acquired.increment();
+            else timeouts.increment();
+            return ok;
+        } finally {
+            if (!ok) l.threads.release();
+        }
+    }
+
+    public void release(String name) {
+        Name l = names.get(name);
+        if (l == null) throw new IllegalStateException("lock not held: " + name);
+        List<Message> out = new ArrayList<>();
+        List<Integer> to = new ArrayList<>();
+        l.lock.lock();
+        try {
+            if (!l.held) throw new IllegalStateException("lock not held: " + name);
+            l.held = false;
+            if (token) {
+                passToken(l, out, to);
+            } else {
+                deferredReplies(l, out, to);
+            }
+        } finally {
+            l.lock.unlock();
+        }
+        for (int i = 0; i < out.size(); i++) send(to.get(i), out.get(i), l);
+        l.threads.release();
+    }
+
+    /** Whether a thread of this node holds name. */
+    public boolean isHeld(String name) {
+        Name l = names.get(name);
+        if (l == null) return false;
+        l.lock.lock();
+        try {
+            return l.held;
+        } finally {
+            l.lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until granted, or withdraws the request (lock held).
+     * @return false if the deadline passed
+     */
+    private boolean await(Name l, long deadline, List<Message> out, List<Integer> to) throws InterruptedException {
+        try {
+            while (!l.held) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    withdraw(l, out, to);
+                    return false;
+                }
+                if (deadline == Long.MAX_VALUE) l.granted.await();
+                else l.granted.awaitNanos(left);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            if (l.held) { // granted meanwhile: give it back (the caller sends out)
+                l.held = false;
+                if (token) passToken(l, out, to);
+                else deferredReplies(l, out, to);
+            } else {
+                withdraw(l, out, to);
+            }
+            throw e;
+        }
+    }
+
+    private void withdraw(Name l, List<Message> out, List<Integer> to) {
+        l.requesting = false;
+        if (!token) deferredReplies(l, out, to);
+    }
+
+    // --- lock=ra ---
+
+    private boolean acquireRa(Name l, long deadline) throws InterruptedException {
+        Message request;
+        l.lock.lock();
+        try {
+            l.requestTs = lamport.tick();
+            l.replies = 0;
+            l.requesting = true;
+            if (n == 1) {
+                l.requesting = false;
+                l.held = true;
+                return true;
+            }
+            request = message(l.name, l.requestTs, "q");
+        } finally {
+            l.lock.unlock();
+        }
+        sendToAll(request);
+        List<Message> out = new ArrayList<>();
+        List<Integer> to = new ArrayList<>();
+        l.lock.lock();
+        try {
+            return await(l, deadline, out, to);
+        } finally {
+            l.lock.unlock();
+            for (int i = 0; i < out.size(); i++) send(to.get(i), out.get(i), l);
+        }
+    }
+
+    private void onRequest(Name l, int from, int ts) {
+        Message reply = null;
+        l.lock.lock();
+        try {
+            boolean first = l.requestTs < ts || (l.requestTs == ts && myId < from);
+            if (l.held || (l.requesting && first)) {
+                l.deferred[from] = ts;
+            } else {
+                reply = message(l.name, lamport.get(), "y:" + ts);
+            }
+        } finally {
+            l.lock.unlock();
+        }
+        if (reply != null) send(from, reply, l);
+    }
+
+    private void onReply(Name l, int ts) {
+        l.lock.lock();
+        try {
+            if (!l.requesting || ts != l.requestTs) return; // for a withdrawn request
+            if (++l.replies == n - 1) {
+                l.requesting = false;
+                l.held = true;
+                l.granted.signal();
+            }
+        } finally {
+            l.lock.unlock();
+        }
+    }
+
+    /** lock held */
+    private void deferredReplies(Name l, List<Message> out, List<Integer> to) {
+        for (int i = 0; i < n; i++) {
+            if (l.deferred[i] == 0) continue;
+            out.add(message(l.name, lamport.get(), "y:" + l.deferred[i]));
+            to.add(i);
+            l.deferred[i] = 0;
+        }
+    }
+
+    // --- lock=token ---
+
+    private boolean acquireToken(Name l, long deadline) throws InterruptedException {
+        Message request;
+        l.lock.lock();
+        try {
+            if (l.served != null) { // here and idle: only this thread of the node can be acquiring
+                l.held = true;
+                local.increment();
+                return true;
+            }
+            l.requesting = true;
+            request = message(l.name, lamport.tick(), "r:" + ++l.requested[myId]);
+        } finally {
+            l.lock.unlock();
+        }
+        sendToAll(request);
+        List<Message> out = new ArrayList<>();
+        List<Integer> to = new ArrayList<>();
+        l.lock.lock();
+        try {
+            return await(l, deadline, out, to);
+        } finally {
+            l.lock.unlock();
+            for (int i = 0; i < out.size(); i++) send(to.get(i), out.get(i), l);
+        }
+    }
+
+    private void onTokenRequest(Name l, int from, int number) {
+        List<Message> out = new ArrayList<>(1);
+        List<Integer> to = new ArrayList<>(1);
+        l.lock.lock();
+        try {
+            l.requested[from] = Math.max(l.requested[from], number);
+            if (l.served != null && !l.held) passToken(l, out, to);
+        } finally {
+            l.lock.unlock();
+        }
+        if (!out.isEmpty()) send(to.get(0), out.get(0), l);
+    }
+
+    /**
+     * The token arrived (header "t:served:queue"), or could not be written to failed: that request
+     * counts as served (the requester asks again, with a new number) and the token goes on to the
+     * next requester at once, instead of waiting here for a peer that may be gone.
+     */
+    private void onToken(Name l, String header, int failed) {
+        String[] parts = header.split(":", -1);
+        String[] s = parts[1].split(",");
+        int[] served = new int[n];
+        for (int i = 0; i < n; i++) served[i] = Integer.parseInt(s[i]);
+        if (failed >= 0) served[failed]++;
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        if (!parts[2].isEmpty()) {
+            for (String j : parts[2].split(",")) queue.add(Integer.parseInt(j));
+        }
+        List<Message> out = new ArrayList<>(1);
+        List<Integer> to = new ArrayList<>(1);
+        l.lock.lock();
+        try {
+            l.served = served;
+            l.queue = queue;
+            if (l.requesting) {
+                l.requesting = false;
+                l.held = true;
+                l.granted.signal();
+            } else {
+                passToken(l, out, to); // our request was withdrawn, or the token came back
+            }
+        } finally {
+            l.lock.unlock();
+        }
+        if (!out.isEmpty()) send(to.get(0), out.get(0), l);
+    }
+
+    /**
+     * The token is here and idle: marks this node's last request served, queues the peers waiting
+     * for it (in id order after this node) and sends it to the first, if any (lock held).
+     */
+    private void passToken(Name l, List<Message> out, List<Integer> to) {
+        if (l.served == null) return;
+        l.served[myId] = l.requested[myId];
+        for (int k = 1; k < n; k++) {
+            int j = (myId + k) % n;
+            if (l.requested[j] == l.served[j] + 1 && !l.queue.contains(j)) l.queue.add(j);
+        }
+        if (l.queue.isEmpty()) return;
+        int next = l.queue.poll();
+        StringBuilder sb = new StringBuilder("t:");
+        for (int i = 0; i < n; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(l.served[i]);
+        }
+        sb.append(':');
+        boolean first = true;
+        for (int j : l.queue) {
+            if (!first) sb.append(',');
+            sb.append(j);
+            first = false;
+        }
+        out.add(message(l.name, lamport.get(), sb.toString()));
+        to.add(next);
+        l.served = null;
+        l.queue = null;
+    }
+
+    // --- messages ---
+
+    /** A lock message from a peer (Node, before the clocks; lock messages are not delivered). */
+    void receive(Message msg) {
+        int from = msg.senderId;
+        if (from < 0 || from >= n || from == myId) return;
+        lamport.onReceive(msg.lamportTs);
+        Name l = name(msg.payload());
+        String h = msg.header(HEADER);
+        switch (h.charAt(0)) {
+            case 'q': onRequest(l, from, msg.lamportTs); break;
+            case 'y': onReply(l, Integer.parseInt(h.substring(2))); break;
+            case 'r': onTokenRequest(l, from, Integer.parseInt(h.substring(2))); break;
+            case 't': onToken(l, h, -1); break;
+            default: System.err.println("[Node " + myId + "] unknown lock message: " + h);
+        }
+    }
+
+    private Message message(String name, int lamportTs, String kind) {
+        return new Message(name, myId, lamportTs, vector.snapshot(), Collections.singletonMap(HEADER, kind));
+    }
+
+    /**
+     * Writes a request to every peer, one after the other, in one task of senders (a thread per
+     * task, see ThreadMode.perTaskExecutor): the caller never waits on a connection, and requests
+     * for different names go out concurrently.
+     */
+    private void sendToAll(Message msg) {
+        try {
+            senders.execute(() -> {
+                byte[] encoded = transport.encode(msg);
+                for (int dest = 0; dest < n; dest++) {
+                    if (dest == myId) continue;
+                    try {
+                        transport.sendEncoded(dest, msg, encoded, timeoutMs);
+                        sent.increment();
+                    } catch (IOException e) {
+                        System.err.println("[Node " + myId + "] lock request to " + dest + " failed: " + e.getMessage());
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // shutting down
+        }
+    }
+
+    /** Writes a reply or the token (in a task of its own); a token that cannot be written is passed on. */
+    private void send(int dest, Message msg, Name l) {
+        try {
+            senders.execute(() -> {
+                try {
+                    transport.sendEncoded(dest, msg, null, timeoutMs);
+                    sent.increment();
+                } catch (IOException e) {
+                    System.err.println("[Node " + myId + "] lock message to " + dest + " failed: " + e.getMessage());
+                    // not written (sendEncoded fails only then): the token is still ours
+                    if (msg.header(HEADER).startsWith("t:")) onToken(l, msg.header(HEADER), dest);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // shutting down
+        }
+    }
+
+    /** Acquisitions that succeeded. */
+    public long acquired() { return acquired.sum(); }
+
+    /** Acquisitions that needed no message (lock=token, token already here). */
+    public long local() { return local.sum(); }
+
+    /** Lock messages written (requests, replies, tokens). */
+    public long sent() { return sent.sum(); }
+
+    public String stats() {
+        long a = acquired.sum();
+        return (token ? "token" : "ra") + " names=" + names.size() + " acquired=" + a + " local=" + local.sum()
+                + " timeouts=" + timeouts.sum() + " sent=" + sent.sum()
+                + (a == 0 ? "" : String.format(Locale.ROOT, " msgs/acquire=%.2f", sent.sum() / (double) a));
+    }
+
+    @Override
+    public void close() {
+        senders.shutdownNow();
+    }
+}
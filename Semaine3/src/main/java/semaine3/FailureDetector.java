@@ -0,0 +1,254 @@
+package semaine3;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+/**
+ * Phi-accrual failure detector over the peers of the Config (Hayashibara et al.), fd=true.
+ *
+ * Instead of a yes/no timeout, every peer gets a suspicion level phi = -log10(probability that
+ * a message arrives later than now, given the arrival intervals seen so far); phi 1 means a 10%
+ * chance of being wrong, phi 8 one in 10^8. A peer is SUSPECTED while phi > fd.phi (8).
+ *
+ * Rules:
+ *  - every message received from a peer counts as a heartbeat (piggybacking); explicit
+ *    heartbeats (header "hb", consumed by Node, not delivered) only go to peers we have not
+ *    written anything to for fd.interval.ms (500);
+ *  - arrival intervals are sampled at most once per fd.interval.ms, so a burst of traffic
+ *    does not make the next quiet interval look like a failure; the last fd.window (100)
+ *    samples give the mean and standard deviation (at least fd.min.std.ms, 100);
+ *  - every peer starts as if heard at startup, so a peer that never comes up gets suspected too;
+ *  - a suspected peer is not written to by Node (see Node.send), only heartbeats still go to it,
+ *    and the first message it sends back makes it UP again.
+ */
+public final class FailureDetector implements AutoCloseable {
+    public static final String HEADER = "hb";
+
+    public enum Status { UP, SUSPECTED }
+
+    private final int myId;
+    private final Transport transport;
+    private final LamportClock lamport;
+    private final VectorClock vector;
+    private final long intervalNanos;
+    private final double threshold;
+    private final double minStdNanos;
+    private final Peer[] states;
+    private final ScheduledExecutorService timer;
+    private final ExecutorService senders;
+    private volatile BiConsumer<Integer, Status> listener;
+
+    /** What we know about one peer. */
+    private static final class Peer {
+        final ReentrantLock lock = new ReentrantLock();
+        final long[] intervals;
+        final AtomicBoolean heartbeating = new AtomicBoolean();
+        int count;
+        int next;
+        double sum;
+        double sumSquares;
+        volatile long lastHeard;
+        volatile long lastSample;
+        volatile boolean heard;
+        volatile Status status = Status.UP;
+        long suspicions;
+
+        Peer(int window, long now, long interval) {
+            this.intervals = new long[window];
+            this.lastHeard = now;
+            this.lastSample = now;
+            add(interval);
+        }
+
+        /** lock held */
+        void add(long interval) {
+            if (count == intervals.length) {
+                long old = intervals[next];
+                sum -= old;
+                sumSquares -= (double) old * old;
+            } else {
+                count++;
+            }
+            intervals[next] = interval;
+            next = (next + 1) % intervals.length;
+            sum += interval;
+            sumSquares += (double) interval * interval;
+        }
+    }
+
+    public FailureDetector(Config config, int myId, Transport transport, LamportClock lamport, VectorClock vector) {
+        this.myId = myId;
+        this.transport = transport;
+        this.lamport = lamport;
+        this.vector = vector;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(config.intOption("fd.interval.ms", 500));
+        this.threshold = Double.parseDouble(config.option("fd.phi", "8"));
+        this.minStdNanos = TimeUnit.MILLISECONDS.toNanos(config.intOption("fd.min.std.ms", 100));
+        int window = config.intOption("fd.window", 100);
+        long now = System.nanoTime();
+        this.states = new Peer[config.n()];
+        for (int i = 0; i < states.length; i++) states[i] = new Peer(window, now, intervalNanos);
+        ThreadMode threads = config.threadMode();
+        this.timer = Executors.newSingleThreadScheduledExecutor(threads.factory("fd-" + myId));
+        this.senders = threads.perTaskExecutor("heartbeat-" + myId);
+    }
+
+    public void start() {
+        long tick = Math.max(1, TimeUnit.NANOSECONDS.toMillis(intervalNanos) / 4);
+        timer.scheduleWithFixedDelay(this::tick, tick, tick, TimeUnit.MILLISECONDS);
+    }
+
+    /** Called for each status change (peer, new status), on the detector thread (benchmarks). */
+    public void onChange(BiConsumer<Integer, Status> listener) {
+        this.listener = listener;
+    }
+
+    public static boolean isHeartbeat(Message msg) {
+        return msg.header(HEADER) != null;
+    }
+
+    /** Any message from peer: records the arrival. Lock-free unless an interval is sampled. */
+    public void heard(int peer) {
+        if (peer < 0 || peer >= states.length || peer == myId) return;
+        Peer p = states[peer];
+        long now = System.nanoTime();
+        p.lastHeard = now;
+        p.heard = true;
+        if (now - p.lastSample >= intervalNanos) {
+            p.lock.lock();
+            try {
+                long gap = now - p.lastSample;
+                if (gap >= intervalNanos) {
+                    if (p.status == Status.UP) p.add(gap); // an outage is not a normal interval
+                    p.lastSample = now;
+                }
+            } finally {
+                p.lock.unlock();
+            }
+        }
+        if (p.status == Status.SUSPECTED) update(peer, p, now);
+    }
+
+    public double phi(int peer) {
+        return phi(states[peer], System.nanoTime());
+    }
+
+    private double phi(Peer p, long now) {
+        double mean;
+        double std;
+        p.lock.lock();
+        try {
+            mean = p.sum / p.count;
+            double variance = p.sumSquares / p.count - mean * mean;
+            std = Math.max(minStdNanos, Math.sqrt(Math.max(0, variance)));
+        } finally {
+            p.lock.unlock();
+        }
+        return phi(now - p.lastHeard, mean, std);
+    }
+
+    /** Logistic approximation of the normal CDF, as in Akka's detector. */
+    static double phi(double elapsed, double mean, double std) {
+        double y = (elapsed - mean) / std;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        return elapsed > mean ? -Math.log10(e / (1.0 + e)) : -Math.log10(1.0 - 1.0 / (1.0 + e));
+    }
+
+    public boolean isSuspected(int peer) {
+        return peer != myId && states[peer].status == Status.SUSPECTED;
+    }
+
+    public Status status(int peer) {
+        return states[peer].status;
+    }
+
+    /** Number of times peer went from UP to SUSPECTED. */
+    public long suspicions(int peer) {
+        Peer p = states[peer];
+        p.lock.lock();
+        try {
+            return p.suspicions;
+        } finally {
+            p.lock.unlock();
+        }
+    }
+
+    private void tick() {
+        long now = System.nanoTime();
+        for (int i = 0; i < states.length; i++) {
+            if (i == myId) continue;
+            Peer p = states[i];
+            update(i, p, now);
+            if (now - transport.lastWriteNanos(i) >= intervalNanos) heartbeat(i, p);
+        }
+    }
+
+    private void update(int peer, Peer p, long now) {
+        Status status = phi(p, now) > threshold ? Status.SUSPECTED : Status.UP;
+        p.lock.lock();
+        try {
+            if (status == p.status) return;
+            p.status = status;
+            if (status == Status.SUSPECTED) p.suspicions++;
+        } finally {
+            p.lock.unlock();
+        }
+        System.err.println("[Node " + myId + "] peer " + peer + " " + status
+                + (status == Status.SUSPECTED ? " (silent for " + TimeUnit.NANOSECONDS.toMillis(now - p.lastHeard) + " ms)" : ""));
+        BiConsumer<Integer, Status> l = listener;
+        if (l != null) l.accept(peer, status);
+    }
+
+    /** One heartbeat in flight per peer: a dead one may hold it for a connect timeout. */
+    private void heartbeat(int peer, Peer p) {
+        if (!p.heartbeating.compareAndSet(false, true)) return;
+        Message hb = new Message("", myId, lamport.get(), vector.snapshot(), Collections.singletonMap(HEADER, "1"));
+        try {
+            senders.execute(() -> {
+                try {
+                    transport.sendEncoded(peer, hb, null, TimeUnit.NANOSECONDS.toMillis(intervalNanos));
+                } catch (IOException e) {
+                    // the peer will just look silent
+                } finally {
+                    p.heartbeating.set(false);
+                }
+            });
+        } catch (RuntimeException e) {
+            p.heartbeating.set(false); // shutting down
+        }
+    }
+
+    /** One line per peer: status, phi and time since last heard. */
+    public String membership() {
+        long now = System.nanoTime();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < states.length; i++) {
+            if (sb.length() > 0) sb.append(' ');
+            if (i == myId) {
+                sb.append(i).append("=self");
+                continue;
+            }
+            Peer p = states[i];
+            double phi = phi(p, now);
+            sb.append(i).append('=').append(p.status)
+                    .append("(phi=").append(Double.isInfinite(phi) ? "inf" : String.format(Locale.ROOT, "%.1f", phi))
+                    .append(p.heard ? ", last " + TimeUnit.NANOSECONDS.toMillis(now - p.lastHeard) + "ms" : ", never heard")
+                    .append(')');
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public void close() {
+        timer.shutdownNow();
+        senders.shutdownNow();
+    }
+}
@@ -0,0 +1,166 @@
+package semaine3;
+
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+/**
+ * Incremental decoder for one inbound connection, fed with whatever bytes a read returned.
+ *
+ * Same protocol detection as ReceiverThread:
+ *  - first byte BinaryCodec.MAGIC then VERSION: binary frames
+ *  - anything else: text lines
+ * A version byte with BinaryCodec.COMPRESSED set also allows compressed records (Compression),
+ * which are inflated into a per-connection buffer and decoded from there.
+ *
+ * Complete messages are decoded straight from the caller's buffer (text lines too: no String
+ * is built for the line, and payloads stay UTF-8 bytes until Message.payload() is called);
+ * only an incomplete tail is copied into a small per-connection buffer until the rest arrives.
+ */
+public final class FrameDecoder {
+    private enum Mode { UNKNOWN, VERSION, TEXT, BINARY }
+
+    private Mode mode = Mode.UNKNOWN;
+    private ByteBuffer pending; // incomplete tail, in write mode; null when empty
+    private VectorDelta delta;  // wire=delta connections only
+    private Compression.Decoder inflate; // compressed connections only
+    private final Metrics metrics; // may be null
+    private final Compression compression; // may be null: compressed connections are refused
+
+    public FrameDecoder() {
+        this(null);
+    }
+
+    /** Records bytes in and decode times into metrics. */
+    public FrameDecoder(Metrics metrics) {
+        this(metrics, null);
+    }
+
+    /** Same, and accepts compressed connections (with the dictionary of compression, if any). */
+    public FrameDecoder(Metrics metrics, Compression compression) {
+        this.metrics = metrics;
+        this.compression = compression;
+    }
+
+    /**
+     * Decodes every complete message in {@code in} (in read mode) and consumes it entirely.
+     * @throws IllegalArgumentException on a protocol error; the connection should be closed
+     */
+    public void feed(ByteBuffer in, Consumer<Message> out) {
+        if (metrics != null) metrics.bytesIn(in.remaining());
+        if (pending != null && pending.position() > 0) {
+            pending = ensure(pending, in.remaining());
+            pending.put(in);
+            pending.flip();
+            decode(pending, out);
+            pending.compact();
+        } else {
+            decode(in, out);
+            if (in.hasRemaining()) {
+                pending = ensure(pending, in.remaining());
+                pending.put(in);
+            }
+        }
+    }
+
+    private void decode(ByteBuffer buf, Consumer<Message> out) {
+        while (buf.hasRemaining()) {
+            switch (mode) {
+                case UNKNOWN:
+                    if ((buf.get(buf.position()) & 0xFF) == BinaryCodec.MAGIC) {
+                        buf.get();
+                        mode = Mode.VERSION;
+                    } else {
+                        mode = Mode.TEXT;
+                    }
+                    break;
+                case VERSION:
+                    int version = buf.get() & 0xFF;
+                    if ((version & BinaryCodec.COMPRESSED) != 0) {
+                        if (compression == null) throw new IllegalArgumentException("compressed connection not supported");
+                        inflate = compression.decoder(metrics);
+                        version &= ~BinaryCodec.COMPRESSED;
+                    }
+                    if (version == BinaryCodec.VERSION_DELTA) {
+                        delta = new VectorDelta();
+                    } else if (version != BinaryCodec.VERSION) {
+                        throw new IllegalArgumentException("unsupported binary version " + version);
+                    }
+                    mode = Mode.BINARY;
+                    break;
+                case BINARY:
+                    if (inflate != null && buf.remaining() >= 4 && buf.getInt(buf.position()) < 0) {
+                        if (!decodeCompressed(buf, out)) return;
+                        break;
+                    }
+                    long start = System.nanoTime();
+                    Message m = BinaryCodec.decode(buf, delta);
+                    if (m == null) return;
+                    if (metrics != null) metrics.deserialize.recordSince(start);
+                    out.accept(m);
+                    break;
+                case TEXT:
+                    if (!decodeLine(buf, out)) return;
+                    break;
+            }
+        }
+    }
+
+    /** Decodes one compressed record if it is complete: every frame in it, none left partial. */
+    private boolean decodeCompressed(ByteBuffer buf, Consumer<Message> out) {
+        int length = buf.getInt(buf.position()) & ~Compression.COMPRESSED_BIT;
+        if (length > BinaryCodec.MAX_FRAME) throw new IllegalArgumentException("bad record length: " + length);
+        if (buf.remaining() < 4 + length) return false;
+        buf.position(buf.position() + 4);
+        ByteBuffer frames = inflate.inflate(buf, length);
+        while (frames.hasRemaining()) {
+            long start = System.nanoTime();
+            Message m = BinaryCodec.decode(frames, delta);
+            if (m == null) throw new IllegalArgumentException("partial frame in compressed record");
+            if (metrics != null) metrics.deserialize.recordSince(start);
+            out.accept(m);
+        }
+        return true;
+    }
+
+    /** Releases the inflater of a compressed connection; the decoder must not be fed afterwards. */
+    public void close() {
+        if (inflate != null) inflate.end();
+    }
+
+    /** Decodes one line if a '\n' is present. */
+    private boolean decodeLine(ByteBuffer buf, Consumer<Message> out) {
+        int start = buf.position();
+        for (int i = start; i < buf.limit(); i++) {
+            if (buf.get(i) != '\n') continue;
+            int end = (i > start && buf.get(i - 1) == '\r') ? i - 1 : i;
+            ByteBuffer line = buf.duplicate();
+            line.position(start).limit(end);
+            buf.position(i + 1);
+            if (isBlank(line)) return true;
+            long t0 = System.nanoTime();
+            Message m = Message.parse(line);
+            if (metrics != null) metrics.deserialize.recordSince(t0);
+            out.accept(m);
+            return true;
+        }
+        if (buf.remaining() > BinaryCodec.MAX_FRAME) throw new IllegalArgumentException("line too long");
+        return false;
+    }
+
+    private static boolean isBlank(ByteBuffer line) {
+        for (int i = line.position(); i < line.limit(); i++) {
+            byte b = line.get(i);
+            if (b != ' ' && b != '\t') return false;
+        }
+        return true;
+    }
+
+    private static ByteBuffer ensure(ByteBuffer b, int extra) {
+        if (b == null) return ByteBuffer.allocate(Math.max(256, extra));
+        if (b.remaining() >= extra) return b;
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(b.capacity() * 2, b.position() + extra));
+        b.flip();
+        bigger.put(b);
+        return bigger;
+    }
+}
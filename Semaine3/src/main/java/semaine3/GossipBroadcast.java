@@ -0,0 +1,450 @@
+package semaine3;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntPredicate;
+
+/**
+ * Epidemic broadcast (broadcast=gossip): instead of writing to the N-1 peers itself, the origin
+ * writes to a few random ones, and every node that gets the message for the first time forwards
+ * it to a few random others, so the load of a broadcast is spread over the whole cluster.
+ *
+ * Rules:
+ *  - the origin stamps the message once, as a direct broadcast would; relays forward it unchanged
+ *    (no clock tick), so every node merges the origin's clocks;
+ *  - header "gs" = "seq:relay:hops": seq numbers the origin's gossip broadcasts, relay is the node
+ *    that wrote this copy (Node counts it as heard from the relay), hops how many times it was
+ *    forwarded. A repaired copy ends with ":r" and is not forwarded again;
+ *  - each push goes to gossip.fanout peers (default ceil(ln N) + 1), never back to the relay or
+ *    the origin, nor to peers the failure detector suspects;
+ *  - duplicates are dropped by (senderId, lamportTs) in a seen-set of at most gossip.seen.max
+ *    (100000) entries, each kept gossip.seen.ms (30000). A message at or below the highest
+ *    lamportTs forgotten for its origin is taken as seen: too old to deliver now;
+ *  - every gossip.sync.ms (1000) a node runs push-pull anti-entropy with one random peer: it sends
+ *    a digest (header "ga" = "d") of the seqs it holds per origin; the peer sends back the messages
+ *    missing from it and its own digest ("ga" = "D"), which gets the messages the peer misses in
+ *    return. At most gossip.sync.max (1000) messages per direction and exchange; messages received
+ *    less than gossip.sync.ms ago are left to the pushes, and only messages still in the seen-set
+ *    can be repaired.
+ */
+public final class GossipBroadcast implements AutoCloseable {
+    public static final String HEADER = "gs";
+    public static final String SYNC_HEADER = "ga";
+
+    private final int myId;
+    private final int n;
+    private final int fanout;
+    private final int seenMax;
+    private final long seenNanos;
+    private final int syncMax;
+    private final long timeoutMs;
+    private final Transport transport;
+    private final LamportClock lamport;
+    private final VectorClock vector;
+    private final IntPredicate suspected;
+    private final AtomicInteger nextSeq = new AtomicInteger();
+    private final ScheduledExecutorService timer;
+    private final ExecutorService senders;
+    private final long syncMs;
+    private final long syncNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<Long, Seen> seen = new LinkedHashMap<>(); // oldest first
+    private final Origin[] origins;
+
+    private final LongAdder pushed = new LongAdder();
+    private final LongAdder repaired = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder syncs = new LongAdder();
+
+    /** One entry of the seen-set. */
+    private static final class Seen {
+        final int origin;
+        final int seq;
+        final int lamportTs;
+        final long at;
+        final Message msg;
+
+        Seen(int origin, int seq, long at, Message msg) {
+            this.origin = origin;
+            this.seq = seq;
+            this.lamportTs = msg.lamportTs;
+            this.at = at;
+            this.msg = msg;
+        }
+    }
+
+    /** What this node holds from one origin (lock held). */
+    private static final class Origin {
+        final TreeMap<Integer, Seen> held = new TreeMap<>(); // by seq, while in the seen-set
+        int floor;     // every seq <= floor was received, or given up on
+        int forgotten; // highest lamportTs dropped from the seen-set
+
+        void add(Seen s) {
+            held.put(s.seq, s);
+            while (held.containsKey(floor + 1)) floor++;
+        }
+    }
+
+    public GossipBroadcast(Config config, int myId, Transport transport, LamportClock lamport, VectorClock vector,
+                           IntPredicate suspected) {
+        this.myId = myId;
+        this.n = config.n();
+        int defaultFanout = (int) Math.ceil(Math.log(Math.max(2, n))) + 1;
+        this.fanout = Math.max(1, Math.min(n - 1, config.intOption("gossip.fanout", defaultFanout)));
+        this.seenMax = config.intOption("gossip.seen.max", 100_000);
+        this.seenNanos = TimeUnit.MILLISECONDS.toNanos(config.intOption("gossip.seen.ms", 30_000));
+        this.syncMax = config.intOption("gossip.sync.max", 1000);
+        this.timeoutMs = config.intOption("broadcast.timeout.ms", 1000);
+        this.transport = transport;
+        this.lamport = lamport;
+        this.vector = vector;
+        this.suspected = suspected == null ? peer -> false : suspected;
+        this.origins = new Origin[n];
+        for (int i = 0; i < n; i++) origins[i] = new Origin();
+        ThreadMode threads = config.threadMode();
+        this.timer = Executors.newSingleThreadScheduledExecutor(threads.factory("gossip-sync-" + myId));
+        this.senders = threads.perTaskExecutor("gossip-" + myId);
+        this.syncMs = config.intOption("gossip.sync.ms", 1000);
+        this.syncNanos = TimeUnit.MILLISECONDS.toNanos(syncMs);
+    }
+
+    public void start() {
+        if (syncMs > 0) timer.scheduleWithFixedDelay(this::sync, syncMs, syncMs, TimeUnit.MILLISECONDS);
+    }
+
+    public static boolean isGossip(Message msg) {
+        return msg.header(HEADER) != null;
+    }
+
+    public static boolean isSync(Message msg) {
+        return msg.header(SYNC_HEADER) != null;
+    }
+
+    /** The node that wrote msg: the relay of a gossip copy, the sender otherwise. */
+    public static int relay(Message msg) {
+        String h = msg.header(HEADER);
+        if (h == null) return msg.senderId;
+        int a = h.indexOf(':');
+        return Integer.parseInt(h.substring(a + 1, h.indexOf(':', a + 1)));
+    }
+
+    /** How many times msg was forwarded before it got here (0: straight from the origin), -1 if not gossip. */
+    public static int hops(Message msg) {
+        String h = msg.header(HEADER);
+        if (h == null) return -1;
+        String[] parts = h.split(":");
+        return Integer.parseInt(parts[2]);
+    }
+
+    /** Whether msg came through anti-entropy rather than a push. */
+    public static boolean isRepair(Message msg) {
+        String h = msg.header(HEADER);
+        return h != null && h.endsWith(":r");
+    }
+
+    /**
+     * Starts the epidemic for a message stamped by this node.
+     * @return the results of the first-hop pushes, like Node.broadcastAsync
+     */
+    CompletableFuture<Map<Integer, DeliveryResult>> broadcast(Message msg) {
+        int seq = nextSeq.incrementAndGet();
+        Message first = msg.withHeader(HEADER, seq + ":" + myId + ":0");
+        lock.lock();
+        try {
+            remember(first, myId, seq, System.nanoTime());
+        } finally {
+            lock.unlock();
+        }
+        byte[] encoded = transport.encode(first);
+        Map<Integer, CompletableFuture<DeliveryResult>> pending = new TreeMap<>();
+        for (int dest : targets(myId, myId)) {
+            long start = System.nanoTime();
+            CompletableFuture<DeliveryResult> f;
+            try {
+                f = CompletableFuture.supplyAsync(() -> {
+                    try {
+                        transport.sendEncoded(dest, first, encoded, timeoutMs);
+                        pushed.increment();
+                        return new DeliveryResult(dest, DeliveryResult.Status.DELIVERED, System.nanoTime() - start, null);
+                    } catch (Exception e) {
+                        return new DeliveryResult(dest, DeliveryResult.Status.FAILED, System.nanoTime() - start, e.getMessage());
+                    }
+                }, senders);
+            } catch (RejectedExecutionException e) {
+                f = CompletableFuture.completedFuture(new DeliveryResult(dest, DeliveryResult.Status.FAILED, 0, "closed"));
+            }
+            pending.put(dest, f);
+        }
+        return CompletableFuture.allOf(pending.values().toArray(new CompletableFuture<?>[0]))
+                .thenApply(ignored -> {
+                    Map<Integer, DeliveryResult> results = new TreeMap<>();
+                    pending.forEach((dest, f) -> results.put(dest, f.join()));
+                    return results;
+                });
+    }
+
+    /**
+     * A gossip copy arrived (before the clocks): forwards it if it is new.
+     * @return false for a duplicate, which must not be delivered
+     */
+    boolean receive(Message msg) {
+        String[] parts = msg.header(HEADER).split(":");
+        int seq = Integer.parseInt(parts[0]);
+        int from = Integer.parseInt(parts[1]);
+        int hops = Integer.parseInt(parts[2]);
+        int origin = msg.senderId;
+        if (origin < 0 || origin >= n || origin == myId) return false;
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            expire(now);
+            if (seen.containsKey(key(origin, msg.lamportTs)) || msg.lamportTs <= origins[origin].forgotten) {
+                duplicates.increment();
+                return false;
+            }
+            remember(msg, origin, seq, now);
+        } finally {
+            lock.unlock();
+        }
+        if (parts.length == 3) {
+            forward(msg, from, seq, hops + 1);
+        }
+        return true;
+    }
+
+    /** lock held */
+    private void remember(Message msg, int origin, int seq, long now) {
+        Seen s = new Seen(origin, seq, now, msg);
+        seen.put(key(origin, msg.lamportTs), s);
+        origins[origin].add(s);
+        expire(now);
+    }
+
+    /** Drops what is too old or too much (lock held). */
+    private void expire(long now) {
+        Iterator<Seen> it = seen.values().iterator();
+        while (it.hasNext()) {
+            Seen s = it.next();
+            if (seen.size() <= seenMax && now - s.at < seenNanos) break;
+            it.remove();
+            Origin o = origins[s.origin];
+            o.held.remove(s.seq);
+            o.forgotten = Math.max(o.forgotten, s.lamportTs);
+            o.floor = Math.max(o.floor, s.seq); // what is missing below it will not come back
+        }
+    }
+
+    private static long key(int origin, int lamportTs) {
+        return ((long) origin << 32) | (lamportTs & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Relays a copy to the targets one after the other, in one task of senders (a thread per task):
+     * the receiving thread goes on at once, and relays of different messages run concurrently.
+     */
+    private void forward(Message msg, int from, int seq, int hops) {
+        Message copy = msg.withHeader(HEADER, seq + ":" + myId + ":" + hops);
+        try {
+            senders.execute(() -> {
+                byte[] encoded = transport.encode(copy);
+                for (int dest : targets(from, msg.senderId)) {
+                    try {
+                        transport.sendEncoded(dest, copy, encoded, timeoutMs);
+                        pushed.increment();
+                    } catch (IOException e) {
+                        // anti-entropy will reach it
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // shutting down
+        }
+    }
+
+    /** fanout random peers, other than this node, from, origin and suspected peers. */
+    private int[] targets(int from, int origin) {
+        int[] candidates = new int[n];
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+            if (i != myId && i != from && i != origin && !suspected.test(i)) candidates[count++] = i;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int picked = Math.min(fanout, count);
+        for (int k = 0; k < picked; k++) { // partial Fisher-Yates
+            int pick = k + random.nextInt(count - k);
+            int dest = candidates[pick];
+            candidates[pick] = candidates[k];
+            candidates[k] = dest;
+        }
+        return Arrays.copyOf(candidates, picked);
+    }
+
+    // --- anti-entropy ---
+
+    /** Timer: starts a push-pull exchange with one random peer. */
+    private void sync() {
+        List<Integer> peers = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            if (i != myId && !suspected.test(i)) peers.add(i);
+        }
+        if (peers.isEmpty()) return;
+        send(peers.get(ThreadLocalRandom.current().nextInt(peers.size())), "d");
+    }
+
+    /** A digest from a peer (Node, before the clocks; digests are not delivered). */
+    void onSync(Message msg) {
+        int peer = msg.senderId;
+        if (peer < 0 || peer >= n || peer == myId) return;
+        if (msg.header(SYNC_HEADER).equals("d")) send(peer, "D");
+        repair(peer, parseDigest(msg.payload()));
+    }
+
+    private void send(int peer, String kind) {
+        Message digest = new Message(digest(), myId, lamport.get(), vector.snapshot(),
+                Collections.singletonMap(SYNC_HEADER, kind));
+        try {
+            senders.execute(() -> {
+                try {
+                    transport.sendEncoded(peer, digest, null, timeoutMs);
+                    syncs.increment();
+                } catch (IOException e) {
+                    // the next exchange will do
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // shutting down
+        }
+    }
+
+    /** "origin:floor:seq,seq...;..." for every origin something was received from. */
+    private String digest() {
+        StringBuilder sb = new StringBuilder();
+        lock.lock();
+        try {
+            expire(System.nanoTime());
+            for (int i = 0; i < n; i++) {
+                Origin o = origins[i];
+                if (o.floor == 0 && o.held.isEmpty()) continue;
+                if (sb.length() > 0) sb.append(';');
+                sb.append(i).append(':').append(o.floor).append(':');
+                boolean first = true;
+                for (int seq : o.held.tailMap(o.floor, false).keySet()) {
+                    if (!first) sb.append(',');
+                    sb.append(seq);
+                    first = false;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return sb.toString();
+    }
+
+    /** What a peer's digest says it holds from one origin. */
+    private static final class Has {
+        static final Has NOTHING = new Has(0);
+        final int floor;
+        final Set<Integer> above = new HashSet<>();
+
+        Has(int floor) {
+            this.floor = floor;
+        }
+    }
+
+    private static Map<Integer, Has> parseDigest(String digest) {
+        Map<Integer, Has> out = new HashMap<>();
+        if (digest.isEmpty()) return out;
+        for (String entry : digest.split(";")) {
+            String[] parts = entry.split(":", -1);
+            Has has = new Has(Integer.parseInt(parts[1]));
+            if (!parts[2].isEmpty()) {
+                for (String seq : parts[2].split(",")) has.above.add(Integer.parseInt(seq));
+            }
+            out.put(Integer.parseInt(parts[0]), has);
+        }
+        return out;
+    }
+
+    /** Sends peer what we hold and its digest does not list. */
+    private void repair(int peer, Map<Integer, Has> theirs) {
+        List<Message> missing = new ArrayList<>();
+        long now = System.nanoTime();
+        lock.lock();
+        try {
+            for (int i = 0; i < n && missing.size() < syncMax; i++) {
+                if (i == peer || origins[i].held.isEmpty()) continue;
+                Has has = theirs.getOrDefault(i, Has.NOTHING);
+                for (Seen s : origins[i].held.tailMap(has.floor, false).values()) {
+                    if (has.above.contains(s.seq) || now - s.at < syncNanos) continue; // recent: still being pushed
+                    missing.add(s.msg.withHeader(HEADER, s.seq + ":" + myId + ":" + (hops(s.msg) + 1) + ":r"));
+                    if (missing.size() == syncMax) break;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (missing.isEmpty()) return;
+        try {
+            senders.execute(() -> {
+                for (Message m : missing) {
+                    try {
+                        transport.sendEncoded(peer, m, null, timeoutMs);
+                        repaired.increment();
+                    } catch (IOException e) {
+                        return; // the next exchange will do
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // shutting down
+        }
+    }
+
+    /** Copies written by pushes (first hop and forwards). */
+    public long pushed() { return pushed.sum(); }
+
+    /** Copies written by anti-entropy. */
+    public long repaired() { return repaired.sum(); }
+
+    /** Copies received again and dropped. */
+    public long duplicates() { return duplicates.sum(); }
+
+    public String stats() {
+        int held;
+        lock.lock();
+        try {
+            held = seen.size();
+        } finally {
+            lock.unlock();
+        }
+        return "fanout=" + fanout + " pushed=" + pushed.sum() + " repaired=" + repaired.sum()
+                + " duplicates=" + duplicates.sum() + " digests=" + syncs.sum() + " seen=" + held;
+    }
+
+    @Override
+    public void close() {
+        timer.shutdownNow();
+        senders.shutdownNow();
+    }
+}
@@ -0,0 +1,144 @@
+package semaine3;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free log-linear histogram of non-negative long values (nanoseconds, sizes...),
+ * in the style of HdrHistogram: every power of two is split into 64 linear sub-buckets,
+ * so a recorded value is off by less than 1/64 (~1.6%) whatever its magnitude.
+ *
+ * Recording is one array increment plus two adders, no allocation and no lock; readers
+ * see a slightly fuzzy but consistent-enough view while writers keep going.
+ */
+public final class Histogram {
+    private static final int SUB_BITS = 6;
+    private static final int SUB = 1 << SUB_BITS;              // 64 sub-buckets per power of two
+    private static final int LINEAR = 2 * SUB;                 // values below 128 are exact
+    private static final int BUCKETS = LINEAR + (62 - SUB_BITS) * SUB;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts.incrementAndGet(index(value));
+        count.increment();
+        sum.add(value);
+        long m;
+        while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+            // retry
+        }
+    }
+
+    /** Records the time elapsed since startNanos (a System.nanoTime() value). */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    static int index(long v) {
+        if (v < LINEAR) return (int) v;
+        int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+        return LINEAR + (shift - 1) * SUB + (int) (v >>> shift) - SUB;
+    }
+
+    /** Middle of the value range counted by bucket i. */
+    static long value(int i) {
+        if (i < LINEAR) return i;
+        int shift = (i - LINEAR) / SUB + 1;
+        long low = (long) ((i - LINEAR) % SUB + SUB) << shift;
+        return low + (1L << shift) / 2;
+    }
+
+    public long count() { return count.sum(); }
+
+    public long max() { return max.get(); }
+
+    public double mean() {
+        long c = count.sum();
+        return c == 0 ? 0 : (double) sum.sum() / c;
+    }
+
+    /** @param p in [0, 1] */
+    public long percentile(double p) {
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(p * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) return Math.min(value(i), max.get());
+        }
+        return max.get();
+    }
+
+    /** Adds every value recorded by other, e.g. to combine the histograms of several nodes. */
+    public void add(Histogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = other.counts.get(i);
+            if (c != 0) counts.addAndGet(i, c);
+        }
+        count.add(other.count.sum());
+        sum.add(other.sum.sum());
+        long m;
+        long om = other.max.get();
+        while (om > (m = max.get()) && !max.compareAndSet(m, om)) {
+            // retry
+        }
+    }
+
+    /** Compact text form "count sum max index:count,...", read back by decode (to ship it between JVMs). */
+    public String encode() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(count.sum()).append(' ').append(sum.sum()).append(' ').append(max.get()).append(' ');
+        boolean first = true;
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = counts.get(i);
+            if (c == 0) continue;
+            if (!first) sb.append(',');
+            first = false;
+            sb.append(i).append(':').append(c);
+        }
+        return sb.toString();
+    }
+
+    public static Histogram decode(String s) {
+        String[] parts = s.trim().split(" ", 4);
+        if (parts.length < 3) throw new IllegalArgumentException("bad histogram: " + s);
+        Histogram h = new Histogram();
+        h.count.add(Long.parseLong(parts[0]));
+        h.sum.add(Long.parseLong(parts[1]));
+        h.max.set(Long.parseLong(parts[2]));
+        if (parts.length == 4 && !parts[3].isEmpty()) {
+            for (String bucket : parts[3].split(",")) {
+                int colon = bucket.indexOf(':');
+                int i = Integer.parseInt(bucket.substring(0, colon));
+                if (i < 0 || i >= BUCKETS) throw new IllegalArgumentException("bad histogram bucket: " + bucket);
+                h.counts.addAndGet(i, Long.parseLong(bucket.substring(colon + 1)));
+            }
+        }
+        return h;
+    }
+
+    /** JSON object with count, mean, p50, p99, p999 and max, divided by unit (e.g. 1000 for ns -> us). */
+    public String toJson(long unit) {
+        return "{\"count\":" + count()
+                + ",\"mean\":" + round(mean() / unit)
+                + ",\"p50\":" + round((double) percentile(0.50) / unit)
+                + ",\"p99\":" + round((double) percentile(0.99) / unit)
+                + ",\"p999\":" + round((double) percentile(0.999) / unit)
+                + ",\"max\":" + round((double) max() / unit) + "}";
+    }
+
+    private static double round(double v) {
+        return Math.round(v * 10) / 10.0;
+    }
+}
@@ -0,0 +1,14 @@
+package semaine3;
+
+import java.io.IOException;
+
+/**
+ * Accepts peer connections and feeds decoded messages to Node.onNetworkReceive.
+ * Implementations: NetServer (thread per connection), NioServer (selector event loops).
+ */
+public interface InboundServer extends AutoCloseable {
+    void start() throws IOException;
+
+    @Override
+    void close();
+}
@@ -0,0 +1,146 @@
+package semaine3;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Bounded inbox between the receivers and the processor(s).
+ *
+ * Config options:
+ *  - inbox.capacity (default 65536): messages per partition (rounded up to a power of two).
+ *  - inbox.overflow (default block): what a receiver does when its partition is full
+ *      block  - wait for space; the receiver stops reading, so TCP backpressure reaches the sender
+ *      drop   - drop the message and count it
+ *      reject - throw RejectedExecutionException (the receiver closes that connection)
+ *  - inbox.processors (default 1): number of processor threads. Messages are partitioned
+ *    on senderId, so messages from one sender are still processed in FIFO order.
+ *
+ * The clocks have already been updated when a message reaches the inbox, so a dropped
+ * message still counts as received for the Lamport / vector clocks.
+ *
+ * The time each message waits between offer() and processing is recorded in waits().
+ */
+public final class Inbox implements AutoCloseable {
+    public enum OverflowPolicy {
+        BLOCK, DROP, REJECT;
+
+        public static OverflowPolicy parse(String s) {
+            return valueOf(s.trim().toUpperCase());
+        }
+    }
+
+    /** A queued message and when it was queued. */
+    private static final class Entry {
+        final Message msg;
+        final long queuedAt;
+
+        Entry(Message msg, long queuedAt) {
+            this.msg = msg;
+            this.queuedAt = queuedAt;
+        }
+    }
+
+    private final List<MpscRingBuffer<Entry>> partitions;
+    private final Thread[] processors;
+    private final OverflowPolicy policy;
+    private final Consumer<Message> handler;
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final Histogram waits = new Histogram();
+    private volatile boolean running = true;
+
+    public Inbox(Config config, ThreadMode threads, String name, Consumer<Message> handler) {
+        int capacity = config.intOption("inbox.capacity", 65536);
+        int n = config.intOption("inbox.processors", 1);
+        if (n <= 0) throw new IllegalArgumentException("inbox.processors must be > 0");
+        this.policy = OverflowPolicy.parse(config.option("inbox.overflow", "block"));
+        this.handler = handler;
+        this.partitions = new ArrayList<>(n);
+        this.processors = new Thread[n];
+        for (int i = 0; i < n; i++) {
+            MpscRingBuffer<Entry> q = new MpscRingBuffer<>(capacity);
+            partitions.add(q);
+            processors[i] = threads.factory(name + "-" + i).newThread(() -> process(q));
+        }
+    }
+
+    public void start() {
+        for (Thread t : processors) t.start();
+    }
+
+    /** Called by receiver threads. */
+    public void offer(Message msg) {
+        MpscRingBuffer<Entry> q = partitions.get(Math.floorMod(msg.senderId, partitions.size()));
+        Entry entry = new Entry(msg, System.nanoTime());
+        if (q.offer(entry)) return;
+        switch (policy) {
+            case DROP:
+                dropped.increment();
+                return;
+            case REJECT:
+                rejected.increment();
+                throw new RejectedExecutionException("inbox full");
+            default:
+                long backoff = 1_000;
+                while (!q.offer(entry)) {
+                    if (!running) return;
+                    LockSupport.parkNanos(backoff);
+                    backoff = Math.min(backoff * 2, 1_000_000);
+                }
+        }
+    }
+
+    /** True with overflow=block: an offer may wait for room. */
+    public boolean mayBlock() {
+        return policy == OverflowPolicy.BLOCK;
+    }
+
+    /** True when offer(msg) would wait for room: overflow=block and msg's partition is full. */
+    public boolean wouldBlock(Message msg) {
+        if (!mayBlock()) return false;
+        MpscRingBuffer<Entry> q = partitions.get(Math.floorMod(msg.senderId, partitions.size()));
+        return q.size() >= q.capacity();
+    }
+
+    private void process(MpscRingBuffer<Entry> q) {
+        while (running) {
+            try {
+                Entry entry = q.take();
+                waits.recordSince(entry.queuedAt);
+                handler.accept(entry.msg);
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                System.err.println("[Inbox] processing error: " + e.getMessage());
+            }
+        }
+    }
+
+    public int depth() {
+        int total = 0;
+        for (MpscRingBuffer<Entry> q : partitions) total += q.size();
+        return total;
+    }
+
+    public long dropped() { return dropped.sum(); }
+
+    public long rejected() { return rejected.sum(); }
+
+    /** Nanoseconds between offer() and the start of processing. */
+    public Histogram waits() { return waits; }
+
+    public String stats() {
+        return "depth=" + depth() + " dropped=" + dropped() + " rejected=" + rejected()
+                + " processors=" + processors.length + " policy=" + policy.name().toLowerCase();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        for (Thread t : processors) t.interrupt();
+    }
+}
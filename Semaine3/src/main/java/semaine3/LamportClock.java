@@ -5,21 +5,24 @@ package semaine3;
  * Rules:
  *  - On local event / send: increment.
  *  - On receive: clock = max(clock, received) + 1.
+ *
+ * Implementations (Config option clock=sync|atomic):
+ *  - SynchronizedLamportClock: monitor based (default).
+ *  - AtomicLamportClock: lock-free CAS.
  */
-public final class LamportClock {
-    private int time = 0;
+public interface LamportClock {
+    /** Increments and returns the new value; use it to stamp the outgoing message. */
+    int tick();
 
-    public synchronized int tick() {
-        time += 1;
-        return time;
-    }
+    int onReceive(int receivedTs);
 
-    public synchronized int onReceive(int receivedTs) {
-        time = Math.max(time, receivedTs) + 1;
-        return time;
-    }
+    int get();
 
-    public synchronized int get() {
-        return time;
+    static LamportClock create(String kind) {
+        switch (kind) {
+            case "sync": return new SynchronizedLamportClock();
+            case "atomic": return new AtomicLamportClock();
+            default: throw new IllegalArgumentException("unknown clock kind: " + kind);
+        }
     }
 }
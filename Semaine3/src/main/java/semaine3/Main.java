@@ -21,6 +21,8 @@ public final class Main {
         String cfgPath = (args.length >= 2) ? args[1] : null;
 
         Config config = Config.fromFileOrDefault(cfgPath);
+        // The interactive demo prints every message unless the config says otherwise.
+        config = config.withOption("log.messages", config.option("log.messages", "true"));
 
         if (myId < 0 || myId >= config.n()) {
             System.err.println("myId must be in [0.." + (config.n() - 1) + "]");
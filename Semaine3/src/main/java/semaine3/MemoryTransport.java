@@ -0,0 +1,116 @@
+package semaine3;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In-JVM transport (transport=memory): nodes of the same JVM pass Message objects to each
+ * other, nothing is encoded and no socket is opened. Meant for co-located nodes, tests and
+ * benchmarks that want the protocol cost without the network cost.
+ *
+ * Rules:
+ *  - a started node is registered under its Config address (host:port), like a bound port;
+ *    sending to an address nobody registered fails like a refused connection;
+ *  - every node has one bounded lock-free inbound queue (MpscRingBuffer, memory.queue, 65536
+ *    messages) drained by one receiver thread, so messages from one sender stay in order;
+ *  - a full queue makes the sender wait (backpressure, like a full socket buffer), up to
+ *    waitMs for sendEncoded;
+ *  - messages are shared, not copied: they are immutable, and every vector clock in one is
+ *    a snapshot nobody writes to.
+ */
+public final class MemoryTransport implements Transport {
+    private static final ConcurrentMap<String, MemoryTransport> BOUND = new ConcurrentHashMap<>();
+
+    private final Node node;
+    private final String[] addresses;
+    private final String address;
+    private final MpscRingBuffer<Message> inbound;
+    private final AtomicLongArray lastWrite;
+    private final Thread receiver;
+    private volatile boolean running;
+
+    public MemoryTransport(Config config, int myId, Node node) {
+        this.node = node;
+        this.addresses = new String[config.n()];
+        for (int i = 0; i < addresses.length; i++) addresses[i] = config.get(i).toString();
+        this.address = addresses[myId];
+        this.inbound = new MpscRingBuffer<>(config.intOption("memory.queue", 65536));
+        this.lastWrite = new AtomicLongArray(config.n());
+        this.receiver = config.threadMode().factory("memory-" + myId).newThread(this::receive);
+    }
+
+    @Override
+    public void start() throws IOException {
+        running = true;
+        if (BOUND.putIfAbsent(address, this) != null) {
+            running = false;
+            throw new BindException("in-memory address already in use: " + address);
+        }
+        receiver.start();
+        System.out.println("[Server] Listening on " + address + " (memory)");
+    }
+
+    private void receive() {
+        while (running) {
+            Message msg;
+            try {
+                msg = inbound.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                node.onNetworkReceive(msg);
+            } catch (Exception e) {
+                System.err.println("[Receiver] Error: " + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void send(int destId, Message msg) throws IOException {
+        sendEncoded(destId, msg, null, -1);
+    }
+
+    @Override
+    public byte[] encode(Message msg) {
+        return null;
+    }
+
+    @Override
+    public void sendEncoded(int destId, Message msg, byte[] encoded, long waitMs) throws IOException {
+        String destination = addresses[destId];
+        MemoryTransport peer = BOUND.get(destination);
+        if (peer == null) throw new ConnectException("no in-memory node at " + destination);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, waitMs));
+        int spins = 0;
+        while (!peer.inbound.offer(msg)) {
+            if (!peer.running) throw new ConnectException("in-memory node " + destination + " closed");
+            if (waitMs >= 0 && System.nanoTime() - deadline > 0) throw new IOException("queue to " + destination + " full");
+            if (++spins < 100) {
+                Thread.onSpinWait();
+            } else {
+                LockSupport.parkNanos(10_000);
+            }
+        }
+        lastWrite.lazySet(destId, System.nanoTime());
+        node.metrics().sent(destId, 0);
+    }
+
+    @Override
+    public long lastWriteNanos(int peer) {
+        return lastWrite.get(peer);
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        BOUND.remove(address, this);
+        receiver.interrupt();
+    }
+}
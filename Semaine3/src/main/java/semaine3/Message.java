@@ -1,6 +1,11 @@
 package semaine3;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Week 3 Message:
@@ -8,46 +13,277 @@ import java.util.Arrays;
  *  - senderId
  *  - lamportTs
  *  - vectorClock[]
+ *  - headers: optional small key/value map used by the protocol layers (causal delivery, acks...)
  *
  * Wire format (one line):
  *   senderId|lamportTs|v0,v1,v2,...|payload
+ * or, when there are headers:
+ *   #key=value;key=value|senderId|lamportTs|v0,v1,v2,...|payload
+ * Header keys and values cannot contain '|', ';', '=' or line breaks.
  *
  * Payload can contain anything; we escape newlines and \r for safety.
+ * This text format stays the default/debug format; see BinaryCodec for the compact one.
+ *
+ * Received messages keep their payload as the UTF-8 bytes from the wire and only decode it on
+ * the first payload() call: code that routes or counts messages, or reads payloadBytes() /
+ * payloadChars(), never pays for the String, and re-encoding to binary copies the bytes as they are.
  */
 public final class Message {
-    public final String payload;
     public final int senderId;
     public final int lamportTs;
     public final int[] vectorClock;
+    public final Map<String, String> headers;
+    private final byte[] utf8; // payload as received, null when built from a String
+    private String payload;    // decoded on first use when utf8 != null (racy but idempotent)
 
     public Message(String payload, int senderId, int lamportTs, int[] vectorClock) {
+        this(payload, senderId, lamportTs, vectorClock, Collections.emptyMap());
+    }
+
+    public Message(String payload, int senderId, int lamportTs, int[] vectorClock, Map<String, String> headers) {
+        this(payload, null, senderId, lamportTs, vectorClock, headers);
+    }
+
+    private Message(String payload, byte[] utf8, int senderId, int lamportTs, int[] vectorClock,
+                    Map<String, String> headers) {
         this.payload = payload;
+        this.utf8 = utf8;
         this.senderId = senderId;
         this.lamportTs = lamportTs;
         this.vectorClock = vectorClock;
+        this.headers = headers;
+    }
+
+    /** A message whose payload stays UTF-8 bytes until payload() is called (decoders). */
+    static Message fromUtf8(byte[] payload, int senderId, int lamportTs, int[] vectorClock, Map<String, String> headers) {
+        return new Message(null, payload, senderId, lamportTs, vectorClock, headers);
+    }
+
+    /** The payload, decoded from UTF-8 on the first call for a received message. */
+    public String payload() {
+        String p = payload;
+        if (p == null && utf8 != null) {
+            p = new String(utf8, StandardCharsets.UTF_8);
+            payload = p;
+        }
+        return p;
+    }
+
+    /** The payload as read-only UTF-8 bytes, without decoding it (encoded when built from a String). */
+    public ByteBuffer payloadBytes() {
+        if (utf8 != null) return ByteBuffer.wrap(utf8).asReadOnlyBuffer();
+        return ByteBuffer.wrap(payload == null ? new byte[0] : payload.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    }
+
+    /**
+     * The payload as characters without building a String when it is plain ASCII
+     * (a view over the received bytes); otherwise the decoded payload().
+     */
+    public CharSequence payloadChars() {
+        if (payload != null || utf8 == null) return payload == null ? "" : payload;
+        for (byte b : utf8) {
+            if (b < 0) return payload();
+        }
+        return new AsciiView(utf8, 0, utf8.length);
+    }
+
+    /** Payload length: bytes for a received message, chars otherwise (the same for ASCII). */
+    public int payloadLength() {
+        if (utf8 != null) return utf8.length;
+        return payload == null ? 0 : payload.length();
+    }
+
+    /** True once the payload exists as a String (always for messages built from one). */
+    public boolean payloadDecoded() {
+        return payload != null || utf8 == null;
+    }
+
+    /** The raw UTF-8 payload of a received message, or null (BinaryCodec). */
+    byte[] utf8Payload() {
+        return utf8;
+    }
+
+    /** @return the header value, or null */
+    public String header(String key) {
+        return headers.get(key);
+    }
+
+    /** Copy of this message with one header added or replaced. */
+    public Message withHeader(String key, String value) {
+        checkHeader(key);
+        checkHeader(value);
+        Map<String, String> copy = new LinkedHashMap<>(headers);
+        copy.put(key, value);
+        return new Message(payload, utf8, senderId, lamportTs, vectorClock, Collections.unmodifiableMap(copy));
+    }
+
+    /** Copy of this message with these headers instead of its own (the payload is shared, not decoded). */
+    public Message withHeaders(Map<String, String> newHeaders) {
+        Map<String, String> copy = new LinkedHashMap<>();
+        for (Map.Entry<String, String> h : newHeaders.entrySet()) {
+            checkHeader(h.getKey());
+            checkHeader(h.getValue());
+            copy.put(h.getKey(), h.getValue());
+        }
+        return new Message(payload, utf8, senderId, lamportTs, vectorClock, Collections.unmodifiableMap(copy));
+    }
+
+    static void checkHeader(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '|' || c == ';' || c == '=' || c == '\n' || c == '\r') {
+                throw new IllegalArgumentException("bad character in header: " + s);
+            }
+        }
     }
 
     public String serialize() {
         StringBuilder sb = new StringBuilder();
+        if (!headers.isEmpty()) {
+            sb.append('#');
+            boolean first = true;
+            for (Map.Entry<String, String> h : headers.entrySet()) {
+                if (!first) sb.append(';');
+                first = false;
+                sb.append(h.getKey()).append('=').append(h.getValue());
+            }
+            sb.append('|');
+        }
         sb.append(senderId).append('|')
           .append(lamportTs).append('|')
           .append(encodeVector(vectorClock)).append('|')
-          .append(escape(payload));
+          .append(escape(payload()));
         return sb.toString();
     }
 
     public static Message deserialize(String line) {
         if (line == null) throw new IllegalArgumentException("null line");
+        Map<String, String> headers = Collections.emptyMap();
+        if (line.startsWith("#")) {
+            int bar = line.indexOf('|');
+            if (bar < 0) throw new IllegalArgumentException("bad message format: " + line);
+            headers = decodeHeaders(line.substring(1, bar));
+            line = line.substring(bar + 1);
+        }
         String[] parts = line.split("\\|", 4);
         if (parts.length != 4) throw new IllegalArgumentException("bad message format: " + line);
         int sender = Integer.parseInt(parts[0]);
         int lamport = Integer.parseInt(parts[1]);
         int[] vc = decodeVector(parts[2]);
         String payload = unescape(parts[3]);
-        return new Message(payload, sender, lamport, vc);
+        return new Message(payload, sender, lamport, vc, headers);
+    }
+
+    /**
+     * deserialize() straight from the UTF-8 bytes of one line (position to limit, no '\n'),
+     * without building the line as a String: the payload is unescaped into bytes and only
+     * decoded by payload(). Does not move the buffer's position.
+     */
+    static Message parse(ByteBuffer line) {
+        int p = line.position();
+        int end = line.limit();
+        Map<String, String> headers = Collections.emptyMap();
+        if (p < end && line.get(p) == '#') {
+            int bar = indexOf(line, p + 1, end, '|');
+            if (bar < 0) throw badFormat(line);
+            headers = decodeHeaders(utf8(line, p + 1, bar));
+            p = bar + 1;
+        }
+        int bar1 = indexOf(line, p, end, '|');
+        int bar2 = bar1 < 0 ? -1 : indexOf(line, bar1 + 1, end, '|');
+        int bar3 = bar2 < 0 ? -1 : indexOf(line, bar2 + 1, end, '|');
+        if (bar3 < 0) throw badFormat(line);
+        int sender = parseInt(line, p, bar1);
+        int lamport = parseInt(line, bar1 + 1, bar2);
+        int[] vc = parseVector(line, bar2 + 1, bar3);
+        return fromUtf8(unescape(line, bar3 + 1, end), sender, lamport, vc, headers);
+    }
+
+    private static IllegalArgumentException badFormat(ByteBuffer line) {
+        return new IllegalArgumentException("bad message format: " + utf8(line, line.position(), line.limit()));
+    }
+
+    private static int indexOf(ByteBuffer b, int from, int to, char c) {
+        for (int i = from; i < to; i++) {
+            if (b.get(i) == c) return i;
+        }
+        return -1;
+    }
+
+    private static String utf8(ByteBuffer b, int from, int to) {
+        byte[] bytes = new byte[to - from];
+        b.get(from, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Integer.parseInt over b[from, to), surrounding spaces allowed. */
+    private static int parseInt(ByteBuffer b, int from, int to) {
+        while (from < to && b.get(from) == ' ') from++;
+        while (to > from && b.get(to - 1) == ' ') to--;
+        boolean negative = from < to && b.get(from) == '-';
+        int i = negative ? from + 1 : from;
+        if (i == to || to - i > 10) throw new NumberFormatException("bad number: " + utf8(b, from, to));
+        long v = 0;
+        for (; i < to; i++) {
+            int d = b.get(i) - '0';
+            if (d < 0 || d > 9) throw new NumberFormatException("bad number: " + utf8(b, from, to));
+            v = v * 10 + d;
+        }
+        v = negative ? -v : v;
+        if (v < Integer.MIN_VALUE || v > Integer.MAX_VALUE) {
+            throw new NumberFormatException("bad number: " + utf8(b, from, to));
+        }
+        return (int) v;
+    }
+
+    private static int[] parseVector(ByteBuffer b, int from, int to) {
+        if (from == to) return new int[0];
+        int count = 1;
+        for (int i = from; i < to; i++) {
+            if (b.get(i) == ',') count++;
+        }
+        int[] vc = new int[count];
+        int start = from;
+        for (int k = 0; k < count; k++) {
+            int comma = k == count - 1 ? to : indexOf(b, start, to, ',');
+            vc[k] = parseInt(b, start, comma);
+            start = comma + 1;
+        }
+        return vc;
+    }
+
+    /** unescape() at byte level: '\\' never occurs inside a multi-byte UTF-8 sequence. */
+    private static byte[] unescape(ByteBuffer b, int from, int to) {
+        if (indexOf(b, from, to, '\\') < 0) {
+            byte[] bytes = new byte[to - from];
+            b.get(from, bytes);
+            return bytes;
+        }
+        byte[] out = new byte[to - from];
+        int n = 0;
+        for (int i = from; i < to; i++) {
+            byte c = b.get(i);
+            if (c != '\\' || i + 1 == to) {
+                out[n++] = c;
+                continue;
+            }
+            byte next = b.get(++i);
+            out[n++] = next == 'n' ? (byte) '\n' : next == 'r' ? (byte) '\r' : next;
+        }
+        return Arrays.copyOf(out, n);
     }
 
-    private static String encodeVector(int[] vc) {
+    private static Map<String, String> decodeHeaders(String s) {
+        Map<String, String> headers = new LinkedHashMap<>();
+        for (String kv : s.split(";")) {
+            int eq = kv.indexOf('=');
+            if (eq <= 0) throw new IllegalArgumentException("bad header: " + kv);
+            headers.put(kv.substring(0, eq), kv.substring(eq + 1));
+        }
+        return Collections.unmodifiableMap(headers);
+    }
+
+    static String encodeVector(int[] vc) {
         if (vc == null) return "";
         StringBuilder sb = new StringBuilder();
         for (int i = 0; i < vc.length; i++) {
@@ -57,7 +293,7 @@ public final class Message {
         return sb.toString();
     }
 
-    private static int[] decodeVector(String s) {
+    static int[] decodeVector(String s) {
         if (s == null || s.isEmpty()) return new int[0];
         String[] items = s.split(",");
         int[] vc = new int[items.length];
@@ -69,26 +305,84 @@ public final class Message {
 
     private static String escape(String s) {
         if (s == null) return "";
-        return s.replace("\\", "\\\\")
-                .replace("\n", "\\n")
-                .replace("\r", "\\r");
+        StringBuilder sb = null;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            String rep = c == '\\' ? "\\\\" : c == '\n' ? "\\n" : c == '\r' ? "\\r" : null;
+            if (rep == null) {
+                if (sb != null) sb.append(c);
+                continue;
+            }
+            if (sb == null) sb = new StringBuilder(s.length() + 8).append(s, 0, i);
+            sb.append(rep);
+        }
+        return sb == null ? s : sb.toString();
     }
 
     private static String unescape(String s) {
         if (s == null) return "";
-        // unescape in reverse order
-        return s.replace("\\n", "\n")
-                .replace("\\r", "\r")
-                .replace("\\\\", "\\");
+        if (s.indexOf('\\') < 0) return s;
+        // single pass, so "\\n" (escaped backslash + n) is not mistaken for a newline
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c != '\\' || i + 1 == s.length()) {
+                sb.append(c);
+                continue;
+            }
+            char next = s.charAt(++i);
+            if (next == 'n') sb.append('\n');
+            else if (next == 'r') sb.append('\r');
+            else sb.append(next);
+        }
+        return sb.toString();
     }
 
     @Override
     public String toString() {
         return "Message{" +
-                "payload='" + payload + '\'' +
+                "payload='" + payload() + '\'' +
                 ", senderId=" + senderId +
                 ", lamportTs=" + lamportTs +
                 ", vectorClock=" + Arrays.toString(vectorClock) +
+                (headers.isEmpty() ? "" : ", headers=" + headers) +
                 '}';
     }
+
+    /** Read-only characters over ASCII bytes (payloadChars()). */
+    private static final class AsciiView implements CharSequence {
+        private final byte[] bytes;
+        private final int offset;
+        private final int length;
+
+        AsciiView(byte[] bytes, int offset, int length) {
+            this.bytes = bytes;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= length) throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+            return (char) bytes[offset + index];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            if (start < 0 || end > length || start > end) {
+                throw new IndexOutOfBoundsException("[" + start + ", " + end + "), length " + length);
+            }
+            return new AsciiView(bytes, offset + start, end - start);
+        }
+
+        @Override
+        public String toString() {
+            return new String(bytes, offset, length, StandardCharsets.ISO_8859_1);
+        }
+    }
 }
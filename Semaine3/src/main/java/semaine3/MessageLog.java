@@ -0,0 +1,493 @@
+package semaine3;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+/**
+ * Durable write-ahead log of the messages a node received (and, with wal.sent=true, sent),
+ * each one with the clock state right after the event.
+ *
+ * Layout: a directory of fixed-size segments wal-<first seq, 20 digits>.log, each one
+ * memory-mapped (FileChannel.map) and written in place:
+ *   int32 MAGIC
+ *   records: int32 body length | int32 CRC32C of the body | body
+ *     body: byte kind, varint lamport, local vector clock (VectorDelta against the previous
+ *           record of the segment), then the message as a BinaryCodec frame (none for CHECKPOINT)
+ * A zero length ends the segment. The length is written last, so a reader never sees half a record.
+ *
+ * Rules:
+ *  - records are numbered 0, 1, 2... (seq); CHECKPOINT records have no number;
+ *  - every segment starts with a CHECKPOINT holding the highest clocks logged so far, so the
+ *    clocks are recovered from the last segment alone, however long the log is;
+ *  - on open, the last segment is scanned; a torn or corrupt tail (bad length or CRC) is cut off
+ *    and the rest of the segment zeroed, so stale bytes can never look like a record again;
+ *  - a last segment with no magic or (after the first one) no checkpoint is a roll that crashed
+ *    before its force: it is deleted and the previous segment is the last one again.
+ *
+ * Config options:
+ *  - wal.dir: enables the log (Node), one directory per node;
+ *  - wal.sync (async): none = never force, the OS writes pages back when it likes;
+ *    async = a syncer thread forces every wal.sync.ms (10), a crash loses at most that window;
+ *    group = append() returns once its record is on disk; the syncer forces as soon as records
+ *    are pending, so all the appends that arrived during one force share the next one;
+ *    always = force after every record, inside append();
+ *  - wal.segment.mb (64): segment size (a bigger record gets a segment of its own).
+ */
+public final class MessageLog implements AutoCloseable {
+    public enum Kind { RECEIVED, SENT, CHECKPOINT }
+
+    public enum Sync {
+        NONE, ASYNC, GROUP, ALWAYS;
+
+        static Sync parse(String s) {
+            switch (s) {
+                case "none": return NONE;
+                case "async": return ASYNC;
+                case "group": return GROUP;
+                case "always": return ALWAYS;
+                default: throw new IllegalArgumentException("unknown wal.sync: " + s);
+            }
+        }
+    }
+
+    /** One logged message, as handed to replay(). */
+    public static final class Record {
+        public final long seq;
+        public final Kind kind;
+        public final int lamport;
+        public final int[] vector;
+        public final Message message;
+
+        Record(long seq, Kind kind, int lamport, int[] vector, Message message) {
+            this.seq = seq;
+            this.kind = kind;
+            this.lamport = lamport;
+            this.vector = vector;
+            this.message = message;
+        }
+    }
+
+    private static final int MAGIC = 0x57414C31; // "WAL1"
+    private static final int RECORD_HEADER = 8;
+    private static final Kind[] KINDS = Kind.values();
+
+    private final Path dir;
+    private final int n;
+    private final Sync sync;
+    private final long syncMs;
+    private final int segmentBytes;
+    private final CRC32C crc = new CRC32C();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition pending = lock.newCondition();
+    private final Condition durable = lock.newCondition();
+    private final Thread syncer; // null for none / always
+
+    // guarded by lock
+    private MappedByteBuffer segment;
+    private FileChannel channel;
+    private VectorDelta delta;
+    private int forcedPos;
+    private long nextSeq;
+    private long syncedSeq;
+    private int maxLamport;
+    private final int[] maxVector;
+    private volatile boolean running = true;
+
+    public MessageLog(Path dir, int n, Sync sync, long syncMs, int segmentBytes) throws IOException {
+        this.dir = dir;
+        this.n = n;
+        this.sync = sync;
+        this.syncMs = syncMs;
+        this.segmentBytes = segmentBytes;
+        this.maxVector = new int[n];
+        Files.createDirectories(dir);
+        List<Path> segments = segments(dir);
+        if (segments.isEmpty()) {
+            openSegment(0, segmentBytes);
+        } else {
+            recover(segments);
+        }
+        this.syncedSeq = nextSeq;
+        if (sync == Sync.ASYNC || sync == Sync.GROUP) {
+            syncer = new Thread(this::syncLoop, "wal-sync-" + dir.getFileName());
+            syncer.setDaemon(true);
+            syncer.start();
+        } else {
+            syncer = null;
+        }
+    }
+
+    /** Opens the log configured by wal.dir, wal.sync, wal.sync.ms and wal.segment.mb. */
+    public static MessageLog open(Config config, String dir) throws IOException {
+        return new MessageLog(Paths.get(dir), config.n(),
+                Sync.parse(config.option("wal.sync", "async")),
+                config.intOption("wal.sync.ms", 10),
+                config.intOption("wal.segment.mb", 64) * 1024 * 1024);
+    }
+
+    // ---- append ----
+
+    /**
+     * Appends one message with the clock state after the event.
+     * With wal.sync=group this returns once the record is on disk.
+     * @return the record's seq
+     */
+    public long append(Kind kind, Message msg, int lamport, int[] vector) throws IOException {
+        if (kind == Kind.CHECKPOINT) throw new IllegalArgumentException("checkpoints are written by the log");
+        if (vector.length != n) throw new IllegalArgumentException("vector of " + vector.length + " for n=" + n);
+        long seq;
+        lock.lock();
+        try {
+            if (!running) throw new IOException("log closed");
+            int need = RECORD_HEADER + 1 + 5 + VectorDelta.maxSize(n) + BinaryCodec.maxFrameSize(msg) + 4;
+            if (segment.remaining() < need) roll(need);
+            write(kind, msg, lamport, vector);
+            seq = nextSeq++;
+            if (sync == Sync.ALWAYS) {
+                segment.force(forcedPos, segment.position() - forcedPos);
+                forcedPos = segment.position();
+                syncedSeq = nextSeq;
+            } else if (sync == Sync.GROUP) {
+                pending.signal();
+                while (syncedSeq <= seq && running) durable.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return seq;
+    }
+
+    private void write(Kind kind, Message msg, int lamport, int[] vector) {
+        int start = segment.position();
+        segment.position(start + RECORD_HEADER);
+        segment.put((byte) kind.ordinal());
+        BinaryCodec.writeVarint(segment, lamport);
+        delta.write(segment, vector);
+        if (msg != null) BinaryCodec.encode(msg, segment);
+        int end = segment.position();
+        crc.reset();
+        crc.update(segment.duplicate().position(start + RECORD_HEADER).limit(end));
+        segment.putInt(start + 4, (int) crc.getValue());
+        segment.putInt(start, end - start - RECORD_HEADER);
+
+        if (lamport > maxLamport) maxLamport = lamport;
+        for (int i = 0; i < n; i++) {
+            if (vector[i] > maxVector[i]) maxVector[i] = vector[i];
+        }
+    }
+
+    /** Seals the current segment and starts the next one with a checkpoint (lock held). */
+    private void roll(int need) throws IOException {
+        if (sync != Sync.NONE) segment.force();
+        channel.close();
+        int size = Math.max(segmentBytes, 4 + 2 * RECORD_HEADER + 10 + 2 * VectorDelta.maxSize(n) + need);
+        openSegment(nextSeq, size);
+        write(Kind.CHECKPOINT, null, maxLamport, maxVector.clone());
+        if (sync != Sync.NONE) {
+            // recovery reads the clocks from this checkpoint only: on disk before anything goes on
+            segment.force();
+            forcedPos = segment.position();
+            syncedSeq = nextSeq;
+        }
+    }
+
+    private void openSegment(long firstSeq, int size) throws IOException {
+        Path file = dir.resolve(String.format("wal-%020d.log", firstSeq));
+        channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        segment.putInt(MAGIC);
+        delta = new VectorDelta();
+        forcedPos = 0;
+        nextSeq = firstSeq;
+    }
+
+    // ---- group commit ----
+
+    private void syncLoop() {
+        while (running) {
+            try {
+                if (sync == Sync.ASYNC) {
+                    TimeUnit.MILLISECONDS.sleep(syncMs);
+                } else {
+                    lock.lock();
+                    try {
+                        while (running && syncedSeq >= nextSeq) pending.await();
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+                force();
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    /** Forces everything appended so far to disk; the appends go on meanwhile. */
+    public void force() {
+        MappedByteBuffer seg;
+        int from;
+        int to;
+        long upTo;
+        lock.lock();
+        try {
+            if (syncedSeq >= nextSeq || segment == null) return;
+            seg = segment;
+            from = forcedPos;
+            to = segment.position();
+            upTo = nextSeq;
+        } finally {
+            lock.unlock();
+        }
+        seg.force(from, to - from); // outside the lock: the appends share the next force
+        lock.lock();
+        try {
+            if (seg == segment && to > forcedPos) forcedPos = to;
+            if (upTo > syncedSeq) syncedSeq = upTo;
+            durable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // ---- recovery ----
+
+    /** Reopens the last usable segment, deleting the ones a crashed roll() left behind. */
+    private void recover(List<Path> segments) throws IOException {
+        for (int s = segments.size() - 1; s >= 0; s--) {
+            Path last = segments.get(s);
+            if (recover(last, s > 0)) return;
+            channel.close();
+            segment = null;
+            System.err.println("[wal] " + last.getFileName() + ": no header or checkpoint, removed");
+            Files.delete(last);
+            if (s == 0) openSegment(firstSeq(last), segmentBytes); // nothing was ever logged in it
+        }
+    }
+
+    /**
+     * Opens segment last for appending, after its valid records.
+     * @param needCheckpoint true unless it is the first segment, which starts with no checkpoint
+     * @return false, with nothing recovered, if it has no magic or no leading checkpoint
+     */
+    private boolean recover(Path last, boolean needCheckpoint) throws IOException {
+        channel = FileChannel.open(last, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (channel.size() < 4 + RECORD_HEADER) return false; // crashed right after creating it
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+        if (segment.getInt(0) != MAGIC) return false;
+        Kind[] first = {null};
+        scan(segment, n, (kind, lamport, vector, frame) -> {
+            first[0] = kind;
+            return false;
+        });
+        if (needCheckpoint && first[0] != Kind.CHECKPOINT) return false;
+        long firstSeq = firstSeq(last);
+        long[] count = {0};
+        int[][] lastVector = {null};
+        int end = scan(segment, n, (kind, lamport, vector, frame) -> {
+            if (kind != Kind.CHECKPOINT) count[0]++;
+            lastVector[0] = vector;
+            if (lamport > maxLamport) maxLamport = lamport;
+            for (int i = 0; i < n; i++) {
+                if (vector[i] > maxVector[i]) maxVector[i] = vector[i];
+            }
+            return true;
+        });
+        if (end + 4 <= segment.capacity() && segment.getInt(end) != 0) {
+            System.err.println("[wal] " + last.getFileName() + ": torn tail at byte " + end + ", truncated");
+            for (int i = end; i < segment.capacity(); i++) segment.put(i, (byte) 0);
+            segment.force();
+        }
+        segment.position(end);
+        // the writer's delta state is the vector of the last record
+        delta = new VectorDelta();
+        if (lastVector[0] != null) delta.write(ByteBuffer.allocate(VectorDelta.maxSize(n)), lastVector[0]);
+        forcedPos = end;
+        nextSeq = firstSeq + count[0];
+        return true;
+    }
+
+    /** True when no message was ever logged. */
+    public boolean isEmpty() {
+        lock.lock();
+        try {
+            return nextSeq == 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Seq of the next record, i.e. the number of records ever logged. */
+    public long nextSeq() {
+        lock.lock();
+        try {
+            return nextSeq;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Highest Lamport time logged (the clock to restore). */
+    public int lamport() {
+        lock.lock();
+        try {
+            return maxLamport;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Component-wise highest vector clock logged (the clock to restore). */
+    public int[] vector() {
+        lock.lock();
+        try {
+            return maxVector.clone();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // ---- replay ----
+
+    /**
+     * Calls consumer for every record with seq >= fromSeq, in log order, up to the records
+     * appended when replay started. Segments before fromSeq are not read.
+     * @return the number of records replayed
+     */
+    public long replay(long fromSeq, Consumer<Record> consumer) throws IOException {
+        long upTo = nextSeq();
+        List<Path> segments = segments(dir);
+        long replayed = 0;
+        for (int s = 0; s < segments.size(); s++) {
+            long first = firstSeq(segments.get(s));
+            if (first >= upTo) break;
+            if (s + 1 < segments.size() && firstSeq(segments.get(s + 1)) <= fromSeq) continue;
+            ByteBuffer seg;
+            try (FileChannel ch = FileChannel.open(segments.get(s), StandardOpenOption.READ)) {
+                seg = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            }
+            long[] seq = {first};
+            long[] count = {0};
+            scan(seg, n, (kind, lamport, vector, frame) -> {
+                if (kind == Kind.CHECKPOINT) return true;
+                long current = seq[0]++;
+                if (current >= upTo) return false;
+                if (current >= fromSeq) {
+                    consumer.accept(new Record(current, kind, lamport, vector, BinaryCodec.decode(frame)));
+                    count[0]++;
+                }
+                return true;
+            });
+            replayed += count[0];
+        }
+        return replayed;
+    }
+
+    // ---- segment scanning ----
+
+    private interface Visitor {
+        /** @param frame the message frame (null for a checkpoint) @return false to stop */
+        boolean visit(Kind kind, int lamport, int[] vector, ByteBuffer frame);
+    }
+
+    /**
+     * Reads the valid records of a segment from its start.
+     * @return the end of the last valid record: where the next one goes
+     */
+    private static int scan(ByteBuffer seg, int n, Visitor visitor) {
+        if (seg.capacity() < 4 || seg.getInt(0) != MAGIC) return 4;
+        VectorDelta delta = new VectorDelta();
+        CRC32C crc = new CRC32C();
+        int pos = 4;
+        while (pos + RECORD_HEADER <= seg.capacity()) {
+            int len = seg.getInt(pos);
+            if (len <= 0 || len > seg.capacity() - pos - RECORD_HEADER) break;
+            int bodyStart = pos + RECORD_HEADER;
+            int end = bodyStart + len;
+            ByteBuffer body = seg.duplicate().position(bodyStart).limit(end);
+            crc.reset();
+            crc.update(body);
+            if ((int) crc.getValue() != seg.getInt(pos + 4)) break;
+            body.position(bodyStart);
+            try {
+                int k = body.get();
+                if (k < 0 || k >= KINDS.length) break;
+                int lamport = BinaryCodec.readVarint(body);
+                int[] vector = delta.read(body);
+                if (vector.length != n) {
+                    throw new IllegalStateException("log written for n=" + vector.length + ", this cluster has n=" + n);
+                }
+                ByteBuffer frame = KINDS[k] == Kind.CHECKPOINT ? null : body.slice();
+                if (!visitor.visit(KINDS[k], lamport, vector, frame)) return end;
+            } catch (IllegalArgumentException | BufferUnderflowException e) {
+                break;
+            }
+            pos = end;
+        }
+        return pos;
+    }
+
+    private static List<Path> segments(Path dir) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "wal-*.log")) {
+            for (Path p : ds) files.add(p);
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    private static long firstSeq(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(4, name.length() - 4));
+    }
+
+    public String stats() {
+        lock.lock();
+        try {
+            return "records=" + nextSeq + " durable=" + syncedSeq + " sync=" + sync.name().toLowerCase()
+                    + " lamport=" + maxLamport + " vc=" + Arrays.toString(maxVector);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (syncer != null) syncer.interrupt();
+        try {
+            if (syncer != null) syncer.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        lock.lock();
+        try {
+            if (!running) return;
+            running = false;
+            if (sync != Sync.NONE) segment.force();
+            durable.signalAll();
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("[wal] close error: " + e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+}
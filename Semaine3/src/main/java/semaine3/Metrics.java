@@ -0,0 +1,189 @@
+package semaine3;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * Hot-path metrics of one node. Everything is recorded with LongAdders and lock-free
+ * Histograms, so recording never blocks a sender or a receiver.
+ *
+ *  - messages sent / received per peer, bytes out / in;
+ *  - serialize / deserialize time, connect time (ns histograms);
+ *  - inbox depth (sampled when read) and the wait from receive to process (Inbox);
+ *  - with compression (Compression): records compressed / sent as is, bytes before / after,
+ *    CPU time spent deflating and inflating.
+ *
+ * Read with the "metrics" CLI command, over JMX (MetricsMXBean, one MBean per node),
+ * or as periodic JSON lines (metrics.dump.ms, see Node).
+ */
+public final class Metrics implements MetricsMXBean {
+    private final LongAdder[] sent;
+    private final LongAdder[] received;
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder compressedRecords = new LongAdder();
+    private final LongAdder plainRecords = new LongAdder();
+    private final LongAdder compressRawBytes = new LongAdder();
+    private final LongAdder compressedBytes = new LongAdder();
+    private final LongAdder compressNanos = new LongAdder();
+    private final LongAdder decompressNanos = new LongAdder();
+    private final LongAdder compressOffs = new LongAdder();
+    final Histogram serialize = new Histogram();
+    final Histogram deserialize = new Histogram();
+    final Histogram connect = new Histogram();
+    private volatile Histogram queueWait = new Histogram();
+    private volatile IntSupplier inboxDepth = () -> 0;
+
+    public Metrics(int n) {
+        this.sent = new LongAdder[n];
+        this.received = new LongAdder[n];
+        for (int i = 0; i < n; i++) {
+            sent[i] = new LongAdder();
+            received[i] = new LongAdder();
+        }
+    }
+
+    /** Attaches the inbox gauges (Node does it once the inbox exists). */
+    void attachInbox(Inbox inbox) {
+        this.queueWait = inbox.waits();
+        this.inboxDepth = inbox::depth;
+    }
+
+    void sent(int peer, int bytes) {
+        if (peer >= 0 && peer < sent.length) sent[peer].increment();
+        bytesOut.add(bytes);
+    }
+
+    void received(int peer) {
+        if (peer >= 0 && peer < received.length) received[peer].increment();
+    }
+
+    void bytesIn(int bytes) {
+        bytesIn.add(bytes);
+    }
+
+    /** Bytes written without a message count (compressed records, see sent(peer, 0)). */
+    void bytesOut(int bytes) {
+        bytesOut.add(bytes);
+    }
+
+    void compressed(int rawBytes, int bytes, long nanos) {
+        compressedRecords.increment();
+        compressRawBytes.add(rawBytes);
+        compressedBytes.add(bytes);
+        compressNanos.add(nanos);
+    }
+
+    void compressSkipped() {
+        plainRecords.increment();
+    }
+
+    void compressOff() {
+        compressOffs.increment();
+    }
+
+    void decompressed(long nanos) {
+        decompressNanos.add(nanos);
+    }
+
+    @Override
+    public long[] getSent() {
+        long[] out = new long[sent.length];
+        for (int i = 0; i < out.length; i++) out[i] = sent[i].sum();
+        return out;
+    }
+
+    @Override
+    public long[] getReceived() {
+        long[] out = new long[received.length];
+        for (int i = 0; i < out.length; i++) out[i] = received[i].sum();
+        return out;
+    }
+
+    @Override
+    public long getBytesOut() { return bytesOut.sum(); }
+
+    @Override
+    public long getBytesIn() { return bytesIn.sum(); }
+
+    @Override
+    public int getInboxDepth() { return inboxDepth.getAsInt(); }
+
+    @Override
+    public double getSerializeP99Micros() { return serialize.percentile(0.99) / 1000.0; }
+
+    @Override
+    public double getDeserializeP99Micros() { return deserialize.percentile(0.99) / 1000.0; }
+
+    @Override
+    public double getConnectP99Micros() { return connect.percentile(0.99) / 1000.0; }
+
+    @Override
+    public double getQueueWaitP99Micros() { return queueWait.percentile(0.99) / 1000.0; }
+
+    @Override
+    public double getCompressionRatio() {
+        long raw = compressRawBytes.sum();
+        return raw == 0 ? 1.0 : Math.round(compressedBytes.sum() * 1000.0 / raw) / 1000.0;
+    }
+
+    @Override
+    public double getCompressCpuMillis() { return compressNanos.sum() / 1e6; }
+
+    @Override
+    public double getDecompressCpuMillis() { return decompressNanos.sum() / 1e6; }
+
+    /** Records compressed so far. */
+    public long compressedRecords() { return compressedRecords.sum(); }
+
+    /** Records sent as is on compressing connections (too small, or compression switched off). */
+    public long plainRecords() { return plainRecords.sum(); }
+
+    /** Times a connection found compression not worth it and switched it off for a while. */
+    public long compressOffs() { return compressOffs.sum(); }
+
+    public Histogram serializeNanos() { return serialize; }
+
+    public Histogram deserializeNanos() { return deserialize; }
+
+    public Histogram connectNanos() { return connect; }
+
+    public Histogram queueWaitNanos() { return queueWait; }
+
+    /** One JSON object; times in microseconds. */
+    @Override
+    public String getJson() {
+        return "{\"sent\":" + Arrays.toString(getSent()).replace(" ", "")
+                + ",\"received\":" + Arrays.toString(getReceived()).replace(" ", "")
+                + ",\"bytes_out\":" + getBytesOut()
+                + ",\"bytes_in\":" + getBytesIn()
+                + ",\"inbox_depth\":" + getInboxDepth()
+                + ",\"serialize_us\":" + serialize.toJson(1000)
+                + ",\"deserialize_us\":" + deserialize.toJson(1000)
+                + ",\"connect_us\":" + connect.toJson(1000)
+                + ",\"queue_wait_us\":" + queueWait.toJson(1000)
+                + ",\"compression\":" + compressionJson()
+                + "}";
+    }
+
+    private String compressionJson() {
+        return "{\"records\":" + compressedRecords() + ",\"plain_records\":" + plainRecords()
+                + ",\"raw_bytes\":" + compressRawBytes.sum() + ",\"compressed_bytes\":" + compressedBytes.sum()
+                + ",\"ratio\":" + getCompressionRatio() + ",\"switched_off\":" + compressOffs()
+                + ",\"compress_cpu_ms\":" + getCompressCpuMillis()
+                + ",\"decompress_cpu_ms\":" + getDecompressCpuMillis() + "}";
+    }
+
+    /** Multi-line summary for the CLI. */
+    public String report() {
+        return "  sent/peer=" + Arrays.toString(getSent()) + " received/peer=" + Arrays.toString(getReceived())
+                + "\n  bytes out=" + getBytesOut() + " in=" + getBytesIn() + " inbox depth=" + getInboxDepth()
+                + "\n  serialize us:   " + serialize.toJson(1000)
+                + "\n  deserialize us: " + deserialize.toJson(1000)
+                + "\n  connect us:     " + connect.toJson(1000)
+                + "\n  queue wait us:  " + queueWait.toJson(1000)
+                + (compressedRecords() + plainRecords() + decompressNanos.sum() == 0 ? ""
+                        : "\n  compression:    " + compressionJson());
+    }
+}
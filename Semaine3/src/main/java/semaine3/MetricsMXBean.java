@@ -0,0 +1,35 @@
+package semaine3;
+
+/**
+ * JMX view of a node's Metrics, registered as semaine3:type=Node,id=<myId>
+ * (jconsole / VisualVM: MBeans tab). Times are p99 in microseconds.
+ */
+public interface MetricsMXBean {
+    long[] getSent();
+
+    long[] getReceived();
+
+    long getBytesOut();
+
+    long getBytesIn();
+
+    int getInboxDepth();
+
+    double getSerializeP99Micros();
+
+    double getDeserializeP99Micros();
+
+    double getConnectP99Micros();
+
+    double getQueueWaitP99Micros();
+
+    /** Compressed bytes / bytes before compression, over all compressed records (1.0 if none). */
+    double getCompressionRatio();
+
+    double getCompressCpuMillis();
+
+    double getDecompressCpuMillis();
+
+    /** Everything, including full histograms, as one JSON object. */
+    String getJson();
+}
@@ -0,0 +1,96 @@
+package semaine3;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded array-backed queue for many producers (receiver threads) and one consumer
+ * (a processor thread). Each slot carries a sequence number (Vyukov style):
+ *  - a producer claims a slot with one CAS on the tail, stores the element, then publishes
+ *    it by advancing the slot sequence;
+ *  - the consumer reads published slots in order without any CAS.
+ *
+ * Capacity is rounded up to a power of two. The consumer parks when the queue is empty
+ * and producers wake it up.
+ */
+public final class MpscRingBuffer<E> {
+    private final Object[] elements;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private long head; // consumer only
+    private final AtomicLong consumed = new AtomicLong(); // head, published for size()
+    private volatile Thread consumer;
+    private volatile boolean consumerWaiting;
+
+    public MpscRingBuffer(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must be > 0");
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.elements = new Object[size];
+        this.sequences = new AtomicLongArray(size);
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) sequences.set(i, i);
+    }
+
+    public int capacity() { return elements.length; }
+
+    /** @return false when full */
+    public boolean offer(E e) {
+        if (e == null) throw new NullPointerException();
+        while (true) {
+            long pos = tail.get();
+            int idx = (int) pos & mask;
+            long diff = sequences.get(idx) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    elements[idx] = e;
+                    sequences.set(idx, pos + 1); // publish
+                    if (consumerWaiting) LockSupport.unpark(consumer);
+                    return true;
+                }
+            } else if (diff < 0) {
+                return false; // slot not consumed yet: full
+            }
+            // else another producer moved the tail, retry
+        }
+    }
+
+    /** Consumer only. @return null when empty */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        int idx = (int) head & mask;
+        if (sequences.get(idx) != head + 1) return null;
+        E e = (E) elements[idx];
+        elements[idx] = null;
+        sequences.set(idx, head + mask + 1); // free the slot for the next lap
+        head++;
+        consumed.lazySet(head);
+        return e;
+    }
+
+    /** Consumer only: waits for an element. */
+    public E take() throws InterruptedException {
+        consumer = Thread.currentThread();
+        E e;
+        while ((e = poll()) == null) {
+            consumerWaiting = true;
+            e = poll(); // re-check after announcing, so a concurrent offer cannot be missed
+            if (e != null) {
+                consumerWaiting = false;
+                return e;
+            }
+            // Producers unpark us; the timeout is only a safety net. A short one costs a wakeup per
+            // ms per idle consumer, which adds up with hundreds of nodes in one JVM.
+            LockSupport.parkNanos(this, 100_000_000L);
+            consumerWaiting = false;
+            if (Thread.interrupted()) throw new InterruptedException();
+        }
+        return e;
+    }
+
+    /** Approximate number of queued elements (readable from any thread). */
+    public int size() {
+        return (int) Math.max(0, tail.get() - consumed.get());
+    }
+}
@@ -9,6 +9,9 @@ import java.nio.charset.StandardCharsets;
 /**
  * Very small TCP client: opens a socket, sends one line, closes.
  * Simple and reliable for demos/defense.
+ *
+ * Node streams over PeerConnections instead; this one-shot path is kept for
+ * scripts and as the baseline in the connection benchmark.
  */
 public final class NetClient {
     public void send(String host, int port, String line) throws IOException {
@@ -1,34 +1,57 @@
 package semaine3;
 
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 /**
  * TCP server that accepts connections and hands sockets to ReceiverThread.
+ * Peers keep their connection open (see PeerConnections), so accepted sockets
+ * are tracked and closed on shutdown to unblock their readers.
+ * Sockets are accepted from a blocking ServerSocketChannel so that ReceiverThread can read
+ * them through their channel straight into a direct buffer.
+ * With ThreadMode.VIRTUAL the acceptor and every ReceiverThread run on virtual threads.
  */
-public final class NetServer implements AutoCloseable {
+public final class NetServer implements InboundServer {
     private final int port;
     private final Node node;
-    private final ExecutorService pool = Executors.newCachedThreadPool();
+    private final ExecutorService pool;
+    private final Set<Socket> clients = ConcurrentHashMap.newKeySet();
     private volatile boolean running = true;
-    private ServerSocket serverSocket;
+    private ServerSocketChannel serverChannel;
 
     public NetServer(int port, Node node) {
+        this(port, node, ThreadMode.PLATFORM);
+    }
+
+    public NetServer(int port, Node node, ThreadMode threads) {
         this.port = port;
         this.node = node;
+        this.pool = threads.perTaskExecutor("receiver-" + port);
     }
 
+    @Override
     public void start() throws IOException {
-        serverSocket = new ServerSocket(port);
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true); // like ServerSocket: quick restarts on the same port
+        serverChannel.bind(new InetSocketAddress(port));
         pool.submit(() -> {
             System.out.println("[Server] Listening on port " + port);
             while (running) {
                 try {
-                    Socket s = serverSocket.accept();
-                    pool.submit(new ReceiverThread(s, node));
+                    Socket s = serverChannel.accept().socket();
+                    clients.add(s);
+                    pool.submit(() -> {
+                        try {
+                            new ReceiverThread(s, node).run();
+                        } finally {
+                            clients.remove(s);
+                        }
+                    });
                 } catch (IOException e) {
                     if (running) System.err.println("[Server] accept() error: " + e.getMessage());
                 }
@@ -40,8 +63,11 @@ public final class NetServer implements AutoCloseable {
     public void close() {
         running = false;
         try {
-            if (serverSocket != null) serverSocket.close();
+            if (serverChannel != null) serverChannel.close();
         } catch (IOException ignored) {}
+        for (Socket s : clients) {
+            try { s.close(); } catch (IOException ignored) {}
+        }
         pool.shutdownNow();
     }
 }
@@ -0,0 +1,226 @@
+package semaine3;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Selector-based server: one acceptor thread plus a small fixed number of I/O loops,
+ * whatever the number of connected peers.
+ *
+ * Each loop owns one Selector and one direct read buffer from node.buffers(); every connection
+ * only keeps a FrameDecoder (and its partial-frame tail, if any).
+ *
+ * A loop never waits for the inbox (inbox.overflow=block): when a frame's partition is full, the
+ * rest of what was read from that channel goes to a spill thread, which offers it (waiting for
+ * room), and the channel is not read again until the spill thread is done. Only that peer is
+ * held back (by TCP backpressure); the other connections of the loop go on. With causal,
+ * total-order or reliable delivery one frame may release several held-back messages, so every
+ * read is handed to a spill thread that way (gossip relays already run on their own threads).
+ *
+ * Enabled with the Config option transport=nio (threads: nio.threads, default 2).
+ */
+public final class NioServer implements InboundServer {
+    private final int port;
+    private final Node node;
+    private final IoLoop[] loops;
+    private final ExecutorService spill;
+    private volatile boolean running = true;
+    private ServerSocketChannel serverChannel;
+    private int next;
+
+    public NioServer(int port, Node node, int ioThreads, ThreadMode threads) {
+        if (ioThreads <= 0) throw new IllegalArgumentException("ioThreads must be > 0");
+        this.port = port;
+        this.node = node;
+        this.loops = new IoLoop[ioThreads];
+        this.spill = threads.perTaskExecutor("nio-spill-" + port);
+    }
+
+    @Override
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new IoLoop(Selector.open());
+            Thread t = new Thread(loops[i], "nio-" + port + "-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        Thread acceptor = new Thread(this::acceptLoop, "nio-accept-" + port);
+        acceptor.setDaemon(true);
+        acceptor.start();
+        System.out.println("[Server] Listening on port " + port + " (nio, " + loops.length + " io threads)");
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                SocketChannel ch = serverChannel.accept(); // blocking channel: acceptor thread only
+                ch.configureBlocking(false);
+                ch.socket().setTcpNoDelay(true);
+                loops[next++ % loops.length].register(ch);
+            } catch (IOException e) {
+                if (running) System.err.println("[Server] accept() error: " + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        try {
+            if (serverChannel != null) serverChannel.close();
+        } catch (IOException ignored) {}
+        for (IoLoop loop : loops) {
+            if (loop != null) loop.close();
+        }
+        spill.shutdownNow();
+    }
+
+    /** A connection's decoder, and the frames waiting for room in the inbox (reads paused meanwhile). */
+    private static final class Connection {
+        final FrameDecoder decoder;
+        List<Message> backlog; // non-null while a spill thread owns the connection
+
+        Connection(FrameDecoder decoder) {
+            this.decoder = decoder;
+        }
+    }
+
+    private final class IoLoop implements Runnable {
+        private final Selector selector;
+        private final ByteBuffer readBuffer = node.buffers().acquire();
+        private final Queue<SocketChannel> newChannels = new ConcurrentLinkedQueue<>();
+        private final Queue<SelectionKey> resumed = new ConcurrentLinkedQueue<>(); // backlog offered
+
+        IoLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        void register(SocketChannel ch) {
+            newChannels.add(ch);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    SocketChannel ch;
+                    while ((ch = newChannels.poll()) != null) {
+                        ch.register(selector, SelectionKey.OP_READ, new Connection(new FrameDecoder(node.metrics(), node.compression())));
+                    }
+                    SelectionKey paused;
+                    while ((paused = resumed.poll()) != null) {
+                        if (paused.isValid()) paused.interestOps(SelectionKey.OP_READ);
+                    }
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        if (key.isValid() && key.isReadable()) read(key);
+                    }
+                    selector.selectedKeys().clear();
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (running) System.err.println("[Server] io loop error: " + e.getMessage());
+            } finally {
+                closeAll();
+            }
+        }
+
+        private void read(SelectionKey key) {
+            SocketChannel ch = (SocketChannel) key.channel();
+            Connection c = (Connection) key.attachment();
+            try {
+                int n;
+                while ((n = ch.read(readBuffer)) > 0) {
+                    readBuffer.flip();
+                    c.decoder.feed(readBuffer, msg -> receive(c, msg));
+                    readBuffer.clear();
+                    if (c.backlog != null) {
+                        spill(key, c);
+                        return;
+                    }
+                }
+                if (n < 0) closeChannel(key); // peer closed
+            } catch (IOException e) {
+                closeChannel(key); // normal when peer resets
+            } catch (Exception e) {
+                System.err.println("[Receiver] Error: " + e.getMessage());
+                readBuffer.clear();
+                closeChannel(key);
+            }
+        }
+
+        /** On the loop: hands msg to the node, unless that could wait for the inbox. */
+        private void receive(Connection c, Message msg) {
+            Inbox inbox = node.inbox();
+            boolean mayWait = node.releasesHeldBack() ? inbox.mayBlock() : inbox.wouldBlock(msg);
+            if (c.backlog == null && !mayWait) {
+                node.onNetworkReceive(msg);
+                return;
+            }
+            if (c.backlog == null) c.backlog = new ArrayList<>();
+            c.backlog.add(msg); // and everything after it, to keep the order
+        }
+
+        /** Stops reading the channel and offers its backlog on a spill thread, then resumes it. */
+        private void spill(SelectionKey key, Connection c) {
+            key.interestOps(0);
+            List<Message> backlog = c.backlog;
+            try {
+                spill.execute(() -> {
+                    try {
+                        for (Message msg : backlog) node.onNetworkReceive(msg);
+                    } catch (RuntimeException e) {
+                        System.err.println("[Receiver] Error: " + e.getMessage());
+                        closeChannel(key);
+                        return;
+                    }
+                    c.backlog = null;
+                    resumed.add(key);
+                    selector.wakeup();
+                });
+            } catch (RejectedExecutionException e) {
+                closeChannel(key); // shutting down
+            }
+        }
+
+        private void closeChannel(SelectionKey key) {
+            key.cancel();
+            ((Connection) key.attachment()).decoder.close();
+            try { key.channel().close(); } catch (IOException ignored) {}
+        }
+
+        /** Called from close(): the loop thread notices running == false and cleans up. */
+        void close() {
+            selector.wakeup();
+        }
+
+        private void closeAll() {
+            try {
+                for (SelectionKey key : selector.keys()) {
+                    try { key.channel().close(); } catch (IOException ignored) {}
+                    if (key.attachment() instanceof Connection) ((Connection) key.attachment()).decoder.close();
+                }
+            } catch (ClosedSelectorException ignored) {}
+            SocketChannel ch;
+            while ((ch = newChannels.poll()) != null) {
+                try { ch.close(); } catch (IOException ignored) {}
+            }
+            try { selector.close(); } catch (IOException ignored) {}
+            node.buffers().release(readBuffer);
+        }
+    }
+}
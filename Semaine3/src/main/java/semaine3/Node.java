@@ -1,118 +1,641 @@
 package semaine3;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import javax.management.ObjectName;
 
 /**
  * Node owns the clocks and the networking.
  * Clocks are updated:
  *  - before sending (tick)
  *  - upon receiving (merge + tick rules)
+ *
+ * Config option transport selects how messages travel (Transport): TCP (blocking, nio), in-JVM
+ * queues (memory) or shared-memory ring files (shm).
+ * Config option threads=virtual runs the server, the processor and sendAsync on virtual threads.
+ * Config option clock=atomic selects the lock-free clock implementations.
+ * Config option delivery=causal delivers broadcasts in causal order (CausalDelivery),
+ * delivery=total in the same order on every node (TotalOrderDelivery).
+ * Config option reliable=true retransmits until acked and drops duplicates (ReliableDelivery).
+ * Config option fd=true tracks peer liveness (FailureDetector): suspected peers are not written
+ * to, their messages are skipped or, with reliable=true, queued until they come back.
+ * Config option snapshot=true enables consistent global snapshots (SnapshotProtocol, snapshot()).
+ * Config option broadcast=gossip spreads broadcasts epidemically instead of writing to every peer
+ * (GossipBroadcast).
+ * Config option lock=ra (Ricart-Agrawala) or lock=token (Suzuki-Kasami) adds named distributed
+ * locks (DistributedLock, locks()).
+ *
+ * Observability: Metrics (also registered as a JMX MBean; metrics.dump.ms > 0 appends a JSON
+ * line every metrics.dump.ms to metrics.dump.file, default metrics-<id>.jsonl).
+ * Per-message lines go through AsyncLogger and are off unless log.messages=true.
+ * Inbound bytes are read into pooled direct buffers (BufferPool) and decoded in place.
+ * Config option compress=true compresses outbound TCP traffic when it pays (Compression).
+ *
+ * Durability: with wal.dir set, every received message (and every sent one with wal.sent=true)
+ * is appended to a MessageLog before it is processed, and the clocks start from the log tail
+ * instead of 0 (see MessageLog for wal.sync).
  */
 public final class Node implements AutoCloseable {
     private final int myId;
     private final Config config;
 
-    private final LamportClock lamportClock = new LamportClock();
+    private final LamportClock lamportClock;
     private final VectorClock vectorClock;
-    private final NetClient netClient = new NetClient();
-    private final NetServer server;
+    private final Transport transport;
+    private final ThreadMode threads;
+    private final ExecutorService sendExecutor;
+    private final long broadcastTimeoutMs;
 
-    private final BlockingQueue<Message> inbox = new LinkedBlockingQueue<>();
-    private volatile boolean running = true;
+    private final Inbox inbox;
+    private final CausalDelivery causal; // null unless delivery=causal
+    private final TotalOrderDelivery total; // null unless delivery=total
+    private final ScheduledExecutorService acker; // null unless delivery=total
+    private final ReliableDelivery reliable; // null unless reliable=true
+    private final FailureDetector fd; // null unless fd=true
+    private final SnapshotProtocol snapshots; // null unless snapshot=true
+    private final GossipBroadcast gossip; // null unless broadcast=gossip
+    private final DistributedLock locks; // null unless lock is set
+    private final long ackDelayMs;
+    private volatile Consumer<Message> listener;
+    private final Metrics metrics;
+    private final BufferPool buffers;
+    private final Compression compression;
+    private final AsyncLogger log;
+    private final ScheduledExecutorService dumper; // null unless metrics.dump.ms > 0
+    private final MessageLog wal; // null unless wal.dir is set
+    private final boolean walSent;
+    private ObjectName mbeanName;
 
     public Node(int myId, Config config) {
         this.myId = myId;
         this.config = config;
-        this.vectorClock = new VectorClock(config.n(), myId);
-        this.server = new NetServer(config.get(myId).port, this);
+        String clockKind = config.option("clock", "sync");
+        this.lamportClock = LamportClock.create(clockKind);
+        this.vectorClock = VectorClock.create(clockKind, config.n(), myId);
+        this.wal = openWal(config);
+        this.walSent = Boolean.parseBoolean(config.option("wal.sent", "false"));
+        this.threads = config.threadMode();
+        this.sendExecutor = threads.perTaskExecutor("send-" + myId);
+        this.broadcastTimeoutMs = config.intOption("broadcast.timeout.ms", 1000);
+        this.metrics = new Metrics(config.n());
+        this.log = new AsyncLogger(config, threads, "log-" + myId);
+        this.buffers = BufferPool.of(config);
+        this.compression = Compression.of(config);
+        this.transport = Transport.create(config, myId, this);
+        this.inbox = new Inbox(config, threads, "processor-" + myId, this::process);
+        metrics.attachInbox(inbox);
+        this.dumper = config.intOption("metrics.dump.ms", 0) > 0
+                ? Executors.newSingleThreadScheduledExecutor(threads.factory("metrics-" + myId)) : null;
+        String delivery = config.option("delivery", "fifo");
+        if (!delivery.equals("fifo") && config.intOption("inbox.processors", 1) != 1) {
+            throw new IllegalArgumentException("delivery=" + delivery + " needs inbox.processors=1");
+        }
+        this.causal = delivery.equals("causal") ? new CausalDelivery(config.n(), myId) : null;
+        this.total = delivery.equals("total") ? new TotalOrderDelivery(config.n(), myId, lamportClock) : null;
+        if (causal == null && total == null && !delivery.equals("fifo")) {
+            throw new IllegalArgumentException("unknown delivery mode: " + delivery);
+        }
+        this.acker = total == null ? null : Executors.newSingleThreadScheduledExecutor(threads.factory("ack-" + myId));
+        this.ackDelayMs = config.intOption("total.ack.ms", 1);
+        this.reliable = Boolean.parseBoolean(config.option("reliable", "false"))
+                ? new ReliableDelivery(config, myId, transport, lamportClock, vectorClock) : null;
+        this.fd = Boolean.parseBoolean(config.option("fd", "false"))
+                ? new FailureDetector(config, myId, transport, lamportClock, vectorClock) : null;
+        boolean snapshot = Boolean.parseBoolean(config.option("snapshot", "false"));
+        if (snapshot && !config.option("inbox.overflow", "block").equals("block")) {
+            throw new IllegalArgumentException("snapshot=true needs inbox.overflow=block"); // a dropped message breaks the cut
+        }
+        this.snapshots = snapshot
+                ? new SnapshotProtocol(config, myId, transport, reliable, lamportClock, vectorClock) : null;
+        String broadcast = config.option("broadcast", "direct");
+        if (broadcast.equals("gossip") && (total != null || snapshot)) {
+            // acks and channel counts both assume every peer gets the message from its sender
+            throw new IllegalArgumentException("broadcast=gossip does not work with delivery=total or snapshot=true");
+        } else if (!broadcast.equals("gossip") && !broadcast.equals("direct")) {
+            throw new IllegalArgumentException("unknown broadcast mode: " + broadcast);
+        }
+        this.gossip = broadcast.equals("gossip")
+                ? new GossipBroadcast(config, myId, transport, lamportClock, vectorClock, fd == null ? null : fd::isSuspected)
+                : null;
+        this.locks = config.option("lock", null) != null
+                ? new DistributedLock(config, myId, transport, lamportClock, vectorClock) : null;
+    }
+
+    /**
+     * Opens the log and restores the clocks from it: the restart is merged like a receive of the
+     * last logged state, so both clocks end strictly above everything this node logged before.
+     */
+    private MessageLog openWal(Config config) {
+        String dir = config.option("wal.dir", null);
+        if (dir == null) return null;
+        try {
+            MessageLog log = MessageLog.open(config, dir);
+            if (!log.isEmpty()) {
+                lamportClock.onReceive(log.lamport());
+                vectorClock.onReceive(log.vector());
+                System.out.println("[Node " + myId + "] restored clocks from " + dir + " (" + log.nextSeq()
+                        + " records): lamport=" + lamportClock.get() + " vc=" + vectorClock.snapshotString());
+            }
+            return log;
+        } catch (IOException e) {
+            throw new UncheckedIOException("cannot open wal.dir=" + dir, e);
+        }
+    }
+
+    private void logToWal(MessageLog.Kind kind, Message msg, int lamport, int[] vector) {
+        try {
+            wal.append(kind, msg, lamport, vector);
+        } catch (IOException e) {
+            System.err.println("[Node " + myId + "] wal error: " + e.getMessage());
+        }
     }
 
     public void start() throws Exception {
-        server.start();
+        transport.start();
 
-        // Processor thread: prints received messages and current clocks
-        Thread processor = new Thread(() -> {
-            while (running) {
-                try {
-                    Message msg = inbox.take();
-                    System.out.println("\n[Node " + myId + "] RECEIVED: " + msg.payload);
-                    System.out.println("  from=" + msg.senderId
-                            + " lamport(received)=" + msg.lamportTs
-                            + " vc(received)=" + Arrays.toString(msg.vectorClock));
-                    printClocks("after-receive");
-                    System.out.print("> ");
-                } catch (InterruptedException ignored) {
-                    return;
-                }
-            }
-        }, "processor-" + myId);
-        processor.setDaemon(true);
-        processor.start();
+        // Processor thread(s): print received messages and current clocks
+        inbox.start();
+
+        if (fd != null) fd.start();
+        if (gossip != null) gossip.start();
+        registerMBean();
+        if (dumper != null) {
+            long every = config.intOption("metrics.dump.ms", 0);
+            dumper.scheduleAtFixedRate(this::dumpMetrics, every, every, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void registerMBean() {
+        try {
+            ObjectName name = new ObjectName("semaine3:type=Node,id=" + myId);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+            mbeanName = name;
+        } catch (Exception e) {
+            // e.g. several nodes with the same id in one JVM: metrics stay available in-process
+            System.err.println("[Node " + myId + "] JMX registration skipped: " + e.getMessage());
+        }
+    }
+
+    private void dumpMetrics() {
+        String file = config.option("metrics.dump.file", "metrics-" + myId + ".jsonl");
+        String line = "{\"ts\":" + System.currentTimeMillis() + ",\"node\":" + myId
+                + "," + metrics.getJson().substring(1) + "\n";
+        try {
+            Files.write(Paths.get(file), line.getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            System.err.println("[Node " + myId + "] metrics dump error: " + e.getMessage());
+        }
+    }
+
+    /** Registers a callback run on the processor thread for every delivered message (benchmarks). */
+    public void onDeliver(Consumer<Message> listener) {
+        this.listener = listener;
+    }
+
+    /** Application state recorded with every snapshot (snapshot=true). */
+    public void onSnapshot(Supplier<String> state) {
+        if (snapshots == null) throw new IllegalStateException("snapshot=true is not set");
+        snapshots.onSnapshot(state);
+    }
+
+    private void process(Message msg) {
+        Consumer<Message> l = listener;
+        if (snapshots == null) {
+            if (l != null) l.accept(msg);
+        } else {
+            // one event for the snapshots: the message is either undelivered or in the state
+            snapshots.atomically(() -> {
+                if (l != null) l.accept(msg);
+                snapshots.delivered(msg);
+            });
+        }
+        log.log(() -> "\n[Node " + myId + "] RECEIVED: " + msg.payload()
+                + "\n  from=" + msg.senderId
+                + " lamport(received)=" + msg.lamportTs
+                + " vc(received)=" + Arrays.toString(msg.vectorClock)
+                + (msg.headers.isEmpty() ? "" : " headers=" + msg.headers)
+                + "\n" + clocks("after-receive"));
     }
 
     /**
      * Called by ReceiverThread after parsing message.
      */
     public void onNetworkReceive(Message msg) {
-        // Update clocks on receive
-        lamportClock.onReceive(msg.lamportTs);
+        int from = gossip == null ? msg.senderId : GossipBroadcast.relay(msg);
+        metrics.received(from);
+
+        // fd=true: any message is a sign of life; explicit heartbeats stop here
+        if (fd != null) {
+            fd.heard(from);
+            if (FailureDetector.isHeartbeat(msg)) return;
+        }
 
-        // Vector clock: merge then increment local component
-        vectorClock.onReceive(msg.vectorClock);
+        // broadcast=gossip: anti-entropy digests and copies already seen stop here
+        if (gossip != null) {
+            if (GossipBroadcast.isSync(msg)) {
+                gossip.onSync(msg);
+                return;
+            }
+            if (GossipBroadcast.isGossip(msg) && !gossip.receive(msg)) return;
+        }
 
-        // Enqueue for processing/demo
-        inbox.offer(msg);
+        // lock=...: lock requests, replies and tokens stop here
+        if (locks != null && DistributedLock.isLock(msg)) {
+            locks.receive(msg);
+            return;
+        }
+
+        // reliable=true: acks, duplicates and out-of-order messages stop here, below the clocks
+        if (reliable != null) {
+            reliable.receive(msg, this::accept);
+        } else {
+            accept(msg);
+        }
     }
 
-    public void send(int destId, String payload) {
+    private void accept(Message msg) {
+        // snapshot=true: markers and snapshot parts stop here; a message sent after its sender's
+        // latest cut makes this node record that cut first
+        if (snapshots != null) {
+            if (SnapshotProtocol.isSnapshot(msg)) {
+                snapshots.receive(msg);
+                return;
+            }
+            snapshots.enterReceive(msg);
+        }
+        try {
+            // Update clocks on receive
+            int lamport = lamportClock.onReceive(msg.lamportTs);
+
+            // Vector clock: merge then increment local component
+            vectorClock.onReceive(msg.vectorClock);
+
+            // Write-ahead: logged with the clocks it produced before anyone processes it
+            if (wal != null) logToWal(MessageLog.Kind.RECEIVED, msg, lamport, vectorClock.snapshot());
+
+            if (snapshots != null) snapshots.received(msg, !TotalOrderDelivery.isAck(msg));
+        } finally {
+            if (snapshots != null) snapshots.exit();
+        }
+
+        // Enqueue for processing/demo (may block, drop or reject when full, see Inbox);
+        // causal broadcasts may be held back until their causes are delivered,
+        // total-order broadcasts until every node has been seen past them.
+        if (causal != null && CausalDelivery.isCausal(msg)) {
+            causal.receive(msg, inbox::offer);
+        } else if (total != null && TotalOrderDelivery.isTotal(msg)) {
+            if (total.receive(msg, inbox::offer)) {
+                acker.schedule(this::sendAck, ackDelayMs, TimeUnit.MILLISECONDS);
+            }
+        } else {
+            inbox.offer(msg);
+        }
+    }
+
+    /**
+     * @return false if the message was not sent: invalid destId, peer suspected (without
+     * reliable=true) or write error; inside atomically() true, the write comes when it ends
+     */
+    public boolean send(int destId, String payload) {
         if (destId < 0 || destId >= config.n()) {
             System.err.println("[Node " + myId + "] Invalid destId: " + destId);
-            return;
+            return false;
         }
+        boolean suspected = fd != null && fd.isSuspected(destId);
+        // Update clocks on send; stamp with the values the ticks returned
+        Message msg;
+        int epoch = snapshots == null ? 0 : snapshots.enter();
         try {
-            // Update clocks on send
-            lamportClock.tick();
-            vectorClock.tick();
-
-            Message msg = new Message(
+            msg = new Message(
                     payload,
                     myId,
-                    lamportClock.get(),
-                    vectorClock.snapshot()
+                    lamportClock.tick(),
+                    vectorClock.tickAndSnapshot()
             );
+            if (snapshots != null) {
+                msg = SnapshotProtocol.stamp(msg, epoch);
+                if (reliable != null || !suspected) snapshots.sent(destId);
+            }
+        } finally {
+            if (snapshots != null) snapshots.exit();
+        }
+        // inside SnapshotProtocol.atomically (or a handler) the write waits until the block ends
+        Message stamped = msg;
+        if (snapshots != null && snapshots.defer(() -> write(destId, stamped, suspected))) return true;
+        return write(destId, msg, suspected);
+    }
 
-            Config.NodeInfo dest = config.get(destId);
-            netClient.send(dest.host, dest.port, msg.serialize());
+    private boolean write(int destId, Message msg, boolean suspected) {
+        try {
+            if (wal != null && walSent) logToWal(MessageLog.Kind.SENT, msg, msg.lamportTs, msg.vectorClock);
+            if (reliable != null) {
+                reliable.send(destId, msg, !suspected);
+            } else if (suspected) {
+                System.err.println("[Node " + myId + "] peer " + destId + " suspected, not sent: " + msg.payload());
+                return false;
+            } else {
+                transport.send(destId, msg);
+            }
 
-            System.out.println("[Node " + myId + "] SENT to " + destId + ": " + payload);
-            printClocks("after-send");
+            log.log(() -> "[Node " + myId + "] SENT to " + destId + ": " + msg.payload() + "\n" + clocks("after-send"));
+            return true;
         } catch (Exception e) {
             System.err.println("[Node " + myId + "] send error: " + e.getMessage());
+            if (snapshots != null && reliable == null && !suspected) snapshots.unsent(destId, msg);
+            return false;
         }
     }
 
+    /**
+     * Same as send, on a thread of the send executor (a virtual thread with threads=virtual),
+     * so the caller never blocks on the socket.
+     */
+    public CompletableFuture<Void> sendAsync(int destId, String payload) {
+        return CompletableFuture.runAsync(() -> send(destId, payload), sendExecutor);
+    }
+
     public void broadcast(String payload) {
+        broadcastAsync(payload).thenAccept(results -> {
+            long ok = results.values().stream().filter(DeliveryResult::delivered).count();
+            if (ok == results.size()) {
+                log.log(() -> "[Node " + myId + "] BROADCAST delivered to " + ok + "/" + results.size());
+            } else {
+                System.err.println("[Node " + myId + "] BROADCAST delivered to " + ok + "/" + results.size()
+                        + " " + results.values());
+            }
+        });
+        log.log(() -> "[Node " + myId + "] BROADCAST: " + payload + "\n" + clocks("after-send"));
+    }
+
+    /**
+     * Broadcast pipeline:
+     *  - the clocks tick once and the message is encoded once, so every peer gets the same stamp;
+     *  - peers are written to concurrently on the send executor;
+     *  - each peer gets broadcast.timeout.ms (default 1000), so a slow or dead peer delays nobody else;
+     *    a send that had not started by then is dropped, one already writing finishes in the
+     *    background (a frame cannot be cut halfway), so TIMED_OUT means the outcome is unknown;
+     *  - with reliable=true each peer gets its own sequence number, so the message is encoded per peer,
+     *    and a peer that is down gets QUEUED at once (retransmitted later) instead of a timeout;
+     *  - with broadcast=gossip only gossip.fanout peers are written to (GossipBroadcast) and the
+     *    results are theirs; reliable=true does not apply, anti-entropy repairs the gaps instead.
+     *
+     * @return per-peer results, completed when every peer has succeeded, failed or timed out
+     */
+    public CompletableFuture<Map<Integer, DeliveryResult>> broadcastAsync(String payload) {
+        CompletableFuture<Map<Integer, DeliveryResult>> results;
+        int epoch = snapshots == null ? 0 : snapshots.enter(); // stamped and counted (sendToAll) as one event
+        try {
+            Message msg;
+            if (total != null) {
+                msg = total.multicast(payload, vectorClock.tickAndSnapshot());
+            } else {
+                msg = new Message(payload, myId, lamportClock.tick(), vectorClock.tickAndSnapshot());
+                if (causal != null) msg = causal.stamp(msg);
+            }
+            if (snapshots != null) msg = SnapshotProtocol.stamp(msg, epoch);
+            if (wal != null && walSent) logToWal(MessageLog.Kind.SENT, msg, msg.lamportTs, msg.vectorClock);
+            results = gossip != null ? gossip.broadcast(msg) : sendToAll(msg);
+        } finally {
+            if (snapshots != null) snapshots.exit();
+        }
+        // outside the cut: with inbox.overflow=block the offer may wait for the processor, which
+        // may itself be waiting for a snapshot recording that waits for this cut
+        if (total != null) total.deliverReady(inbox::offer);
+        return results;
+    }
+
+    private void sendAck() {
+        int epoch = snapshots == null ? 0 : snapshots.enter();
+        try {
+            Message ack = total.ack(vectorClock.snapshot());
+            if (ack != null) sendToAll(snapshots == null ? ack : SnapshotProtocol.stamp(ack, epoch));
+        } finally {
+            if (snapshots != null) snapshots.exit();
+        }
+    }
+
+    private CompletableFuture<Map<Integer, DeliveryResult>> sendToAll(Message msg) {
+        byte[] encoded = reliable == null ? transport.encode(msg) : null;
+
+        Map<Integer, CompletableFuture<DeliveryResult>> pending = new TreeMap<>();
         for (int i = 0; i < config.n(); i++) {
             if (i == myId) continue;
-            send(i, payload);
+            int dest = i;
+            long start = System.nanoTime();
+            boolean suspected = fd != null && fd.isSuspected(dest);
+            if (snapshots != null && (reliable != null || !suspected)) snapshots.sent(dest);
+            if (suspected) {
+                pending.put(dest, CompletableFuture.completedFuture(sendToSuspected(dest, msg)));
+                continue;
+            }
+            CompletableFuture<DeliveryResult> f = new CompletableFuture<>();
+            sendExecutor.execute(() -> {
+                // timed out before it started: not sent at all (a reliable send is still queued)
+                if (f.isDone() && reliable == null) {
+                    if (snapshots != null) snapshots.unsent(dest, msg);
+                    return;
+                }
+                DeliveryResult result;
+                try {
+                    if (reliable != null) {
+                        DeliveryResult.Status status = reliable.send(dest, msg)
+                                ? DeliveryResult.Status.DELIVERED : DeliveryResult.Status.QUEUED;
+                        result = new DeliveryResult(dest, status, System.nanoTime() - start, null);
+                    } else {
+                        transport.sendEncoded(dest, msg, encoded, broadcastTimeoutMs);
+                        result = new DeliveryResult(dest, DeliveryResult.Status.DELIVERED, System.nanoTime() - start, null);
+                    }
+                } catch (Exception e) {
+                    if (snapshots != null && reliable == null) snapshots.unsent(dest, msg); // not written
+                    result = new DeliveryResult(dest, DeliveryResult.Status.FAILED, System.nanoTime() - start, e.getMessage());
+                }
+                f.complete(result);
+            });
+            f.completeOnTimeout(
+                    new DeliveryResult(dest, DeliveryResult.Status.TIMED_OUT, TimeUnit.MILLISECONDS.toNanos(broadcastTimeoutMs), null),
+                    broadcastTimeoutMs, TimeUnit.MILLISECONDS);
+            pending.put(dest, f);
         }
+        return CompletableFuture.allOf(pending.values().toArray(new CompletableFuture<?>[0]))
+                .thenApply(ignored -> {
+                    Map<Integer, DeliveryResult> results = new TreeMap<>();
+                    pending.forEach((dest, f) -> results.put(dest, f.join()));
+                    return results;
+                });
+    }
+
+    /** Broadcast to a peer the failure detector suspects: queued with reliable=true, skipped otherwise. */
+    private DeliveryResult sendToSuspected(int dest, Message msg) {
+        if (reliable == null) return new DeliveryResult(dest, DeliveryResult.Status.SKIPPED, 0, "suspected");
+        long start = System.nanoTime();
+        try {
+            reliable.send(dest, msg, false);
+            return new DeliveryResult(dest, DeliveryResult.Status.QUEUED, System.nanoTime() - start, "suspected");
+        } catch (Exception e) {
+            return new DeliveryResult(dest, DeliveryResult.Status.FAILED, System.nanoTime() - start, e.getMessage());
+        }
+    }
+
+    /**
+     * True when onNetworkReceive may offer the inbox more than the message it got: causal,
+     * total-order and reliable delivery release held-back messages along with it.
+     */
+    public boolean releasesHeldBack() {
+        return causal != null || total != null || reliable != null;
+    }
+
+    public Inbox inbox() {
+        return inbox;
+    }
+
+    /** @return the total-order state, or null unless delivery=total */
+    public TotalOrderDelivery totalOrder() {
+        return total;
+    }
+
+    public Metrics metrics() {
+        return metrics;
+    }
+
+    /** Direct read buffers of the inbound connections (recv.buffer.kb, recv.buffer.pool). */
+    public BufferPool buffers() {
+        return buffers;
+    }
+
+    /** compress.* settings; inbound connections use its dictionary to inflate compressed records. */
+    public Compression compression() {
+        return compression;
+    }
+
+    /** @return the reliable delivery state, or null unless reliable=true */
+    public ReliableDelivery reliable() {
+        return reliable;
+    }
+
+    /** @return the failure detector, or null unless fd=true */
+    public FailureDetector failureDetector() {
+        return fd;
+    }
+
+    /** @return the gossip state, or null unless broadcast=gossip */
+    public GossipBroadcast gossip() {
+        return gossip;
+    }
+
+    /** @return the distributed locks, or null unless lock is set */
+    public DistributedLock locks() {
+        return locks;
+    }
+
+    /** @return the snapshot protocol, or null unless snapshot=true */
+    public SnapshotProtocol snapshots() {
+        return snapshots;
+    }
+
+    /**
+     * Takes a consistent global snapshot of the cluster (snapshot=true), see SnapshotProtocol.
+     * Not from a message handler or inside atomically(): that throws IllegalStateException.
+     */
+    public CompletableFuture<Snapshot> snapshot() {
+        if (snapshots == null) throw new IllegalStateException("snapshot=true is not set");
+        return snapshots.initiate();
+    }
+
+    /** @return the write-ahead log, or null unless wal.dir is set */
+    public MessageLog wal() {
+        return wal;
+    }
+
+    /**
+     * Reprocesses the logged RECEIVED messages with seq >= fromSeq: they go through the inbox
+     * to the processor again, without touching the clocks or the log.
+     * @return the number of messages queued
+     */
+    public long replay(long fromSeq) throws IOException {
+        if (wal == null) throw new IllegalStateException("no wal.dir configured");
+        long[] queued = {0};
+        wal.replay(fromSeq, r -> {
+            if (r.kind == MessageLog.Kind.RECEIVED) {
+                inbox.offer(r.message);
+                queued[0]++;
+            }
+        });
+        return queued[0];
     }
 
     public void printClocks(String where) {
-        System.out.println("  clocks(" + where + "): lamport=" + lamportClock.get()
-                + " vc=" + vectorClock.snapshotString());
+        System.out.println(clocks(where));
+    }
+
+    private String clocks(String where) {
+        String s = "  clocks(" + where + "): lamport=" + lamportClock.get() + " vc=" + vectorClock.snapshotString();
+        if (causal != null) {
+            s += "\n  causal: delivered=" + causal.deliveredString() + " held-back=" + causal.heldBack();
+        }
+        if (total != null) {
+            s += "\n  total-order: " + total.stats();
+        }
+        if (fd != null) {
+            s += "\n  members: " + fd.membership();
+        }
+        if (reliable != null) {
+            s += "\n  reliable: " + reliable.stats();
+        }
+        if (wal != null) {
+            s += "\n  wal: " + wal.stats();
+        }
+        if (snapshots != null) {
+            s += "\n  snapshots: " + snapshots.stats();
+        }
+        if (gossip != null) {
+            s += "\n  gossip: " + gossip.stats();
+        }
+        if (locks != null) {
+            s += "\n  locks: " + locks.stats();
+        }
+        return s;
     }
 
     public void shutdown() {
-        running = false;
         close();
         System.out.println("[Node " + myId + "] Shutdown.");
     }
 
     @Override
     public void close() {
-        try { server.close(); } catch (Exception ignored) {}
+        transport.close();
+        inbox.close();
+        if (acker != null) acker.shutdownNow();
+        if (reliable != null) reliable.close();
+        if (fd != null) fd.close();
+        if (snapshots != null) snapshots.close();
+        if (gossip != null) gossip.close();
+        if (locks != null) locks.close();
+        if (dumper != null) dumper.shutdownNow();
+        sendExecutor.shutdownNow();
+        if (wal != null) wal.close();
+        log.close();
+        if (mbeanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+            } catch (Exception ignored) {}
+            mbeanName = null;
+        }
     }
 }
@@ -0,0 +1,178 @@
+package semaine3;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Bounded send queue for one peer, drained by a writer thread that coalesces frames
+ * (application-level Nagle).
+ *
+ * The writer takes the first queued frame, then keeps collecting until one of:
+ *  - batch.max.count frames (default 256),
+ *  - batch.max.bytes bytes (default 65536),
+ *  - batch.linger.ms elapsed since the first frame (default 1; 0 = only what is already queued),
+ * and writes the whole batch with a single flush.
+ *
+ * Backpressure: when batch.queue.capacity frames (default 10000) are waiting, enqueue blocks
+ * for up to batch.block.ms (default 5000) and then fails.
+ *
+ * enqueueAndWait fails only for a frame that is not written: on timeout it withdraws the frame
+ * if the writer has not taken it yet, and otherwise waits for the write's outcome.
+ */
+final class OutboundQueue implements AutoCloseable {
+    static final class Settings {
+        final int maxCount;
+        final int maxBytes;
+        final long lingerNanos;
+        final int capacity;
+        final long blockMs;
+
+        Settings(Config config) {
+            this.maxCount = config.intOption("batch.max.count", 256);
+            this.maxBytes = config.intOption("batch.max.bytes", 64 * 1024);
+            this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(config.intOption("batch.linger.ms", 1));
+            this.capacity = config.intOption("batch.queue.capacity", 10_000);
+            this.blockMs = config.intOption("batch.block.ms", 5000);
+        }
+    }
+
+    static final class Pending {
+        final Message msg;    // encoded by the connection when frame is null (wire=delta)
+        final byte[] frame;
+        final int bytes;      // frame size, estimated when not encoded yet
+        final CompletableFuture<Void> done; // null when nobody waits for the write
+        final AtomicBoolean claimed = new AtomicBoolean(); // by the writer, or by a timed-out waiter
+
+        Pending(Message msg, byte[] frame, CompletableFuture<Void> done) {
+            this.msg = msg;
+            this.frame = frame;
+            this.bytes = frame != null ? frame.length : 16 + msg.payloadLength();
+            this.done = done;
+        }
+    }
+
+    private final PeerConnections.PeerConnection connection;
+    private final Settings settings;
+    private final BlockingQueue<Pending> queue;
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    OutboundQueue(PeerConnections.PeerConnection connection, Settings settings, ThreadMode threads) {
+        this.connection = connection;
+        this.settings = settings;
+        this.queue = new ArrayBlockingQueue<>(settings.capacity);
+        this.writer = threads.factory("writer-" + connection.info).newThread(this::drain);
+        this.writer.start();
+    }
+
+    /** Queues a frame (msg, or its encoding when not null); blocks while the queue is full (backpressure). */
+    void enqueue(Message msg, byte[] frame) throws IOException {
+        put(new Pending(msg, frame, null), settings.blockMs);
+    }
+
+    /** Queues a frame and waits until it has been written (or waitMs passed). */
+    void enqueueAndWait(Message msg, byte[] frame, long waitMs) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMs);
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        Pending p = new Pending(msg, frame, done);
+        put(p, waitMs);
+        try {
+            try {
+                done.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                if (p.claimed.compareAndSet(false, true)) {
+                    throw new IOException("write to " + connection.info + " timed out, not sent");
+                }
+                done.get(); // the writer has it: the outcome comes with its write
+            }
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted");
+        }
+    }
+
+    int depth() {
+        return queue.size();
+    }
+
+    private void put(Pending p, long waitMs) throws IOException {
+        if (!running) throw new IOException("queue to " + connection.info + " closed");
+        try {
+            if (!queue.offer(p, waitMs, TimeUnit.MILLISECONDS)) {
+                throw new IOException("send queue to " + connection.info + " full");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted");
+        }
+    }
+
+    private void drain() {
+        List<Pending> batch = new ArrayList<>();
+        while (running) {
+            try {
+                Pending first = queue.take();
+                batch.add(first);
+                int bytes = first.bytes;
+                long deadline = System.nanoTime() + settings.lingerNanos;
+                while (batch.size() < settings.maxCount && bytes < settings.maxBytes) {
+                    Pending next = queue.poll();
+                    if (next == null) {
+                        long left = deadline - System.nanoTime();
+                        if (left <= 0) break;
+                        next = queue.poll(left, TimeUnit.NANOSECONDS);
+                        if (next == null) break;
+                    }
+                    batch.add(next);
+                    bytes += next.bytes;
+                }
+                write(batch);
+                batch.clear();
+            } catch (InterruptedException e) {
+                break; // closing; a partially collected batch is kept and written below
+            }
+        }
+        // closing: flush what is left, best effort
+        queue.drainTo(batch);
+        if (!batch.isEmpty()) write(batch);
+    }
+
+    private void write(List<Pending> batch) {
+        batch.removeIf(p -> !p.claimed.compareAndSet(false, true)); // withdrawn by a timed-out waiter
+        if (batch.isEmpty()) return;
+        try {
+            connection.sendBatch(batch);
+            for (Pending p : batch) {
+                if (p.done != null) p.done.complete(null);
+            }
+        } catch (IOException e) {
+            System.err.println("[Writer] send error to " + connection.info + ": " + e.getMessage()
+                    + " (" + batch.size() + " message(s) dropped)");
+            for (Pending p : batch) {
+                if (p.done != null) p.done.completeExceptionally(e);
+            }
+        }
+    }
+
+    /** Stops accepting frames, lets the writer flush what is queued, then returns. */
+    @Override
+    public void close() {
+        running = false;
+        writer.interrupt();
+        try {
+            writer.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
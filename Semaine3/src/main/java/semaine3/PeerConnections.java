@@ -0,0 +1,378 @@
+package semaine3;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps one long-lived TCP connection per peer and streams messages over it.
+ *
+ * Rules:
+ *  - The connection is opened lazily on the first send to a peer.
+ *  - A broken connection is dropped and re-opened once before the error is reported. Only the
+ *    frames the old socket had not taken are written again, so none is sent twice.
+ *  - The wire format (Config option "wire") is announced when the connection opens;
+ *    text connections send no preamble, so older peers keep working.
+ *  - With batch=true, sends go through a bounded per-peer OutboundQueue whose writer
+ *    coalesces queued frames into one write + flush (none for the node itself, which is
+ *    written to directly).
+ *  - With wire=delta, frames depend on what was sent before on the connection, so they are
+ *    encoded when written (under the connection lock), never ahead of time.
+ *  - With compress=true (binary and delta only), the frames of each flush go through the
+ *    connection's Compression.Encoder, which decides whether to compress them.
+ */
+public final class PeerConnections implements AutoCloseable {
+    static final int CONNECT_TIMEOUT_MS = 2000;
+
+    private final Config config;
+    private final PeerConnection[] peers;
+    private final OutboundQueue[] queues; // null when batching is off
+    private final WireFormat wire;
+    private final Metrics metrics;
+    private final Compression compression; // null unless compress=true
+
+    public PeerConnections(Config config) {
+        this(config, new Metrics(config.n()), -1);
+    }
+
+    /** @param self this node's id (no queue nor writer thread for it), -1 when not a node */
+    public PeerConnections(Config config, Metrics metrics, int self) {
+        this.config = config;
+        this.peers = new PeerConnection[config.n()];
+        this.wire = config.wireFormat();
+        this.metrics = metrics;
+        Compression c = Compression.of(config);
+        if (c.enabled && wire == WireFormat.TEXT) {
+            throw new IllegalArgumentException("compress=true needs wire=binary or wire=delta");
+        }
+        this.compression = c.enabled ? c : null;
+        for (int i = 0; i < peers.length; i++) {
+            peers[i] = new PeerConnection(i, config.get(i), wire, metrics, compression);
+        }
+        if (Boolean.parseBoolean(config.option("batch", "false"))) {
+            OutboundQueue.Settings settings = new OutboundQueue.Settings(config);
+            ThreadMode threads = config.threadMode();
+            queues = new OutboundQueue[peers.length];
+            for (int i = 0; i < peers.length; i++) {
+                if (i != self) queues[i] = new OutboundQueue(peers[i], settings, threads);
+            }
+        } else {
+            queues = null;
+        }
+    }
+
+    /**
+     * Sends one message. With batching the message is only queued: this returns once it is
+     * accepted (blocking while the peer's queue is full) and write errors are logged later.
+     */
+    public void send(int destId, Message msg) throws IOException {
+        if (queues != null && queues[destId] != null) {
+            queues[destId].enqueue(msg, encode(msg));
+        } else {
+            peers[destId].send(msg, null, -1);
+        }
+    }
+
+    /**
+     * Encodes a message once in the configured wire format, for sendEncoded to several peers.
+     * @return null with wire=delta, where every connection encodes the message itself
+     */
+    public byte[] encode(Message msg) {
+        if (wire == WireFormat.DELTA) return null;
+        long start = System.nanoTime();
+        byte[] encoded;
+        if (wire == WireFormat.BINARY) {
+            ByteBuffer buf = ByteBuffer.allocate(BinaryCodec.maxFrameSize(msg));
+            BinaryCodec.encode(msg, buf);
+            encoded = Arrays.copyOf(buf.array(), buf.position());
+        } else {
+            encoded = (msg.serialize() + "\n").getBytes(StandardCharsets.UTF_8);
+        }
+        metrics.serialize.recordSince(start);
+        return encoded;
+    }
+
+    /**
+     * Sends msg, as the bytes produced by encode(msg) when not null. Gives up after waitMs if
+     * another send to the same peer is still in progress (e.g. stuck connecting), instead of
+     * queueing behind it.
+     * @throws IOException only if msg was not written (a frame the socket took is not sent again)
+     */
+    public void sendEncoded(int destId, Message msg, byte[] encoded, long waitMs) throws IOException {
+        if (queues != null && queues[destId] != null) {
+            queues[destId].enqueueAndWait(msg, encoded, waitMs);
+        } else {
+            peers[destId].send(msg, encoded, waitMs);
+        }
+    }
+
+    public int n() { return config.n(); }
+
+    /** System.nanoTime() of the last flush to peer, 0 if never written (FailureDetector). */
+    public long lastWriteNanos(int peer) {
+        return peers[peer].lastWrite;
+    }
+
+    /** Number of flushes (~ write syscalls) done on all connections so far. */
+    public long flushCount() {
+        long total = 0;
+        for (PeerConnection p : peers) total += p.flushes;
+        return total;
+    }
+
+    @Override
+    public void close() {
+        if (queues != null) {
+            for (OutboundQueue q : queues) {
+                if (q != null) q.close();
+            }
+        }
+        for (PeerConnection p : peers) p.close();
+    }
+
+    /**
+     * One reconnecting connection. Writes are serialized so frames never interleave.
+     * A ReentrantLock rather than synchronized: the lock is held across blocking socket
+     * writes, and a virtual thread blocked inside a monitor would pin its carrier.
+     */
+    static final class PeerConnection {
+        final int id;
+        final Config.NodeInfo info;
+        private final WireFormat wire;
+        private final Metrics metrics;
+        private Socket socket;
+        private OutputStream out;
+        private Counting written; // bytes written to out on the current socket
+        private Counting taken;   // of those, bytes the socket took (the rest is in out's buffer)
+        private ByteBuffer frame = ByteBuffer.allocate(1024);
+        private VectorDelta delta; // wire=delta: vectors sent on the current socket
+        private final Compression.Encoder encoder; // null unless compress=true
+        private boolean closed;
+        private final ReentrantLock lock = new ReentrantLock();
+        volatile long flushes;
+        volatile long lastWrite;
+
+        PeerConnection(int id, Config.NodeInfo info, WireFormat wire, Metrics metrics, Compression compression) {
+            this.id = id;
+            this.info = info;
+            this.wire = wire;
+            this.metrics = metrics;
+            this.encoder = compression == null ? null : compression.encoder(metrics);
+        }
+
+        /** Sends encoded when not null, msg otherwise. waitMs < 0 waits forever. */
+        void send(Message msg, byte[] encoded, long waitMs) throws IOException {
+            acquire(waitMs);
+            try {
+                if (closed) throw new IOException("connection to " + info + " closed");
+                long end = 0;
+                try {
+                    write(msg, encoded);
+                    end = frameEnd();
+                    flush();
+                } catch (IOException first) {
+                    // Stale connection (peer restarted, idle reset...): reconnect once.
+                    if (taken(end)) return; // went out whole before the error: not twice
+                    disconnect();
+                    write(msg, encoded);
+                    flush();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** Writes several queued frames and flushes once. */
+        void sendBatch(List<OutboundQueue.Pending> batch) throws IOException {
+            lock.lock();
+            try {
+                if (closed) throw new IOException("connection to " + info + " closed");
+                long[] ends = new long[batch.size()];
+                try {
+                    for (int i = 0; i < batch.size(); i++) {
+                        write(batch.get(i).msg, batch.get(i).frame);
+                        ends[i] = frameEnd();
+                    }
+                    flush();
+                } catch (IOException first) {
+                    int from = 0;
+                    while (from < batch.size() && taken(ends[from])) from++;
+                    if (from == batch.size()) return;
+                    disconnect();
+                    Arrays.fill(ends, from, ends.length, 0);
+                    try {
+                        for (int i = from; i < batch.size(); i++) {
+                            write(batch.get(i).msg, batch.get(i).frame);
+                            ends[i] = frameEnd();
+                        }
+                        flush();
+                    } catch (IOException e) {
+                        // frames the socket took are sent: only the others fail with e
+                        for (int i = 0; i < batch.size() && (i < from || taken(ends[i])); i++) {
+                            if (batch.get(i).done != null) batch.get(i).done.complete(null);
+                        }
+                        throw e;
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** Where the frame just written ends in the stream, 0 if unknown (staged for compression). */
+        private long frameEnd() {
+            return encoder == null ? written.count : 0;
+        }
+
+        /** True when the socket took the whole frame ending at end (the peer may have it). */
+        private boolean taken(long end) {
+            return end > 0 && end <= taken.count;
+        }
+
+        private void acquire(long waitMs) throws IOException {
+            if (waitMs < 0) {
+                lock.lock();
+                return;
+            }
+            try {
+                if (!lock.tryLock(waitMs, TimeUnit.MILLISECONDS)) {
+                    throw new IOException("connection to " + info + " busy");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted");
+            }
+        }
+
+        private void write(Message msg, byte[] encoded) throws IOException {
+            if (out == null) connect();
+            try {
+                if (encoded != null) {
+                    writeFrame(encoded, encoded.length);
+                } else if (wire != WireFormat.TEXT) {
+                    long start = System.nanoTime();
+                    ByteBuffer buf = frameBuffer(BinaryCodec.maxFrameSize(msg, delta));
+                    BinaryCodec.encode(msg, buf, delta);
+                    metrics.serialize.recordSince(start);
+                    writeFrame(buf.array(), buf.position());
+                } else {
+                    long start = System.nanoTime();
+                    byte[] line = msg.serialize().getBytes(StandardCharsets.UTF_8);
+                    metrics.serialize.recordSince(start);
+                    out.write(line);
+                    out.write('\n');
+                    metrics.sent(id, line.length + 1);
+                }
+            } catch (IOException e) {
+                disconnect();
+                throw e;
+            }
+        }
+
+        /** Writes one binary frame, or stages it for the next flush when compressing. */
+        private void writeFrame(byte[] frame, int length) throws IOException {
+            if (encoder != null) {
+                encoder.add(frame, 0, length);
+                metrics.sent(id, 0); // bytes counted by flush(), once compressed
+            } else {
+                out.write(frame, 0, length);
+                metrics.sent(id, length);
+            }
+        }
+
+        private void flush() throws IOException {
+            try {
+                if (encoder != null) metrics.bytesOut(encoder.writeTo(out));
+                out.flush();
+                flushes++;
+                lastWrite = System.nanoTime();
+            } catch (IOException e) {
+                disconnect();
+                throw e;
+            }
+        }
+
+        private ByteBuffer frameBuffer(int size) {
+            if (frame.capacity() < size) frame = ByteBuffer.allocate(Math.max(size, frame.capacity() * 2));
+            frame.clear();
+            return frame;
+        }
+
+        private void connect() throws IOException {
+            long start = System.nanoTime();
+            Socket s = new Socket();
+            try {
+                s.setTcpNoDelay(true);
+                s.connect(new InetSocketAddress(info.host, info.port), CONNECT_TIMEOUT_MS);
+                taken = new Counting(s.getOutputStream());
+                written = new Counting(new BufferedOutputStream(taken, 64 * 1024));
+                out = written;
+                int compressed = encoder == null ? 0 : BinaryCodec.COMPRESSED;
+                if (wire == WireFormat.BINARY) {
+                    out.write(BinaryCodec.MAGIC);
+                    out.write(BinaryCodec.VERSION | compressed);
+                } else if (wire == WireFormat.DELTA) {
+                    out.write(BinaryCodec.MAGIC);
+                    out.write(BinaryCodec.VERSION_DELTA | compressed);
+                    delta = new VectorDelta();
+                }
+                if (encoder != null) encoder.reset(); // the receiver starts a new stream too
+                socket = s;
+                metrics.connect.recordSince(start);
+            } catch (IOException e) {
+                out = null;
+                try { s.close(); } catch (IOException ignored) {}
+                throw e;
+            }
+        }
+
+        private void disconnect() {
+            try {
+                if (socket != null) socket.close();
+            } catch (IOException ignored) {}
+            socket = null;
+            out = null;
+        }
+
+        void close() {
+            lock.lock();
+            try {
+                closed = true;
+                disconnect();
+                if (encoder != null) encoder.end();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /** Counts the bytes that went through (a write that throws counts nothing). */
+    private static final class Counting extends FilterOutputStream {
+        long count;
+
+        Counting(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
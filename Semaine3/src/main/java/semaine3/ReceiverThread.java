@@ -1,17 +1,24 @@
 package semaine3;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.net.Socket;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 
 /**
- * Receives messages from a socket (line-based protocol).
+ * Receives messages from a socket.
+ * The first byte tells the format: BinaryCodec.MAGIC starts a binary connection,
+ * anything else is the line-based text protocol (see FrameDecoder).
  * For each received message:
  *  - update Lamport clock
  *  - update Vector clock
  *  - enqueue the message for processing (printing/demo)
+ *
+ * Bytes are read from the socket's channel into a direct buffer taken from node.buffers() for
+ * the lifetime of the connection and decoded in place: no line String, no per-frame byte[]
+ * besides the payload itself, which is only turned into a String if someone reads it.
+ * Sockets without a channel (not accepted by NetServer) are read through a stream adapter.
  */
 public final class ReceiverThread implements Runnable {
     private final Socket socket;
@@ -24,18 +31,24 @@ public final class ReceiverThread implements Runnable {
 
     @Override
     public void run() {
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
-            String line;
-            while ((line = in.readLine()) != null) {
-                if (line.isBlank()) continue;
-                Message msg = Message.deserialize(line);
-                node.onNetworkReceive(msg);
+        BufferPool pool = node.buffers();
+        ByteBuffer buf = pool.acquire();
+        FrameDecoder decoder = new FrameDecoder(node.metrics(), node.compression());
+        try {
+            ReadableByteChannel in = socket.getChannel() != null
+                    ? socket.getChannel() : Channels.newChannel(socket.getInputStream());
+            while (in.read(buf) >= 0) {
+                buf.flip();
+                decoder.feed(buf, node::onNetworkReceive);
+                buf.clear();
             }
         } catch (IOException e) {
             // normal when peer closes
         } catch (Exception e) {
             System.err.println("[Receiver] Error: " + e.getMessage());
         } finally {
+            pool.release(buf);
+            decoder.close();
             try { socket.close(); } catch (IOException ignored) {}
         }
     }
@@ -0,0 +1,462 @@
+package semaine3;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Exactly-once, FIFO point-to-point delivery over the Transport (reliable=true):
+ * a message that could not be written, or was lost with a broken connection, is sent again
+ * until the peer acknowledges it, and the peer drops the copies it already has.
+ *
+ * Sender, per peer:
+ *  - every message gets the next sequence number and stays in a window until acked; header
+ *    "rs" = epoch:seq:low, epoch = this node's start time, low = the oldest unacked seq;
+ *  - at most reliable.window (1024) unacked messages; send waits up to reliable.block.ms (5000)
+ *    for room, then fails;
+ *  - unacked messages older than the retransmission timeout are sent again by a background
+ *    thread. The timeout starts at reliable.rto.ms (100), doubles after every retransmission
+ *    round up to reliable.rto.max.ms (5000), and goes back to the start on the next ack;
+ *  - a failed write marks the peer down: from then on send only queues the message (no
+ *    connect attempt, no wait) and the retransmissions probe the peer, with the same backoff.
+ * Receiver, per peer:
+ *  - cumulative acks, header "ra" = epoch:upTo, piggybacked on our next message to that peer
+ *    or sent alone reliable.ack.ms (5) after a receive;
+ *  - seq <= delivered is a duplicate and dropped, a later one is held until the gap is filled;
+ *  - a new epoch means the sender restarted: its numbering starts again at its "low";
+ *  - in-order messages are handed on after the peer's lock is released (the deliver callback
+ *    may block on a full inbox, and sends to that peer take the lock for their ack).
+ *
+ * A receiver that restarts forgets what it delivered: the messages it had not acked yet come
+ * again (at-least-once across receiver restarts, exactly-once otherwise).
+ */
+public final class ReliableDelivery implements AutoCloseable {
+    public static final String SEQ = "rs";
+    public static final String ACK = "ra";
+
+    private final int myId;
+    private final String epoch;
+    private final Transport transport;
+    private final LamportClock lamport;
+    private final VectorClock vector;
+    private final int window;
+    private final long blockMs;
+    private final long rtoMinMs;
+    private final long rtoMaxMs;
+    private final long ackMs;
+    private final long writeWaitMs;
+    private final Outbound[] outbound;
+    private final Inbound[] inbound;
+    private final ScheduledExecutorService timer;
+    private final ExecutorService retransmitter;
+
+    /** Sender state for one peer. */
+    private static final class Outbound {
+        final ReentrantLock lock = new ReentrantLock();
+        final Condition room = lock.newCondition();
+        final ArrayDeque<Pending> unacked = new ArrayDeque<>();
+        final AtomicBoolean busy = new AtomicBoolean(); // a retransmission round is running
+        long nextSeq = 1;
+        long rtoMs;
+        volatile boolean down;
+        long sent;
+        long retransmitted;
+    }
+
+    private static final class Pending {
+        final long seq;
+        final Message msg;
+        volatile long sentAt;
+
+        Pending(long seq, Message msg) {
+            this.seq = seq;
+            this.msg = msg;
+        }
+    }
+
+    /** Receiver state for one peer. */
+    private static final class Inbound {
+        final ReentrantLock lock = new ReentrantLock();
+        final TreeMap<Long, Message> early = new TreeMap<>();
+        final ArrayDeque<Message> ready = new ArrayDeque<>(); // in order, not handed out yet (lock held)
+        final ReentrantLock delivering = new ReentrantLock();
+        String epoch;
+        long delivered;
+        boolean ackDue;
+        boolean ackArmed;
+        long duplicates;
+    }
+
+    public ReliableDelivery(Config config, int myId, Transport transport, LamportClock lamport, VectorClock vector) {
+        this.myId = myId;
+        this.epoch = Long.toString(System.currentTimeMillis(), 36);
+        this.transport = transport;
+        this.lamport = lamport;
+        this.vector = vector;
+        this.window = config.intOption("reliable.window", 1024);
+        this.blockMs = config.intOption("reliable.block.ms", 5000);
+        this.rtoMinMs = config.intOption("reliable.rto.ms", 100);
+        this.rtoMaxMs = config.intOption("reliable.rto.max.ms", 5000);
+        this.ackMs = config.intOption("reliable.ack.ms", 5);
+        this.writeWaitMs = config.intOption("broadcast.timeout.ms", 1000);
+        this.outbound = new Outbound[config.n()];
+        this.inbound = new Inbound[config.n()];
+        for (int i = 0; i < outbound.length; i++) {
+            outbound[i] = new Outbound();
+            outbound[i].rtoMs = rtoMinMs;
+            inbound[i] = new Inbound();
+        }
+        ThreadMode threads = config.threadMode();
+        this.timer = Executors.newSingleThreadScheduledExecutor(threads.factory("reliable-" + myId));
+        this.retransmitter = threads.perTaskExecutor("retransmit-" + myId);
+        long tick = Math.max(1, rtoMinMs / 4);
+        timer.scheduleWithFixedDelay(this::checkTimeouts, tick, tick, TimeUnit.MILLISECONDS);
+    }
+
+    // ---- sender ----
+
+    /**
+     * Numbers msg, keeps it until destId acks it, and writes it unless the peer is down.
+     * @return true if written now, false if only queued (peer down or write failed):
+     *         the retransmissions will deliver it
+     * @throws IOException when the window stayed full for reliable.block.ms
+     */
+    public boolean send(int destId, Message msg) throws IOException {
+        return send(destId, msg, true);
+    }
+
+    /** Same as send(destId, msg), but only queues the message when writeNow is false (peer suspected). */
+    public boolean send(int destId, Message msg, boolean writeNow) throws IOException {
+        Outbound out = outbound[destId];
+        Pending p;
+        out.lock.lock();
+        try {
+            long waitNanos = TimeUnit.MILLISECONDS.toNanos(blockMs);
+            while (out.unacked.size() >= window) {
+                if (waitNanos <= 0) throw new IOException("window to peer " + destId + " full (" + window + " unacked)");
+                try {
+                    waitNanos = out.room.awaitNanos(waitNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted");
+                }
+            }
+            p = new Pending(out.nextSeq++, msg);
+            p.sentAt = System.nanoTime();
+            out.unacked.addLast(p);
+            out.sent++;
+            if (out.down || !writeNow) return false;
+        } finally {
+            out.lock.unlock();
+        }
+        return transmit(destId, out, p);
+    }
+
+    private boolean transmit(int destId, Outbound out, Pending p) {
+        long low;
+        out.lock.lock();
+        try {
+            Pending first = out.unacked.peekFirst();
+            if (first == null || first.seq > p.seq) return true; // acked meanwhile
+            low = first.seq;
+        } finally {
+            out.lock.unlock();
+        }
+        Map<String, String> headers = new LinkedHashMap<>(p.msg.headers);
+        headers.put(SEQ, epoch + ":" + p.seq + ":" + low);
+        String ack = takeAck(destId);
+        if (ack != null) headers.put(ACK, ack);
+        Message wire = p.msg.withHeaders(headers);
+        p.sentAt = System.nanoTime();
+        try {
+            transport.sendEncoded(destId, wire, null, writeWaitMs);
+            out.down = false;
+            return true;
+        } catch (IOException e) {
+            if (!out.down) System.err.println("[Node " + myId + "] peer " + destId + " down: " + e.getMessage());
+            out.down = true;
+            return false;
+        }
+    }
+
+    /** Timer tick: starts a retransmission round for every peer whose oldest message timed out. */
+    private void checkTimeouts() {
+        long now = System.nanoTime();
+        for (int dest = 0; dest < outbound.length; dest++) {
+            Outbound out = outbound[dest];
+            out.lock.lock();
+            try {
+                Pending first = out.unacked.peekFirst();
+                if (first == null || now - first.sentAt < TimeUnit.MILLISECONDS.toNanos(out.rtoMs)) continue;
+            } finally {
+                out.lock.unlock();
+            }
+            if (!out.busy.compareAndSet(false, true)) continue;
+            int d = dest;
+            try {
+                retransmitter.execute(() -> retransmit(d, out));
+            } catch (RuntimeException e) {
+                out.busy.set(false); // shutting down
+            }
+        }
+    }
+
+    /** Resends everything still unacked, in order; stops at the first failed write. */
+    private void retransmit(int destId, Outbound out) {
+        try {
+            List<Pending> round;
+            out.lock.lock();
+            try {
+                round = new ArrayList<>(out.unacked);
+                out.rtoMs = Math.min(rtoMaxMs, out.rtoMs * 2);
+            } finally {
+                out.lock.unlock();
+            }
+            long resent = 0;
+            for (Pending p : round) {
+                resent++;
+                if (!transmit(destId, out, p)) {
+                    // a down peer is probed once per timeout: push the whole window to the next round
+                    long now = System.nanoTime();
+                    for (Pending q : round) q.sentAt = now;
+                    break;
+                }
+            }
+            out.lock.lock();
+            try {
+                out.retransmitted += resent;
+            } finally {
+                out.lock.unlock();
+            }
+        } finally {
+            out.busy.set(false);
+        }
+    }
+
+    private void onAck(int from, String value) {
+        int colon = value.indexOf(':');
+        if (colon < 0 || !value.substring(0, colon).equals(epoch)) return; // ack for a previous run of ours
+        long upTo = Long.parseLong(value.substring(colon + 1));
+        Outbound out = outbound[from];
+        out.lock.lock();
+        try {
+            boolean progress = false;
+            while (!out.unacked.isEmpty() && out.unacked.peekFirst().seq <= upTo) {
+                out.unacked.pollFirst();
+                progress = true;
+            }
+            if (progress) {
+                out.rtoMs = rtoMinMs;
+                out.down = false;
+                out.room.signalAll();
+            }
+        } finally {
+            out.lock.unlock();
+        }
+    }
+
+    // ---- receiver ----
+
+    /**
+     * Applies the ack and sequence number of a message from a peer and passes on what can be
+     * delivered, in order; duplicates and pure acks are consumed here. Messages without the
+     * headers (a peer without reliable=true) are passed on as they are.
+     */
+    public void receive(Message msg, Consumer<Message> deliver) {
+        int from = msg.senderId;
+        if (from < 0 || from >= inbound.length) return;
+        String ack = msg.header(ACK);
+        if (ack != null) onAck(from, ack);
+        String seqHeader = msg.header(SEQ);
+        if (seqHeader == null) {
+            if (ack == null) deliver.accept(msg);
+            return;
+        }
+        String[] parts = seqHeader.split(":");
+        if (parts.length != 3) throw new IllegalArgumentException("bad " + SEQ + " header: " + seqHeader);
+        long seq = Long.parseLong(parts[1]);
+        long low = Long.parseLong(parts[2]);
+
+        Inbound in = inbound[from];
+        boolean arm;
+        in.lock.lock();
+        try {
+            if (!parts[0].equals(in.epoch)) {
+                in.epoch = parts[0];
+                in.delivered = low - 1;
+                in.early.clear();
+            }
+            if (seq <= in.delivered) {
+                in.duplicates++;
+            } else if (seq == in.delivered + 1) {
+                in.ready.add(msg);
+                in.delivered = seq;
+                Message next;
+                while ((next = in.early.remove(in.delivered + 1)) != null) {
+                    in.ready.add(next);
+                    in.delivered++;
+                }
+            } else if (seq - in.delivered <= window && in.early.putIfAbsent(seq, msg) != null) {
+                in.duplicates++;
+            }
+            // beyond the window: dropped, the sender will retransmit it
+            in.ackDue = true;
+            arm = !in.ackArmed;
+            in.ackArmed = true;
+        } finally {
+            in.lock.unlock();
+        }
+        if (arm) timer.schedule(() -> sendAck(from), ackMs, TimeUnit.MILLISECONDS);
+        deliverReady(in, deliver);
+    }
+
+    /**
+     * Hands in's ready messages to deliver, in order, without holding in.lock. A thread that
+     * finds another one delivering leaves its messages to it (see TotalOrderDelivery.deliverReady).
+     */
+    private static void deliverReady(Inbound in, Consumer<Message> deliver) {
+        while (in.delivering.tryLock()) {
+            try {
+                Message m;
+                while ((m = pollReady(in)) != null) deliver.accept(m);
+            } finally {
+                in.delivering.unlock();
+            }
+            in.lock.lock();
+            try {
+                if (in.ready.isEmpty()) return;
+            } finally {
+                in.lock.unlock();
+            }
+        }
+    }
+
+    private static Message pollReady(Inbound in) {
+        in.lock.lock();
+        try {
+            return in.ready.poll();
+        } finally {
+            in.lock.unlock();
+        }
+    }
+
+    /** @return the ack to piggyback for peer, or null if none is due */
+    private String takeAck(int peer) {
+        Inbound in = inbound[peer];
+        in.lock.lock();
+        try {
+            if (!in.ackDue) return null;
+            in.ackDue = false;
+            return in.epoch + ":" + in.delivered;
+        } finally {
+            in.lock.unlock();
+        }
+    }
+
+    private void sendAck(int peer) {
+        Inbound in = inbound[peer];
+        in.lock.lock();
+        try {
+            in.ackArmed = false;
+        } finally {
+            in.lock.unlock();
+        }
+        String ack = takeAck(peer);
+        if (ack == null) return; // piggybacked meanwhile
+        Message msg = new Message("", myId, lamport.get(), vector.snapshot(), Collections.singletonMap(ACK, ack));
+        try {
+            transport.sendEncoded(peer, msg, null, writeWaitMs);
+        } catch (IOException e) {
+            // the sender retransmits and the next receive arms a new ack
+        }
+    }
+
+    public String stats() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < outbound.length; i++) {
+            if (i == myId) continue;
+            Outbound out = outbound[i];
+            Inbound in = inbound[i];
+            out.lock.lock();
+            in.lock.lock();
+            try {
+                if (sb.length() > 0) sb.append("; ");
+                sb.append(i).append(out.down ? "(down)" : "")
+                        .append(": sent=").append(out.sent)
+                        .append(" unacked=").append(out.unacked.size())
+                        .append(" retransmitted=").append(out.retransmitted)
+                        .append(" rto=").append(out.rtoMs).append("ms")
+                        .append(" delivered=").append(in.delivered)
+                        .append(" held=").append(in.early.size())
+                        .append(" dups=").append(in.duplicates);
+            } finally {
+                in.lock.unlock();
+                out.lock.unlock();
+            }
+        }
+        return sb.toString();
+    }
+
+    /** @return true when peer is marked down (its last write failed and nothing was acked since) */
+    public boolean isDown(int peer) {
+        return outbound[peer].down;
+    }
+
+    /** Messages sent to peer and not acked yet. */
+    public int unacked(int peer) {
+        Outbound out = outbound[peer];
+        out.lock.lock();
+        try {
+            return out.unacked.size();
+        } finally {
+            out.lock.unlock();
+        }
+    }
+
+    /** Retransmissions to all peers so far. */
+    public long retransmitted() {
+        long total = 0;
+        for (Outbound out : outbound) {
+            out.lock.lock();
+            try {
+                total += out.retransmitted;
+            } finally {
+                out.lock.unlock();
+            }
+        }
+        return total;
+    }
+
+    /** Duplicates dropped from all peers so far. */
+    public long duplicates() {
+        long total = 0;
+        for (Inbound in : inbound) {
+            in.lock.lock();
+            try {
+                total += in.duplicates;
+            } finally {
+                in.lock.unlock();
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public void close() {
+        timer.shutdownNow();
+        retransmitter.shutdownNow();
+    }
+}
@@ -2,12 +2,19 @@ package semaine3;
 
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Simple CLI for the demo:
  *   send <destId> <message>
  *   broadcast <message>
  *   clocks
+ *   inbox
+ *   metrics
+ *   members
+ *   replay [fromSeq]
+ *   snapshot
+ *   lock <name> / unlock <name>
  *   quit
  */
 public final class SenderThread implements Runnable {
@@ -23,6 +30,12 @@ public final class SenderThread implements Runnable {
         System.out.println("  send <destId> <message>");
         System.out.println("  broadcast <message>");
         System.out.println("  clocks");
+        System.out.println("  inbox");
+        System.out.println("  metrics");
+        System.out.println("  members");
+        System.out.println("  replay [fromSeq]");
+        System.out.println("  snapshot");
+        System.out.println("  lock <name> / unlock <name>");
         System.out.println("  quit");
         try (BufferedReader br = new BufferedReader(new InputStreamReader(System.in))) {
             String line;
@@ -40,6 +53,61 @@ public final class SenderThread implements Runnable {
                     continue;
                 }
 
+                if (line.equalsIgnoreCase("inbox")) {
+                    System.out.println("  inbox: " + node.inbox().stats());
+                    continue;
+                }
+
+                if (line.equalsIgnoreCase("metrics")) {
+                    System.out.println(node.metrics().report());
+                    continue;
+                }
+
+                if (line.equalsIgnoreCase("members")) {
+                    FailureDetector fd = node.failureDetector();
+                    System.out.println(fd == null ? "members needs fd=true in the config" : "  members: " + fd.membership());
+                    continue;
+                }
+
+                if (line.equalsIgnoreCase("replay") || line.startsWith("replay ")) {
+                    String[] parts = line.split("\\s+");
+                    long from = parts.length > 1 ? Long.parseLong(parts[1]) : 0;
+                    if (node.wal() == null) {
+                        System.out.println("replay needs wal.dir in the config");
+                    } else {
+                        System.out.println("  replayed " + node.replay(from) + " message(s) from seq " + from);
+                    }
+                    continue;
+                }
+
+                if (line.equalsIgnoreCase("snapshot")) {
+                    if (node.snapshots() == null) {
+                        System.out.println("snapshot needs snapshot=true in the config");
+                    } else {
+                        node.snapshot().whenComplete((s, e) ->
+                                System.out.println(e == null ? s.toString() : "  snapshot failed: " + e.getMessage()));
+                    }
+                    continue;
+                }
+
+                if (line.startsWith("lock ") || line.startsWith("unlock ")) {
+                    String[] parts = line.split("\\s+", 2);
+                    DistributedLock locks = node.locks();
+                    if (locks == null) {
+                        System.out.println(parts[0] + " needs lock=ra or lock=token in the config");
+                    } else if (parts[0].equals("lock")) {
+                        // waits at most 10 s so the CLI does not hang on a dead peer
+                        boolean ok = locks.tryAcquire(parts[1], 10, TimeUnit.SECONDS);
+                        System.out.println(ok ? "  locked " + parts[1] : "  lock " + parts[1] + " timed out");
+                    } else if (!locks.isHeld(parts[1])) {
+                        System.out.println("  " + parts[1] + " is not held here");
+                    } else {
+                        locks.release(parts[1]);
+                        System.out.println("  unlocked " + parts[1]);
+                    }
+                    continue;
+                }
+
                 if (line.startsWith("send ")) {
                     String[] parts = line.split("\\s+", 3);
                     if (parts.length < 3) {
@@ -57,7 +125,7 @@ public final class SenderThread implements Runnable {
                     continue;
                 }
 
-                System.out.println("Unknown command. Try: send, broadcast, clocks, quit");
+                System.out.println("Unknown command. Try: send, broadcast, clocks, inbox, metrics, members, replay, snapshot, lock, unlock, quit");
             }
         } catch (Exception e) {
             System.err.println("[Sender] Error: " + e.getMessage());
@@ -0,0 +1,299 @@
+package semaine3;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.ConnectException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Same-host transport (transport=shm): every node owns a ring buffer in a memory-mapped file,
+ * shm.dir/ring-<port> (shm.dir defaults to /dev/shm when it exists, so the file never hits a
+ * disk), and its peers write BinaryCodec frames straight into it; no socket, no system call
+ * per message.
+ *
+ * Ring file: a header (magic, closed flag, capacity, head, tail on their own cache lines) then
+ * shm.ring.kb (4096) KiB of data. Records are an int length then the frame body, 8-byte aligned.
+ * Rules:
+ *  - producers (any process) claim space with a CAS on the tail, copy the body, then publish
+ *    the record by writing its length last (release); a record that would cross the end of the
+ *    ring is preceded by a padding record (negative length) up to the end;
+ *  - the owner's receiver thread reads records in order, decodes them, zeroes them and moves the
+ *    head (release), which frees the space for producers; when idle it spins, then parks for
+ *    shm.idle.us (50) at a time, since another process cannot wake it;
+ *  - a full ring makes the producer wait (backpressure), up to waitMs for sendEncoded;
+ *  - the owner creates a fresh file on start (renamed over the old one, so a producer still
+ *    mapping the old ring is not cut off under its feet) and marks it closed and deletes it on
+ *    close; a producer that sees its peer's ring closed maps the new one, or fails like a refused
+ *    connection when there is none. A crashed owner leaves its ring open: what is written to it
+ *    is lost, as with a half-open TCP connection.
+ */
+public final class SharedMemoryTransport implements Transport {
+    private static final int MAGIC = 0x53484D31; // "SHM1"
+    private static final int MAGIC_OFFSET = 0;
+    private static final int CLOSED_OFFSET = 4;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int HEAD_OFFSET = 64;
+    private static final int TAIL_OFFSET = 128;
+    private static final int DATA = 192;
+
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+    private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private final int myId;
+    private final Node node;
+    private final Path[] files;
+    private final int capacity;
+    private final long idleNanos;
+    private final Ring[] peers; // mapped lazily, replaced when the peer restarts
+    private final ReentrantLock peersLock = new ReentrantLock();
+    private final AtomicLongArray lastWrite;
+    private final Thread receiver;
+    private Ring own;
+    private volatile boolean running;
+
+    public SharedMemoryTransport(Config config, int myId, Node node) {
+        this.myId = myId;
+        this.node = node;
+        Path devShm = Paths.get("/dev/shm");
+        String defaultDir = Files.isDirectory(devShm) ? devShm.resolve("semaine3").toString()
+                : Paths.get(System.getProperty("java.io.tmpdir"), "semaine3-shm").toString();
+        Path dir = Paths.get(config.option("shm.dir", defaultDir));
+        this.files = new Path[config.n()];
+        for (int i = 0; i < files.length; i++) files[i] = dir.resolve("ring-" + config.get(i).port);
+        this.capacity = Integer.highestOneBit(Math.max(64, config.intOption("shm.ring.kb", 4096)) * 1024);
+        this.idleNanos = TimeUnit.MICROSECONDS.toNanos(config.intOption("shm.idle.us", 50));
+        this.peers = new Ring[config.n()];
+        this.lastWrite = new AtomicLongArray(config.n());
+        this.receiver = config.threadMode().factory("shm-" + myId).newThread(this::receive);
+    }
+
+    /** One mapped ring file. */
+    private static final class Ring {
+        final MappedByteBuffer buf;
+        final int capacity;
+        final int mask;
+
+        Ring(MappedByteBuffer buf, int capacity) {
+            this.buf = buf;
+            this.capacity = capacity;
+            this.mask = capacity - 1;
+        }
+
+        boolean closed() {
+            return (int) INT.getVolatile(buf, CLOSED_OFFSET) != 0;
+        }
+
+        static Ring create(Path file, int capacity) throws IOException {
+            Files.createDirectories(file.getParent());
+            Path tmp = file.resolveSibling(file.getFileName() + ".new");
+            MappedByteBuffer buf;
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                buf = ch.map(FileChannel.MapMode.READ_WRITE, 0, DATA + capacity); // zero-filled
+            }
+            buf.putInt(CAPACITY_OFFSET, capacity);
+            INT.setRelease(buf, MAGIC_OFFSET, MAGIC);
+            markClosed(file); // producers of a previous run move on to the new file
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return new Ring(buf, capacity);
+        }
+
+        static Ring open(Path file) throws IOException {
+            MappedByteBuffer buf;
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                if (ch.size() < DATA) throw new ConnectException("no ring at " + file);
+                buf = ch.map(FileChannel.MapMode.READ_WRITE, 0, ch.size());
+            } catch (NoSuchFileException e) {
+                throw new ConnectException("no ring at " + file);
+            }
+            int capacity = buf.getInt(CAPACITY_OFFSET);
+            if ((int) INT.getAcquire(buf, MAGIC_OFFSET) != MAGIC || Integer.bitCount(capacity) != 1
+                    || DATA + (long) capacity != buf.capacity()) {
+                throw new ConnectException("bad ring file " + file);
+            }
+            Ring ring = new Ring(buf, capacity);
+            if (ring.closed()) throw new ConnectException("ring " + file + " closed");
+            return ring;
+        }
+
+        static void markClosed(Path file) {
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                if (ch.size() < DATA) return;
+                MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_WRITE, 0, DATA);
+                INT.setVolatile(buf, CLOSED_OFFSET, 1);
+            } catch (IOException ignored) {
+                // no previous ring
+            }
+        }
+
+        /** Producer side. @return false when there is no room for the frame right now */
+        boolean offer(byte[] frame) {
+            int len = frame.length - 4;
+            int size = align(frame.length);
+            while (true) {
+                long tail = (long) LONG.getVolatile(buf, TAIL_OFFSET);
+                long head = (long) LONG.getVolatile(buf, HEAD_OFFSET);
+                int idx = (int) (tail & mask);
+                int toEnd = capacity - idx;
+                long need = toEnd < size ? toEnd + size : size;
+                if (tail + need - head > capacity) return false;
+                if (!LONG.compareAndSet(buf, TAIL_OFFSET, tail, tail + need)) continue;
+                if (toEnd < size) {
+                    INT.setRelease(buf, DATA + idx, -toEnd);
+                    idx = 0;
+                }
+                buf.put(DATA + idx + 4, frame, 4, len);
+                INT.setRelease(buf, DATA + idx, len); // publish
+                return true;
+            }
+        }
+    }
+
+    private static int align(int bytes) {
+        return (bytes + 7) & ~7;
+    }
+
+    @Override
+    public void start() throws IOException {
+        own = Ring.create(files[myId], capacity);
+        running = true;
+        receiver.start();
+        System.out.println("[Server] Listening on " + files[myId] + " (shm, " + (capacity / 1024) + " KiB ring)");
+    }
+
+    private void receive() {
+        ByteBuffer buf = own.buf;
+        ByteBuffer view = buf.duplicate();
+        Metrics metrics = node.metrics();
+        long head = (long) LONG.getVolatile(buf, HEAD_OFFSET);
+        int idle = 0;
+        while (running) {
+            int idx = (int) (head & own.mask);
+            int len = (int) INT.getAcquire(buf, DATA + idx);
+            if (len == 0) {
+                if (++idle < 200) {
+                    Thread.onSpinWait();
+                } else {
+                    LockSupport.parkNanos(idleNanos);
+                }
+                continue;
+            }
+            idle = 0;
+            int size;
+            if (len < 0) {
+                size = -len; // padding up to the end of the ring
+            } else {
+                if (len > capacity - 4 - idx) {
+                    System.err.println("[Receiver] Error: corrupt ring record of " + len + " bytes, ring dropped");
+                    return;
+                }
+                size = align(4 + len);
+                view.limit(DATA + idx + 4 + len).position(DATA + idx + 4);
+                try {
+                    long start = System.nanoTime();
+                    Message msg = BinaryCodec.decodeBody(view);
+                    metrics.deserialize.recordSince(start);
+                    metrics.bytesIn(4 + len);
+                    node.onNetworkReceive(msg);
+                } catch (Exception e) {
+                    System.err.println("[Receiver] Error: " + e.getMessage());
+                }
+            }
+            for (int i = 0; i < size; i += 8) buf.putLong(DATA + idx + i, 0L);
+            head += size;
+            LONG.setRelease(buf, HEAD_OFFSET, head);
+        }
+    }
+
+    @Override
+    public void send(int destId, Message msg) throws IOException {
+        sendEncoded(destId, msg, encode(msg), -1);
+    }
+
+    /** A BinaryCodec frame: int length then body, shared by every peer of a broadcast. */
+    @Override
+    public byte[] encode(Message msg) {
+        long start = System.nanoTime();
+        ByteBuffer buf = ByteBuffer.allocate(BinaryCodec.maxFrameSize(msg));
+        BinaryCodec.encode(msg, buf);
+        byte[] frame = Arrays.copyOf(buf.array(), buf.position());
+        node.metrics().serialize.recordSince(start);
+        return frame;
+    }
+
+    @Override
+    public void sendEncoded(int destId, Message msg, byte[] encoded, long waitMs) throws IOException {
+        byte[] frame = encoded != null ? encoded : encode(msg);
+        if (align(frame.length) > capacity / 2) {
+            throw new IOException("message of " + frame.length + " bytes too large for a " + capacity + " byte ring");
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, waitMs));
+        int spins = 0;
+        while (true) {
+            Ring ring = ring(destId);
+            if (ring.offer(frame)) break;
+            if (waitMs >= 0 && System.nanoTime() - deadline > 0) throw new IOException("ring of node " + destId + " full");
+            if (++spins < 100) {
+                Thread.onSpinWait();
+            } else {
+                LockSupport.parkNanos(10_000);
+            }
+        }
+        lastWrite.lazySet(destId, System.nanoTime());
+        node.metrics().sent(destId, frame.length);
+    }
+
+    /** The peer's current ring, mapped again when its owner restarted. */
+    private Ring ring(int peer) throws IOException {
+        Ring ring = peers[peer];
+        if (ring != null && !ring.closed()) return ring;
+        peersLock.lock();
+        try {
+            ring = peers[peer];
+            if (ring == null || ring.closed()) {
+                peers[peer] = null;
+                ring = Ring.open(files[peer]);
+                peers[peer] = ring;
+            }
+            return ring;
+        } finally {
+            peersLock.unlock();
+        }
+    }
+
+    @Override
+    public long lastWriteNanos(int peer) {
+        return lastWrite.get(peer);
+    }
+
+    @Override
+    public void close() {
+        boolean wasRunning = running;
+        running = false;
+        if (!wasRunning) return;
+        try {
+            receiver.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        INT.setVolatile(own.buf, CLOSED_OFFSET, 1);
+        try {
+            Files.deleteIfExists(files[myId]);
+        } catch (IOException ignored) {}
+    }
+}
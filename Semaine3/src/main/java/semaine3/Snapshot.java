@@ -0,0 +1,117 @@
+package semaine3;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A consistent global snapshot assembled by SnapshotProtocol: one Local per node. The nodes
+ * recorded their part at different times, but together the parts form a consistent cut:
+ * every message a node recorded as received was recorded as sent by its sender, and every
+ * message recorded as sent is either received, undelivered or in a channel.
+ */
+public final class Snapshot {
+    public final int id;
+    public final int initiator;
+    /** From the initiator's recording to the last part received, on the initiator. */
+    public final long durationNanos;
+    /** One per node, by node id. */
+    public final List<Local> nodes;
+
+    Snapshot(int id, int initiator, long durationNanos, List<Local> nodes) {
+        this.id = id;
+        this.initiator = initiator;
+        this.durationNanos = durationNanos;
+        this.nodes = Collections.unmodifiableList(nodes);
+    }
+
+    /** What one node recorded. */
+    public static final class Local {
+        public final int nodeId;
+        public final int lamport;
+        public final int[] vectorClock;
+        /** Application state (Node.onSnapshot), "" if none. */
+        public final String state;
+        /** Received (clocks updated) but not processed yet, still in the inbox or held back. */
+        public final List<Message> undelivered;
+        /** Peer -> messages it had sent to this node that were still in flight at the cut. */
+        public final Map<Integer, List<Message>> channels;
+
+        Local(int nodeId, int lamport, int[] vectorClock, String state, List<Message> undelivered,
+              Map<Integer, List<Message>> channels) {
+            this.nodeId = nodeId;
+            this.lamport = lamport;
+            this.vectorClock = vectorClock;
+            this.state = state;
+            this.undelivered = undelivered;
+            this.channels = channels;
+        }
+
+        public int inFlight() {
+            int total = 0;
+            for (List<Message> c : channels.values()) total += c.size();
+            return total;
+        }
+
+        /**
+         * Text form sent to the initiator: "lamport vc", one line per message ("u " undelivered,
+         * "c " in flight, Message.serialize), then a line "s" and the state as is.
+         */
+        String encode() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(lamport).append(' ').append(Message.encodeVector(vectorClock)).append('\n');
+            for (Message m : undelivered) sb.append("u ").append(m.serialize()).append('\n');
+            for (List<Message> c : channels.values()) {
+                for (Message m : c) sb.append("c ").append(m.serialize()).append('\n');
+            }
+            return sb.append("s\n").append(state).toString();
+        }
+
+        static Local decode(int nodeId, String text) {
+            int end = text.indexOf('\n');
+            String first = text.substring(0, end);
+            int space = first.indexOf(' ');
+            int lamport = Integer.parseInt(first.substring(0, space));
+            int[] vc = Message.decodeVector(first.substring(space + 1));
+            List<Message> undelivered = new ArrayList<>();
+            Map<Integer, List<Message>> channels = new TreeMap<>();
+            while (true) {
+                int start = end + 1;
+                end = text.indexOf('\n', start);
+                if (end < 0) throw new IllegalArgumentException("snapshot part without state");
+                String line = text.substring(start, end);
+                if (line.equals("s")) break;
+                Message m = Message.deserialize(line.substring(2));
+                if (line.startsWith("u ")) {
+                    undelivered.add(m);
+                } else {
+                    channels.computeIfAbsent(m.senderId, k -> new ArrayList<>()).add(m);
+                }
+            }
+            return new Local(nodeId, lamport, vc, text.substring(end + 1), undelivered, channels);
+        }
+    }
+
+    /** Messages in flight in all channels. */
+    public int inFlight() {
+        int total = 0;
+        for (Local l : nodes) total += l.inFlight();
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("snapshot " + id + " (initiator " + initiator + ", "
+                + Math.round(durationNanos / 1e4) / 100.0 + " ms, " + inFlight() + " in flight)");
+        for (Local l : nodes) {
+            sb.append("\n  node ").append(l.nodeId).append(": lamport=").append(l.lamport)
+              .append(" vc=").append(Message.encodeVector(l.vectorClock))
+              .append(" undelivered=").append(l.undelivered.size())
+              .append(" in-flight=").append(l.inFlight());
+            if (!l.state.isEmpty()) sb.append(" state=").append(l.state);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,492 @@
+package semaine3;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Consistent global snapshots (Chandy-Lamport), snapshot=true: traffic keeps flowing while a
+ * snapshot is taken, and the initiator assembles the parts as they come back.
+ *
+ * Snapshots are numbered 1, 2, ...; a node's epoch is the last one it recorded.
+ * Rules:
+ *  - recording snapshot k: the node saves its clocks, its application state (Node.onSnapshot)
+ *    and the messages it received but has not processed yet, sets epoch = k and sends a marker
+ *    to every peer on the same connections as the traffic (header "cl" = "m:k:count:initiator");
+ *  - the initiator records first; any other node records when the first marker of k reaches
+ *    it, or before processing a message sent after its sender recorded k, whichever comes first;
+ *  - application messages carry the sender's epoch once there is one (header "sn"), so a
+ *    receiver tells messages sent before the cut from messages sent after it;
+ *  - channel j -> me of snapshot k: the messages from j sent before k (sn < k) that arrive after
+ *    I recorded k. Broadcasts are written concurrently and reliable=true retransmits, so the
+ *    marker may overtake them: it carries the number of messages j sent me before recording,
+ *    and the channel is complete when that many have arrived, not when the marker does;
+ *  - once every channel is complete the node sends its part (Snapshot.Local, header "cl" =
+ *    "p:k") to the initiator(s); the snapshot is complete when every node's part is in.
+ *
+ * Recording is atomic with respect to sends and receives: they stamp and count a message under
+ * the read side of a lock, recording takes the write side for the time it copies the state, so
+ * traffic only pauses for that copy; nothing waits on a connection under that lock. Code that
+ * changes the application state together with a send (take money out, send it) wraps both in
+ * atomically(), like message handlers are.
+ *
+ * A send without reliable=true that fails, or a broadcast dropped on timeout, is counted and then
+ * uncounted again (unsent), so the following snapshots do not wait for it. A snapshot recorded in
+ * between already sent a marker counting it: that channel cannot complete, the snapshot fails after
+ * snapshot.timeout.ms (10000). With batch=true a send returns once queued; a frame the writer
+ * drops after that is not uncounted, and fails the snapshots the same way.
+ * Config option snapshot.every.ms > 0 makes node 0 take one that often and print it.
+ */
+public final class SnapshotProtocol implements AutoCloseable {
+    public static final String HEADER = "cl";
+    public static final String EPOCH_HEADER = "sn";
+
+    private final int myId;
+    private final int n;
+    private final LamportClock lamport;
+    private final VectorClock vector;
+    private final Transport transport;
+    private final ReliableDelivery reliable; // null unless reliable=true
+    private final ScheduledExecutorService executor;
+    private final long timeoutMs;
+    private final long sendWaitMs;
+
+    private final ReentrantReadWriteLock cut = new ReentrantReadWriteLock();
+    private final AtomicLongArray sent;      // per peer: messages stamped for it
+    private final AtomicLongArray received;  // per peer: messages accepted from it
+    private final Set<Message> undelivered = ConcurrentHashMap.newKeySet();
+    private final ThreadLocal<List<Runnable>> deferred = new ThreadLocal<>(); // writes of the current atomically()
+    private volatile int epoch;
+    private volatile Supplier<String> state = () -> "";
+    private volatile Consumer<Snapshot> listener;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final TreeMap<Integer, Recording> open = new TreeMap<>();   // recorded, channels not complete
+    private final Map<Integer, Assembly> assemblies = new HashMap<>(); // initiated here, parts not all in
+    private volatile boolean recording; // !open.isEmpty()
+    private volatile Snapshot last;
+    private long completed;
+    private long failed;
+
+    public SnapshotProtocol(Config config, int myId, Transport transport, ReliableDelivery reliable,
+                            LamportClock lamport, VectorClock vector) {
+        this.myId = myId;
+        this.n = config.n();
+        this.lamport = lamport;
+        this.vector = vector;
+        this.transport = transport;
+        this.reliable = reliable;
+        this.timeoutMs = config.intOption("snapshot.timeout.ms", 10_000);
+        this.sendWaitMs = config.intOption("broadcast.timeout.ms", 1000);
+        this.sent = new AtomicLongArray(n);
+        this.received = new AtomicLongArray(n);
+        this.executor = Executors.newSingleThreadScheduledExecutor(config.threadMode().factory("snapshot-" + myId));
+        long every = config.intOption("snapshot.every.ms", 0);
+        if (every > 0 && myId == 0) {
+            executor.scheduleWithFixedDelay(() -> initiate().thenAccept(s -> System.out.println("[Node " + myId + "] " + s)),
+                    every, every, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** One snapshot recorded here whose channels are still being recorded. */
+    private final class Recording {
+        final int id;
+        final long startedAt = System.nanoTime();
+        final int lamportTs = lamport.get();
+        final int[] vectorClock = vector.snapshot();
+        final String appState = state.get();
+        final List<Message> pending = new ArrayList<>(undelivered);
+        final long[] before = new long[n];   // accepted from each peer when recorded
+        final long[] expected = new long[n]; // from each peer's marker, -1 until it arrives
+        final List<List<Message>> channels = new ArrayList<>(n);
+        final boolean[] complete = new boolean[n];
+        final Set<Integer> initiators = new TreeSet<>();
+        int remaining = n - 1;
+
+        Recording(int id) {
+            this.id = id;
+            for (int i = 0; i < n; i++) {
+                before[i] = received.get(i);
+                expected[i] = -1;
+                channels.add(i == myId ? Collections.emptyList() : new ArrayList<>());
+            }
+        }
+
+        /** @return true when this made the last channel complete */
+        boolean check(int peer) {
+            if (complete[peer] || expected[peer] < 0 || before[peer] + channels.get(peer).size() < expected[peer]) {
+                return false;
+            }
+            complete[peer] = true;
+            return --remaining == 0;
+        }
+
+        Snapshot.Local local() {
+            Map<Integer, List<Message>> c = new TreeMap<>();
+            for (int i = 0; i < n; i++) {
+                if (!channels.get(i).isEmpty()) c.put(i, channels.get(i));
+            }
+            return new Snapshot.Local(myId, lamportTs, vectorClock, appState, pending, c);
+        }
+    }
+
+    /** Parts of a snapshot initiated here. */
+    private static final class Assembly {
+        final CompletableFuture<Snapshot> future = new CompletableFuture<>();
+        final long startedAt = System.nanoTime();
+        final Snapshot.Local[] parts;
+        int missing;
+
+        Assembly(int n) {
+            this.parts = new Snapshot.Local[n];
+            this.missing = n;
+        }
+    }
+
+    /** Application state recorded with every snapshot; runs while sends and receives wait, keep it short. */
+    public void onSnapshot(Supplier<String> state) {
+        this.state = state;
+    }
+
+    /** Called with every snapshot initiated here once it is complete. */
+    public void onComplete(Consumer<Snapshot> listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Runs action as one event for the snapshots: no snapshot is recorded in the middle of it.
+     * Node.send called inside is stamped there but written when action returns, so no thread
+     * waits on a connection (or on ReliableDelivery, which receives under its own locks) while
+     * it holds a recording back. The action must not call initiate() (Node.snapshot()): that
+     * would wait for the write side while holding the read side, so initiate() throws there.
+     */
+    public void atomically(Runnable action) {
+        if (deferred.get() != null) {
+            action.run(); // nested
+            return;
+        }
+        List<Runnable> writes = new ArrayList<>();
+        deferred.set(writes);
+        try {
+            cut.readLock().lock();
+            try {
+                action.run();
+            } finally {
+                cut.readLock().unlock();
+                deferred.remove();
+            }
+        } finally {
+            for (Runnable w : writes) w.run(); // stamped and counted: must be written
+        }
+    }
+
+    /** @return false outside atomically(), where the caller writes at once */
+    boolean defer(Runnable write) {
+        List<Runnable> writes = deferred.get();
+        if (writes == null) return false;
+        writes.add(write);
+        return true;
+    }
+
+    public static boolean isSnapshot(Message msg) {
+        return msg.header(HEADER) != null;
+    }
+
+    // --- send side (Node): enter, stamp + sent() per destination, exit ---
+
+    /** @return the epoch to stamp messages with, until exit() */
+    int enter() {
+        cut.readLock().lock();
+        return epoch;
+    }
+
+    void exit() {
+        cut.readLock().unlock();
+    }
+
+    /** The message counts as sent to dest before the next snapshot. Between enter() and exit(). */
+    void sent(int dest) {
+        sent.incrementAndGet(dest);
+    }
+
+    /** msg, counted by sent(dest), was not written: it no longer counts. Outside enter()/exit(). */
+    void unsent(int dest, Message msg) {
+        int stamped = epochOf(msg);
+        cut.readLock().lock();
+        try {
+            sent.decrementAndGet(dest);
+            if (epoch > stamped) {
+                System.err.println("[Node " + myId + "] message to " + dest + " not sent after snapshot(s) "
+                        + (stamped + 1) + ".." + epoch + " counted it: their channel will not complete");
+            }
+        } finally {
+            cut.readLock().unlock();
+        }
+    }
+
+    static Message stamp(Message msg, int epoch) {
+        return epoch == 0 ? msg : msg.withHeader(EPOCH_HEADER, Integer.toString(epoch));
+    }
+
+    // --- receive side (Node.accept): enterReceive, clocks, received(), exit ---
+
+    /** Records the snapshot msg was sent after, if not yet, then enter(). */
+    void enterReceive(Message msg) {
+        int sentIn = epochOf(msg);
+        if (sentIn > epoch) record(sentIn, false);
+        cut.readLock().lock();
+    }
+
+    /**
+     * msg was accepted (clocks updated); toInbox when it will be processed (not a total-order ack).
+     * Between enterReceive() and exit().
+     */
+    void received(Message msg, boolean toInbox) {
+        int from = msg.senderId;
+        received.incrementAndGet(from);
+        if (toInbox) undelivered.add(msg);
+        if (!recording) return;
+        int sentIn = epochOf(msg);
+        List<Recording> done = null;
+        lock.lock();
+        try {
+            for (Recording r : open.tailMap(sentIn, false).values()) { // the cuts it was sent before
+                if (r.complete[from]) continue;
+                r.channels.get(from).add(msg);
+                if (r.check(from)) {
+                    if (done == null) done = new ArrayList<>();
+                    done.add(r);
+                }
+            }
+            if (done != null) close(done);
+        } finally {
+            lock.unlock();
+        }
+        if (done != null) for (Recording r : done) report(r);
+    }
+
+    /** msg was processed (Node.process), it is part of the application state now. */
+    void delivered(Message msg) {
+        undelivered.remove(msg);
+    }
+
+    private static int epochOf(Message msg) {
+        String e = msg.header(EPOCH_HEADER);
+        return e == null ? 0 : Integer.parseInt(e);
+    }
+
+    // --- protocol ---
+
+    /**
+     * Takes a snapshot of the whole cluster, completed when every node's part is in.
+     * @throws IllegalStateException inside atomically() or a message handler (see atomically)
+     */
+    public CompletableFuture<Snapshot> initiate() {
+        if (cut.getReadHoldCount() > 0) {
+            throw new IllegalStateException("snapshot cannot be initiated inside atomically() or a message handler");
+        }
+        Assembly a = new Assembly(n);
+        int id;
+        cut.writeLock().lock();
+        try {
+            id = epoch + 1;
+            lock.lock();
+            try {
+                assemblies.put(id, a);
+            } finally {
+                lock.unlock();
+            }
+            record(id, true);
+        } finally {
+            cut.writeLock().unlock();
+        }
+        executor.schedule(() -> expire(id), timeoutMs, TimeUnit.MILLISECONDS);
+        return a.future;
+    }
+
+    /** Records every snapshot up to k not recorded yet (same state for all) and sends their markers. */
+    private void record(int k, boolean initiator) {
+        List<Recording> recorded = new ArrayList<>();
+        long[] counts = new long[n];
+        cut.writeLock().lock();
+        try {
+            if (k <= epoch) return;
+            for (int id = epoch + 1; id <= k; id++) recorded.add(new Recording(id));
+            for (int i = 0; i < n; i++) counts[i] = sent.get(i);
+            epoch = k;
+            lock.lock();
+            try {
+                dropExpired();
+                for (Recording r : recorded) {
+                    if (initiator) r.initiators.add(myId);
+                    open.put(r.id, r);
+                }
+                recording = true;
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            cut.writeLock().unlock();
+        }
+        executor.execute(() -> {
+            for (Recording r : recorded) {
+                for (int peer = 0; peer < n; peer++) {
+                    if (peer == myId) continue;
+                    send(peer, "m:" + r.id + ":" + counts[peer] + ":" + (initiator ? 1 : 0), "");
+                }
+            }
+        });
+        if (n == 1) {
+            lock.lock();
+            try {
+                close(recorded);
+            } finally {
+                lock.unlock();
+            }
+            for (Recording r : recorded) report(r);
+        }
+    }
+
+    /** Markers and parts, from Node.accept (not application messages: no clocks, not counted). */
+    void receive(Message msg) {
+        String[] parts = msg.header(HEADER).split(":");
+        int id = Integer.parseInt(parts[1]);
+        int from = msg.senderId;
+        if (parts[0].equals("p")) {
+            part(id, Snapshot.Local.decode(from, msg.payload()));
+            return;
+        }
+        if (id > epoch) record(id, false);
+        Recording done = null;
+        lock.lock();
+        try {
+            Recording r = open.get(id);
+            if (r == null) return; // expired
+            if (parts[3].equals("1")) r.initiators.add(from);
+            r.expected[from] = Long.parseLong(parts[2]);
+            if (r.check(from)) {
+                done = r;
+                close(Collections.singletonList(r));
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (done != null) report(done);
+    }
+
+    /** Under lock. */
+    private void close(List<Recording> done) {
+        for (Recording r : done) open.remove(r.id);
+        recording = !open.isEmpty();
+    }
+
+    /** Under lock: recordings older than snapshot.timeout.ms will never complete. */
+    private void dropExpired() {
+        long now = System.nanoTime();
+        Iterator<Recording> it = open.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().startedAt > TimeUnit.MILLISECONDS.toNanos(timeoutMs)) it.remove();
+        }
+    }
+
+    /** Sends this node's part of a complete recording to its initiator(s). */
+    private void report(Recording r) {
+        Snapshot.Local local = r.local();
+        for (int initiator : r.initiators) {
+            if (initiator == myId) {
+                part(r.id, local);
+            } else {
+                String text = local.encode();
+                executor.execute(() -> send(initiator, "p:" + r.id, text));
+            }
+        }
+    }
+
+    private void part(int id, Snapshot.Local local) {
+        Assembly a;
+        lock.lock();
+        try {
+            a = assemblies.get(id);
+            if (a == null || a.parts[local.nodeId] != null) return;
+            a.parts[local.nodeId] = local;
+            if (--a.missing > 0) return;
+            assemblies.remove(id);
+            completed++;
+        } finally {
+            lock.unlock();
+        }
+        Snapshot s = new Snapshot(id, myId, System.nanoTime() - a.startedAt, List.of(a.parts));
+        last = s;
+        Consumer<Snapshot> l = listener;
+        if (l != null) l.accept(s);
+        a.future.complete(s);
+    }
+
+    private void expire(int id) {
+        Assembly a;
+        lock.lock();
+        try {
+            a = assemblies.remove(id);
+            if (a == null) return;
+            failed++;
+        } finally {
+            lock.unlock();
+        }
+        a.future.completeExceptionally(new TimeoutException("snapshot " + id + ": " + a.missing
+                + " part(s) missing after " + timeoutMs + " ms"));
+    }
+
+    private void send(int peer, String header, String payload) {
+        Message msg = new Message(payload, myId, lamport.get(), vector.snapshot(), Collections.singletonMap(HEADER, header));
+        try {
+            if (reliable != null) {
+                reliable.send(peer, msg);
+            } else {
+                transport.sendEncoded(peer, msg, null, sendWaitMs);
+            }
+        } catch (Exception e) {
+            System.err.println("[Node " + myId + "] snapshot message to " + peer + " failed: " + e.getMessage());
+        }
+    }
+
+    /** @return the last snapshot initiated here that completed, or null */
+    public Snapshot last() {
+        return last;
+    }
+
+    public int epoch() {
+        return epoch;
+    }
+
+    public String stats() {
+        lock.lock();
+        try {
+            return "epoch=" + epoch + " recording=" + open.keySet() + " completed=" + completed + " failed=" + failed
+                    + " undelivered=" + undelivered.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
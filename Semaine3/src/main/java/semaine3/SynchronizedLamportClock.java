@@ -0,0 +1,25 @@
+package semaine3;
+
+/**
+ * Lamport clock guarded by the object monitor (clock=sync, the default).
+ */
+public final class SynchronizedLamportClock implements LamportClock {
+    private int time = 0;
+
+    @Override
+    public synchronized int tick() {
+        time += 1;
+        return time;
+    }
+
+    @Override
+    public synchronized int onReceive(int receivedTs) {
+        time = Math.max(time, receivedTs) + 1;
+        return time;
+    }
+
+    @Override
+    public synchronized int get() {
+        return time;
+    }
+}
@@ -0,0 +1,55 @@
+package semaine3;
+
+import java.util.Arrays;
+
+/**
+ * Vector clock guarded by the object monitor (clock=sync, the default).
+ */
+public final class SynchronizedVectorClock implements VectorClock {
+    private final int[] vc;
+    private final int myId;
+
+    public SynchronizedVectorClock(int n, int myId) {
+        if (n <= 0) throw new IllegalArgumentException("n must be > 0");
+        if (myId < 0 || myId >= n) throw new IllegalArgumentException("invalid myId");
+        this.vc = new int[n];
+        this.myId = myId;
+    }
+
+    @Override
+    public synchronized void tick() {
+        vc[myId] += 1;
+    }
+
+    @Override
+    public synchronized void onReceive(int[] received) {
+        if (received == null || received.length != vc.length) {
+            throw new IllegalArgumentException("bad received vector length");
+        }
+        for (int i = 0; i < vc.length; i++) {
+            vc[i] = Math.max(vc[i], received[i]);
+        }
+        vc[myId] += 1;
+    }
+
+    @Override
+    public synchronized int[] snapshot() {
+        return Arrays.copyOf(vc, vc.length);
+    }
+
+    @Override
+    public synchronized String snapshotString() {
+        return Arrays.toString(vc);
+    }
+
+    @Override
+    public synchronized int[] tickAndSnapshot() {
+        vc[myId] += 1;
+        return Arrays.copyOf(vc, vc.length);
+    }
+
+    @Override
+    public int size() {
+        return vc.length;
+    }
+}
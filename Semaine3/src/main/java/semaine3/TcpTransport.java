@@ -0,0 +1,48 @@
+package semaine3;
+
+import java.io.IOException;
+
+/**
+ * The TCP transport: PeerConnections for what we send (one persistent connection per peer,
+ * wire format and batching from the Config), an InboundServer for what we receive.
+ */
+public final class TcpTransport implements Transport {
+    private final PeerConnections peers;
+    private final InboundServer server;
+
+    public TcpTransport(Config config, int myId, InboundServer server, Metrics metrics) {
+        this.peers = new PeerConnections(config, metrics, myId);
+        this.server = server;
+    }
+
+    @Override
+    public void start() throws IOException {
+        server.start();
+    }
+
+    @Override
+    public void send(int destId, Message msg) throws IOException {
+        peers.send(destId, msg);
+    }
+
+    @Override
+    public byte[] encode(Message msg) {
+        return peers.encode(msg);
+    }
+
+    @Override
+    public void sendEncoded(int destId, Message msg, byte[] encoded, long waitMs) throws IOException {
+        peers.sendEncoded(destId, msg, encoded, waitMs);
+    }
+
+    @Override
+    public long lastWriteNanos(int peer) {
+        return peers.lastWriteNanos(peer);
+    }
+
+    @Override
+    public void close() {
+        try { server.close(); } catch (Exception ignored) {}
+        peers.close();
+    }
+}
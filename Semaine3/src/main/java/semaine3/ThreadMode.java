@@ -0,0 +1,88 @@
+package semaine3;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Which kind of threads run accept, receive, processing and async sends.
+ *  - PLATFORM: classic daemon threads (default).
+ *  - VIRTUAL: one virtual thread per task (JDK 21+). The project still compiles on JDK 17,
+ *    so virtual threads are looked up reflectively; on older JDKs VIRTUAL falls back to PLATFORM.
+ *
+ * Config option: threads=platform|virtual
+ */
+public enum ThreadMode {
+    PLATFORM,
+    VIRTUAL;
+
+    private static final Method OF_VIRTUAL = probeVirtual();
+
+    public static ThreadMode parse(String s) {
+        switch (s.trim().toLowerCase()) {
+            case "platform": return PLATFORM;
+            case "virtual": return VIRTUAL;
+            default: throw new IllegalArgumentException("unknown thread mode: " + s);
+        }
+    }
+
+    public static boolean virtualSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /** VIRTUAL when supported, otherwise PLATFORM (with a warning). */
+    public ThreadMode effective() {
+        if (this == VIRTUAL && !virtualSupported()) {
+            System.err.println("[Threads] virtual threads need JDK 21+, using platform threads");
+            return PLATFORM;
+        }
+        return this;
+    }
+
+    /** Thread factory naming threads prefix-0, prefix-1, ... */
+    public ThreadFactory factory(String prefix) {
+        if (this == VIRTUAL && virtualSupported()) {
+            try {
+                Object builder = OF_VIRTUAL.invoke(null);
+                Class<?> b = Class.forName("java.lang.Thread$Builder");
+                builder = b.getMethod("name", String.class, long.class).invoke(builder, prefix + "-", 0L);
+                return (ThreadFactory) b.getMethod("factory").invoke(builder);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("cannot create virtual thread factory", e);
+            }
+        }
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + "-" + count.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /** Executor starting one thread per task (virtual), or a cached pool (platform). */
+    public ExecutorService perTaskExecutor(String prefix) {
+        ThreadFactory factory = factory(prefix);
+        if (this == VIRTUAL && virtualSupported()) {
+            try {
+                Method m = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+                return (ExecutorService) m.invoke(null, factory);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("cannot create virtual thread executor", e);
+            }
+        }
+        return Executors.newCachedThreadPool(factory);
+    }
+
+    /** Thread.ofVirtual() if it exists and works (it is a preview API on JDK 19/20). */
+    private static Method probeVirtual() {
+        try {
+            Method m = Thread.class.getMethod("ofVirtual");
+            m.invoke(null);
+            return m;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
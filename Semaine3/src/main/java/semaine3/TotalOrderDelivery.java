@@ -0,0 +1,216 @@
+package semaine3;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Total-order multicast with Lamport timestamps: every node delivers the broadcasts in the
+ * same (lamportTs, senderId) order, its own included.
+ *
+ * Rules:
+ *  - a broadcast is queued in a priority queue ordered by (lamportTs, senderId), locally too;
+ *  - the head is delivered once every other node has been seen with a later (ts, id):
+ *    a later broadcast or an ack. Senders number their protocol messages, and a receiver
+ *    applies them in that order, so nothing older from that node can still arrive;
+ *  - acks are batched: receiving broadcasts only arms one ack, sent total.ack.ms later,
+ *    and a broadcast of our own sent in between carries the newer timestamp instead, so the
+ *    ack is skipped. One ack covers everything received so far (not one per message per peer).
+ *
+ * Stable messages are moved to a ready queue under the lock and handed to the deliver callback
+ * outside it, by one thread at a time in that order: the callback (Inbox.offer) may block, and
+ * must not do so while holding this lock or a snapshot cut.
+ *
+ * The "to" header carries "m:seq" (broadcast) or "a:seq" (ack). Enabled with delivery=total.
+ */
+public final class TotalOrderDelivery {
+    public static final String HEADER = "to";
+
+    private static final Comparator<Message> ORDER =
+            Comparator.<Message>comparingInt(m -> m.lamportTs).thenComparingInt(m -> m.senderId);
+
+    private final int myId;
+    private final LamportClock clock;
+    private final PriorityQueue<Message> pending = new PriorityQueue<>(ORDER);
+    private final int[] latest;   // per node: highest Lamport timestamp applied
+    private final int[] applied;  // per node: last protocol sequence number applied
+    private final List<Map<Integer, Message>> early; // per node: sequence number -> message received too early
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<Message> ready = new ArrayDeque<>(); // stable, not handed out yet (lock held)
+    private final ReentrantLock delivering = new ReentrantLock();
+    private int sent;
+    private boolean ackNeeded;
+    private boolean ackArmed;
+    private long delivered;
+    private long acksSent;
+
+    public TotalOrderDelivery(int n, int myId, LamportClock clock) {
+        this.myId = myId;
+        this.clock = clock;
+        this.latest = new int[n];
+        this.applied = new int[n];
+        this.early = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) early.add(new HashMap<>());
+    }
+
+    public static boolean isTotal(Message msg) {
+        return msg.header(HEADER) != null;
+    }
+
+    public static boolean isAck(Message msg) {
+        String h = msg.header(HEADER);
+        return h != null && h.startsWith("a:");
+    }
+
+    /**
+     * Stamps a broadcast (ticks the Lamport clock) and queues it locally. What became stable is
+     * delivered by the next deliverReady() call.
+     * @return the message to send to every peer
+     */
+    public Message multicast(String payload, int[] vectorClock) {
+        lock.lock();
+        try {
+            Message msg = new Message(payload, myId, clock.tick(), vectorClock)
+                    .withHeader(HEADER, "m:" + (++sent));
+            ackNeeded = false; // this broadcast acks everything received so far
+            pending.add(msg);
+            moveStable();
+            return msg;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Applies a broadcast or ack from a peer, then delivers what became stable.
+     * The Lamport clock must already have merged msg.lamportTs.
+     * @return true when an ack must be scheduled (see ack())
+     */
+    public boolean receive(Message msg, Consumer<Message> deliver) {
+        String h = msg.header(HEADER);
+        int seq = Integer.parseInt(h.substring(2));
+        int j = msg.senderId;
+        boolean armed = false;
+        lock.lock();
+        try {
+            if (seq <= applied[j]) return false; // duplicate
+            if (seq != applied[j] + 1) {
+                early.get(j).putIfAbsent(seq, msg);
+                return false;
+            }
+            apply(msg);
+            Message next;
+            while ((next = early.get(j).remove(applied[j] + 1)) != null) apply(next);
+            moveStable();
+            if (ackNeeded && !ackArmed) {
+                ackArmed = true;
+                armed = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+        deliverReady(deliver);
+        return armed;
+    }
+
+    private void apply(Message msg) {
+        int j = msg.senderId;
+        applied[j]++;
+        latest[j] = msg.lamportTs;
+        if (msg.header(HEADER).startsWith("m:")) {
+            pending.add(msg);
+            ackNeeded = true;
+        }
+    }
+
+    /**
+     * Called when an armed ack is due.
+     * @return the ack to send to every peer, or null when a broadcast already carried it
+     */
+    public Message ack(int[] vectorClock) {
+        lock.lock();
+        try {
+            ackArmed = false;
+            if (!ackNeeded) return null;
+            ackNeeded = false;
+            acksSent++;
+            return new Message("", myId, clock.tick(), vectorClock).withHeader(HEADER, "a:" + (++sent));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** lock held */
+    private void moveStable() {
+        Message head;
+        while ((head = pending.peek()) != null && stable(head)) {
+            pending.poll();
+            delivered++;
+            ready.add(head);
+        }
+    }
+
+    /**
+     * Hands the ready messages to deliver, in order, without holding the lock. If another thread
+     * is already delivering, it delivers these too and this returns at once (so a processor
+     * thread that broadcasts never waits for a receiver blocked on the full inbox it drains).
+     */
+    public void deliverReady(Consumer<Message> deliver) {
+        while (delivering.tryLock()) {
+            try {
+                Message m;
+                while ((m = pollReady()) != null) deliver.accept(m);
+            } finally {
+                delivering.unlock();
+            }
+            lock.lock();
+            try {
+                if (ready.isEmpty()) return; // else added after our last poll, by a thread that saw us delivering
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private Message pollReady() {
+        lock.lock();
+        try {
+            return ready.poll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Every other node has been seen past head, so nothing can be ordered before it anymore. */
+    private boolean stable(Message head) {
+        for (int k = 0; k < latest.length; k++) {
+            if (k == myId) continue;
+            if (latest[k] < head.lamportTs || (latest[k] == head.lamportTs && k < head.senderId)) return false;
+        }
+        return true;
+    }
+
+    public String stats() {
+        lock.lock();
+        try {
+            return "pending=" + pending.size() + " delivered=" + delivered + " acks=" + acksSent;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long acksSent() {
+        lock.lock();
+        try {
+            return acksSent;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package semaine3;
+
+import java.io.IOException;
+
+/**
+ * How a Node exchanges messages with its peers, selected by the Config option transport:
+ *  - blocking (default) / nio: TCP (TcpTransport), with NetServer or NioServer accepting;
+ *  - memory: nodes of the same JVM hand Message objects to each other through lock-free
+ *    queues, no encoding and no socket (MemoryTransport);
+ *  - shm: processes of the same host write frames into each other's memory-mapped ring
+ *    file (SharedMemoryTransport).
+ *
+ * Everything received is handed to Node.onNetworkReceive, on a transport thread.
+ * Peers are addressed by id; Config gives every id a host and port, which the non-TCP
+ * transports use as the node's name.
+ */
+public interface Transport extends AutoCloseable {
+    /** Starts receiving; peers cannot reach this node before. */
+    void start() throws IOException;
+
+    /** Sends one message (may only queue it, e.g. TCP with batch=true). */
+    void send(int destId, Message msg) throws IOException;
+
+    /**
+     * Encodes msg once for several sendEncoded calls (broadcast).
+     * @return null when the transport has nothing to share between peers
+     */
+    byte[] encode(Message msg);
+
+    /**
+     * Sends msg, as the bytes encode(msg) returned when not null. waitMs bounds the wait for
+     * the peer to take it (busy connection, full ring or queue), < 0 waits forever.
+     */
+    void sendEncoded(int destId, Message msg, byte[] encoded, long waitMs) throws IOException;
+
+    /** System.nanoTime() of the last write to peer, 0 if never written (FailureDetector). */
+    long lastWriteNanos(int peer);
+
+    @Override
+    void close();
+
+    static Transport create(Config config, int myId, Node node) {
+        String transport = config.option("transport", "blocking");
+        int port = config.get(myId).port;
+        switch (transport) {
+            case "blocking":
+                return new TcpTransport(config, myId, new NetServer(port, node, config.threadMode()), node.metrics());
+            case "nio":
+                return new TcpTransport(config, myId, new NioServer(port, node, config.intOption("nio.threads", 2), config.threadMode()), node.metrics());
+            case "memory":
+                return new MemoryTransport(config, myId, node);
+            case "shm":
+                return new SharedMemoryTransport(config, myId, node);
+            default:
+                throw new IllegalArgumentException("unknown transport: " + transport);
+        }
+    }
+}
@@ -1,47 +1,34 @@
 package semaine3;
 
-import java.util.Arrays;
-
 /**
  * Vector clock.
  * Rules:
  *  - On local event / send: VC[myId]++.
  *  - On receive: VC[i] = max(VC[i], received[i]) for all i, then VC[myId]++.
+ *
+ * Implementations (Config option clock=sync|atomic):
+ *  - SynchronizedVectorClock: monitor based (default).
+ *  - AtomicVectorClock: concurrent merges, exclusive consistent snapshots.
  */
-public final class VectorClock {
-    private final int[] vc;
-    private final int myId;
+public interface VectorClock {
+    void tick();
 
-    public VectorClock(int n, int myId) {
-        if (n <= 0) throw new IllegalArgumentException("n must be > 0");
-        if (myId < 0 || myId >= n) throw new IllegalArgumentException("invalid myId");
-        this.vc = new int[n];
-        this.myId = myId;
-    }
+    void onReceive(int[] received);
 
-    public synchronized void tick() {
-        vc[myId] += 1;
-    }
+    int[] snapshot();
 
-    public synchronized void onReceive(int[] received) {
-        if (received == null || received.length != vc.length) {
-            throw new IllegalArgumentException("bad received vector length");
-        }
-        for (int i = 0; i < vc.length; i++) {
-            vc[i] = Math.max(vc[i], received[i]);
-        }
-        vc[myId] += 1;
-    }
+    String snapshotString();
 
-    public synchronized int[] snapshot() {
-        return Arrays.copyOf(vc, vc.length);
-    }
+    /** tick() and snapshot() as one atomic step: the vector to stamp an outgoing message with. */
+    int[] tickAndSnapshot();
 
-    public synchronized String snapshotString() {
-        return Arrays.toString(vc);
-    }
+    int size();
 
-    public int size() {
-        return vc.length;
+    static VectorClock create(String kind, int n, int myId) {
+        switch (kind) {
+            case "sync": return new SynchronizedVectorClock(n, myId);
+            case "atomic": return new AtomicVectorClock(n, myId);
+            default: throw new IllegalArgumentException("unknown clock kind: " + kind);
+        }
     }
 }
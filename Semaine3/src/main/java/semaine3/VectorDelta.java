@@ -0,0 +1,65 @@
+package semaine3;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Delta encoding of vector clocks for one connection (wire=delta), in the spirit of
+ * Singhal-Kshemkalyani: only the components that changed since the previous message on
+ * the same connection are sent, and the receiver rebuilds the full vector.
+ *
+ * Encoding: varint n, varint count, then count x (varint gap, varint value), where gap is
+ * the number of unchanged components skipped since the previous entry.
+ *
+ * Rules:
+ *  - one instance per direction of a connection; both sides start from all zeros,
+ *    so a new connection (reconnect included) starts with a new instance;
+ *  - frames must be written in the order they are encoded (TCP keeps that order).
+ */
+public final class VectorDelta {
+    private int[] last = new int[0];
+    private int[] changed = new int[0]; // scratch: indices that changed, sender side
+
+    /** Upper bound of the encoded size for a vector of n components. */
+    public static int maxSize(int n) {
+        return 10 + 10 * n;
+    }
+
+    /** Writes the components of vc that changed since the previous call. */
+    public void write(ByteBuffer out, int[] vc) {
+        if (vc.length != last.length) {
+            last = new int[vc.length];
+            changed = new int[vc.length];
+        }
+        int count = 0;
+        for (int i = 0; i < vc.length; i++) {
+            if (vc[i] != last[i]) changed[count++] = i;
+        }
+        BinaryCodec.writeVarint(out, vc.length);
+        BinaryCodec.writeVarint(out, count);
+        int prev = -1;
+        for (int k = 0; k < count; k++) {
+            int i = changed[k];
+            BinaryCodec.writeVarint(out, i - prev - 1);
+            BinaryCodec.writeVarint(out, vc[i]);
+            last[i] = vc[i];
+            prev = i;
+        }
+    }
+
+    /** Reads a delta written by write() and returns the full vector (a fresh array). */
+    public int[] read(ByteBuffer in) {
+        int n = BinaryCodec.readVarint(in);
+        if (n < 0 || n > BinaryCodec.MAX_FRAME) throw new IllegalArgumentException("bad vector length: " + n);
+        if (n != last.length) last = new int[n];
+        int count = BinaryCodec.readVarint(in);
+        if (count < 0 || count > n) throw new IllegalArgumentException("bad delta count: " + count);
+        int i = -1;
+        for (int k = 0; k < count; k++) {
+            i += BinaryCodec.readVarint(in) + 1;
+            if (i < 0 || i >= n) throw new IllegalArgumentException("bad delta index: " + i);
+            last[i] = BinaryCodec.readVarint(in);
+        }
+        return Arrays.copyOf(last, n);
+    }
+}
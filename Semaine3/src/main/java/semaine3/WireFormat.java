@@ -0,0 +1,23 @@
+package semaine3;
+
+/**
+ * Wire format used on a connection.
+ *  - TEXT: one line per message (Message.serialize()), readable with netcat, the default.
+ *  - BINARY: length-prefixed frames (BinaryCodec), announced by a preamble.
+ *  - DELTA: BINARY frames whose vector clock only carries the components that changed since
+ *    the previous frame on the connection (VectorDelta); frames are encoded per connection.
+ */
+public enum WireFormat {
+    TEXT,
+    BINARY,
+    DELTA;
+
+    public static WireFormat parse(String s) {
+        switch (s.trim().toLowerCase()) {
+            case "text": return TEXT;
+            case "binary": return BINARY;
+            case "delta": return DELTA;
+            default: throw new IllegalArgumentException("unknown wire format: " + s);
+        }
+    }
+}